@@ -0,0 +1,4 @@
+-- Moves the history tables created as MyISAM tables to InnoDB, so a failed history batch is rolled back
+-- as a whole instead of leaving the rows written before the failure. Run it while the service is stopped
+ALTER TABLE hpd.pid_tr_history ENGINE=InnoDB;
+ALTER TABLE hpd.pid_tr_entity ENGINE=InnoDB;
@@ -0,0 +1,4 @@
+-- Replaces the index on tr_date by an index on (tr_date, tr_id) for the keyset pagination of downloads
+ALTER TABLE hpd.pid_tr_history
+	DROP INDEX tr_date,
+	ADD INDEX USING BTREE (tr_date, tr_id);
@@ -0,0 +1,6 @@
+-- Adds the time history entries are written, the order of the changes requests. The entries written before are
+-- taken as written at their transaction date
+ALTER TABLE hpd.pid_tr_history
+	ADD COLUMN tr_written DATETIME(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
+	ADD INDEX USING BTREE (tr_written, tr_id);
+UPDATE hpd.pid_tr_history SET tr_written = tr_date;
@@ -0,0 +1,6 @@
+-- Moves the snapshot tables created as MyISAM tables with a latin1 body to InnoDB with a utf8 body, so a
+-- failed compaction is rolled back as a whole and the characters outside latin1 are kept. The bodies
+-- already stored are converted, characters lost before stay lost until the entry changes. Run it while
+-- the service is stopped
+ALTER TABLE hpd.pid_tr_snapshot ENGINE=InnoDB, MODIFY tr_body MEDIUMTEXT CHARACTER SET utf8 COLLATE utf8_bin;
+ALTER TABLE hpd.pid_tr_snapshot_info ENGINE=InnoDB;
@@ -0,0 +1,22 @@
+CREATE TABLE IF NOT EXISTS hpd.pid_tr_entity (
+	tr_id			INT NOT NULL,
+	tr_date			DATETIME NOT NULL,
+	dn_key			VARCHAR(255) CHARACTER SET latin1 COLLATE latin1_bin NOT NULL,
+	op_type			VARCHAR(16) NOT NULL,
+	community		VARCHAR(255) CHARACTER SET latin1 COLLATE latin1_bin NOT NULL,
+	-- One row per object class of the entry, null if none is known
+	object_class	VARCHAR(64) CHARACTER SET latin1 COLLATE latin1_bin,
+	
+	-- The entries targeted by the transactions of pid_tr_history, by tr_id
+	INDEX USING BTREE (dn_key, tr_date),
+	INDEX USING BTREE (object_class, tr_date),
+	INDEX USING BTREE (community, tr_date),
+	INDEX USING BTREE (tr_date, tr_id)
+)
+-- Transactional, the entries of pid_tr_history and pid_tr_entity written by a batch are committed together
+ENGINE=InnoDB 
+-- One partition per month like pid_tr_history, maintained by the HistoryStorageManager, which splits
+-- pmax into the current and the next months at its first maintenance
+PARTITION BY RANGE ( TO_DAYS(tr_date) ) (
+	PARTITION pmax VALUES LESS THAN MAXVALUE
+);
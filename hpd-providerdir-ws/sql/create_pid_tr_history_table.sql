@@ -2,13 +2,22 @@ CREATE TABLE IF NOT EXISTS hpd.pid_tr_history (
 	tr_id       INT AUTO_INCREMENT,
 	tr_op_idx	VARCHAR(64) NOT NULL,
 	src_desc    VARCHAR(64) CHARACTER SET latin1 COLLATE latin1_bin,
-	tr_date     DATETIME,
-	tr_body     MEDIUMTEXT CHARACTER SET latin1 COLLATE latin1_bin,
+	tr_date     DATETIME NOT NULL,
+	-- The body in the format of COMPRESS with hpd.pid.history.compressed_bodies, read it with UNCOMPRESS
+	tr_body     MEDIUMBLOB,
+	-- The time the entry was written, the order of the changes requests
+	tr_written  DATETIME(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
 	
-	INDEX USING BTREE (src_desc),
-	INDEX USING BTREE (tr_date),
+	-- Range scans filter the source from the index before the rows are read
+	INDEX USING BTREE (tr_date, tr_id, src_desc),
+	INDEX USING BTREE (tr_written, tr_id),
 	PRIMARY KEY (tr_id, tr_date)
 )
-ENGINE=MyISAM 
-PARTITION BY HASH ( MONTH(tr_date) )
-PARTITIONS 12;
\ No newline at end of file
+-- Transactional, the entries of pid_tr_history and pid_tr_entity written by a batch are committed together
+-- (the transaction ids of a batch are consecutive with innodb_autoinc_lock_mode 0 or 1)
+ENGINE=InnoDB 
+-- One partition per month, added ahead and dropped past the retention by the HistoryStorageManager,
+-- which splits pmax into the current and the next months at its first maintenance
+PARTITION BY RANGE ( TO_DAYS(tr_date) ) (
+	PARTITION pmax VALUES LESS THAN MAXVALUE
+);
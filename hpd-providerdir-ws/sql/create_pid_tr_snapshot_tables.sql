@@ -0,0 +1,24 @@
+CREATE TABLE IF NOT EXISTS hpd.pid_tr_snapshot (
+	snapshot_date	DATETIME NOT NULL,
+	dn_key			VARCHAR(255) CHARACTER SET latin1 COLLATE latin1_bin NOT NULL,
+	dn_depth		SMALLINT NOT NULL,
+	tr_id			INT,
+	tr_date			DATETIME,
+	src_desc		VARCHAR(64) CHARACTER SET latin1 COLLATE latin1_bin,
+	-- The marshalled batchRequest, utf8 like the bodies of pid_tr_history
+	tr_body			MEDIUMTEXT CHARACTER SET utf8 COLLATE utf8_bin,
+	
+	INDEX USING BTREE (snapshot_date, dn_depth, dn_key),
+	PRIMARY KEY (snapshot_date, dn_key)
+)
+-- Transactional like pid_tr_history, a snapshot is written and purged together with its record
+ENGINE=InnoDB;
+
+CREATE TABLE IF NOT EXISTS hpd.pid_tr_snapshot_info (
+	snapshot_date	DATETIME NOT NULL,
+	previous_date	DATETIME,
+	created_date	DATETIME NOT NULL,
+	
+	PRIMARY KEY (snapshot_date)
+)
+ENGINE=InnoDB;
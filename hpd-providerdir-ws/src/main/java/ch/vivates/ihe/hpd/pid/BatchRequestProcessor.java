@@ -3,28 +3,28 @@ package ch.vivates.ihe.hpd.pid;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.concurrent.RejectedExecutionException;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 
 import org.apache.camel.Body;
 import org.apache.camel.Header;
 import org.apache.camel.language.NamespacePrefix;
 import org.apache.camel.language.XPath;
 import org.apache.directory.api.dsmlv2.ParserUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import ch.vivates.ihe.hpd.pid.model.cs.BatchRequest;
+import ch.vivates.tools.dsmlv2.DsmlOperationNotAllowedException;
 import ch.vivates.tools.dsmlv2.Dsmlv2Engine;
+import ch.vivates.tools.jaxp.StreamingSourceFactory;
+import ch.vivates.tools.jaxp.XmlStreamRewriter;
 
 /**
  * The Class BatchRequestProcessor.
@@ -34,36 +34,45 @@ import ch.vivates.tools.dsmlv2.Dsmlv2Engine;
  */
 public class BatchRequestProcessor {
 	
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(BatchRequestProcessor.class);
+	
 	/** The dsml engine. */
 	private Dsmlv2Engine dsmlEngine;
 	
+	/** The factory of the streamed query responses, if null the responses are buffered. */
+	private StreamingSourceFactory streamingSourceFactory;
+	
 	/**
-	 * Processes the request query.
+	 * Processes the request query. The query is executed from the object graph unmarshalled by the
+	 * route, without marshalling it again. The response is streamed to the SOAP layer while the
+	 * engine writes it, unless no streaming thread is available.
 	 *
 	 * @param dsmlQuery the dsml query
-	 * @return the response for the request as byte array
+	 * @return the response for the request as source
 	 * @throws Exception the exception
 	 */
-	public byte[] processQueryRequest(@Body InputStream dsmlQuery) throws Exception  {
-		ByteArrayOutputStream response = new ByteArrayOutputStream();
-		
-		@SuppressWarnings("resource")
-		Scanner scanner = new Scanner(dsmlQuery).useDelimiter("\\A");
-		String strDsmlQuery = (scanner.hasNext() ? scanner.next() : "");
-		dsmlQuery.reset();
-		
-		if(strDsmlQuery.toLowerCase().contains("addrequest") ||
-		   strDsmlQuery.toLowerCase().contains("modifyrequest") ||
-		   strDsmlQuery.toLowerCase().contains("delrequest") ||
-		   strDsmlQuery.toLowerCase().contains("modifydnrequest") ||
-		   strDsmlQuery.toLowerCase().contains("comparerequest") ||
-		   strDsmlQuery.toLowerCase().contains("abandonrequest") ||
-		   strDsmlQuery.toLowerCase().contains("extendedrequest")) {
-			throw new Exception("Only SearchRequest is allowed for Action 'urn:ihe:iti:2010:ProviderInformationQuery'.");
+	public Source processQueryRequest(@Body final BatchRequest dsmlQuery) throws Exception  {
+		try {
+			if (streamingSourceFactory != null) {
+				try {
+					return streamingSourceFactory.newSource(new StreamingSourceFactory.Producer() {
+						@Override
+						public void writeTo(OutputStream out) throws Exception {
+							dsmlEngine.processQueryBatchRequest(dsmlQuery, out);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					LOG.warn("No thread available to stream the query response, buffering it");
+				}
+			}
+			
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			dsmlEngine.processQueryBatchRequest(dsmlQuery, response);
+			return new StreamSource(new ByteArrayInputStream(response.toByteArray()));
+		} catch (DsmlOperationNotAllowedException e) {
+			throw new Exception("Only SearchRequest is allowed for Action 'urn:ihe:iti:2010:ProviderInformationQuery'.", e);
 		}
-		
-		dsmlEngine.processDSML(dsmlQuery, response);
-		return  response.toByteArray();
 	}
 	
 	/**
@@ -125,6 +134,15 @@ public class BatchRequestProcessor {
 		this.dsmlEngine = dsmlEngine;
 	}
 	
+	/**
+	 * Sets the factory of the streamed query responses.
+	 *
+	 * @param streamingSourceFactory the new streaming source factory
+	 */
+	public void setStreamingSourceFactory(StreamingSourceFactory streamingSourceFactory) {
+		this.streamingSourceFactory = streamingSourceFactory;
+	}
+	
 	/**
 	 * Injects batch request node.
 	 *
@@ -137,35 +155,20 @@ public class BatchRequestProcessor {
 	 * @throws Exception the exception
 	 */
 	private InputStream injectBatchRequestNode(InputStream is, String requestID, String processing, String responseOrder, String onError) throws Exception {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-
-        Document oldDoc = builder.parse(is);
-        Node oldRoot = oldDoc.getDocumentElement();
-        Document newDoc = builder.newDocument();
-        Element newRoot = newDoc.createElementNS(ParserUtils.DSML_NAMESPACE.getURI(), "dsml:batchRequest");
-        if(requestID != null && !requestID.isEmpty()) {
-        	newRoot.setAttribute("requestID", requestID);
-        }
-        if(processing != null && !processing.isEmpty()) {
-        	newRoot.setAttribute("processing", processing);
-        }
-        if(responseOrder != null && !responseOrder.isEmpty()) {
-           	newRoot.setAttribute("responseOrder", responseOrder);
-        }
-        if(onError != null && !onError.isEmpty()) {
-        	newRoot.setAttribute("onError", onError);
-        }
-        newDoc.appendChild(newRoot);
-        newRoot.appendChild(newDoc.importNode(oldRoot, true));
-        
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        Source domSource = new DOMSource(newDoc);
-        StreamResult result = new StreamResult(out);
-        Transformer tr = TransformerFactory.newInstance().newTransformer();
-        tr.setOutputProperty("omit-xml-declaration", "yes");
-        tr.transform(domSource, result);
-        return new ByteArrayInputStream(out.toByteArray());
-    }
+		Map<String, String> attributes = new LinkedHashMap<String, String>();
+		if(requestID != null && !requestID.isEmpty()) {
+			attributes.put("requestID", requestID);
+		}
+		if(processing != null && !processing.isEmpty()) {
+			attributes.put("processing", processing);
+		}
+		if(responseOrder != null && !responseOrder.isEmpty()) {
+			attributes.put("responseOrder", responseOrder);
+		}
+		if(onError != null && !onError.isEmpty()) {
+			attributes.put("onError", onError);
+		}
+		return XmlStreamRewriter.wrap(is, "dsml", "batchRequest", ParserUtils.DSML_NAMESPACE.getURI(), attributes);
+	}
 	
 }
@@ -0,0 +1,430 @@
+package ch.vivates.ihe.hpd.pid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.camel.Body;
+import org.apache.camel.Header;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.vivates.ihe.hpd.pid.history.ElementCopyHandler;
+import ch.vivates.ihe.hpd.pid.history.HistoryChangeNotifier;
+import ch.vivates.ihe.hpd.pid.history.HistoryFilter;
+import ch.vivates.ihe.hpd.pid.history.HistoryPosition;
+import ch.vivates.ihe.hpd.pid.history.HistoryReader;
+import ch.vivates.ihe.hpd.pid.history.HistoryStore;
+import ch.vivates.ihe.hpd.pid.model.cs.ChangesRequest;
+import ch.vivates.tools.jaxp.StreamingSourceFactory;
+
+/**
+ * The Class ChangesRequestProcessor answers the changes requests, which return the transactions
+ * after the watermark of the previous response. Without new transactions the request waits until
+ * the history writer announces new entries or the wait time expires, so consumers see changes
+ * within seconds without downloading overlapping ranges again.
+ * <p>
+ * The watermark is the write position (tr_written, tr_id) of the last transaction returned, the
+ * time the database wrote its history entry and its id, encoded like the continuation tokens of
+ * the paged downloads with a version of its own. The transaction date is the time the feed was
+ * received, and its history entry may be written much later, e.g. while the history queue is
+ * behind: ordered by write, a late entry still comes after the watermark of the entries written
+ * before it. Transactions are only returned once written for longer than the settle time, since
+ * the batches of several writers commit a little after their write time, and an entry committed
+ * behind a watermark already returned would never be seen by the consumer. The history writer
+ * rolls back the batches it cannot commit within its maximum commit time, and the service does
+ * not start with a settle time not exceeding it.
+ * <p>
+ * The changes need a history store reading the entries in the order they were written. With
+ * another store the changes requests must be disabled, they are answered with an error response.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class ChangesRequestProcessor {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(ChangesRequestProcessor.class);
+
+	/** The namespace of the changes response. */
+	private static final String CS_NAMESPACE = "urn:ehealth-suisse:names:tc:CS:1";
+
+	/** The prefix of the changes response. */
+	private static final String CS_PREFIX = "cs";
+
+	/** The namespace of the error response. */
+	private static final String DSML_NAMESPACE = "urn:oasis:names:tc:DSML:2:0:core";
+
+	/** The prefix of the error response. */
+	private static final String DSML_PREFIX = "dsml";
+
+	/** The StAX output factory. */
+	private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+	/** The parameter holding the request id. */
+	private static final String REQUEST_ID_PARAM = "request_id";
+
+	/** The parameter holding the page size. */
+	private static final String PAGE_SIZE_PARAM = "page_size";
+
+	/** The parameter holding the watermark of the previous response. */
+	private static final String AFTER_PARAM = "after";
+
+	/** The parameter holding the time to wait for new transactions. */
+	private static final String WAIT_PARAM = "wait_millis";
+
+	/** The version of the watermark tokens, write positions are not download positions. */
+	private static final String WATERMARK_VERSION = "w1";
+
+	/** Whether the changes requests are answered. */
+	private boolean enabled = true;
+
+	/** The from month limit. */
+	private int fromMonthLimit = 12;
+
+	/** The largest page of a response. */
+	private int maxPageSize = 5000;
+
+	/** The longest time a request waits for new transactions. */
+	private long maxWaitMillis = 30000;
+
+	/** The number of requests waiting at once, further requests are answered right away. */
+	private int maxWaitingRequests = 10;
+
+	/** The time after their write before the transactions are returned. */
+	private long settleMillis = 2000;
+
+	/** The requests waiting for new transactions. */
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	/** The history store. */
+	private HistoryStore historyStore;
+
+	/** The notifier of the written history entries. */
+	private HistoryChangeNotifier changeNotifier;
+
+	/** The factory of streamed responses, null to buffer responses. */
+	private StreamingSourceFactory streamingSourceFactory;
+
+	/**
+	 * Checks that the history store supports the changes requests, unless they are disabled, and
+	 * that the settle time exceeds the longest time the history writer takes to commit an entry
+	 * after its write date.
+	 *
+	 * @throws IllegalStateException if the changes requests are enabled with a store not supporting them, or
+	 *             if the settle time does not cover the commit time of the store
+	 */
+	public void init() {
+		if (!enabled) {
+			return;
+		}
+		if (!historyStore.isChangesSupported()) {
+			throw new IllegalStateException("Changes requests need the jdbc history store, disable them with hpd.pid.ws.changes_enabled=false");
+		}
+		long maxCommitMillis = historyStore.getMaxCommitMillis();
+		if (maxCommitMillis <= 0 || settleMillis <= maxCommitMillis) {
+			throw new IllegalStateException("The changes settle time (" + settleMillis + " ms) must exceed the maximum commit time of the"
+					+ " history writer (" + maxCommitMillis + " ms), see hpd.pid.ws.changes_settle_millis and hpd.pid.history.max_commit_millis");
+		}
+	}
+
+	/**
+	 * Extracts the parameters from the changes request.
+	 *
+	 * @param request the changes request, as unmarshalled by JAXB
+	 * @param principal the principal tag
+	 * @return a map with the request parameters
+	 */
+	public Map<String, Object> extractParams(@Body ChangesRequest request, @Header("principal") String principal) {
+		Map<String, Object> requestParamsMap = new HashMap<String, Object>();
+		requestParamsMap.put(REQUEST_ID_PARAM, request.getRequestID());
+		DateTime limitDateTime = DateTime.now().minusMonths(fromMonthLimit);
+		String watermark = request.getWatermark();
+		if (watermark != null && !watermark.isEmpty()) {
+			requestParamsMap.put(AFTER_PARAM, DownloadRequestProcessor.parseToken(WATERMARK_VERSION, watermark));
+		} else if (request.getFromDate() != null) {
+			long fromDate = request.getFromDate().getTimeInMillis();
+			// The first request returns the transactions written from the from date on
+			requestParamsMap.put(AFTER_PARAM, new HistoryPosition(new Timestamp(Math.max(fromDate, limitDateTime.getMillis())), -1L));
+		} else {
+			throw new IllegalArgumentException("A changes request needs a watermark or a fromDate");
+		}
+		// Only bounds the transaction dates, entries written late are found by their write position
+		requestParamsMap.put("from_date", limitDateTime.toString());
+		requestParamsMap.put("filtered_user", request.isFilterMyTransactions() ? principal : "#####");
+		if (request.getPageSize() != null) {
+			requestParamsMap.put(PAGE_SIZE_PARAM, Math.max(1, Math.min(request.getPageSize(), maxPageSize)));
+		} else {
+			requestParamsMap.put(PAGE_SIZE_PARAM, maxPageSize);
+		}
+		if (request.getWaitMillis() != null) {
+			requestParamsMap.put(WAIT_PARAM, Math.max(0, Math.min(request.getWaitMillis().longValue(), maxWaitMillis)));
+		} else {
+			requestParamsMap.put(WAIT_PARAM, maxWaitMillis);
+		}
+		HistoryFilter filter = HistoryFilter.of(DownloadRequestProcessor.valuesOf(request.getDn()),
+				DownloadRequestProcessor.valuesOf(request.getObjectClass()), DownloadRequestProcessor.valuesOf(request.getCommunity()));
+		if (filter != null) {
+			requestParamsMap.put(HistoryFilter.PARAMETER, filter);
+		}
+		return requestParamsMap;
+	}
+
+	/**
+	 * Processes a changes request. The request waits for new transactions before the response is
+	 * streamed, so the streaming threads are not held while waiting.
+	 *
+	 * @param params the request parameters, as extracted by extractParams
+	 * @return the response as source
+	 * @throws Exception the exception
+	 */
+	public Source processChanges(@Body final Map<String, Object> params) throws Exception {
+		if (!enabled || !historyStore.isChangesSupported()) {
+			LOG.warn("Changes request rejected, changes requests are disabled or not supported by the history store");
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			writeErrorResponse(params, "Changes requests are not supported by this service", response);
+			return new StreamSource(new ByteArrayInputStream(response.toByteArray()));
+		}
+		awaitChanges(params);
+		if (streamingSourceFactory != null) {
+			try {
+				return streamingSourceFactory.newSource(new StreamingSourceFactory.Producer() {
+					@Override
+					public void writeTo(OutputStream out) throws Exception {
+						writeResponse(params, out);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				LOG.warn("No thread available to stream the changes response, buffering it");
+			}
+		}
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		writeResponse(params, response);
+		return new StreamSource(new ByteArrayInputStream(response.toByteArray()));
+	}
+
+	/**
+	 * Waits until there are transactions after the watermark or the wait time of the request
+	 * expires. Once the history writer announces new entries, they are looked for again after
+	 * the settle time if they are not yet old enough. Beyond the maximum number of waiting
+	 * requests, requests are answered right away.
+	 *
+	 * @param params the request parameters
+	 * @throws Exception the exception of the history store
+	 */
+	void awaitChanges(Map<String, Object> params) throws Exception {
+		long waitMillis = (Long) params.get(WAIT_PARAM);
+		if (waitMillis <= 0) {
+			return;
+		}
+		if (waiting.incrementAndGet() > maxWaitingRequests) {
+			waiting.decrementAndGet();
+			LOG.debug("Too many changes requests waiting, answering right away");
+			return;
+		}
+		try {
+			long deadline = System.currentTimeMillis() + waitMillis;
+			boolean settling = false;
+			while (true) {
+				// The version is read first, so an announcement during the read is not missed
+				long version = changeNotifier.getVersion();
+				if (hasChanges(params)) {
+					return;
+				}
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return;
+				}
+				if (settling) {
+					settling = false;
+					Thread.sleep(Math.min(settleMillis, remaining));
+				} else {
+					settling = changeNotifier.await(version, remaining);
+				}
+			}
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Checks whether there are transactions after the watermark.
+	 *
+	 * @param params the request parameters
+	 * @return true if there is a transaction to return
+	 * @throws Exception the exception of the history store
+	 */
+	private boolean hasChanges(Map<String, Object> params) throws Exception {
+		HistoryPosition after = (HistoryPosition) params.get(AFTER_PARAM);
+		return historyStore.readChanges(settledOf(params), after, 1, new HistoryReader.EntryHandler() {
+			@Override
+			public void entry(HistoryPosition position, String principal, Reader body) {
+				// Only whether there is an entry matters
+			}
+		}) != null;
+	}
+
+	/**
+	 * Writes the response for a changes request: the transactions after the watermark, up to
+	 * the page size, followed by the watermark of the last transaction. Without transactions the
+	 * watermark of the request, or of its from date, is returned again.
+	 *
+	 * @param params the request parameters
+	 * @param out the stream to write to
+	 * @throws Exception the exception
+	 */
+	public void writeResponse(Map<String, Object> params, OutputStream out) throws Exception {
+		XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+		writer.writeStartElement(CS_PREFIX, "changesResponse", CS_NAMESPACE);
+		writer.writeNamespace(CS_PREFIX, CS_NAMESPACE);
+		writer.writeAttribute("timestamp", DateTime.now().toString());
+		if (params.get(REQUEST_ID_PARAM) != null) {
+			writer.writeAttribute("requestID", (String) params.get(REQUEST_ID_PARAM));
+		}
+		HistoryPosition after = (HistoryPosition) params.get(AFTER_PARAM);
+		HistoryPosition last = historyStore.readChanges(settledOf(params), after, (Integer) params.get(PAGE_SIZE_PARAM),
+				new ElementCopyHandler(writer));
+		writer.writeStartElement(CS_PREFIX, "watermark", CS_NAMESPACE);
+		writer.writeCharacters(DownloadRequestProcessor.toToken(WATERMARK_VERSION, last != null ? last : after));
+		writer.writeEndElement();
+		writer.writeEndElement();
+		writer.flush();
+		writer.close();
+	}
+
+	/**
+	 * Writes the response for a changes request that is not answered: an errorResponse of type
+	 * notAttempted, without transactions and watermark.
+	 *
+	 * @param params the request parameters
+	 * @param message the message of the error
+	 * @param out the stream to write to
+	 * @throws Exception the exception
+	 */
+	public void writeErrorResponse(Map<String, Object> params, String message, OutputStream out) throws Exception {
+		XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+		writer.writeStartElement(CS_PREFIX, "changesResponse", CS_NAMESPACE);
+		writer.writeNamespace(CS_PREFIX, CS_NAMESPACE);
+		writer.writeNamespace(DSML_PREFIX, DSML_NAMESPACE);
+		writer.writeAttribute("timestamp", DateTime.now().toString());
+		if (params.get(REQUEST_ID_PARAM) != null) {
+			writer.writeAttribute("requestID", (String) params.get(REQUEST_ID_PARAM));
+		}
+		writer.writeStartElement(CS_PREFIX, "errorResponse", CS_NAMESPACE);
+		writer.writeAttribute("type", "notAttempted");
+		writer.writeStartElement(DSML_PREFIX, "message", DSML_NAMESPACE);
+		writer.writeCharacters(message);
+		writer.writeEndElement();
+		writer.writeEndElement();
+		writer.writeEndElement();
+		writer.flush();
+		writer.close();
+	}
+
+	/**
+	 * Gets the parameters of the changes read, skipping the entries written within the settle
+	 * time.
+	 *
+	 * @param params the request parameters
+	 * @return the parameters of the read
+	 */
+	private Map<String, Object> settledOf(Map<String, Object> params) {
+		Map<String, Object> settled = new HashMap<String, Object>(params);
+		settled.put("settle_micros", settleMillis * 1000);
+		return settled;
+	}
+
+	/**
+	 * Sets whether the changes requests are answered.
+	 *
+	 * @param enabled true to answer the changes requests
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Sets the from month limit.
+	 *
+	 * @param fromMonthLimit the new from month limit
+	 */
+	public void setFromMonthLimit(int fromMonthLimit) {
+		this.fromMonthLimit = fromMonthLimit;
+	}
+
+	/**
+	 * Sets the largest page of a response.
+	 *
+	 * @param maxPageSize the new maximum page size
+	 */
+	public void setMaxPageSize(int maxPageSize) {
+		this.maxPageSize = maxPageSize;
+	}
+
+	/**
+	 * Sets the longest time a request waits for new transactions.
+	 *
+	 * @param maxWaitMillis the new maximum wait time in milliseconds
+	 */
+	public void setMaxWaitMillis(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * Sets the number of requests waiting at once.
+	 *
+	 * @param maxWaitingRequests the new maximum number of waiting requests
+	 */
+	public void setMaxWaitingRequests(int maxWaitingRequests) {
+		this.maxWaitingRequests = maxWaitingRequests;
+	}
+
+	/**
+	 * Sets the time after their write before the transactions are returned.
+	 *
+	 * @param settleMillis the new settle time in milliseconds
+	 */
+	public void setSettleMillis(long settleMillis) {
+		this.settleMillis = settleMillis;
+	}
+
+	/**
+	 * Sets the history store.
+	 *
+	 * @param historyStore the new history store
+	 */
+	public void setHistoryStore(HistoryStore historyStore) {
+		this.historyStore = historyStore;
+	}
+
+	/**
+	 * Sets the notifier of the written history entries.
+	 *
+	 * @param changeNotifier the new change notifier
+	 */
+	public void setChangeNotifier(HistoryChangeNotifier changeNotifier) {
+		this.changeNotifier = changeNotifier;
+	}
+
+	/**
+	 * Sets the streaming source factory.
+	 *
+	 * @param streamingSourceFactory the new streaming source factory
+	 */
+	public void setStreamingSourceFactory(StreamingSourceFactory streamingSourceFactory) {
+		this.streamingSourceFactory = streamingSourceFactory;
+	}
+
+}
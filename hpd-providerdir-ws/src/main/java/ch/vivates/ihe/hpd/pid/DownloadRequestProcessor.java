@@ -2,27 +2,34 @@ package ch.vivates.ihe.hpd.pid;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.text.ParseException;
-import java.util.Date;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 
 import org.apache.camel.Body;
 import org.apache.camel.Header;
-import org.apache.camel.language.NamespacePrefix;
-import org.apache.camel.language.XPath;
 import org.joda.time.DateTime;
-import org.joda.time.format.ISODateTimeFormat;
-import org.w3c.dom.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.vivates.ihe.hpd.pid.history.ElementCopyHandler;
+import ch.vivates.ihe.hpd.pid.history.HistoryFilter;
+import ch.vivates.ihe.hpd.pid.history.HistoryPosition;
+import ch.vivates.ihe.hpd.pid.history.HistoryReader;
+import ch.vivates.ihe.hpd.pid.history.HistoryStore;
+import ch.vivates.ihe.hpd.pid.model.cs.DownloadRequest;
+import ch.vivates.tools.jaxp.StreamingSourceFactory;
 
 /**
  * The Class DownloadRequestProcessor.
@@ -32,97 +39,279 @@ import org.w3c.dom.Document;
  */
 public class DownloadRequestProcessor {
 
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(DownloadRequestProcessor.class);
+
+	/** The namespace of the download response. */
+	private static final String CS_NAMESPACE = "urn:ehealth-suisse:names:tc:CS:1";
+
+	/** The prefix of the download response. */
+	private static final String CS_PREFIX = "cs";
+
+	/** The StAX output factory. */
+	private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+	/** The parameter holding the page size of a paged download. */
+	private static final String PAGE_SIZE_PARAM = "page_size";
+
+	/** The parameter holding the position after which a page starts. */
+	private static final String AFTER_PARAM = "after";
+
+	/** The parameter set for a snapshot download. */
+	private static final String SNAPSHOT_PARAM = "snapshot";
+
+	/** The version of the continuation tokens. */
+	private static final String TOKEN_VERSION = "1";
+
 	/** The from month limit. */
 	private int fromMonthLimit = 12;
 
+	/** The largest page of a paged download. */
+	private int maxPageSize = 5000;
+
+	/** The history reader, for the snapshots. */
+	private HistoryReader historyReader;
+
+	/** The history store. */
+	private HistoryStore historyStore;
+
+	/** The factory of streamed responses, null to buffer responses. */
+	private StreamingSourceFactory streamingSourceFactory;
+
 	/**
 	 * Extracts the parameters from the download request.
 	 *
-	 * @param requestID the request id
-	 * @param fromDateStr the from date string
-	 * @param toDateStr the to date string
-	 * @param filterMyTransactions the filter my transactions tag
+	 * @param request the download request, as unmarshalled by JAXB
 	 * @param principal the principal tag
 	 * @return a map with the request parameters
-	 * @throws ParseException the parse exception
 	 */
-	public Map<String, Object> extractParams(
-			@XPath(value = "/cs:downloadRequest/@requestID", namespaces = @NamespacePrefix(prefix = "cs", uri = "urn:ehealth-suisse:names:tc:CS:1"), resultType = String.class) String requestID,
-			@XPath(value = "/cs:downloadRequest/@fromDate", namespaces = @NamespacePrefix(prefix = "cs", uri = "urn:ehealth-suisse:names:tc:CS:1"), resultType = String.class) String fromDateStr,
-			@XPath(value = "/cs:downloadRequest/@toDate", namespaces = @NamespacePrefix(prefix = "cs", uri = "urn:ehealth-suisse:names:tc:CS:1"), resultType = String.class) String toDateStr,
-			@XPath(value = "/cs:downloadRequest/@filterMyTransactions", namespaces = @NamespacePrefix(prefix = "cs", uri = "urn:ehealth-suisse:names:tc:CS:1"), resultType = String.class) String filterMyTransactions, @Header("principal") String principal) throws ParseException {
+	public Map<String, Object> extractParams(@Body DownloadRequest request, @Header("principal") String principal) {
 		Map<String, Object> requestParamsMap = new HashMap<String, Object>();
-		requestParamsMap.put("request_id", requestID);
+		requestParamsMap.put("request_id", request.getRequestID());
+		if (request.getFromDate() == null) {
+			throw new IllegalArgumentException("Download requests need a fromDate");
+		}
 		DateTime limitDateTime = DateTime.now().minusMonths(fromMonthLimit);
-		DateTime fromDate = ISODateTimeFormat.dateTimeParser().parseDateTime(fromDateStr);
+		DateTime fromDate = new DateTime(request.getFromDate().getTimeInMillis());
 		requestParamsMap.put("from_date", limitDateTime.isBefore(fromDate) ? fromDate.toString() : limitDateTime.toString());
-		if (toDateStr == null || toDateStr.isEmpty()) {
+		if (request.getToDate() == null) {
 			requestParamsMap.put("to_date",  DateTime.now().toString());
 		} else {
-			requestParamsMap.put("to_date", ISODateTimeFormat.dateTimeParser().parseDateTime(toDateStr).toString());
+			requestParamsMap.put("to_date", new DateTime(request.getToDate().getTimeInMillis()).toString());
+		}
+		requestParamsMap.put("filtered_user", request.isFilterMyTransactions() ? principal : "#####");
+		boolean paged = false;
+		String continuationToken = request.getContinuationToken();
+		if (continuationToken != null && !continuationToken.isEmpty()) {
+			requestParamsMap.put(AFTER_PARAM, parseToken(continuationToken));
+			paged = true;
+		}
+		if (request.getPageSize() != null) {
+			requestParamsMap.put(PAGE_SIZE_PARAM, Math.max(1, Math.min(request.getPageSize(), maxPageSize)));
+		} else if (paged) {
+			requestParamsMap.put(PAGE_SIZE_PARAM, maxPageSize);
+		}
+		if (request.isSnapshot()) {
+			if (requestParamsMap.containsKey(PAGE_SIZE_PARAM)) {
+				throw new IllegalArgumentException("Snapshot downloads are not paged");
+			}
+			requestParamsMap.put(SNAPSHOT_PARAM, Boolean.TRUE);
+		}
+		HistoryFilter filter = HistoryFilter.of(valuesOf(request.getDn()), valuesOf(request.getObjectClass()),
+				valuesOf(request.getCommunity()));
+		if (filter != null) {
+			if (requestParamsMap.containsKey(SNAPSHOT_PARAM)) {
+				throw new IllegalArgumentException("Snapshot downloads are not filtered");
+			}
+			requestParamsMap.put(HistoryFilter.PARAMETER, filter);
 		}
-		requestParamsMap.put("filtered_user", Boolean.valueOf(filterMyTransactions) ? principal : "#####");
 		return requestParamsMap;
 	}
 
 	/**
-	 * Processes the response for a download request.
+	 * Processes a download request. The history entries are read with a JDBC cursor and copied
+	 * into the response while it is streamed to the SOAP layer, unless no streaming thread is
+	 * available.
 	 *
-	 * @param results the results of the request
-	 * @return the response as byte array.
+	 * @param params the request parameters, as extracted by extractParams
+	 * @return the response as source
 	 * @throws Exception the exception
 	 */
-	public byte[] processResponse(@Body List<Map<String, Object>> results) throws Exception {
-		StringBuilder sb = new StringBuilder(results.size() * 2000);
+	public Source processDownload(@Body final Map<String, Object> params) throws Exception {
+		if (streamingSourceFactory != null) {
+			try {
+				return streamingSourceFactory.newSource(new StreamingSourceFactory.Producer() {
+					@Override
+					public void writeTo(OutputStream out) throws Exception {
+						writeResponse(params, out);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				LOG.warn("No thread available to stream the download response, buffering it");
+			}
+		}
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		writeResponse(params, response);
+		return new StreamSource(new ByteArrayInputStream(response.toByteArray()));
+	}
 
-		for (Map<String, Object> c : results) {
-			
-			sb.append(c.get("tr_body"));
+	/**
+	 * Writes the response for a download request. The transaction bodies are copied by the
+	 * history store into the response while it is written, so only the entry being copied is in
+	 * memory.
+	 * A snapshot download starts with the records of the latest snapshot taken until the end of
+	 * the range, followed by the transactions since the snapshot.
+	 *
+	 * @param params the request parameters
+	 * @param out the stream to write to
+	 * @throws Exception the exception
+	 */
+	public void writeResponse(Map<String, Object> params, OutputStream out) throws Exception {
+		XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+		writer.writeStartElement(CS_PREFIX, "downloadResponse", CS_NAMESPACE);
+		writer.writeNamespace(CS_PREFIX, CS_NAMESPACE);
+		writer.writeAttribute("timestamp", DateTime.now().toString());
+		Timestamp snapshotDate = null;
+		if (params.containsKey(SNAPSHOT_PARAM)) {
+			snapshotDate = historyReader.findSnapshot(params);
+			if (snapshotDate != null) {
+				writer.writeAttribute("snapshotDate", new DateTime(snapshotDate.getTime()).toString());
+			}
 		}
-		String response = "<cs:downloadResponse xmlns:cs=\"urn:ehealth-suisse:names:tc:CS:1\" timestamp=\"" + DateTime.now().toString() + "\">" + sb.toString() + "</cs:downloadResponse>";
+		HistoryReader.EntryHandler handler = new ElementCopyHandler(writer);
+		Integer pageSize = (Integer) params.get(PAGE_SIZE_PARAM);
+		if (snapshotDate != null) {
+			historyReader.readSnapshot(snapshotDate, handler);
+			Map<String, Object> deltaParams = new HashMap<String, Object>(params);
+			deltaParams.put("from_date", snapshotDate);
+			historyStore.copy(deltaParams, writer, out);
+		} else if (pageSize == null) {
+			historyStore.copy(params, writer, out);
+		} else {
+			HistoryPosition last = historyStore.readPage(params, (HistoryPosition) params.get(AFTER_PARAM), pageSize, handler);
+			if (last != null) {
+				writer.writeStartElement(CS_PREFIX, "continuationToken", CS_NAMESPACE);
+				writer.writeCharacters(toToken(last));
+				writer.writeEndElement();
+			}
+		}
+		writer.writeEndElement();
+		writer.flush();
+		writer.close();
+	}
 
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder builder = factory.newDocumentBuilder();
+	/**
+	 * Gets the values of the filter elements of a download request.
+	 *
+	 * @param elements the values of the elements
+	 * @return the values, trimmed and without blank values
+	 */
+	static List<String> valuesOf(List<String> elements) {
+		List<String> values = new ArrayList<String>();
+		for (String value : elements) {
+			if (value != null && !value.trim().isEmpty()) {
+				values.add(value.trim());
+			}
+		}
+		return values;
+	}
 
-		Document doc = builder.parse(new ByteArrayInputStream(response.getBytes()));
-		doc.setXmlVersion("1.0");
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		Source domSource = new DOMSource(doc);
-		StreamResult result = new StreamResult(out);
-		Transformer tr = TransformerFactory.newInstance().newTransformer();
-		tr.setOutputProperty("omit-xml-declaration", "yes");
-		tr.transform(domSource, result);
-		return out.toByteArray();
+	/**
+	 * Creates the continuation token of a position.
+	 *
+	 * @param position the position of the last entry of a page
+	 * @return the token
+	 */
+	static String toToken(HistoryPosition position) {
+		return toToken(TOKEN_VERSION, position);
+	}
 
+	/**
+	 * Creates a token of a position.
+	 *
+	 * @param version the version of the token, telling the kind of position
+	 * @param position the position
+	 * @return the token
+	 */
+	static String toToken(String version, HistoryPosition position) {
+		String token = version + "." + position.getDate().getTime() + "." + position.getId();
+		return DatatypeConverter.printBase64Binary(token.getBytes(Charset.forName("US-ASCII")));
 	}
 
 	/**
-	 * Sets the from month limit.
+	 * Parses a continuation token.
 	 *
-	 * @param fromMonthLimit the new from month limit
+	 * @param token the token
+	 * @return the position of the last entry of the previous page
+	 * @throws IllegalArgumentException if the token is not valid
 	 */
-	public void setFromMonthLimit(int fromMonthLimit) {
-		this.fromMonthLimit = fromMonthLimit;
+	static HistoryPosition parseToken(String token) {
+		return parseToken(TOKEN_VERSION, token);
+	}
+
+	/**
+	 * Parses a token of a position.
+	 *
+	 * @param version the expected version of the token
+	 * @param token the token
+	 * @return the position
+	 * @throws IllegalArgumentException if the token is not valid or of another version
+	 */
+	static HistoryPosition parseToken(String version, String token) {
+		try {
+			String[] parts = new String(DatatypeConverter.parseBase64Binary(token.trim()), Charset.forName("US-ASCII")).split("\\.");
+			if (parts.length == 3 && version.equals(parts[0])) {
+				return new HistoryPosition(new Timestamp(Long.parseLong(parts[1])), Long.parseLong(parts[2]));
+			}
+		} catch (IllegalArgumentException e) {
+			LOG.debug("Invalid token " + token, e);
+		}
+		throw new IllegalArgumentException("Invalid token: " + token);
+	}
+
+	/**
+	 * Sets the largest page of a paged download.
+	 *
+	 * @param maxPageSize the new maximum page size
+	 */
+	public void setMaxPageSize(int maxPageSize) {
+		this.maxPageSize = maxPageSize;
+	}
+
+	/**
+	 * Sets the history reader.
+	 *
+	 * @param historyReader the new history reader
+	 */
+	public void setHistoryReader(HistoryReader historyReader) {
+		this.historyReader = historyReader;
+	}
+
+	/**
+	 * Sets the history store.
+	 *
+	 * @param historyStore the new history store
+	 */
+	public void setHistoryStore(HistoryStore historyStore) {
+		this.historyStore = historyStore;
 	}
 
 	/**
-	 * Returns the later date between to dates.
+	 * Sets the streaming source factory.
 	 *
-	 * @param d1 the d1
-	 * @param d2 the d2
-	 * @return - null, if d1 and d2 are null.
-	 *         - d2 if d1 is null.
-	 *         - d1 if d2 is null.
-	 *         - the date after the other date if none of the parameters is null.
+	 * @param streamingSourceFactory the new streaming source factory
 	 */
-	public static Date max(Date d1, Date d2) {
-		if (d1 == null && d2 == null)
-			return null;
-		if (d1 == null)
-			return d2;
-		if (d2 == null)
-			return d1;
-		return (d1.after(d2)) ? d1 : d2;
+	public void setStreamingSourceFactory(StreamingSourceFactory streamingSourceFactory) {
+		this.streamingSourceFactory = streamingSourceFactory;
+	}
+
+	/**
+	 * Sets the from month limit.
+	 *
+	 * @param fromMonthLimit the new from month limit
+	 */
+	public void setFromMonthLimit(int fromMonthLimit) {
+		this.fromMonthLimit = fromMonthLimit;
 	}
 
 }
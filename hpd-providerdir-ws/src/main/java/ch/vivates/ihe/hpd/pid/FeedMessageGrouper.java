@@ -0,0 +1,195 @@
+package ch.vivates.ihe.hpd.pid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.camel.Body;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.vivates.ihe.hpd.pid.history.HistoryEntityExtractor;
+import ch.vivates.ihe.hpd.pid.model.cs.AddRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.BatchRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.CompareRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.DelRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.DsmlMessage;
+import ch.vivates.ihe.hpd.pid.model.cs.ModifyDNRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.ModifyRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.SearchRequest;
+import ch.vivates.tools.dsmlv2.SearchKey;
+
+/**
+ * The Class FeedMessageGrouper assigns feeds to JMS message groups before they are queued. The
+ * broker delivers the messages of a group in order to one consumer at a time, so feeds of
+ * different groups can be consumed by several consumers and nodes while feeds of the same group
+ * keep their order.
+ * <p>
+ * By default the group is the community of the feed, the DN below the first organization RDN of
+ * its targets (o=ehealth-suisse,c=ch for the default base), or the base if its targets lie in
+ * none, as for the history entries. A feed whose targets lie in several communities is split into
+ * one feed per community, each with the batchRequest attributes of the feed and the operations on
+ * that community in their order, so every operation is ordered with the other feeds of its
+ * community. With splitting by entity, a feed is split into one feed per target entry in the
+ * same way, grouped by the normalized DN of the entry. Operations of the same feed in different
+ * groups are then no longer ordered with each other, and a failed one does not stop the others,
+ * which only suits feeds whose entries do not depend on each other. A modDN request moving an
+ * entry to another community stays in the group of its target DN.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class FeedMessageGrouper {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(FeedMessageGrouper.class);
+
+	/** The header read by the broker to group messages. */
+	public static final String GROUP_HEADER = "JMSXGroupID";
+
+	/** The normalized base DN, the group of feeds outside a community. */
+	private String base = "";
+
+	/** True to split feeds into one feed per target entry. */
+	private boolean splitByEntity;
+
+	/**
+	 * Splits a feed into the feeds to queue: the feed itself if all its operations are in the
+	 * same group, or one feed per group of its operations.
+	 *
+	 * @param feed the feed
+	 * @return the feeds to queue
+	 */
+	public List<BatchRequest> split(@Body BatchRequest feed) {
+		if (feed.getBatchRequests().size() < 2) {
+			return Collections.singletonList(feed);
+		}
+		Map<String, BatchRequest> byGroup = new LinkedHashMap<String, BatchRequest>();
+		for (DsmlMessage operation : feed.getBatchRequests()) {
+			String group = operationGroup(operation);
+			BatchRequest groupFeed = byGroup.get(group);
+			if (groupFeed == null) {
+				groupFeed = new BatchRequest();
+				groupFeed.setAuthRequest(feed.getAuthRequest());
+				groupFeed.setRequestID(feed.getRequestID());
+				groupFeed.setProcessing(feed.getProcessing());
+				groupFeed.setResponseOrder(feed.getResponseOrder());
+				groupFeed.setOnError(feed.getOnError());
+				byGroup.put(group, groupFeed);
+			}
+			groupFeed.getBatchRequests().add(operation);
+		}
+		if (byGroup.size() == 1) {
+			return Collections.singletonList(feed);
+		}
+		LOG.debug("Feed split into " + byGroup.size() + " feeds by " + (splitByEntity ? "entity" : "community"));
+		return new ArrayList<BatchRequest>(byGroup.values());
+	}
+
+	/**
+	 * Gets the message group of a feed, as split by {@link #split(BatchRequest)}.
+	 *
+	 * @param feed the feed
+	 * @return the message group
+	 */
+	public String groupOf(@Body BatchRequest feed) {
+		List<DsmlMessage> operations = feed.getBatchRequests();
+		if (operations.isEmpty()) {
+			return base;
+		}
+		// Split feeds target a single group
+		return operationGroup(operations.get(0));
+	}
+
+	/**
+	 * Gets the message group of an operation, its entity if splitting by entity and its
+	 * community otherwise.
+	 *
+	 * @param operation the operation
+	 * @return the message group
+	 */
+	private String operationGroup(DsmlMessage operation) {
+		return splitByEntity ? entityOf(operation) : communityOf(dnOf(operation));
+	}
+
+	/**
+	 * Gets the entity of an operation, its normalized target DN.
+	 *
+	 * @param operation the operation
+	 * @return the entity
+	 */
+	private static String entityOf(DsmlMessage operation) {
+		String dn = dnOf(operation);
+		if (dn == null) {
+			return "";
+		}
+		try {
+			return SearchKey.normalize(new Dn(dn));
+		} catch (LdapInvalidDnException e) {
+			return dn.trim().toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	/**
+	 * Gets the community of a DN, the DN below its first organization RDN.
+	 *
+	 * @param dn the DN
+	 * @return the normalized community, or the base if the DN has no organization RDN
+	 */
+	private String communityOf(String dn) {
+		return HistoryEntityExtractor.communityOf(dn, base);
+	}
+
+	/**
+	 * Gets the target DN of an operation.
+	 *
+	 * @param operation the operation
+	 * @return the DN, or null for operations without target
+	 */
+	private static String dnOf(DsmlMessage operation) {
+		if (operation instanceof AddRequest) {
+			return ((AddRequest) operation).getDn();
+		}
+		if (operation instanceof ModifyRequest) {
+			return ((ModifyRequest) operation).getDn();
+		}
+		if (operation instanceof DelRequest) {
+			return ((DelRequest) operation).getDn();
+		}
+		if (operation instanceof ModifyDNRequest) {
+			return ((ModifyDNRequest) operation).getDn();
+		}
+		if (operation instanceof CompareRequest) {
+			return ((CompareRequest) operation).getDn();
+		}
+		if (operation instanceof SearchRequest) {
+			return ((SearchRequest) operation).getDn();
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the base DN, the group of feeds outside a community.
+	 *
+	 * @param base the new base DN
+	 * @throws LdapInvalidDnException if the base is not a valid DN
+	 */
+	public void setBase(String base) throws LdapInvalidDnException {
+		this.base = SearchKey.normalize(new Dn(base));
+	}
+
+	/**
+	 * Sets whether feeds are split into one feed per target entry.
+	 *
+	 * @param splitByEntity true to split feeds by entity
+	 */
+	public void setSplitByEntity(boolean splitByEntity) {
+		this.splitByEntity = splitByEntity;
+	}
+
+}
@@ -0,0 +1,469 @@
+package ch.vivates.ihe.hpd.pid;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.ExchangePattern;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.vivates.tools.concurrent.PartitionedExecutor;
+import ch.vivates.tools.dsmlv2.SearchKey;
+
+/**
+ * The Class FeedOperationDispatcher executes the operations of a split feed. Each operation is
+ * keyed by the entries it touches: its target DN, the new DN of a modDN request, the DNs in the
+ * member and owner attributes of relationships, and the parents created, deleted or renamed
+ * earlier in the same feed. Operations are run on a partition chosen by their target DN, so
+ * operations on different entries run concurrently while operations on the same entry keep the
+ * order of the feed. An operation whose keys map to several partitions waits for the operations
+ * submitted before it on all of them.
+ * <p>
+ * As with the sequential split, the first failed operation stops the feed: operations after it
+ * in the feed are skipped. Only feeds with processing="parallel" and onError="resume" run on the
+ * partitions, since they allow the operations after a failed one to be applied: operations before
+ * it, and operations after it already running on other partitions, complete. Every other feed
+ * requires each operation to be applied only once all earlier ones succeeded, so its operations
+ * are executed in the calling thread, one after the other, as with zero partitions.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class FeedOperationDispatcher {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(FeedOperationDispatcher.class);
+
+	/** The exchange property holding the state of the feed being dispatched. */
+	public static final String FEED_PROPERTY = "HpdPidFeedDispatch";
+
+	/** The header holding the processing attribute of the batchRequest. */
+	private static final String PROCESSING_HEADER = "processing";
+
+	/** The header holding the onError attribute of the batchRequest. */
+	private static final String ON_ERROR_HEADER = "onError";
+
+	/** The attributes holding the DNs of related entries, lower cased. */
+	private static final Set<String> RELATIONSHIP_ATTRIBUTES = new HashSet<String>();
+
+	/** The operations creating, deleting or renaming entries. */
+	private static final Set<String> STRUCTURAL_OPERATIONS = new HashSet<String>();
+
+	/** The StAX input factory. */
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+	static {
+		RELATIONSHIP_ATTRIBUTES.add("member");
+		RELATIONSHIP_ATTRIBUTES.add("owner");
+		RELATIONSHIP_ATTRIBUTES.add("uniquemember");
+		STRUCTURAL_OPERATIONS.add("addRequest");
+		STRUCTURAL_OPERATIONS.add("delRequest");
+		STRUCTURAL_OPERATIONS.add("modDNRequest");
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/** The producer template sending operations to the operation route. */
+	private ProducerTemplate producerTemplate;
+
+	/** The uri of the route executing one operation. */
+	private String operationUri = "direct:feedOperation";
+
+	/** The number of partitions, zero for sequential execution. */
+	private int partitions;
+
+	/** The maximum number of operations of a feed waiting on the partitions. */
+	private int maxPendingOperations = 1000;
+
+	/** The partitioned executor, null for sequential execution. */
+	private PartitionedExecutor executor;
+
+	/**
+	 * Starts the partitions.
+	 */
+	public void start() {
+		if (partitions > 0) {
+			executor = new PartitionedExecutor(partitions, "hpd-feed-partition");
+		}
+		LOG.info("Feed operations are executed on " + (partitions > 0 ? partitions + " partitions" : "the splitter thread"));
+	}
+
+	/**
+	 * Stops the partitions, letting the submitted operations finish.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void stop() throws InterruptedException {
+		if (executor != null) {
+			executor.shutdown(60000);
+			executor = null;
+		}
+	}
+
+	/**
+	 * Begins the dispatch of a feed, on the partitions if its batchRequest attributes allow
+	 * operations to run concurrently and to complete after a failed one.
+	 *
+	 * @param exchange the exchange of the feed, with the batchRequest attributes as headers
+	 */
+	public void begin(Exchange exchange) {
+		boolean concurrent = executor != null && "parallel".equals(exchange.getIn().getHeader(PROCESSING_HEADER, String.class))
+				&& "resume".equals(exchange.getIn().getHeader(ON_ERROR_HEADER, String.class));
+		exchange.setProperty(FEED_PROPERTY, new Feed(concurrent ? executor.getPartitions() : 0));
+	}
+
+	/**
+	 * Dispatches an operation of the feed. The operation is executed in a new exchange with the
+	 * headers and the non Camel properties of the split exchange.
+	 *
+	 * @param exchange the split exchange, with the operation as body
+	 * @throws Exception if the feed was not begun or the thread is interrupted
+	 */
+	public void dispatch(Exchange exchange) throws Exception {
+		final Feed feed = exchange.getProperty(FEED_PROPERTY, Feed.class);
+		if (feed == null) {
+			throw new IllegalStateException("Feed dispatch not begun");
+		}
+		final long sequence = feed.dispatched++;
+		if (feed.isStopped()) {
+			feed.skipped.incrementAndGet();
+			return;
+		}
+
+		String body = exchange.getIn().getBody(String.class);
+		final Exchange operation = new DefaultExchange(exchange.getContext(), ExchangePattern.InOnly);
+		operation.getIn().setHeaders(new HashMap<String, Object>(exchange.getIn().getHeaders()));
+		for (Map.Entry<String, Object> property : exchange.getProperties().entrySet()) {
+			// Properties of the route, such as the history batch, without those of Camel
+			if (!property.getKey().startsWith("Camel") && !FEED_PROPERTY.equals(property.getKey())) {
+				operation.setProperty(property.getKey(), property.getValue());
+			}
+		}
+		operation.getIn().setBody(body);
+
+		if (feed.last.length == 0) {
+			feed.run(sequence, operation);
+			return;
+		}
+
+		Set<String> keys = keys(body, feed.structural);
+		int primary = executor.partitionOf(keys.iterator().next());
+		Set<Integer> touched = new HashSet<Integer>();
+		touched.add(primary);
+		for (String key : keys) {
+			touched.add(executor.partitionOf(key));
+		}
+		final List<Future<?>> dependencies = new ArrayList<Future<?>>();
+		for (Integer partition : touched) {
+			if (feed.last[partition] != null) {
+				dependencies.add(feed.last[partition]);
+			}
+		}
+
+		feed.pending.acquire();
+		Future<?> future;
+		try {
+			future = executor.submit(primary, new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						// Dependencies only point to earlier operations, which cannot wait on this one
+						for (Future<?> dependency : dependencies) {
+							waitFor(dependency);
+						}
+						feed.run(sequence, operation);
+					} finally {
+						feed.pending.release();
+					}
+					return null;
+				}
+			});
+		} catch (RuntimeException e) {
+			feed.pending.release();
+			throw e;
+		}
+		for (Integer partition : touched) {
+			feed.last[partition] = future;
+		}
+	}
+
+	/**
+	 * Waits for the dispatched operations of the feed to complete.
+	 *
+	 * @param exchange the exchange of the feed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void await(Exchange exchange) throws InterruptedException {
+		Feed feed = (Feed) exchange.removeProperty(FEED_PROPERTY);
+		if (feed == null) {
+			return;
+		}
+		for (Future<?> future : feed.last) {
+			if (future != null) {
+				waitFor(future);
+			}
+		}
+		if (feed.isStopped()) {
+			LOG.warn("Feed stopped at operation " + (feed.failedAt + 1) + " of " + feed.dispatched + ", "
+					+ feed.skipped.get() + " operation(s) skipped");
+		}
+	}
+
+	/**
+	 * Waits for an operation. Its failure is recorded by the operation itself.
+	 *
+	 * @param future the future of the operation
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private static void waitFor(Future<?> future) throws InterruptedException {
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			LOG.debug("Feed operation failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Gets the normalized DNs an operation touches. The first key is the target DN.
+	 *
+	 * @param operation the operation as XML fragment
+	 * @param structural the DNs created, deleted or renamed by the previous operations of the
+	 *            feed, updated with this operation
+	 * @return the keys
+	 */
+	public static Set<String> keys(String operation, Set<String> structural) {
+		Set<String> keys = new LinkedHashSet<String>();
+		List<String> targets = new ArrayList<String>();
+		String name = null;
+		try {
+			XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(operation));
+			try {
+				reader.nextTag();
+				name = reader.getLocalName();
+				String dn = reader.getAttributeValue(null, "dn");
+				targets.add(normalize(dn));
+				String newRdn = reader.getAttributeValue(null, "newrdn");
+				if (newRdn != null) {
+					String newSuperior = reader.getAttributeValue(null, "newSuperior");
+					targets.add(normalize(newRdn + "," + (newSuperior != null ? newSuperior : parent(dn))));
+				}
+				keys.addAll(targets);
+				collectRelationships(reader, keys);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			// The operation fails when executed, its keys only need to be stable
+			LOG.debug("Failed to read the keys of a feed operation", e);
+			if (keys.isEmpty()) {
+				keys.add("");
+			}
+		}
+
+		Set<String> ancestors = new LinkedHashSet<String>();
+		for (String key : keys) {
+			for (String parent = parent(key); !parent.isEmpty(); parent = parent(parent)) {
+				if (structural.contains(parent)) {
+					ancestors.add(parent);
+				}
+			}
+		}
+		keys.addAll(ancestors);
+		if (STRUCTURAL_OPERATIONS.contains(name)) {
+			structural.addAll(targets);
+		}
+		return keys;
+	}
+
+	/**
+	 * Adds the values of the relationship attributes of an operation to its keys.
+	 *
+	 * @param reader the reader, positioned on the start tag of the operation
+	 * @param keys the keys
+	 * @throws XMLStreamException if the operation is not well formed
+	 */
+	private static void collectRelationships(XMLStreamReader reader, Set<String> keys) throws XMLStreamException {
+		boolean relationship = false;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String localName = reader.getLocalName();
+				if ("attr".equals(localName) || "modification".equals(localName)) {
+					String attribute = reader.getAttributeValue(null, "name");
+					relationship = attribute != null && RELATIONSHIP_ATTRIBUTES.contains(attribute.trim().toLowerCase(Locale.ENGLISH));
+				} else if (relationship && "value".equals(localName)) {
+					keys.add(normalize(reader.getElementText()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Normalizes a DN, or lower cases it if it is not valid.
+	 *
+	 * @param dn the DN
+	 * @return the normalized DN
+	 */
+	private static String normalize(String dn) {
+		if (dn == null) {
+			return "";
+		}
+		try {
+			return SearchKey.normalize(new Dn(dn));
+		} catch (LdapInvalidDnException e) {
+			return dn.trim().toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	/**
+	 * Gets the normalized parent of a DN.
+	 *
+	 * @param dn the DN
+	 * @return the normalized parent, empty for the root or an invalid DN
+	 */
+	private static String parent(String dn) {
+		if (dn == null || dn.isEmpty()) {
+			return "";
+		}
+		try {
+			return SearchKey.normalize(new Dn(dn).getParent());
+		} catch (LdapInvalidDnException e) {
+			return "";
+		}
+	}
+
+	/**
+	 * Sets the producer template.
+	 *
+	 * @param producerTemplate the new producer template
+	 */
+	public void setProducerTemplate(ProducerTemplate producerTemplate) {
+		this.producerTemplate = producerTemplate;
+	}
+
+	/**
+	 * Sets the uri of the route executing one operation.
+	 *
+	 * @param operationUri the new operation uri
+	 */
+	public void setOperationUri(String operationUri) {
+		this.operationUri = operationUri;
+	}
+
+	/**
+	 * Sets the number of partitions, zero for sequential execution.
+	 *
+	 * @param partitions the new number of partitions
+	 */
+	public void setPartitions(int partitions) {
+		this.partitions = partitions;
+	}
+
+	/**
+	 * Sets the maximum number of operations of a feed waiting on the partitions.
+	 *
+	 * @param maxPendingOperations the new maximum number of pending operations
+	 */
+	public void setMaxPendingOperations(int maxPendingOperations) {
+		this.maxPendingOperations = maxPendingOperations;
+	}
+
+	/**
+	 * The Class Feed holds the dispatch state of one feed. It is only changed by the splitter
+	 * thread, except for the failure and skip counters.
+	 */
+	private class Feed {
+
+		/** The last operation submitted to each partition. */
+		private final Future<?>[] last;
+
+		/** The DNs created, deleted or renamed by the feed. */
+		private final Set<String> structural = new HashSet<String>();
+
+		/** The permits for operations waiting on the partitions. */
+		private final Semaphore pending = new Semaphore(maxPendingOperations);
+
+		/** The number of skipped operations. */
+		private final AtomicInteger skipped = new AtomicInteger();
+
+		/** The number of dispatched operations. */
+		private long dispatched;
+
+		/** The sequence of the first failed operation. */
+		private volatile long failedAt = Long.MAX_VALUE;
+
+		/**
+		 * Instantiates a new feed.
+		 *
+		 * @param partitions the number of partitions
+		 */
+		public Feed(int partitions) {
+			this.last = new Future<?>[partitions];
+		}
+
+		/**
+		 * Checks if an operation of the feed failed.
+		 *
+		 * @return true if the feed is stopped
+		 */
+		public boolean isStopped() {
+			return failedAt != Long.MAX_VALUE;
+		}
+
+		/**
+		 * Executes an operation, unless an operation before it in the feed failed.
+		 *
+		 * @param sequence the sequence of the operation in the feed
+		 * @param operation the operation exchange
+		 */
+		public void run(long sequence, Exchange operation) {
+			if (sequence > failedAt) {
+				skipped.incrementAndGet();
+				return;
+			}
+			try {
+				producerTemplate.send(operationUri, operation);
+			} catch (RuntimeException e) {
+				operation.setException(e);
+			}
+			// The dead letter channel handles the exception but keeps it as caught exception
+			if (operation.getException() != null || operation.getProperty(Exchange.EXCEPTION_CAUGHT) != null) {
+				failed(sequence);
+			}
+		}
+
+		/**
+		 * Records a failed operation.
+		 *
+		 * @param sequence the sequence of the operation in the feed
+		 */
+		private synchronized void failed(long sequence) {
+			if (sequence < failedAt) {
+				failedAt = sequence;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,273 @@
+package ch.vivates.ihe.hpd.pid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.camel.Body;
+import org.apache.camel.Headers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class FeedRequestSplitter splits a DSML feed into its operations with a StAX reader. The
+ * attributes of the batchRequest are read from its start tag only, and every operation is
+ * serialized on its own while the reader passes over it, so the feed is never held in memory
+ * as a whole. Each operation carries the namespace declarations of the batchRequest and can be
+ * parsed alone.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class FeedRequestSplitter {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(FeedRequestSplitter.class);
+
+	/** The batchRequest attributes copied to headers. */
+	private static final String[] BATCH_ATTRIBUTES = { "requestID", "processing", "responseOrder", "onError" };
+
+	/** The StAX input factory. */
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+	/** The StAX output factory. */
+	private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+	static {
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, false);
+	}
+
+	/**
+	 * Copies the attributes of the batchRequest to the headers requestID, processing,
+	 * responseOrder and onError. Only the start tag of the batchRequest is read.
+	 *
+	 * @param dsmlFeed the dsml feed
+	 * @param headers the headers of the message
+	 * @throws XMLStreamException if the feed is not well formed
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void readBatchAttributes(@Body InputStream dsmlFeed, @Headers Map<String, Object> headers) throws XMLStreamException,
+			IOException {
+		XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(dsmlFeed);
+		try {
+			reader.nextTag();
+			for (String attribute : BATCH_ATTRIBUTES) {
+				String value = reader.getAttributeValue(null, attribute);
+				if (value != null) {
+					headers.put(attribute, value);
+				} else {
+					headers.remove(attribute);
+				}
+			}
+		} finally {
+			reader.close();
+			dsmlFeed.close();
+		}
+	}
+
+	/**
+	 * Splits the feed into its operations. The returned iterator reads the feed lazily and is
+	 * meant for a splitter in streaming mode.
+	 *
+	 * @param dsmlFeed the dsml feed
+	 * @return the iterator on the operations, each serialized as XML fragment
+	 * @throws XMLStreamException if the feed is not well formed
+	 */
+	public Iterator<String> split(@Body InputStream dsmlFeed) throws XMLStreamException {
+		return new OperationIterator(dsmlFeed);
+	}
+
+	/**
+	 * The Class OperationIterator serializes the child elements of the batchRequest one at a time.
+	 */
+	private static class OperationIterator implements Iterator<String>, Closeable {
+
+		/** The feed. */
+		private final InputStream in;
+
+		/** The StAX reader, positioned on the start tag of the next operation. */
+		private final XMLStreamReader reader;
+
+		/** The namespaces declared on the batchRequest by prefix. */
+		private final Map<String, String> namespaces = new LinkedHashMap<String, String>();
+
+		/** True if the reader is positioned on the start tag of the next operation. */
+		private boolean hasNext;
+
+		/**
+		 * Instantiates a new operation iterator and reads the start tag of the batchRequest.
+		 *
+		 * @param in the feed
+		 * @throws XMLStreamException if the feed is not well formed
+		 */
+		public OperationIterator(InputStream in) throws XMLStreamException {
+			this.in = in;
+			this.reader = INPUT_FACTORY.createXMLStreamReader(in);
+			reader.nextTag();
+			for (int i = 0; i < reader.getNamespaceCount(); i++) {
+				String prefix = reader.getNamespacePrefix(i);
+				namespaces.put(prefix == null ? "" : prefix, reader.getNamespaceURI(i));
+			}
+			advance();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public String next() {
+			if (!hasNext) {
+				throw new NoSuchElementException();
+			}
+			try {
+				String operation = copyElement();
+				advance();
+				return operation;
+			} catch (XMLStreamException e) {
+				close();
+				throw new IllegalStateException("Failed to split DSML feed: " + e.getMessage(), e);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() {
+			hasNext = false;
+			try {
+				reader.close();
+				in.close();
+			} catch (Exception e) {
+				LOG.debug("Failed to close DSML feed", e);
+			}
+		}
+
+		/**
+		 * Moves the reader to the start tag of the next operation, or closes the feed at the end
+		 * tag of the batchRequest.
+		 *
+		 * @throws XMLStreamException if the feed is not well formed
+		 */
+		private void advance() throws XMLStreamException {
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					hasNext = true;
+					return;
+				}
+				if (event == XMLStreamConstants.END_ELEMENT) {
+					break;
+				}
+			}
+			close();
+		}
+
+		/**
+		 * Serializes the element the reader is positioned on, leaving the reader on its end tag.
+		 *
+		 * @return the element as XML fragment
+		 * @throws XMLStreamException if the feed is not well formed
+		 */
+		private String copyElement() throws XMLStreamException {
+			StringWriter out = new StringWriter();
+			XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out);
+			int depth = 0;
+			do {
+				switch (reader.getEventType()) {
+				case XMLStreamConstants.START_ELEMENT:
+					writeStartElement(writer, depth == 0);
+					depth++;
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					writer.writeEndElement();
+					depth--;
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.SPACE:
+					writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+					break;
+				case XMLStreamConstants.CDATA:
+					writer.writeCData(reader.getText());
+					break;
+				default:
+					// Comments and processing instructions are dropped
+					break;
+				}
+			} while (depth > 0 && reader.hasNext() && reader.next() > 0);
+			writer.flush();
+			writer.close();
+			return out.toString();
+		}
+
+		/**
+		 * Writes the start tag the reader is positioned on.
+		 *
+		 * @param writer the writer
+		 * @param root true for the operation element, which also declares the namespaces of the batchRequest
+		 * @throws XMLStreamException Signals that an XML stream exception has occurred.
+		 */
+		private void writeStartElement(XMLStreamWriter writer, boolean root) throws XMLStreamException {
+			String prefix = reader.getPrefix() == null ? "" : reader.getPrefix();
+			String namespaceURI = reader.getNamespaceURI() == null ? "" : reader.getNamespaceURI();
+			writer.writeStartElement(prefix, reader.getLocalName(), namespaceURI);
+
+			Map<String, String> declarations = new LinkedHashMap<String, String>();
+			if (root) {
+				declarations.putAll(namespaces);
+			}
+			for (int i = 0; i < reader.getNamespaceCount(); i++) {
+				String declared = reader.getNamespacePrefix(i);
+				declarations.put(declared == null ? "" : declared, reader.getNamespaceURI(i));
+			}
+			for (Map.Entry<String, String> declaration : declarations.entrySet()) {
+				if (declaration.getKey().isEmpty()) {
+					writer.writeDefaultNamespace(declaration.getValue());
+				} else {
+					writer.writeNamespace(declaration.getKey(), declaration.getValue());
+				}
+			}
+
+			for (int i = 0; i < reader.getAttributeCount(); i++) {
+				String attributeURI = reader.getAttributeNamespace(i);
+				if (attributeURI == null || attributeURI.isEmpty()) {
+					writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+				} else {
+					writer.writeAttribute(reader.getAttributePrefix(i), attributeURI, reader.getAttributeLocalName(i),
+							reader.getAttributeValue(i));
+				}
+			}
+		}
+	}
+
+}
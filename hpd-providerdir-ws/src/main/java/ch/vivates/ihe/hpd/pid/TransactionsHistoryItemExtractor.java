@@ -1,37 +1,55 @@
 package ch.vivates.ihe.hpd.pid;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.camel.Body;
 import org.apache.camel.Header;
 import org.apache.directory.api.dsmlv2.ParserUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.vivates.ihe.hpd.pid.history.HistoryBatchWriter;
+import ch.vivates.ihe.hpd.pid.history.HistoryEntity;
+import ch.vivates.ihe.hpd.pid.history.HistoryEntityExtractor;
+import ch.vivates.tools.jaxp.XmlStreamRewriter;
 
 /**
- * The Class TransactionsHistoryItemExtractor.
+ * The Class TransactionsHistoryItemExtractor converts a feed operation to a history entry. With an
+ * entity extractor, the entries targeted by the operation are extracted once here, and travel with
+ * the history entry to the history store, along with their community, the message group of the
+ * entry in the history queue.
  * 
  * @author Federico Marmory, Post CH, major development
  * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
  */
 public class TransactionsHistoryItemExtractor {
 	
-	/** The Constant SDF containing the SimpleDateFormat. */
-	private static final SimpleDateFormat SDF = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(TransactionsHistoryItemExtractor.class);
+
+	/** The entry holding the entities targeted by the transaction. */
+	private static final String TR_ENTITIES = "tr_entities";
+
+	/** The entry holding the community of the entities. */
+	private static final String TR_COMMUNITY = "tr_community";
+
+	/** The Constant SDF containing the SimpleDateFormat, one per thread since feed operations are converted concurrently. */
+	private static final ThreadLocal<SimpleDateFormat> SDF = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		}
+	};
+
+	/** The extractor of the entities targeted by the transactions, null for no entities. */
+	private HistoryEntityExtractor entityExtractor;
 
 	/**
 	 * Converts the transactions items into a map.
@@ -48,10 +66,36 @@ public class TransactionsHistoryItemExtractor {
 		Map<String, Object> items = new HashMap<String, Object>();
 		items.put("tr_op_idx", trID);
 		items.put("src_desc", principal);
-		items.put("tr_date", SDF.parse(trDate));
-		items.put("tr_body", injectAuthRequestNode(trContentStream, principal));
+		items.put("tr_date", SDF.get().parse(trDate));
+		InputStream body = injectAuthRequestNode(trContentStream, principal);
+		if (entityExtractor == null) {
+			items.put("tr_body", body);
+			return items;
+		}
+		String text = HistoryBatchWriter.read(body);
+		List<HistoryEntity> entities = entitiesOf(text, trID);
+		items.put("tr_body", text);
+		items.put(TR_ENTITIES, entities);
+		items.put(TR_COMMUNITY, entityExtractor.communityOf(entities));
 		return items;
 	}
+
+	/**
+	 * Extracts the entities of a transaction. A transaction whose body could not be parsed is
+	 * written without entities, and is only downloaded without filter.
+	 *
+	 * @param body the transaction body
+	 * @param trID the transaction id
+	 * @return the entities
+	 */
+	private List<HistoryEntity> entitiesOf(String body, String trID) {
+		try {
+			return entityExtractor.extract(body);
+		} catch (XMLStreamException e) {
+			LOG.warn("Failed to extract the entities of history entry " + trID, e);
+			return Collections.emptyList();
+		}
+	}
 	
 	/**
 	 * Inject auth request node.
@@ -62,22 +106,18 @@ public class TransactionsHistoryItemExtractor {
 	 * @throws Exception the exception
 	 */
 	private InputStream injectAuthRequestNode(InputStream is, String principal) throws Exception {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
+		return XmlStreamRewriter.appendElement(is, "dsml", "authRequest", ParserUtils.DSML_NAMESPACE.getURI(),
+				Collections.singletonMap("principal", principal));
+	}
+
+	/**
+	 * Sets the extractor of the entities targeted by the transactions. Without extractor the
+	 * entries hold no entities, and are not grouped in the history queue.
+	 *
+	 * @param entityExtractor the new entity extractor
+	 */
+	public void setEntityExtractor(HistoryEntityExtractor entityExtractor) {
+		this.entityExtractor = entityExtractor;
+	}
 
-        Document doc = builder.parse(is);
-        Node docRoot = doc.getDocumentElement();
-        Element authNode = doc.createElementNS(ParserUtils.DSML_NAMESPACE.getURI(), "dsml:authRequest");
-       	authNode.setAttribute("principal", principal);
-        docRoot.appendChild(authNode);
-        
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        Source domSource = new DOMSource(doc);
-        StreamResult result = new StreamResult(out);
-        Transformer tr = TransformerFactory.newInstance().newTransformer();
-        tr.setOutputProperty("omit-xml-declaration", "yes");
-        tr.transform(domSource, result);
-        return new ByteArrayInputStream(out.toByteArray());
-    }
-	
 }
@@ -0,0 +1,53 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.io.Reader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import ch.vivates.tools.jaxp.XmlStreamCopier;
+
+/**
+ * The Class ElementCopyHandler copies the document element of each history entry body into a
+ * StAX writer, so only the entry being copied is in memory.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class ElementCopyHandler implements HistoryReader.EntryHandler {
+
+	/** The StAX input factory. */
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+	static {
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/** The writer. */
+	private final XMLStreamWriter writer;
+
+	/**
+	 * Instantiates a new element copy handler.
+	 *
+	 * @param writer the writer
+	 */
+	public ElementCopyHandler(XMLStreamWriter writer) {
+		this.writer = writer;
+	}
+
+	/* (non-Javadoc)
+	 * @see ch.vivates.ihe.hpd.pid.history.HistoryReader.EntryHandler#entry(ch.vivates.ihe.hpd.pid.history.HistoryPosition, java.lang.String, java.io.Reader)
+	 */
+	@Override
+	public void entry(HistoryPosition position, String principal, Reader body) throws Exception {
+		XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(body);
+		try {
+			XmlStreamCopier.copyDocumentElement(reader, writer);
+		} finally {
+			reader.close();
+		}
+	}
+
+}
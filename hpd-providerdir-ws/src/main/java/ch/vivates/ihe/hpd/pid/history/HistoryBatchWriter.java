@@ -0,0 +1,322 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class HistoryBatchWriter writes transaction history entries as JDBC batches, with the
+ * insert statement of the Camel SQL route it replaces.
+ * <p>
+ * With an entity statement, the entries targeted by each history entry are written in the same
+ * transaction into the pid_tr_entity table, with the generated transaction id, so downloads can
+ * select the history entries by DN, object class or community. The entities are not extracted
+ * here, each history entry holds the entities extracted when it was converted.
+ * <p>
+ * The transaction only holds on transactional tables: pid_tr_history and pid_tr_entity are InnoDB
+ * tables, a failed batch is rolled back as a whole and written again by the history writer without
+ * duplicates. The transaction ids of a rewritten batch insert are taken as consecutive, which needs
+ * innodb_autoinc_lock_mode 0 or 1.
+ * <p>
+ * The write date of the entries (tr_written) is set by the database when they are inserted, and
+ * the entries are only visible once committed. A batch not ready to commit within the maximum
+ * commit time after its insert is rolled back instead, and written again with a new write date,
+ * so the changes requests skipping the entries written within their settle time never miss an
+ * entry committed behind them, even while a slow database makes the batches take longer.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class HistoryBatchWriter {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(HistoryBatchWriter.class);
+
+	/** The parameter holding the transaction body. */
+	private static final String BODY = "tr_body";
+
+	/** The entry holding the entities targeted by the transaction. */
+	private static final String ENTITIES = "tr_entities";
+
+	/** The data source. */
+	private DataSource dataSource;
+
+	/** The insert statement. */
+	private NamedStatement insertStatement;
+
+	/** The entity insert statement, null to write no entities. */
+	private NamedStatement entityStatement;
+
+	/** True if the bodies are compressed. */
+	private boolean compressedBodies;
+
+	/** The longest time between the insert of a batch and its commit, 0 for no limit. */
+	private long maxCommitMillis;
+
+	/**
+	 * Writes history entries with a JDBC batch in one transaction.
+	 *
+	 * @param entries the entries, as converted by the TransactionsHistoryItemExtractor
+	 * @throws SQLException if the entries could not be written
+	 * @throws IOException if an entry could not be read
+	 */
+	public void write(List<Map<String, Object>> entries) throws SQLException, IOException {
+		List<Object[]> rows = new ArrayList<Object[]>(entries.size());
+		List<Timestamp> dates = new ArrayList<Timestamp>(entries.size());
+		List<List<HistoryEntity>> entities = new ArrayList<List<HistoryEntity>>(entries.size());
+		for (Map<String, Object> entry : entries) {
+			Object body = entry.get(BODY);
+			if (body instanceof InputStream) {
+				// Streamed bodies are read before the batch is sent
+				entry = new HashMap<String, Object>(entry);
+				entry.put(BODY, read((InputStream) body));
+			}
+			rows.add(toRow(entry));
+			if (entityStatement != null) {
+				dates.add(toTimestamp(entry.get("tr_date")));
+				entities.add(entitiesOf(entry));
+			}
+		}
+		writeRows(rows, dates, entities);
+	}
+
+	/**
+	 * Writes rows with a JDBC batch in one transaction, followed by the entities of the rows.
+	 *
+	 * @param rows the rows
+	 * @param dates the dates of the rows, empty without entity statement
+	 * @param entities the entities of the rows, empty without entity statement
+	 * @throws SQLException if the rows could not be written
+	 */
+	private void writeRows(List<Object[]> rows, List<Timestamp> dates, List<List<HistoryEntity>> entities) throws SQLException {
+		long start = System.currentTimeMillis();
+		Connection connection = dataSource.getConnection();
+		try {
+			boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try {
+				PreparedStatement statement = entityStatement != null ? connection.prepareStatement(insertStatement.getSql(),
+						Statement.RETURN_GENERATED_KEYS) : connection.prepareStatement(insertStatement.getSql());
+				try {
+					for (Object[] row : rows) {
+						for (int i = 0; i < row.length; i++) {
+							statement.setObject(i + 1, row[i]);
+						}
+						statement.addBatch();
+					}
+					// The database sets the write date of the rows during the batch, not before
+					long inserted = System.currentTimeMillis();
+					statement.executeBatch();
+					if (entityStatement != null) {
+						writeEntities(connection, statement.getGeneratedKeys(), dates, entities);
+					}
+					long elapsed = System.currentTimeMillis() - inserted;
+					if (maxCommitMillis > 0 && elapsed > maxCommitMillis) {
+						throw new SQLTransientException("History batch ready to commit " + elapsed + " ms after its insert, more than "
+								+ maxCommitMillis + " ms, rolled back to be written again");
+					}
+				} finally {
+					statement.close();
+				}
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		} finally {
+			connection.close();
+		}
+		LOG.debug("Wrote " + rows.size() + " history entries in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Writes the entities of the rows with a JDBC batch.
+	 *
+	 * @param connection the connection, within the transaction of the rows
+	 * @param keys the generated transaction ids of the rows, in the order of the rows
+	 * @param dates the dates of the rows
+	 * @param entities the entities of the rows
+	 * @throws SQLException if the entities could not be written
+	 */
+	private void writeEntities(Connection connection, ResultSet keys, List<Timestamp> dates, List<List<HistoryEntity>> entities)
+			throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(entityStatement.getSql());
+		try {
+			for (int i = 0; i < entities.size(); i++) {
+				if (!keys.next()) {
+					throw new SQLException("No transaction id generated for history entry " + i);
+				}
+				Map<String, Object> values = new HashMap<String, Object>();
+				values.put("tr_id", keys.getLong(1));
+				values.put("tr_date", dates.get(i));
+				for (HistoryEntity entity : entities.get(i)) {
+					values.put("dn_key", entity.getDnKey());
+					values.put("op_type", entity.getOperation());
+					values.put("community", entity.getCommunity());
+					// One row per object class, the entity is found by each of them
+					List<String> classes = entity.getObjectClasses().isEmpty() ? Collections.<String> singletonList(null)
+							: new ArrayList<String>(entity.getObjectClasses());
+					for (String objectClass : classes) {
+						values.put("object_class", objectClass);
+						entityStatement.bind(statement, values);
+						statement.addBatch();
+					}
+				}
+			}
+			statement.executeBatch();
+		} finally {
+			keys.close();
+			statement.close();
+		}
+	}
+
+	/**
+	 * Gets the entities of an entry, extracted when the entry was converted.
+	 *
+	 * @param entry the entry
+	 * @return the entities
+	 * @throws IllegalArgumentException if the entry holds no entities
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<HistoryEntity> entitiesOf(Map<String, Object> entry) {
+		Object entities = entry.get(ENTITIES);
+		if (!(entities instanceof List)) {
+			throw new IllegalArgumentException("History entry " + entry.get("tr_op_idx") + " holds no entities");
+		}
+		return (List<HistoryEntity>) entities;
+	}
+
+	/**
+	 * Converts an entry to the parameters of the insert statement.
+	 *
+	 * @param entry the entry, with the body read
+	 * @return the parameters
+	 * @throws IOException if the body could not be compressed
+	 */
+	private Object[] toRow(Map<String, Object> entry) throws IOException {
+		List<String> parameters = insertStatement.getParameters();
+		Object[] row = new Object[parameters.size()];
+		for (int i = 0; i < row.length; i++) {
+			Object value = entry.get(parameters.get(i));
+			if (value instanceof Date) {
+				value = toTimestamp(value);
+			}
+			if (compressedBodies && value instanceof String && BODY.equals(parameters.get(i))) {
+				value = HistoryBodyCodec.compress((String) value);
+			}
+			row[i] = value;
+		}
+		return row;
+	}
+
+	/**
+	 * Converts a date to a timestamp.
+	 *
+	 * @param date the date
+	 * @return the timestamp, null if the date is null
+	 */
+	private static Timestamp toTimestamp(Object date) {
+		if (date == null || date instanceof Timestamp) {
+			return (Timestamp) date;
+		}
+		return new Timestamp(((Date) date).getTime());
+	}
+
+	/**
+	 * Reads a UTF-8 encoded stream.
+	 *
+	 * @param in the stream
+	 * @return the content
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static String read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return out.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Sets the data source.
+	 *
+	 * @param dataSource the new data source
+	 */
+	public void setDataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * Sets the insert statement, with the named parameters (:#name) of the Camel SQL component.
+	 *
+	 * @param statement the new insert statement
+	 */
+	public void setInsertStatement(String statement) {
+		this.insertStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the entity insert statement, with the named parameters tr_id, tr_date, dn_key, op_type,
+	 * community and object_class.
+	 *
+	 * @param statement the new entity statement
+	 */
+	public void setEntityStatement(String statement) {
+		this.entityStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Gets the longest time between the insert of a batch and its commit.
+	 *
+	 * @return the maximum commit time in milliseconds, 0 for no limit
+	 */
+	public long getMaxCommitMillis() {
+		return maxCommitMillis;
+	}
+
+	/**
+	 * Sets the longest time between the insert of a batch and its commit. Slower batches are
+	 * rolled back and written again.
+	 *
+	 * @param maxCommitMillis the new maximum commit time in milliseconds, 0 for no limit
+	 */
+	public void setMaxCommitMillis(long maxCommitMillis) {
+		this.maxCommitMillis = maxCommitMillis;
+	}
+
+	/**
+	 * Sets whether the bodies are compressed, in the format of the MySQL COMPRESS function.
+	 *
+	 * @param compressedBodies true to compress the bodies
+	 */
+	public void setCompressedBodies(boolean compressedBodies) {
+		this.compressedBodies = compressedBodies;
+	}
+
+}
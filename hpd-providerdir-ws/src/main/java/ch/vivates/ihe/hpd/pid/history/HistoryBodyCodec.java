@@ -0,0 +1,77 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The Class HistoryBodyCodec compresses transaction bodies in the format of the MySQL COMPRESS
+ * function: the length of the UTF-8 encoded body on four bytes, little endian, followed by the
+ * body compressed with deflate in zlib format. Compressed bodies can be read in SQL with
+ * UNCOMPRESS, and are decompressed while they are read from the database.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+final class HistoryBodyCodec {
+
+	/** The Constant UTF8. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Instantiates a new history body codec.
+	 */
+	private HistoryBodyCodec() {
+	}
+
+	/**
+	 * Compresses a body.
+	 *
+	 * @param body the body
+	 * @return the compressed body, empty for an empty body as with COMPRESS
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static byte[] compress(String body) throws IOException {
+		byte[] bytes = body.getBytes(UTF8);
+		if (bytes.length == 0) {
+			return bytes;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 16);
+		out.write(bytes.length & 0xFF);
+		out.write((bytes.length >> 8) & 0xFF);
+		out.write((bytes.length >> 16) & 0xFF);
+		out.write((bytes.length >> 24) & 0x3F);
+		DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+		deflater.write(bytes);
+		deflater.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Opens a compressed body for reading, decompressing it while it is read.
+	 *
+	 * @param in the compressed body, may be null
+	 * @return the reader on the body, null if in is null
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static Reader decompress(InputStream in) throws IOException {
+		if (in == null) {
+			return null;
+		}
+		// The length is only used by UNCOMPRESS to allocate its buffer
+		for (int i = 0; i < 4; i++) {
+			if (in.read() < 0) {
+				in.close();
+				return new StringReader("");
+			}
+		}
+		return new InputStreamReader(new InflaterInputStream(in), UTF8);
+	}
+
+}
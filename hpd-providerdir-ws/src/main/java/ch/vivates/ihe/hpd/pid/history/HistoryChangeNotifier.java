@@ -0,0 +1,224 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class HistoryChangeNotifier wakes the requests waiting for new history entries. The history
+ * writer announces each written batch, and the requests wait for the change version to move past
+ * the version they read before looking for entries, so no announcement is lost between the read
+ * and the wait.
+ * <p>
+ * With a connection factory, the announcements are published to a JMS topic and every node
+ * subscribed to the topic wakes its own waiting requests, since the history queue is consumed by
+ * any of the nodes. Without a connection factory, or if the topic is not available, only the
+ * requests of the writing node are woken and the others wait until their timeout.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class HistoryChangeNotifier {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(HistoryChangeNotifier.class);
+
+	/** The time the subscriber waits for a message before it checks whether it still runs. */
+	private static final long POLL_MILLIS = 1000;
+
+	/** The time the subscriber waits after a failure before it subscribes again. */
+	private static final long RETRY_DELAY_MILLIS = 5000;
+
+	/** The connection factory, null to notify the requests of this node only. */
+	private ConnectionFactory connectionFactory;
+
+	/** The name of the topic. */
+	private String topicName = "history_changes";
+
+	/** The lock and condition of the waiting requests. */
+	private final Object lock = new Object();
+
+	/** The change version, incremented for each announcement. */
+	private long version;
+
+	/** The subscriber thread. */
+	private Thread subscriber;
+
+	/** True while the subscriber runs. */
+	private volatile boolean running;
+
+	/**
+	 * Starts the subscriber of the topic.
+	 */
+	public void start() {
+		if (connectionFactory == null) {
+			return;
+		}
+		running = true;
+		subscriber = new Thread(new Subscriber(), "hpd-history-notifier");
+		subscriber.setDaemon(true);
+		subscriber.start();
+	}
+
+	/**
+	 * Stops the subscriber of the topic.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the subscriber
+	 */
+	public void stop() throws InterruptedException {
+		running = false;
+		if (subscriber != null) {
+			subscriber.join(POLL_MILLIS + RETRY_DELAY_MILLIS);
+			subscriber = null;
+		}
+	}
+
+	/**
+	 * Announces that history entries were written.
+	 */
+	public void announce() {
+		if (connectionFactory == null) {
+			changed();
+			return;
+		}
+		try {
+			Connection connection = connectionFactory.createConnection();
+			try {
+				Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+				MessageProducer producer = session.createProducer(session.createTopic(topicName));
+				// Announcements only matter to the requests waiting now
+				producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+				producer.send(session.createMessage());
+			} finally {
+				connection.close();
+			}
+		} catch (JMSException e) {
+			LOG.warn("Failed to publish the history change, only the requests of this node are notified", e);
+			changed();
+		}
+	}
+
+	/**
+	 * Gets the change version, to read before looking for new entries.
+	 *
+	 * @return the version
+	 */
+	public long getVersion() {
+		synchronized (lock) {
+			return version;
+		}
+	}
+
+	/**
+	 * Waits until history entries are written after a version was read.
+	 *
+	 * @param since the version read before looking for entries
+	 * @param timeoutMillis the maximum time to wait
+	 * @return true if entries were written, false if the wait timed out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean await(long since, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (lock) {
+			while (version == since) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return false;
+				}
+				lock.wait(wait);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Wakes the waiting requests of this node.
+	 */
+	private void changed() {
+		synchronized (lock) {
+			version++;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Sets the connection factory. Without connection factory only the requests of this node
+	 * are notified.
+	 *
+	 * @param connectionFactory the new connection factory
+	 */
+	public void setConnectionFactory(ConnectionFactory connectionFactory) {
+		this.connectionFactory = connectionFactory;
+	}
+
+	/**
+	 * Sets the name of the topic.
+	 *
+	 * @param topicName the new topic name
+	 */
+	public void setTopicName(String topicName) {
+		this.topicName = topicName;
+	}
+
+	/**
+	 * The Class Subscriber receives the announcements of all nodes from the topic.
+	 */
+	private class Subscriber implements Runnable {
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					subscribe();
+				} catch (JMSException e) {
+					LOG.warn("History change subscriber failed, retrying in " + RETRY_DELAY_MILLIS + " ms", e);
+					// Announcements may have been missed, the waiting requests look for entries again
+					changed();
+					try {
+						Thread.sleep(RETRY_DELAY_MILLIS);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						running = false;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Receives the announcements until stopped. Announcements received together wake the
+		 * requests once.
+		 *
+		 * @throws JMSException if the topic is not available
+		 */
+		private void subscribe() throws JMSException {
+			Connection connection = connectionFactory.createConnection();
+			try {
+				connection.start();
+				Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+				MessageConsumer consumer = session.createConsumer(session.createTopic(topicName));
+				while (running) {
+					if (consumer.receive(POLL_MILLIS) == null) {
+						continue;
+					}
+					while (consumer.receiveNoWait() != null) {
+						// Drains the announcements received meanwhile
+					}
+					changed();
+				}
+			} finally {
+				connection.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,676 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.io.Reader;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.vivates.ihe.hpd.pid.model.cs.AuthRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.BatchRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.DsmlMessage;
+
+/**
+ * The Class HistoryCompactor folds the transaction history into snapshots holding the latest
+ * state of every entry, so new consumers download one record per entry instead of every
+ * operation since the history began. A snapshot is taken at the start of each period, once the
+ * grace time has passed so that history entries still queued for the database are in. It is
+ * built from the previous snapshot and the history entries since then: the previous snapshot is
+ * copied, and only the entries changed since are folded in memory and replaced.
+ * <p>
+ * The records of a snapshot are DSML batchRequests like the history entries, an addRequest for
+ * each entry whose addRequest is in the history and the folded operations for the others. When
+ * several nodes share the database, a named lock lets one of them compact at a time. Older
+ * snapshots are purged, keeping the configured number.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class HistoryCompactor {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(HistoryCompactor.class);
+
+	/** The principal excluded from the history read, none. */
+	private static final String NO_PRINCIPAL = "#####";
+
+	/** The StAX input factory. */
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+	static {
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/** The JAXB context of the DSML model. */
+	private final JAXBContext context;
+
+	/** The data source. */
+	private DataSource dataSource;
+
+	/** The history reader, for the snapshots. */
+	private HistoryReader historyReader;
+
+	/** The history store. */
+	private HistoryStore historyStore;
+
+	/** The statement taking the compaction lock, returning 1 if it was taken. */
+	private NamedStatement lockStatement;
+
+	/** The statement releasing the compaction lock. */
+	private NamedStatement unlockStatement;
+
+	/** The statement selecting an entry of a snapshot. */
+	private NamedStatement selectEntryStatement;
+
+	/** The statement selecting the entries of a snapshot below a DN. */
+	private NamedStatement selectSubordinatesStatement;
+
+	/** The statement copying a snapshot. */
+	private NamedStatement copyStatement;
+
+	/** The statement deleting an entry of a snapshot. */
+	private NamedStatement deleteEntryStatement;
+
+	/** The statement inserting an entry of a snapshot. */
+	private NamedStatement insertEntryStatement;
+
+	/** The statement deleting the entries of a snapshot. */
+	private NamedStatement deleteSnapshotStatement;
+
+	/** The statement recording a complete snapshot. */
+	private NamedStatement insertInfoStatement;
+
+	/** The statement deleting the record of a snapshot. */
+	private NamedStatement deleteInfoStatement;
+
+	/** The statement selecting the snapshots before a date, latest first. */
+	private NamedStatement selectSnapshotsStatement;
+
+	/** The period between snapshots. */
+	private long periodMillis = 24L * 60 * 60 * 1000;
+
+	/** The time after the start of a period before its snapshot is taken. */
+	private long graceMillis = 60L * 60 * 1000;
+
+	/** The number of snapshots kept. */
+	private int retainedSnapshots = 2;
+
+	/** The number of history entries read and snapshot entries written at once. */
+	private int batchSize = 1000;
+
+	/**
+	 * Instantiates a new history compactor.
+	 *
+	 * @throws JAXBException if the JAXB context of the DSML model could not be created
+	 */
+	public HistoryCompactor() throws JAXBException {
+		context = JAXBContext.newInstance(BatchRequest.class);
+	}
+
+	/**
+	 * Takes the snapshot of the current period if it is not taken yet. Failures are logged, the
+	 * snapshot is taken again at the next call.
+	 */
+	public void compact() {
+		Timestamp snapshotDate = snapshotDateOf(System.currentTimeMillis());
+		try {
+			Connection connection = dataSource.getConnection();
+			try {
+				if (!lock(connection)) {
+					LOG.debug("History compaction running on another node");
+					return;
+				}
+				try {
+					compact(snapshotDate);
+				} finally {
+					unlock(connection);
+				}
+			} finally {
+				connection.close();
+			}
+		} catch (Exception e) {
+			LOG.error("Failed to take the history snapshot of " + snapshotDate, e);
+		}
+	}
+
+	/**
+	 * Takes a snapshot from the previous one and the history since.
+	 *
+	 * @param snapshotDate the date of the snapshot
+	 * @throws Exception the exception
+	 */
+	public void compact(Timestamp snapshotDate) throws Exception {
+		final Timestamp previousDate = historyReader.findSnapshot(Collections.<String, Object> singletonMap("to_date", snapshotDate));
+		if (previousDate != null && previousDate.getTime() >= snapshotDate.getTime()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		final Unmarshaller unmarshaller = context.createUnmarshaller();
+		final SnapshotFolder folder = new SnapshotFolder(new SnapshotFolder.Loader() {
+			@Override
+			public SnapshotEntry load(String key) throws Exception {
+				if (previousDate == null) {
+					return null;
+				}
+				Map<String, Object> parameters = new HashMap<String, Object>();
+				parameters.put("snapshot_date", previousDate);
+				parameters.put("dn_key", key);
+				List<SnapshotEntry> entries = select(selectEntryStatement, parameters, unmarshaller);
+				return entries.isEmpty() ? null : entries.get(0);
+			}
+
+			@Override
+			public List<SnapshotEntry> loadSubordinates(String key) throws Exception {
+				if (previousDate == null) {
+					return Collections.emptyList();
+				}
+				Map<String, Object> parameters = new HashMap<String, Object>();
+				parameters.put("snapshot_date", previousDate);
+				parameters.put("dn_pattern", "%," + key.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_"));
+				return select(selectSubordinatesStatement, parameters, unmarshaller);
+			}
+		});
+		Map<String, Object> range = new HashMap<String, Object>();
+		range.put("from_date", previousDate != null ? previousDate : new Timestamp(0));
+		// DATETIME has a precision of seconds, entries of the snapshot date are in the next snapshot
+		range.put("to_date", new Timestamp(snapshotDate.getTime() - 1000));
+		range.put("filtered_user", NO_PRINCIPAL);
+		HistoryPosition after = null;
+		do {
+			after = historyStore.readPage(range, after, batchSize, new HistoryReader.EntryHandler() {
+				@Override
+				public void entry(HistoryPosition position, String principal, Reader body) throws Exception {
+					for (DsmlMessage operation : unmarshal(unmarshaller, body).getBatchRequests()) {
+						folder.fold(operation, principal, position);
+					}
+				}
+			});
+		} while (after != null);
+		write(snapshotDate, previousDate, folder.getChanges());
+		purge(snapshotDate);
+		LOG.info("Took the history snapshot of " + snapshotDate + ", folded " + folder.getOperations() + " operations into "
+				+ folder.getChanges().size() + " changed entries in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Writes a snapshot as a copy of the previous one with the changed entries replaced.
+	 *
+	 * @param snapshotDate the date of the snapshot
+	 * @param previousDate the date of the previous snapshot, null if there is none
+	 * @param changes the changed entries by normalized DN, null for removed entries
+	 * @throws Exception the exception
+	 */
+	private void write(Timestamp snapshotDate, Timestamp previousDate, Map<String, SnapshotEntry> changes) throws Exception {
+		Marshaller marshaller = context.createMarshaller();
+		marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put("snapshot_date", snapshotDate);
+		parameters.put("previous_date", previousDate);
+		parameters.put("created_date", new Timestamp(System.currentTimeMillis()));
+		Connection connection = dataSource.getConnection();
+		try {
+			// One transaction, a failed compaction leaves neither a partial snapshot nor a record of it
+			boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try {
+				write(connection, marshaller, snapshotDate, previousDate, parameters, changes);
+				connection.commit();
+			} catch (Exception e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Writes a snapshot within the transaction of a connection.
+	 *
+	 * @param connection the connection
+	 * @param marshaller the marshaller of the entries
+	 * @param snapshotDate the date of the snapshot
+	 * @param previousDate the date of the previous snapshot, null if there is none
+	 * @param parameters the parameters of the snapshot statements
+	 * @param changes the changed entries by normalized DN, null for removed entries
+	 * @throws Exception the exception
+	 */
+	private void write(Connection connection, Marshaller marshaller, Timestamp snapshotDate, Timestamp previousDate,
+			Map<String, Object> parameters, Map<String, SnapshotEntry> changes) throws Exception {
+		// Entries left by a compaction interrupted before the snapshot tables were transactional
+		execute(connection, deleteSnapshotStatement, parameters);
+		if (previousDate != null) {
+			execute(connection, copyStatement, parameters);
+		}
+		List<Map<String, Object>> deleted = new ArrayList<Map<String, Object>>();
+		List<Map<String, Object>> inserted = new ArrayList<Map<String, Object>>();
+		for (Map.Entry<String, SnapshotEntry> change : changes.entrySet()) {
+			Map<String, Object> row = new HashMap<String, Object>();
+			row.put("snapshot_date", snapshotDate);
+			row.put("dn_key", change.getKey());
+			deleted.add(row);
+			SnapshotEntry entry = change.getValue();
+			if (entry != null) {
+				row = new HashMap<String, Object>(row);
+				row.put("dn_depth", SnapshotFolder.rdnsOf(entry.getDn()).size());
+				row.put("tr_id", entry.getPosition().getId());
+				row.put("tr_date", entry.getPosition().getDate());
+				row.put("src_desc", entry.getPrincipal());
+				row.put("tr_body", marshal(marshaller, entry));
+				inserted.add(row);
+			}
+			if (deleted.size() >= batchSize) {
+				executeBatch(connection, deleteEntryStatement, deleted);
+			}
+			if (inserted.size() >= batchSize) {
+				executeBatch(connection, insertEntryStatement, inserted);
+			}
+		}
+		executeBatch(connection, deleteEntryStatement, deleted);
+		executeBatch(connection, insertEntryStatement, inserted);
+		// The snapshot is complete and served from now on
+		execute(connection, insertInfoStatement, parameters);
+	}
+
+	/**
+	 * Deletes the snapshots before a snapshot that are not retained.
+	 *
+	 * @param snapshotDate the date of the latest snapshot
+	 * @throws SQLException if the snapshots could not be deleted
+	 */
+	private void purge(Timestamp snapshotDate) throws SQLException {
+		Connection connection = dataSource.getConnection();
+		try {
+			List<Timestamp> dates = new ArrayList<Timestamp>();
+			PreparedStatement statement = connection.prepareStatement(selectSnapshotsStatement.getSql());
+			try {
+				selectSnapshotsStatement.bind(statement, Collections.<String, Object> singletonMap("snapshot_date", snapshotDate));
+				ResultSet rs = statement.executeQuery();
+				try {
+					while (rs.next()) {
+						dates.add(rs.getTimestamp("snapshot_date"));
+					}
+				} finally {
+					rs.close();
+				}
+			} finally {
+				statement.close();
+			}
+			boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try {
+				for (Timestamp date : dates.subList(Math.min(Math.max(retainedSnapshots - 1, 0), dates.size()), dates.size())) {
+					Map<String, Object> parameters = Collections.<String, Object> singletonMap("snapshot_date", date);
+					// The record and the entries together, a snapshot is never served partly deleted
+					execute(connection, deleteInfoStatement, parameters);
+					execute(connection, deleteSnapshotStatement, parameters);
+					connection.commit();
+					LOG.info("Deleted the history snapshot of " + date);
+				}
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Selects entries of a snapshot.
+	 *
+	 * @param select the select statement, returning the columns dn_key, tr_id, tr_date, src_desc and tr_body
+	 * @param parameters the parameters by name
+	 * @param unmarshaller the unmarshaller of the records
+	 * @return the entries
+	 * @throws Exception the exception
+	 */
+	private List<SnapshotEntry> select(NamedStatement select, Map<String, Object> parameters, Unmarshaller unmarshaller)
+			throws Exception {
+		List<SnapshotEntry> entries = new ArrayList<SnapshotEntry>();
+		Connection connection = dataSource.getConnection();
+		try {
+			PreparedStatement statement = connection.prepareStatement(select.getSql());
+			try {
+				select.bind(statement, parameters);
+				ResultSet rs = statement.executeQuery();
+				try {
+					while (rs.next()) {
+						Reader body = rs.getCharacterStream("tr_body");
+						List<DsmlMessage> operations;
+						try {
+							operations = unmarshal(unmarshaller, body).getBatchRequests();
+						} finally {
+							body.close();
+						}
+						entries.add(new SnapshotEntry(rs.getString("dn_key"), SnapshotFolder.dnOf(operations), operations,
+								rs.getString("src_desc"), new HistoryPosition(rs.getTimestamp("tr_date"), rs.getLong("tr_id"))));
+					}
+				} finally {
+					rs.close();
+				}
+			} finally {
+				statement.close();
+			}
+		} finally {
+			connection.close();
+		}
+		return entries;
+	}
+
+	/**
+	 * Executes a statement.
+	 *
+	 * @param connection the connection
+	 * @param named the statement
+	 * @param parameters the parameters by name
+	 * @throws SQLException the SQL exception
+	 */
+	private static void execute(Connection connection, NamedStatement named, Map<String, Object> parameters) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(named.getSql());
+		try {
+			named.bind(statement, parameters);
+			statement.execute();
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Executes a statement as batch and clears the rows.
+	 *
+	 * @param connection the connection
+	 * @param named the statement
+	 * @param rows the parameters by name of each row
+	 * @throws SQLException the SQL exception
+	 */
+	private static void executeBatch(Connection connection, NamedStatement named, List<Map<String, Object>> rows) throws SQLException {
+		if (rows.isEmpty()) {
+			return;
+		}
+		PreparedStatement statement = connection.prepareStatement(named.getSql());
+		try {
+			for (Map<String, Object> row : rows) {
+				named.bind(statement, row);
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		} finally {
+			statement.close();
+		}
+		rows.clear();
+	}
+
+	/**
+	 * Takes the compaction lock.
+	 *
+	 * @param connection the connection holding the lock
+	 * @return true if the lock was taken
+	 * @throws SQLException the SQL exception
+	 */
+	private boolean lock(Connection connection) throws SQLException {
+		if (lockStatement == null) {
+			return true;
+		}
+		PreparedStatement statement = connection.prepareStatement(lockStatement.getSql());
+		try {
+			ResultSet rs = statement.executeQuery();
+			try {
+				return rs.next() && rs.getInt(1) == 1;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Releases the compaction lock.
+	 *
+	 * @param connection the connection holding the lock
+	 * @throws SQLException the SQL exception
+	 */
+	private void unlock(Connection connection) throws SQLException {
+		if (unlockStatement != null) {
+			execute(connection, unlockStatement, Collections.<String, Object> emptyMap());
+		}
+	}
+
+	/**
+	 * Unmarshals a batch request.
+	 *
+	 * @param unmarshaller the unmarshaller
+	 * @param body the batch request
+	 * @return the batch request
+	 * @throws Exception the exception
+	 */
+	private static BatchRequest unmarshal(Unmarshaller unmarshaller, Reader body) throws Exception {
+		XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(body);
+		try {
+			return unmarshaller.unmarshal(reader, BatchRequest.class).getValue();
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Marshals the record of a snapshot entry, a batch request with its operations.
+	 *
+	 * @param marshaller the marshaller
+	 * @param entry the entry
+	 * @return the record
+	 * @throws JAXBException the JAXB exception
+	 */
+	private static String marshal(Marshaller marshaller, SnapshotEntry entry) throws JAXBException {
+		BatchRequest record = new BatchRequest();
+		if (entry.getPrincipal() != null) {
+			AuthRequest authRequest = new AuthRequest();
+			authRequest.setPrincipal(entry.getPrincipal());
+			record.setAuthRequest(authRequest);
+		}
+		record.getBatchRequests().addAll(entry.getOperations());
+		StringWriter writer = new StringWriter();
+		marshaller.marshal(record, writer);
+		return writer.toString();
+	}
+
+	/**
+	 * Gets the date of the latest snapshot to take, the start of the period of the time minus the
+	 * grace time, in UTC.
+	 *
+	 * @param time the time
+	 * @return the snapshot date
+	 */
+	Timestamp snapshotDateOf(long time) {
+		long cut = time - graceMillis;
+		return new Timestamp(cut - cut % periodMillis);
+	}
+
+	/**
+	 * Sets the data source.
+	 *
+	 * @param dataSource the new data source
+	 */
+	public void setDataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * Sets the history reader, which reads the history with its page statement.
+	 *
+	 * @param historyReader the new history reader
+	 */
+	public void setHistoryReader(HistoryReader historyReader) {
+		this.historyReader = historyReader;
+	}
+
+	/**
+	 * Sets the history store.
+	 *
+	 * @param historyStore the new history store
+	 */
+	public void setHistoryStore(HistoryStore historyStore) {
+		this.historyStore = historyStore;
+	}
+
+	/**
+	 * Sets the statement taking the compaction lock, none to compact without lock.
+	 *
+	 * @param statement the new lock statement
+	 */
+	public void setLockStatement(String statement) {
+		this.lockStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the statement releasing the compaction lock.
+	 *
+	 * @param statement the new unlock statement
+	 */
+	public void setUnlockStatement(String statement) {
+		this.unlockStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the statement selecting the entry :#dn_key of the snapshot :#snapshot_date.
+	 *
+	 * @param statement the new select entry statement
+	 */
+	public void setSelectEntryStatement(String statement) {
+		this.selectEntryStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the statement selecting the entries of the snapshot :#snapshot_date whose normalized DN
+	 * is like :#dn_pattern.
+	 *
+	 * @param statement the new select subordinates statement
+	 */
+	public void setSelectSubordinatesStatement(String statement) {
+		this.selectSubordinatesStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the statement copying the snapshot :#previous_date to :#snapshot_date.
+	 *
+	 * @param statement the new copy statement
+	 */
+	public void setCopyStatement(String statement) {
+		this.copyStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the statement deleting the entry :#dn_key of the snapshot :#snapshot_date.
+	 *
+	 * @param statement the new delete entry statement
+	 */
+	public void setDeleteEntryStatement(String statement) {
+		this.deleteEntryStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the statement inserting an entry of a snapshot.
+	 *
+	 * @param statement the new insert entry statement
+	 */
+	public void setInsertEntryStatement(String statement) {
+		this.insertEntryStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the statement deleting the entries of the snapshot :#snapshot_date.
+	 *
+	 * @param statement the new delete snapshot statement
+	 */
+	public void setDeleteSnapshotStatement(String statement) {
+		this.deleteSnapshotStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the statement recording the complete snapshot :#snapshot_date.
+	 *
+	 * @param statement the new insert info statement
+	 */
+	public void setInsertInfoStatement(String statement) {
+		this.insertInfoStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the statement deleting the record of the snapshot :#snapshot_date.
+	 *
+	 * @param statement the new delete info statement
+	 */
+	public void setDeleteInfoStatement(String statement) {
+		this.deleteInfoStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the statement selecting the dates of the snapshots before :#snapshot_date, latest first.
+	 *
+	 * @param statement the new select snapshots statement
+	 */
+	public void setSelectSnapshotsStatement(String statement) {
+		this.selectSnapshotsStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the period between snapshots.
+	 *
+	 * @param periodMillis the new period in milliseconds
+	 */
+	public void setPeriodMillis(long periodMillis) {
+		this.periodMillis = periodMillis;
+	}
+
+	/**
+	 * Sets the time after the start of a period before its snapshot is taken.
+	 *
+	 * @param graceMillis the new grace time in milliseconds
+	 */
+	public void setGraceMillis(long graceMillis) {
+		this.graceMillis = graceMillis;
+	}
+
+	/**
+	 * Sets the number of snapshots kept.
+	 *
+	 * @param retainedSnapshots the new number of retained snapshots
+	 */
+	public void setRetainedSnapshots(int retainedSnapshots) {
+		this.retainedSnapshots = retainedSnapshots;
+	}
+
+	/**
+	 * Sets the number of history entries read and snapshot entries written at once.
+	 *
+	 * @param batchSize the new batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+}
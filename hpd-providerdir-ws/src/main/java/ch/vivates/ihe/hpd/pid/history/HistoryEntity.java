@@ -0,0 +1,157 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The Class HistoryEntity is an entry targeted by a transaction of the history, with the values
+ * a download can be filtered by.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public final class HistoryEntity {
+
+	/** The separator of the entities in their text form. */
+	private static final char ENTITY_SEPARATOR = '\n';
+
+	/** The separator of the values of an entity in its text form. */
+	private static final char VALUE_SEPARATOR = '\t';
+
+	/** The normalized DN of the entry. */
+	private final String dnKey;
+
+	/** The operation type: add, modify, delete or modDN. */
+	private final String operation;
+
+	/** The normalized DN of the community of the entry. */
+	private final String community;
+
+	/** The object classes of the entry known from the transaction, in lower case. */
+	private final Set<String> objectClasses;
+
+	/**
+	 * Instantiates a new history entity.
+	 *
+	 * @param dnKey the normalized DN of the entry
+	 * @param operation the operation type
+	 * @param community the normalized DN of the community
+	 * @param objectClasses the object classes in lower case
+	 */
+	public HistoryEntity(String dnKey, String operation, String community, Set<String> objectClasses) {
+		this.dnKey = dnKey;
+		this.operation = operation;
+		this.community = community;
+		this.objectClasses = Collections.unmodifiableSet(objectClasses);
+	}
+
+	/**
+	 * Gets the normalized DN of the entry.
+	 *
+	 * @return the DN key
+	 */
+	public String getDnKey() {
+		return dnKey;
+	}
+
+	/**
+	 * Gets the operation type.
+	 *
+	 * @return add, modify, delete or modDN
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	/**
+	 * Gets the normalized DN of the community of the entry.
+	 *
+	 * @return the community
+	 */
+	public String getCommunity() {
+		return community;
+	}
+
+	/**
+	 * Gets the object classes of the entry known from the transaction.
+	 *
+	 * @return the object classes in lower case, empty if none is known
+	 */
+	public Set<String> getObjectClasses() {
+		return objectClasses;
+	}
+
+	/**
+	 * Formats entities as text, one line per entity with its operation, DN key, community and
+	 * object classes separated by tabs. Tabs, line breaks and percent signs within the values are
+	 * percent-encoded.
+	 *
+	 * @param entities the entities
+	 * @return the text, empty if there are no entities
+	 */
+	public static String format(List<HistoryEntity> entities) {
+		StringBuilder text = new StringBuilder();
+		for (HistoryEntity entity : entities) {
+			if (text.length() > 0) {
+				text.append(ENTITY_SEPARATOR);
+			}
+			text.append(encode(entity.operation)).append(VALUE_SEPARATOR).append(encode(entity.dnKey)).append(VALUE_SEPARATOR)
+					.append(encode(entity.community));
+			for (String objectClass : entity.objectClasses) {
+				text.append(VALUE_SEPARATOR).append(encode(objectClass));
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Parses entities formatted by {@link #format(List)}.
+	 *
+	 * @param text the text
+	 * @return the entities
+	 * @throws IllegalArgumentException if the text holds an entity without DN key or community
+	 */
+	public static List<HistoryEntity> parse(String text) {
+		List<HistoryEntity> entities = new ArrayList<HistoryEntity>();
+		if (text.isEmpty()) {
+			return entities;
+		}
+		for (String line : text.split(String.valueOf(ENTITY_SEPARATOR), -1)) {
+			String[] values = line.split(String.valueOf(VALUE_SEPARATOR), -1);
+			if (values.length < 3) {
+				throw new IllegalArgumentException("Invalid history entity: " + line);
+			}
+			Set<String> objectClasses = new LinkedHashSet<String>();
+			for (String objectClass : Arrays.asList(values).subList(3, values.length)) {
+				objectClasses.add(decode(objectClass));
+			}
+			entities.add(new HistoryEntity(decode(values[1]), decode(values[0]), decode(values[2]), objectClasses));
+		}
+		return entities;
+	}
+
+	/**
+	 * Percent-encodes the separators and the percent sign of a value.
+	 *
+	 * @param value the value
+	 * @return the encoded value
+	 */
+	private static String encode(String value) {
+		return value.replace("%", "%25").replace("\t", "%09").replace("\n", "%0A");
+	}
+
+	/**
+	 * Decodes a value encoded by {@link #encode(String)}.
+	 *
+	 * @param value the encoded value
+	 * @return the value
+	 */
+	private static String decode(String value) {
+		return value.replace("%0A", "\n").replace("%09", "\t").replace("%25", "%");
+	}
+
+}
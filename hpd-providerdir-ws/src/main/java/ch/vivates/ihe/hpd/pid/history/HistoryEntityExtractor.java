@@ -0,0 +1,242 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.vivates.ihe.hpd.pid.model.cs.ModifyDNRequest;
+import ch.vivates.tools.dsmlv2.SearchKey;
+
+/**
+ * The Class HistoryEntityExtractor extracts the entries targeted by the operations of a history
+ * entry body, with their operation type, community and object classes. A modify DN request
+ * targets the entry under its old and its new DN.
+ * <p>
+ * The object classes are the objectClass values of the add and modify requests, and the object
+ * class of the container of the entry (e.g. HCProfessional below ou=HCProfessional), so
+ * modifications and deletions are also found by object class.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class HistoryEntityExtractor {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(HistoryEntityExtractor.class);
+
+	/** The StAX input factory. */
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+	static {
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/** The operation types by DSML request element. */
+	private static final Map<String, String> OPERATIONS = new HashMap<String, String>();
+
+	static {
+		OPERATIONS.put("addRequest", "add");
+		OPERATIONS.put("modifyRequest", "modify");
+		OPERATIONS.put("delRequest", "delete");
+		OPERATIONS.put("modDNRequest", "modDN");
+	}
+
+	/** The normalized base DN, the community of entries outside an organization. */
+	private String base = "";
+
+	/** The object classes in lower case by normalized container RDN. */
+	private final Map<String, String> containerObjectClasses = new HashMap<String, String>();
+
+	/**
+	 * Extracts the entries targeted by the operations of a history entry body. Several
+	 * operations of the same type on an entry give one entity.
+	 *
+	 * @param body the body, a DSML batch request
+	 * @return the entities in the order of the operations
+	 * @throws XMLStreamException if the body could not be parsed
+	 */
+	public List<HistoryEntity> extract(String body) throws XMLStreamException {
+		Map<String, Set<String>> classesByEntity = new LinkedHashMap<String, Set<String>>();
+		XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(new StringReader(body));
+		try {
+			int depth = 0;
+			String operation = null;
+			List<String> dns = new ArrayList<String>();
+			Set<String> classes = null;
+			boolean objectClassValues = false;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.END_ELEMENT) {
+					if (depth == 2 && operation != null) {
+						for (String dn : dns) {
+							String key = operation + " " + dn;
+							if (!classesByEntity.containsKey(key)) {
+								classesByEntity.put(key, new LinkedHashSet<String>());
+							}
+							classesByEntity.get(key).addAll(classes);
+						}
+						operation = null;
+					}
+					depth--;
+				} else if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					String name = reader.getLocalName();
+					if (depth == 2) {
+						operation = OPERATIONS.get(name);
+						dns = dnsOf(reader, operation);
+						classes = new LinkedHashSet<String>();
+					} else if (depth == 3 && operation != null) {
+						objectClassValues = ("attr".equals(name) || "modification".equals(name))
+								&& "objectclass".equalsIgnoreCase(reader.getAttributeValue(null, "name"))
+								&& !"delete".equals(reader.getAttributeValue(null, "operation"));
+					} else if (depth == 4 && operation != null && objectClassValues && "value".equals(name)) {
+						classes.add(reader.getElementText().trim().toLowerCase(Locale.ENGLISH));
+						// The text is read up to the end of the value
+						depth--;
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		List<HistoryEntity> entities = new ArrayList<HistoryEntity>(classesByEntity.size());
+		for (Map.Entry<String, Set<String>> entity : classesByEntity.entrySet()) {
+			int separator = entity.getKey().indexOf(' ');
+			String dn = entity.getKey().substring(separator + 1);
+			Set<String> classes = entity.getValue();
+			String containerClass = containerObjectClassOf(dn);
+			if (containerClass != null) {
+				classes.add(containerClass);
+			}
+			entities.add(new HistoryEntity(SnapshotFolder.normalize(dn), entity.getKey().substring(0, separator), communityOf(dn, base),
+					classes));
+		}
+		return entities;
+	}
+
+	/**
+	 * Gets the DNs targeted by an operation.
+	 *
+	 * @param reader the reader, at the start of the operation
+	 * @param operation the operation type, null for elements that are no operations
+	 * @return the target DN, and the new DN of a modify DN request
+	 */
+	private static List<String> dnsOf(XMLStreamReader reader, String operation) {
+		List<String> dns = new ArrayList<String>(2);
+		String dn = reader.getAttributeValue(null, "dn");
+		if (operation == null || dn == null) {
+			return dns;
+		}
+		dns.add(dn);
+		if ("modDN".equals(operation) && reader.getAttributeValue(null, "newrdn") != null) {
+			ModifyDNRequest request = new ModifyDNRequest();
+			request.setDn(dn);
+			request.setNewrdn(reader.getAttributeValue(null, "newrdn"));
+			request.setNewSuperior(reader.getAttributeValue(null, "newSuperior"));
+			dns.add(SnapshotFolder.newDnOf(request));
+		}
+		return dns;
+	}
+
+	/**
+	 * Gets the object class of the container of an entry.
+	 *
+	 * @param dn the DN of the entry
+	 * @return the object class in lower case, null if the container has none
+	 */
+	private String containerObjectClassOf(String dn) {
+		List<String> rdns = SnapshotFolder.rdnsOf(dn);
+		return rdns.size() < 2 ? null : containerObjectClasses.get(SnapshotFolder.normalize(rdns.get(1)));
+	}
+
+	/**
+	 * Gets the community of a DN, the DN below its first organization RDN.
+	 *
+	 * @param dn the DN
+	 * @param base the normalized base DN, the community of DNs without organization RDN
+	 * @return the normalized community, or the base if the DN has no organization RDN
+	 */
+	public static String communityOf(String dn, String base) {
+		if (dn == null) {
+			return base;
+		}
+		try {
+			for (Dn suffix = new Dn(dn); !suffix.isEmpty(); suffix = suffix.getParent()) {
+				String type = suffix.getRdn().getType().trim().toLowerCase(Locale.ENGLISH);
+				if ("o".equals(type) || "organizationname".equals(type) || "2.5.4.10".equals(type)) {
+					return SearchKey.normalize(suffix);
+				}
+			}
+		} catch (LdapInvalidDnException e) {
+			LOG.debug("Invalid target DN " + dn, e);
+		}
+		return base;
+	}
+
+	/**
+	 * Gets the community of the entities of a history entry.
+	 *
+	 * @param entities the entities
+	 * @return the community, or the base if the entities are in several communities or none
+	 */
+	public String communityOf(List<HistoryEntity> entities) {
+		String community = null;
+		for (HistoryEntity entity : entities) {
+			if (community != null && !community.equals(entity.getCommunity())) {
+				return base;
+			}
+			community = entity.getCommunity();
+		}
+		return community != null ? community : base;
+	}
+
+	/**
+	 * Gets the base DN, the community of entries outside an organization.
+	 *
+	 * @return the normalized base DN
+	 */
+	public String getBase() {
+		return base;
+	}
+
+	/**
+	 * Sets the base DN, the community of entries outside an organization.
+	 *
+	 * @param base the new base DN
+	 * @throws LdapInvalidDnException if the base is not a valid DN
+	 */
+	public void setBase(String base) throws LdapInvalidDnException {
+		this.base = SearchKey.normalize(new Dn(base));
+	}
+
+	/**
+	 * Sets the object classes of the entries by the RDN of their container.
+	 *
+	 * @param containerObjectClasses the object classes by container RDN, e.g. ou=HCProfessional
+	 */
+	public void setContainerObjectClasses(Map<String, String> containerObjectClasses) {
+		this.containerObjectClasses.clear();
+		for (Map.Entry<String, String> container : containerObjectClasses.entrySet()) {
+			this.containerObjectClasses.put(SnapshotFolder.normalize(container.getKey()),
+					container.getValue().trim().toLowerCase(Locale.ENGLISH));
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.name.Dn;
+
+import ch.vivates.tools.dsmlv2.SearchKey;
+
+/**
+ * The Class HistoryFilter selects the history entries by the entries they target. An entry is
+ * selected if one of its entities matches each of the given DNs, object classes and communities:
+ * the values of one kind are alternatives, the kinds must all match.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public final class HistoryFilter {
+
+	/** The parameter of the history stores holding the filter of a read. */
+	public static final String PARAMETER = "filter";
+
+	/** The placeholder of the filtered statements replaced by the filter conditions. */
+	static final String PLACEHOLDER = "{filter}";
+
+	/** The normalized DNs. */
+	private final Set<String> dnKeys;
+
+	/** The object classes in lower case. */
+	private final Set<String> objectClasses;
+
+	/** The normalized communities. */
+	private final Set<String> communities;
+
+	/**
+	 * Instantiates a new history filter.
+	 *
+	 * @param dnKeys the normalized DNs
+	 * @param objectClasses the object classes in lower case
+	 * @param communities the normalized communities
+	 */
+	private HistoryFilter(Set<String> dnKeys, Set<String> objectClasses, Set<String> communities) {
+		this.dnKeys = dnKeys;
+		this.objectClasses = objectClasses;
+		this.communities = communities;
+	}
+
+	/**
+	 * Creates a filter.
+	 *
+	 * @param dns the DNs of the entries, none for all entries
+	 * @param objectClasses the object classes of the entries, none for all entries
+	 * @param communities the DNs of the communities of the entries, none for all entries
+	 * @return the filter, null if there is nothing to filter
+	 * @throws IllegalArgumentException if a DN is not valid
+	 */
+	public static HistoryFilter of(List<String> dns, List<String> objectClasses, List<String> communities) {
+		if (dns.isEmpty() && objectClasses.isEmpty() && communities.isEmpty()) {
+			return null;
+		}
+		Set<String> classes = new LinkedHashSet<String>();
+		for (String objectClass : objectClasses) {
+			classes.add(objectClass.trim().toLowerCase(Locale.ENGLISH));
+		}
+		return new HistoryFilter(normalize(dns), classes, normalize(communities));
+	}
+
+	/**
+	 * Normalizes DNs.
+	 *
+	 * @param dns the DNs
+	 * @return the normalized DNs
+	 * @throws IllegalArgumentException if a DN is not valid
+	 */
+	private static Set<String> normalize(List<String> dns) {
+		Set<String> keys = new LinkedHashSet<String>();
+		for (String dn : dns) {
+			try {
+				keys.add(SearchKey.normalize(new Dn(dn)));
+			} catch (LdapInvalidDnException e) {
+				throw new IllegalArgumentException("Invalid DN in the download filter: " + dn, e);
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Checks whether the entities of a history entry match the filter.
+	 *
+	 * @param entities the entities of the entry
+	 * @return true if one of the entities matches
+	 */
+	public boolean matches(List<HistoryEntity> entities) {
+		for (HistoryEntity entity : entities) {
+			if ((dnKeys.isEmpty() || dnKeys.contains(entity.getDnKey()))
+					&& (communities.isEmpty() || communities.contains(entity.getCommunity()))
+					&& (objectClasses.isEmpty() || !Collections.disjoint(objectClasses, entity.getObjectClasses()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Creates a filtered statement, replacing the placeholder {filter} with the conditions on the
+	 * columns dn_key, object_class and community of the entity table.
+	 *
+	 * @param statement the statement, with the named parameters (:#name) of the Camel SQL component
+	 * @param parameters the parameters of the statement, receiving the values of the conditions
+	 * @return the filtered statement
+	 */
+	NamedStatement apply(String statement, Map<String, Object> parameters) {
+		StringBuilder conditions = new StringBuilder();
+		condition(conditions, "dn_key", dnKeys, parameters);
+		condition(conditions, "object_class", objectClasses, parameters);
+		condition(conditions, "community", communities, parameters);
+		return new NamedStatement(statement.replace(PLACEHOLDER, conditions));
+	}
+
+	/**
+	 * Appends the condition on a column.
+	 *
+	 * @param conditions the conditions
+	 * @param column the column
+	 * @param values the values, none for no condition
+	 * @param parameters the parameters receiving the values
+	 */
+	private static void condition(StringBuilder conditions, String column, Set<String> values, Map<String, Object> parameters) {
+		if (values.isEmpty()) {
+			return;
+		}
+		List<String> names = new ArrayList<String>(values.size());
+		for (String value : values) {
+			String name = "filter_" + column + "_" + names.size();
+			names.add(":#" + name);
+			parameters.put(name, value);
+		}
+		conditions.append(" and ").append(column).append(" in (");
+		for (int i = 0; i < names.size(); i++) {
+			conditions.append(i > 0 ? ", " : "").append(names.get(i));
+		}
+		conditions.append(")");
+	}
+
+}
@@ -0,0 +1,51 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.sql.Timestamp;
+
+/**
+ * The Class HistoryPosition is the position of a history entry in the order of the history,
+ * by transaction date and then by id. Pages of the history are read after a position, so each
+ * page is found with the index instead of skipping the previous pages. The changes are read in
+ * the order the entries were written, their positions hold the write date instead.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public final class HistoryPosition {
+
+	/** The transaction date. */
+	private final Timestamp date;
+
+	/** The transaction id. */
+	private final long id;
+
+	/**
+	 * Instantiates a new history position.
+	 *
+	 * @param date the transaction date
+	 * @param id the transaction id
+	 */
+	public HistoryPosition(Timestamp date, long id) {
+		this.date = date;
+		this.id = id;
+	}
+
+	/**
+	 * Gets the transaction date.
+	 *
+	 * @return the date
+	 */
+	public Timestamp getDate() {
+		return date;
+	}
+
+	/**
+	 * Gets the transaction id.
+	 *
+	 * @return the id
+	 */
+	public long getId() {
+		return id;
+	}
+
+}
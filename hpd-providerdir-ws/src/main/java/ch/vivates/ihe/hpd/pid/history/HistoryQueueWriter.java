@@ -0,0 +1,552 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.camel.Body;
+import org.apache.camel.Headers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class HistoryQueueWriter persists the transaction history behind its own JMS queue, so
+ * feed operations only wait for the history entry to be queued, not for the database. The feed
+ * route converts each entry to a message with {@link #toMessage(Map, Map)} and sends it to the
+ * history queue. Consumer threads of this writer receive the messages in transacted sessions and
+ * write them as batches to the history store, committing the session once the batch is written,
+ * so entries are removed from the queue only when they are stored. A batch the store fails to
+ * write because it is not available, e.g. during a database outage, is retried within the session,
+ * with a growing delay, instead of being rolled back: each rollback counts as a redelivery, and
+ * the broker moves an entry to the dead letter queue once its redeliveries are exhausted. Any
+ * other failure is caused by an entry of the batch, e.g. a body too long for the table, and would
+ * never succeed. The session is rolled back, and the redelivered entries are written one at a
+ * time, so the entry which still fails is moved to the dead letter queue by the bounded
+ * redelivery policy of the connection factory, and the other entries of its community follow.
+ * <p>
+ * The entries are queued in the JMS message group of the community of their target entries, so
+ * several consumers and nodes write the entries of a community in the order they were queued, and
+ * the transaction ids of an entry's history follow the order of its operations. An entry moved to
+ * another community by a modify DN request is grouped with the entries outside a community. The
+ * target entries and their community are extracted once, when the entry is converted, and the
+ * entities travel with the message to the history store.
+ * <p>
+ * Queuing waits, for up to a minute, while more entries than the maximum are queued by this node
+ * and not yet written by its consumers, so a slow database slows feeds down instead of filling
+ * the broker. When several nodes share the queue the count is approximate, since each node also
+ * writes entries queued by the others. The lag between the LDAP operation and the availability
+ * of its history entry is measured for every written entry. Written batches are announced to the
+ * change notifier, which wakes the requests waiting for changes.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class HistoryQueueWriter {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(HistoryQueueWriter.class);
+
+	/** The message property holding the time the LDAP operation completed. */
+	public static final String EXECUTED_PROPERTY = "HpdPidExecuted";
+
+	/** The message property holding the transaction id. */
+	private static final String TR_OP_IDX = "tr_op_idx";
+
+	/** The message property holding the principal. */
+	private static final String SRC_DESC = "src_desc";
+
+	/** The message property holding the transaction date. */
+	private static final String TR_DATE = "tr_date";
+
+	/** The entry holding the transaction body. */
+	private static final String TR_BODY = "tr_body";
+
+	/** The message property holding the entities targeted by the transaction. */
+	private static final String TR_ENTITIES = "tr_entities";
+
+	/** The entry holding the community of the entities. */
+	private static final String TR_COMMUNITY = "tr_community";
+
+	/** The header read by the broker to group messages. */
+	private static final String GROUP_HEADER = "JMSXGroupID";
+
+	/** The time a consumer waits for a message while its batch is empty. */
+	private static final long POLL_MILLIS = 1000;
+
+	/** The maximum time queuing waits for pending entries. */
+	private static final long MAX_WAIT_MILLIS = 60000;
+
+	/** The time a consumer waits after a failure before it retries. */
+	private static final long RETRY_DELAY_MILLIS = 5000;
+
+	/** The maximum time a consumer waits before it retries to write a batch. */
+	private static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+	/** The connection factory. */
+	private ConnectionFactory connectionFactory;
+
+	/** The name of the history queue. */
+	private String queueName = "history_entries";
+
+	/** The history store. */
+	private HistoryStore historyStore;
+
+	/** The notifier of the written entries, null to announce nothing. */
+	private HistoryChangeNotifier changeNotifier;
+
+	/** The number of consumer threads. */
+	private int consumers = 2;
+
+	/** The number of entries written in one batch. */
+	private int batchSize = 100;
+
+	/** The time the first entry of a batch waits for more entries. */
+	private long batchTimeoutMillis = 1000;
+
+	/** The number of entries queued by this node and not yet written before queuing waits. */
+	private long maxPendingEntries = 10000;
+
+	/** The consumer threads. */
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	/** True while the consumers run. */
+	private volatile boolean running;
+
+	/** The lock and condition for queuing waiting on pending entries. */
+	private final Object pendingLock = new Object();
+
+	/** The entries queued by this node and not yet written. */
+	private long pending;
+
+	/** The number of written entries. */
+	private final AtomicLong written = new AtomicLong();
+
+	/** The sum of the lags of the written entries in milliseconds. */
+	private final AtomicLong totalLagMillis = new AtomicLong();
+
+	/** The lag of the last written entry in milliseconds. */
+	private volatile long lastLagMillis;
+
+	/** The maximum lag of a written entry in milliseconds. */
+	private volatile long maxLagMillis;
+
+	/**
+	 * Starts the consumers.
+	 */
+	public void start() {
+		running = true;
+		for (int i = 0; i < consumers; i++) {
+			Thread thread = new Thread(new Consumer(), "hpd-history-writer-" + i);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the consumers. Entries received but not written are left in the queue.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the consumers
+	 */
+	public void stop() throws InterruptedException {
+		running = false;
+		for (Thread thread : threads) {
+			thread.join(POLL_MILLIS + RETRY_DELAY_MILLIS);
+		}
+		threads.clear();
+	}
+
+	/**
+	 * Converts a history entry to a message for the history queue, in the message group of its
+	 * community, with its entities. An entry without entities is not grouped. The other headers
+	 * of the exchange are removed, they are not part of the history.
+	 *
+	 * @param entry the entry, as converted by the TransactionsHistoryItemExtractor
+	 * @param headers the headers of the message
+	 * @return the body of the message, the transaction body
+	 * @throws IOException if the transaction body could not be read
+	 * @throws InterruptedException if interrupted while waiting for pending entries
+	 */
+	public String toMessage(@Body Map<String, Object> entry, @Headers Map<String, Object> headers) throws IOException,
+			InterruptedException {
+		long executed = System.currentTimeMillis();
+		awaitCapacity();
+		headers.clear();
+		headers.put(TR_OP_IDX, entry.get(TR_OP_IDX));
+		headers.put(SRC_DESC, entry.get(SRC_DESC));
+		headers.put(TR_DATE, ((Date) entry.get(TR_DATE)).getTime());
+		headers.put(EXECUTED_PROPERTY, executed);
+		Object body = entry.get(TR_BODY);
+		String text = body instanceof InputStream ? HistoryBatchWriter.read((InputStream) body) : String.valueOf(body);
+		Object entities = entry.get(TR_ENTITIES);
+		if (entities != null) {
+			@SuppressWarnings("unchecked")
+			List<HistoryEntity> list = (List<HistoryEntity>) entities;
+			headers.put(TR_ENTITIES, HistoryEntity.format(list));
+			headers.put(GROUP_HEADER, entry.get(TR_COMMUNITY));
+		}
+		return text;
+	}
+
+	/**
+	 * Waits until the entries pending on this node are below the maximum, and counts one more.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private void awaitCapacity() throws InterruptedException {
+		synchronized (pendingLock) {
+			long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+			boolean logged = false;
+			while (running && pending >= maxPendingEntries) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					// Other nodes may have written the entries counted here
+					LOG.warn("History queue still has " + pending + " pending entries, queuing anyway");
+					break;
+				}
+				if (!logged) {
+					LOG.warn("History queue has " + pending + " pending entries, waiting for the history writer");
+					logged = true;
+				}
+				pendingLock.wait(Math.min(wait, POLL_MILLIS));
+			}
+			pending++;
+		}
+	}
+
+	/**
+	 * Records written entries.
+	 *
+	 * @param executed the times the LDAP operations of the entries completed
+	 */
+	private void written(List<Long> executed) {
+		long now = System.currentTimeMillis();
+		for (Long time : executed) {
+			long lag = Math.max(0, now - time);
+			lastLagMillis = lag;
+			if (lag > maxLagMillis) {
+				maxLagMillis = lag;
+			}
+			totalLagMillis.addAndGet(lag);
+		}
+		written.addAndGet(executed.size());
+		synchronized (pendingLock) {
+			// Entries queued before a restart are not counted as pending
+			pending = Math.max(0, pending - executed.size());
+			pendingLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Checks if a failure to write is caused by the store not being available, rather than by
+	 * one of the entries. Connection failures, rolled back transactions and failures without SQL
+	 * state, as reported by the connection pool, are transient, and so are the I/O failures of
+	 * the files of the segment store.
+	 *
+	 * @param e the failure
+	 * @return true if writing the same entries again may succeed
+	 */
+	private static boolean isTransient(Exception e) {
+		if (!(e instanceof SQLException)) {
+			return true;
+		}
+		if (e instanceof SQLTransientException || e instanceof SQLRecoverableException) {
+			return true;
+		}
+		String state = ((SQLException) e).getSQLState();
+		return state == null || state.startsWith("08") || state.startsWith("40");
+	}
+
+	/**
+	 * Converts a message of the history queue back to a history entry.
+	 *
+	 * @param message the message
+	 * @return the entry
+	 * @throws JMSException if the message could not be read
+	 */
+	private static Map<String, Object> toEntry(Message message) throws JMSException {
+		Map<String, Object> entry = new HashMap<String, Object>();
+		entry.put(TR_OP_IDX, message.getStringProperty(TR_OP_IDX));
+		entry.put(SRC_DESC, message.getStringProperty(SRC_DESC));
+		entry.put(TR_DATE, new Timestamp(message.getLongProperty(TR_DATE)));
+		entry.put(TR_BODY, ((TextMessage) message).getText());
+		// Entries queued without entity extractor are written without entities
+		entry.put(TR_ENTITIES, message.propertyExists(TR_ENTITIES) ? HistoryEntity.parse(message.getStringProperty(TR_ENTITIES))
+				: Collections.<HistoryEntity> emptyList());
+		return entry;
+	}
+
+	/**
+	 * Gets the number of entries written since the start.
+	 *
+	 * @return the number of written entries
+	 */
+	public long getWrittenEntries() {
+		return written.get();
+	}
+
+	/**
+	 * Gets the number of entries queued by this node and not yet written.
+	 *
+	 * @return the number of pending entries
+	 */
+	public long getPendingEntries() {
+		synchronized (pendingLock) {
+			return pending;
+		}
+	}
+
+	/**
+	 * Gets the lag between the LDAP operation and the availability of the history entry, for
+	 * the last written entry.
+	 *
+	 * @return the last lag in milliseconds
+	 */
+	public long getLastLagMillis() {
+		return lastLagMillis;
+	}
+
+	/**
+	 * Gets the maximum lag since the start.
+	 *
+	 * @return the maximum lag in milliseconds
+	 */
+	public long getMaxLagMillis() {
+		return maxLagMillis;
+	}
+
+	/**
+	 * Gets the average lag since the start.
+	 *
+	 * @return the average lag in milliseconds
+	 */
+	public long getAverageLagMillis() {
+		long count = written.get();
+		return count == 0 ? 0 : totalLagMillis.get() / count;
+	}
+
+	/**
+	 * Sets the connection factory.
+	 *
+	 * @param connectionFactory the new connection factory
+	 */
+	public void setConnectionFactory(ConnectionFactory connectionFactory) {
+		this.connectionFactory = connectionFactory;
+	}
+
+	/**
+	 * Sets the name of the history queue.
+	 *
+	 * @param queueName the new queue name
+	 */
+	public void setQueueName(String queueName) {
+		this.queueName = queueName;
+	}
+
+	/**
+	 * Sets the history store.
+	 *
+	 * @param historyStore the new history store
+	 */
+	public void setHistoryStore(HistoryStore historyStore) {
+		this.historyStore = historyStore;
+	}
+
+	/**
+	 * Sets the notifier of the written entries.
+	 *
+	 * @param changeNotifier the new change notifier
+	 */
+	public void setChangeNotifier(HistoryChangeNotifier changeNotifier) {
+		this.changeNotifier = changeNotifier;
+	}
+
+	/**
+	 * Sets the number of consumer threads.
+	 *
+	 * @param consumers the new number of consumers
+	 */
+	public void setConsumers(int consumers) {
+		this.consumers = consumers;
+	}
+
+	/**
+	 * Sets the number of entries written in one batch.
+	 *
+	 * @param batchSize the new batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the time the first entry of a batch waits for more entries.
+	 *
+	 * @param batchTimeoutMillis the new batch timeout in milliseconds
+	 */
+	public void setBatchTimeoutMillis(long batchTimeoutMillis) {
+		this.batchTimeoutMillis = batchTimeoutMillis;
+	}
+
+	/**
+	 * Sets the number of entries queued by this node and not yet written before queuing waits.
+	 *
+	 * @param maxPendingEntries the new maximum number of pending entries
+	 */
+	public void setMaxPendingEntries(long maxPendingEntries) {
+		this.maxPendingEntries = maxPendingEntries;
+	}
+
+	/**
+	 * The Class Consumer receives batches from the history queue and writes them.
+	 */
+	private class Consumer implements Runnable {
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					consume();
+				} catch (Exception e) {
+					LOG.warn("History writer failed, retrying in " + RETRY_DELAY_MILLIS + " ms", e);
+					sleep(RETRY_DELAY_MILLIS);
+				}
+			}
+		}
+
+		/**
+		 * Receives and writes batches until stopped.
+		 *
+		 * @throws JMSException if the queue is not available
+		 */
+		private void consume() throws JMSException {
+			Connection connection = connectionFactory.createConnection();
+			try {
+				connection.start();
+				Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+				MessageConsumer consumer = session.createConsumer(session.createQueue(queueName));
+				List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+				List<Long> executed = new ArrayList<Long>();
+				while (running) {
+					receive(consumer, entries, executed);
+					if (entries.isEmpty()) {
+						continue;
+					}
+					if (write(entries)) {
+						session.commit();
+						written(executed);
+						if (changeNotifier != null) {
+							changeNotifier.announce();
+						}
+					} else {
+						// Stopped before the batch was written or failed on an entry, the messages are redelivered
+						session.rollback();
+					}
+					entries.clear();
+					executed.clear();
+				}
+			} finally {
+				connection.close();
+			}
+		}
+
+		/**
+		 * Writes a batch to the history store, retrying while the store is not available until it
+		 * is written or the consumers are stopped.
+		 *
+		 * @param entries the entries of the batch
+		 * @return true if the batch was written, false if stopped before or if an entry failed
+		 */
+		private boolean write(List<Map<String, Object>> entries) {
+			long delay = RETRY_DELAY_MILLIS;
+			while (running) {
+				try {
+					historyStore.write(entries);
+					return true;
+				} catch (SQLException | IOException e) {
+					if (!isTransient(e)) {
+						LOG.error("Failed to write " + (entries.size() == 1 ? "history entry " + entries.get(0).get(TR_OP_IDX)
+								: entries.size() + " history entries") + ", rolling back for redelivery", e);
+						return false;
+					}
+					LOG.warn("Failed to write " + entries.size() + " history entries, retrying in " + delay + " ms", e);
+					sleep(delay);
+					delay = Math.min(delay * 2, MAX_RETRY_DELAY_MILLIS);
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Receives a batch: up to the batch size, or the messages arriving within the batch
+		 * timeout after the first one. A redelivered message ends the batch, the messages of a
+		 * rolled back batch are received first and each one is written alone.
+		 *
+		 * @param consumer the consumer
+		 * @param entries the entries of the batch
+		 * @param executed the times the LDAP operations of the entries completed
+		 * @throws JMSException if the queue is not available
+		 */
+		private void receive(MessageConsumer consumer, List<Map<String, Object>> entries, List<Long> executed) throws JMSException {
+			long deadline = 0;
+			while (entries.size() < batchSize) {
+				long wait = entries.isEmpty() ? POLL_MILLIS : deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					return;
+				}
+				Message message = consumer.receive(wait);
+				if (message == null) {
+					return;
+				}
+				if (entries.isEmpty()) {
+					deadline = System.currentTimeMillis() + batchTimeoutMillis;
+				}
+				entries.add(toEntry(message));
+				executed.add(message.propertyExists(EXECUTED_PROPERTY) ? message.getLongProperty(EXECUTED_PROPERTY) : message
+						.getJMSTimestamp());
+				if (message.getJMSRedelivered()) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Waits before a retry, or until the consumers are stopped.
+		 *
+		 * @param delay the time to wait in milliseconds
+		 */
+		private void sleep(long delay) {
+			long deadline = System.currentTimeMillis() + delay;
+			try {
+				for (long wait = delay; running && wait > 0; wait = deadline - System.currentTimeMillis()) {
+					Thread.sleep(Math.min(wait, POLL_MILLIS));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				running = false;
+			}
+		}
+	}
+
+}
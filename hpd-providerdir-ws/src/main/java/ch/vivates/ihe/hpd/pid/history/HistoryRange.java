@@ -0,0 +1,92 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.util.Date;
+import java.util.Map;
+
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * The Class HistoryRange is the range of a history read, from the parameters of the download
+ * statements.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+final class HistoryRange {
+
+	/** The start of the range, in milliseconds. */
+	private final long from;
+
+	/** The end of the range, included, in milliseconds. */
+	private final long to;
+
+	/** The principal whose entries are skipped. */
+	private final String filteredUser;
+
+	/**
+	 * Instantiates a new history range.
+	 *
+	 * @param from the start of the range
+	 * @param to the end of the range, included
+	 * @param filteredUser the principal whose entries are skipped
+	 */
+	private HistoryRange(long from, long to, String filteredUser) {
+		this.from = from;
+		this.to = to;
+		this.filteredUser = filteredUser;
+	}
+
+	/**
+	 * Gets the range of the parameters from_date, to_date and filtered_user.
+	 *
+	 * @param parameters the parameters
+	 * @return the range
+	 */
+	static HistoryRange of(Map<String, Object> parameters) {
+		return new HistoryRange(toMillis(parameters.get("from_date")), toMillis(parameters.get("to_date")),
+				(String) parameters.get("filtered_user"));
+	}
+
+	/**
+	 * Converts a date parameter.
+	 *
+	 * @param date the date, as date or ISO string
+	 * @return the date in milliseconds
+	 */
+	static long toMillis(Object date) {
+		if (date instanceof Date) {
+			return ((Date) date).getTime();
+		}
+		return ISODateTimeFormat.dateTimeParser().parseDateTime(date.toString()).getMillis();
+	}
+
+	/**
+	 * Checks whether an entry is in the range.
+	 *
+	 * @param date the date of the entry
+	 * @param principal the principal of the entry
+	 * @return true if the entry is in the range and its principal not filtered
+	 */
+	boolean contains(long date, String principal) {
+		return date >= from && date <= to && (filteredUser == null || !filteredUser.equals(principal));
+	}
+
+	/**
+	 * Gets the start of the range.
+	 *
+	 * @return the start in milliseconds
+	 */
+	long getFrom() {
+		return from;
+	}
+
+	/**
+	 * Gets the end of the range.
+	 *
+	 * @return the end in milliseconds, included
+	 */
+	long getTo() {
+		return to;
+	}
+
+}
@@ -0,0 +1,650 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class HistoryReader reads transaction history entries with a forward only JDBC cursor.
+ * Entries are handed to a handler one at a time while the rows are fetched, so the memory used
+ * does not depend on the number of entries. With MySQL the data source must enable cursor fetch
+ * (useCursorFetch=true), otherwise the driver reads the whole result before the first row.
+ * <p>
+ * A range can also be read as consecutive sub-ranges scanned concurrently on their own
+ * connections. The entries of the sub-ranges ahead are buffered while the entries of the current
+ * sub-range are handed to the handler, so the entries keep the order of a single scan.
+ * <p>
+ * Reads with a HistoryFilter in the parameter filter use the filtered statements, selecting the
+ * entries through the pid_tr_entity table, and are not split into sub-ranges.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class HistoryReader {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(HistoryReader.class);
+
+	/** The data source. */
+	private DataSource dataSource;
+
+	/** The select statement, returning the columns src_desc and tr_body. */
+	private NamedStatement selectStatement;
+
+	/** The sub-range statement, returning the columns src_desc and tr_body before :#before_date. */
+	private NamedStatement subRangeStatement;
+
+	/** The page statement, returning the columns tr_id, tr_date, src_desc and tr_body. */
+	private NamedStatement pageStatement;
+
+	/** The filtered select statement, with the placeholder {filter}. */
+	private String filteredStatement;
+
+	/** The filtered page statement, with the placeholder {filter}. */
+	private String filteredPageStatement;
+
+	/** The changes statement, returning the columns tr_id, tr_written, src_desc and tr_body. */
+	private NamedStatement changesStatement;
+
+	/** The filtered changes statement, with the placeholder {filter}. */
+	private String filteredChangesStatement;
+
+	/** The statement selecting the latest snapshot, returning the column snapshot_date. */
+	private NamedStatement latestSnapshotStatement;
+
+	/** The statement selecting the entries of a snapshot, returning the columns tr_id, tr_date, src_desc and tr_body. */
+	private NamedStatement snapshotStatement;
+
+	/** The number of rows fetched at once. */
+	private int fetchSize = 500;
+
+	/** True if the history bodies are compressed. */
+	private boolean compressedBodies;
+
+	/** The executor running the sub-range scans, null to read sub-ranges one after the other. */
+	private Executor scanExecutor;
+
+	/** The number of sub-ranges scanned at once. */
+	private int parallelScans = 4;
+
+	/** The number of entries buffered for each sub-range scanned ahead. */
+	private int scanBufferSize = 1000;
+
+	/**
+	 * Reads the history entries selected by the parameters.
+	 *
+	 * @param parameters the parameters of the select statement by name
+	 * @param handler the handler of the entries
+	 * @return the number of entries read
+	 * @throws Exception the exception of the database or the handler
+	 */
+	public long read(Map<String, Object> parameters, EntryHandler handler) throws Exception {
+		HistoryFilter filter = (HistoryFilter) parameters.get(HistoryFilter.PARAMETER);
+		if (filter != null) {
+			Map<String, Object> filterParameters = new HashMap<String, Object>(parameters);
+			return query(filter.apply(filteredStatement, filterParameters), filterParameters, Integer.MAX_VALUE, null,
+					compressedBodies, handler).count;
+		}
+		return query(selectStatement, parameters, Integer.MAX_VALUE, null, compressedBodies, handler).count;
+	}
+
+	/**
+	 * Reads the history entries selected by the parameters as consecutive sub-ranges, scanned
+	 * concurrently. The sub-ranges are split at the boundaries, each sub-range holds the entries
+	 * from its boundary until before the next one.
+	 *
+	 * @param parameters the parameters of the select statement by name
+	 * @param boundaries the dates splitting the range, ascending and after :#from_date
+	 * @param handler the handler of the entries
+	 * @return the number of entries read
+	 * @throws Exception the exception of the database or the handler
+	 */
+	public long readRanges(Map<String, Object> parameters, List<Timestamp> boundaries, EntryHandler handler) throws Exception {
+		if (boundaries.isEmpty() || scanExecutor == null || parallelScans < 2 || parameters.get(HistoryFilter.PARAMETER) != null) {
+			return read(parameters, handler);
+		}
+		List<RangeScan> scans = new ArrayList<RangeScan>();
+		for (int i = 0; i <= boundaries.size(); i++) {
+			Map<String, Object> rangeParameters = new HashMap<String, Object>(parameters);
+			if (i > 0) {
+				rangeParameters.put("from_date", boundaries.get(i - 1));
+			}
+			if (i < boundaries.size()) {
+				rangeParameters.put("before_date", boundaries.get(i));
+				scans.add(new RangeScan(subRangeStatement, rangeParameters));
+			} else {
+				// The last sub-range ends with the range
+				scans.add(new RangeScan(selectStatement, rangeParameters));
+			}
+		}
+		long start = System.currentTimeMillis();
+		long count = 0;
+		int started = 0;
+		try {
+			while (started < Math.min(parallelScans, scans.size())) {
+				start(scans.get(started++));
+			}
+			for (RangeScan scan : scans) {
+				count += scan.drain(handler);
+				if (started < scans.size()) {
+					start(scans.get(started++));
+				}
+			}
+		} finally {
+			for (RangeScan scan : scans) {
+				scan.cancelled = true;
+			}
+		}
+		LOG.debug("Read " + count + " history entries in " + scans.size() + " sub-ranges in " + (System.currentTimeMillis() - start)
+				+ " ms");
+		return count;
+	}
+
+	/**
+	 * Starts the scan of a sub-range. Without a thread available, the sub-range is read when it
+	 * is drained.
+	 *
+	 * @param scan the scan
+	 */
+	private void start(RangeScan scan) {
+		try {
+			scanExecutor.execute(scan);
+		} catch (RejectedExecutionException e) {
+			LOG.debug("No thread available to scan a history sub-range ahead");
+			scan.deferred = true;
+		}
+	}
+
+	/**
+	 * Reads a page of the history entries selected by the parameters. The page statement selects
+	 * the entries after a position with a keyset predicate, so every page costs the same.
+	 *
+	 * @param parameters the parameters of the select statement by name
+	 * @param after the position of the last entry of the previous page, null for the first page
+	 * @param pageSize the maximum number of entries of the page
+	 * @param handler the handler of the entries
+	 * @return the position of the last entry of the page, or null if there is no next page
+	 * @throws Exception the exception of the database or the handler
+	 */
+	public HistoryPosition readPage(Map<String, Object> parameters, HistoryPosition after, int pageSize, EntryHandler handler)
+			throws Exception {
+		Map<String, Object> pageParameters = new HashMap<String, Object>(parameters);
+		// The first page starts at the from date, before any transaction id
+		pageParameters.put("after_date", after != null ? after.getDate() : parameters.get("from_date"));
+		pageParameters.put("after_id", after != null ? after.getId() : -1L);
+		// One more entry tells whether there is a next page
+		pageParameters.put("page_limit", pageSize + 1);
+		HistoryFilter filter = (HistoryFilter) parameters.get(HistoryFilter.PARAMETER);
+		NamedStatement select = filter != null ? filter.apply(filteredPageStatement, pageParameters) : pageStatement;
+		Result result = query(select, pageParameters, pageSize, "tr_date", compressedBodies, handler);
+		return result.more ? result.last : null;
+	}
+
+	/**
+	 * Reads a page of the history entries in the order they were written, after a write position
+	 * (tr_written, tr_id). The entries written within :#settle_micros of the database time are not
+	 * read yet.
+	 *
+	 * @param parameters the parameters of the changes statement by name
+	 * @param after the write position of the last entry of the previous page
+	 * @param pageSize the maximum number of entries of the page
+	 * @param handler the handler of the entries
+	 * @return the write position of the last entry read, or null if none was read
+	 * @throws Exception the exception of the database or the handler
+	 */
+	public HistoryPosition readChanges(Map<String, Object> parameters, HistoryPosition after, int pageSize, EntryHandler handler)
+			throws Exception {
+		Map<String, Object> pageParameters = new HashMap<String, Object>(parameters);
+		pageParameters.put("after_date", after.getDate());
+		pageParameters.put("after_id", after.getId());
+		pageParameters.put("page_limit", pageSize);
+		HistoryFilter filter = (HistoryFilter) parameters.get(HistoryFilter.PARAMETER);
+		NamedStatement select = filter != null ? filter.apply(filteredChangesStatement, pageParameters) : changesStatement;
+		return query(select, pageParameters, pageSize, "tr_written", compressedBodies, handler).last;
+	}
+
+	/**
+	 * Finds the latest snapshot taken until the end of a range.
+	 *
+	 * @param parameters the parameters of the latest snapshot statement by name
+	 * @return the date of the snapshot, null if there is none
+	 * @throws SQLException if the snapshot could not be selected
+	 */
+	public Timestamp findSnapshot(Map<String, Object> parameters) throws SQLException {
+		Connection connection = dataSource.getConnection();
+		try {
+			PreparedStatement statement = connection.prepareStatement(latestSnapshotStatement.getSql());
+			try {
+				latestSnapshotStatement.bind(statement, parameters);
+				ResultSet rs = statement.executeQuery();
+				try {
+					return rs.next() ? rs.getTimestamp("snapshot_date") : null;
+				} finally {
+					rs.close();
+				}
+			} finally {
+				statement.close();
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Reads the entries of a snapshot, parents before their subordinates.
+	 *
+	 * @param snapshotDate the date of the snapshot
+	 * @param handler the handler of the entries
+	 * @return the number of entries read
+	 * @throws Exception the exception of the database or the handler
+	 */
+	public long readSnapshot(Timestamp snapshotDate, EntryHandler handler) throws Exception {
+		return query(snapshotStatement, Collections.<String, Object> singletonMap("snapshot_date", snapshotDate), Integer.MAX_VALUE,
+				"tr_date", false, handler).count;
+	}
+
+	/**
+	 * Runs a select statement with a forward only cursor.
+	 *
+	 * @param select the select statement
+	 * @param parameters the parameters by name
+	 * @param limit the maximum number of entries handed to the handler
+	 * @param positionColumn the date column of the positions, selected with tr_id, null if the
+	 *            statement selects no positions
+	 * @param compressed true if the statement selects compressed bodies
+	 * @param handler the handler of the entries
+	 * @return the result
+	 * @throws Exception the exception of the database or the handler
+	 */
+	private Result query(NamedStatement select, Map<String, Object> parameters, int limit, String positionColumn, boolean compressed,
+			EntryHandler handler)
+			throws Exception {
+		long start = System.currentTimeMillis();
+		Result result = new Result();
+		Connection connection = dataSource.getConnection();
+		try {
+			PreparedStatement statement = connection.prepareStatement(select.getSql(), ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY);
+			try {
+				statement.setFetchSize(limit < fetchSize ? limit + 1 : fetchSize);
+				select.bind(statement, parameters);
+				ResultSet rs = statement.executeQuery();
+				try {
+					while (rs.next()) {
+						if (result.count == limit) {
+							result.more = true;
+							break;
+						}
+						HistoryPosition position = null;
+						if (positionColumn != null) {
+							position = new HistoryPosition(rs.getTimestamp(positionColumn), rs.getLong("tr_id"));
+							result.last = position;
+						}
+						Reader body = compressed ? HistoryBodyCodec.decompress(rs.getBinaryStream("tr_body")) : rs
+								.getCharacterStream("tr_body");
+						try {
+							handler.entry(position, rs.getString("src_desc"), body);
+						} finally {
+							if (body != null) {
+								body.close();
+							}
+						}
+						result.count++;
+					}
+				} finally {
+					rs.close();
+				}
+			} finally {
+				statement.close();
+			}
+		} finally {
+			connection.close();
+		}
+		LOG.debug("Read " + result.count + " history entries in " + (System.currentTimeMillis() - start) + " ms");
+		return result;
+	}
+
+	/**
+	 * Sets the data source.
+	 *
+	 * @param dataSource the new data source
+	 */
+	public void setDataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * Sets the select statement, with the named parameters (:#name) of the Camel SQL component.
+	 *
+	 * @param statement the new select statement
+	 */
+	public void setSelectStatement(String statement) {
+		this.selectStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the sub-range statement, selecting the columns src_desc and tr_body of the range before
+	 * :#before_date in the order of the select statement.
+	 *
+	 * @param statement the new sub-range statement
+	 */
+	public void setSubRangeStatement(String statement) {
+		this.subRangeStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the page statement, selecting the columns tr_id, tr_date, src_desc and tr_body after
+	 * the position (:#after_date, :#after_id) with at most :#page_limit rows.
+	 *
+	 * @param statement the new page statement
+	 */
+	public void setPageStatement(String statement) {
+		this.pageStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the filtered select statement, selecting the columns src_desc and tr_body like the
+	 * select statement, with the placeholder {filter} for the conditions on the pid_tr_entity
+	 * table.
+	 *
+	 * @param statement the new filtered statement
+	 */
+	public void setFilteredStatement(String statement) {
+		this.filteredStatement = statement;
+	}
+
+	/**
+	 * Sets the filtered page statement, selecting the columns tr_id, tr_date, src_desc and
+	 * tr_body like the page statement, with the placeholder {filter} for the conditions on the
+	 * pid_tr_entity table.
+	 *
+	 * @param statement the new filtered page statement
+	 */
+	public void setFilteredPageStatement(String statement) {
+		this.filteredPageStatement = statement;
+	}
+
+	/**
+	 * Sets the changes statement, selecting the columns tr_id, tr_written, src_desc and tr_body
+	 * after the write position (:#after_date, :#after_id), in the order of the write positions, with
+	 * at most :#page_limit rows.
+	 *
+	 * @param statement the new changes statement
+	 */
+	public void setChangesStatement(String statement) {
+		this.changesStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the filtered changes statement, selecting the columns like the changes statement, with
+	 * the placeholder {filter} for the conditions on the pid_tr_entity table.
+	 *
+	 * @param statement the new filtered changes statement
+	 */
+	public void setFilteredChangesStatement(String statement) {
+		this.filteredChangesStatement = statement;
+	}
+
+	/**
+	 * Sets the statement selecting the date of the latest snapshot until :#to_date.
+	 *
+	 * @param statement the new latest snapshot statement
+	 */
+	public void setLatestSnapshotStatement(String statement) {
+		this.latestSnapshotStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the statement selecting the entries of the snapshot :#snapshot_date.
+	 *
+	 * @param statement the new snapshot statement
+	 */
+	public void setSnapshotStatement(String statement) {
+		this.snapshotStatement = new NamedStatement(statement);
+	}
+
+	/**
+	 * Sets the number of rows fetched at once.
+	 *
+	 * @param fetchSize the new fetch size
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Sets whether the history bodies are compressed, in the format of the MySQL COMPRESS function.
+	 * Snapshot bodies are not compressed.
+	 *
+	 * @param compressedBodies true if the history bodies are compressed
+	 */
+	public void setCompressedBodies(boolean compressedBodies) {
+		this.compressedBodies = compressedBodies;
+	}
+
+	/**
+	 * Sets the executor running the sub-range scans.
+	 *
+	 * @param scanExecutor the new scan executor
+	 */
+	public void setScanExecutor(Executor scanExecutor) {
+		this.scanExecutor = scanExecutor;
+	}
+
+	/**
+	 * Sets the number of sub-ranges scanned at once.
+	 *
+	 * @param parallelScans the new number of parallel scans
+	 */
+	public void setParallelScans(int parallelScans) {
+		this.parallelScans = parallelScans;
+	}
+
+	/**
+	 * Sets the number of entries buffered for each sub-range scanned ahead.
+	 *
+	 * @param scanBufferSize the new scan buffer size
+	 */
+	public void setScanBufferSize(int scanBufferSize) {
+		this.scanBufferSize = scanBufferSize;
+	}
+
+	/**
+	 * The Class RangeScan scans a sub-range into a bounded buffer, until the buffer is drained or
+	 * the scan is cancelled.
+	 */
+	private final class RangeScan implements Runnable {
+
+		/** The statement. */
+		private final NamedStatement statement;
+
+		/** The parameters by name. */
+		private final Map<String, Object> parameters;
+
+		/** The entries scanned, ending with END or an entry holding the failure. */
+		private final BlockingQueue<ScannedEntry> entries = new ArrayBlockingQueue<ScannedEntry>(scanBufferSize);
+
+		/** True once the entries are no longer drained. */
+		private volatile boolean cancelled;
+
+		/** True if the sub-range is read by the drain instead of a scan thread. */
+		private boolean deferred;
+
+		/**
+		 * Instantiates a new range scan.
+		 *
+		 * @param statement the statement
+		 * @param parameters the parameters by name
+		 */
+		private RangeScan(NamedStatement statement, Map<String, Object> parameters) {
+			this.statement = statement;
+			this.parameters = parameters;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			ScannedEntry last = ScannedEntry.END;
+			try {
+				query(statement, parameters, Integer.MAX_VALUE, null, compressedBodies, new EntryHandler() {
+					@Override
+					public void entry(HistoryPosition position, String principal, Reader body) throws Exception {
+						if (!put(new ScannedEntry(principal, body != null ? readBody(body) : null, null))) {
+							throw new CancellationException();
+						}
+					}
+				});
+			} catch (CancellationException e) {
+				return;
+			} catch (Exception e) {
+				last = new ScannedEntry(null, null, e);
+			}
+			try {
+				put(last);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Hands the entries of the sub-range to a handler, in order.
+		 *
+		 * @param handler the handler
+		 * @return the number of entries
+		 * @throws Exception the exception of the scan or the handler
+		 */
+		private long drain(EntryHandler handler) throws Exception {
+			if (deferred) {
+				return query(statement, parameters, Integer.MAX_VALUE, null, compressedBodies, handler).count;
+			}
+			long count = 0;
+			for (ScannedEntry entry = entries.take(); entry != ScannedEntry.END; entry = entries.take()) {
+				if (entry.failure != null) {
+					throw entry.failure;
+				}
+				handler.entry(null, entry.principal, entry.body != null ? new StringReader(entry.body) : null);
+				count++;
+			}
+			return count;
+		}
+
+		/**
+		 * Puts an entry into the buffer, waiting for space while the scan is not cancelled.
+		 *
+		 * @param entry the entry
+		 * @return false if the scan is cancelled
+		 * @throws InterruptedException if the thread is interrupted
+		 */
+		private boolean put(ScannedEntry entry) throws InterruptedException {
+			while (!cancelled) {
+				if (entries.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Reads a body.
+		 *
+		 * @param body the body
+		 * @return the body as string
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private String readBody(Reader body) throws IOException {
+			StringWriter writer = new StringWriter();
+			char[] buffer = new char[4096];
+			for (int n = body.read(buffer); n >= 0; n = body.read(buffer)) {
+				writer.write(buffer, 0, n);
+			}
+			return writer.toString();
+		}
+	}
+
+	/**
+	 * The Class ScannedEntry is an entry buffered by a sub-range scan.
+	 */
+	private static final class ScannedEntry {
+
+		/** The entry ending a sub-range. */
+		private static final ScannedEntry END = new ScannedEntry(null, null, null);
+
+		/** The principal. */
+		private final String principal;
+
+		/** The body. */
+		private final String body;
+
+		/** The failure of the scan. */
+		private final Exception failure;
+
+		/**
+		 * Instantiates a new scanned entry.
+		 *
+		 * @param principal the principal
+		 * @param body the body
+		 * @param failure the failure of the scan
+		 */
+		private ScannedEntry(String principal, String body, Exception failure) {
+			this.principal = principal;
+			this.body = body;
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * The Class Result is the result of a select.
+	 */
+	private static class Result {
+
+		/** The number of entries handed to the handler. */
+		private long count;
+
+		/** The position of the last entry handed to the handler. */
+		private HistoryPosition last;
+
+		/** True if more entries were selected than handed to the handler. */
+		private boolean more;
+	}
+
+	/**
+	 * The Interface EntryHandler receives the history entries read.
+	 */
+	public interface EntryHandler {
+
+		/**
+		 * Handles an entry. The body is only readable during the call.
+		 *
+		 * @param position the position of the entry, null if the statement does not select it
+		 * @param principal the principal that executed the transaction
+		 * @param body the transaction body
+		 * @throws Exception the exception
+		 */
+		void entry(HistoryPosition position, String principal, Reader body) throws Exception;
+	}
+
+}
@@ -0,0 +1,369 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class HistoryStorageManager maintains the monthly range partitions of the transaction
+ * history table. Partitions are added ahead of time by splitting the last partition, which holds
+ * the dates after the last month, and the partitions of the months past the retention are dropped
+ * as a whole instead of deleting their rows. A table created with the last partition only is split
+ * into monthly partitions at its first maintenance.
+ * <p>
+ * It also migrates a history table created before the range partitions: a partitioned table with
+ * compressed bodies is created beside it, the history within the retention is copied month by
+ * month, compressing the bodies with COMPRESS, and the tables are swapped. The previous table is
+ * kept with the suffix _old. Migrate while the service is stopped, with
+ * {@code HistoryStorageManager migrate <jdbc url> <user> <password> [retention months]}, then
+ * enable hpd.pid.history.compressed_bodies.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class HistoryStorageManager {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(HistoryStorageManager.class);
+
+	/** The partition holding the dates after the last month. */
+	private static final String MAX_PARTITION = "pmax";
+
+	/** The name of a monthly partition. */
+	private static final Pattern MONTH_PARTITION = Pattern.compile("p(\\d{4})(\\d{2})");
+
+	/** The statement creating a history table, with the table name and the monthly partitions. */
+	private static final String CREATE_TABLE = "CREATE TABLE %s ("
+			+ " tr_id INT AUTO_INCREMENT,"
+			+ " tr_op_idx VARCHAR(64) NOT NULL,"
+			+ " src_desc VARCHAR(64) CHARACTER SET latin1 COLLATE latin1_bin,"
+			+ " tr_date DATETIME NOT NULL,"
+			+ " tr_body MEDIUMBLOB,"
+			+ " tr_written DATETIME(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3),"
+			+ " INDEX USING BTREE (tr_date, tr_id, src_desc),"
+			+ " INDEX USING BTREE (tr_written, tr_id),"
+			+ " PRIMARY KEY (tr_id, tr_date)"
+			+ ") ENGINE=InnoDB PARTITION BY RANGE (TO_DAYS(tr_date)) (%s)";
+
+	/** The statement selecting the range partitions of a table. */
+	private static final String SELECT_PARTITIONS = "SELECT partition_name FROM information_schema.partitions"
+			+ " WHERE table_schema = DATABASE() AND table_name = ? AND partition_method = 'RANGE'"
+			+ " ORDER BY partition_ordinal_position";
+
+	/** The data source. */
+	private DataSource dataSource;
+
+	/** The history table. */
+	private String table = "pid_tr_history";
+
+	/** The number of months the history is kept. */
+	private int retentionMonths = 12;
+
+	/** The number of months partitioned ahead of the current month. */
+	private int monthsAhead = 2;
+
+	/**
+	 * Adds the partitions of the next months and drops the partitions past the retention.
+	 * Failures are logged, the partitions are maintained again at the next call.
+	 */
+	public void maintain() {
+		try {
+			maintainPartitions();
+		} catch (SQLException e) {
+			LOG.error("Failed to maintain the partitions of " + table, e);
+		}
+	}
+
+	/**
+	 * Adds the partitions of the next months and drops the partitions past the retention.
+	 *
+	 * @throws SQLException if the partitions could not be changed
+	 */
+	public void maintainPartitions() throws SQLException {
+		LocalDate today = LocalDate.now();
+		Connection connection = dataSource.getConnection();
+		try {
+			List<String> partitions = partitionsOf(connection, table);
+			if (!partitions.contains(MAX_PARTITION)) {
+				LOG.warn("The table " + table + " has no " + MAX_PARTITION + " range partition, migrate it with the HistoryStorageManager");
+				return;
+			}
+			List<String> added = partitionsToAdd(partitions, today, monthsAhead);
+			if (!added.isEmpty()) {
+				List<String> definitions = new ArrayList<String>();
+				for (String partition : added) {
+					definitions.add(definitionOf(monthOf(partition)));
+				}
+				definitions.add(maxDefinition());
+				execute(connection, "ALTER TABLE " + table + " REORGANIZE PARTITION " + MAX_PARTITION + " INTO ("
+						+ StringUtils.join(definitions, ", ") + ")");
+				LOG.info("Added the partitions " + added + " to " + table);
+			}
+			List<String> dropped = partitionsToDrop(partitions, today, retentionMonths);
+			if (!dropped.isEmpty()) {
+				execute(connection, "ALTER TABLE " + table + " DROP PARTITION " + StringUtils.join(dropped, ", "));
+				LOG.info("Dropped the partitions " + dropped + " of " + table);
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Plans the monthly partitions split from the last partition, up to the months ahead of the
+	 * current month. A table with the last partition only, as created by the table scripts, is
+	 * split from the current month on, the dates before it stay in the partition of the current
+	 * month.
+	 *
+	 * @param partitions the names of the range partitions of the table in order
+	 * @param today the current date
+	 * @param monthsAhead the number of months partitioned ahead of the current month
+	 * @return the names of the partitions to add in order, empty if none
+	 */
+	public static List<String> partitionsToAdd(List<String> partitions, LocalDate today, int monthsAhead) {
+		LocalDate month = today.withDayOfMonth(1);
+		LocalDate next = month;
+		for (String partition : partitions) {
+			LocalDate partitionMonth = monthOf(partition);
+			if (partitionMonth != null) {
+				next = partitionMonth.plusMonths(1);
+			}
+		}
+		List<String> added = new ArrayList<String>();
+		for (; !next.isAfter(month.plusMonths(monthsAhead)); next = next.plusMonths(1)) {
+			added.add(nameOf(next));
+		}
+		return added;
+	}
+
+	/**
+	 * Plans the monthly partitions dropped past the retention.
+	 *
+	 * @param partitions the names of the range partitions of the table in order
+	 * @param today the current date
+	 * @param retentionMonths the number of months the history is kept
+	 * @return the names of the partitions to drop in order, empty if none
+	 */
+	public static List<String> partitionsToDrop(List<String> partitions, LocalDate today, int retentionMonths) {
+		LocalDate cutoff = today.minusMonths(retentionMonths);
+		List<String> dropped = new ArrayList<String>();
+		for (String partition : partitions) {
+			LocalDate month = monthOf(partition);
+			// Every date of the partition is before the cutoff
+			if (month != null && !month.plusMonths(1).isAfter(cutoff)) {
+				dropped.add(partition);
+			}
+		}
+		return dropped;
+	}
+
+	/**
+	 * Migrates a history table without range partitions to a partitioned table with compressed
+	 * bodies. Only the history within the retention is copied.
+	 *
+	 * @throws SQLException if the table could not be migrated
+	 */
+	public void migrate() throws SQLException {
+		String target = table + "_new";
+		LocalDate first = LocalDate.now().withDayOfMonth(1).minusMonths(retentionMonths);
+		LocalDate end = LocalDate.now().withDayOfMonth(1).plusMonths(monthsAhead + 1);
+		Connection connection = dataSource.getConnection();
+		try {
+			if (!partitionsOf(connection, table).isEmpty()) {
+				LOG.info("The table " + table + " is already partitioned by range");
+				return;
+			}
+			execute(connection, "DROP TABLE IF EXISTS " + target);
+			List<String> partitions = new ArrayList<String>();
+			for (LocalDate month = first; month.isBefore(end); month = month.plusMonths(1)) {
+				partitions.add(definitionOf(month));
+			}
+			partitions.add(maxDefinition());
+			execute(connection, String.format(CREATE_TABLE, target, StringUtils.join(partitions, ", ")));
+			// The entries written before are taken as written at their transaction date
+			String copy = "INSERT INTO " + target + " (tr_id, tr_op_idx, src_desc, tr_date, tr_body, tr_written)"
+					+ " SELECT tr_id, tr_op_idx, src_desc, tr_date, COMPRESS(CONVERT(tr_body USING utf8)), tr_date FROM " + table
+					+ " WHERE tr_date >= '%s'";
+			for (LocalDate month = first; month.isBefore(end); month = month.plusMonths(1)) {
+				int rows = execute(connection, String.format(copy, month) + " AND tr_date < '" + month.plusMonths(1) + "'");
+				LOG.info("Copied " + rows + " history entries of " + month.toString("yyyy-MM"));
+			}
+			execute(connection, String.format(copy, end));
+			execute(connection, "RENAME TABLE " + table + " TO " + table + "_old, " + target + " TO " + table);
+			LOG.info("Migrated " + table + ", the previous table is kept as " + table + "_old");
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Gets the range partitions of a table.
+	 *
+	 * @param connection the connection
+	 * @param table the table
+	 * @return the names of the partitions in order
+	 * @throws SQLException the SQL exception
+	 */
+	private static List<String> partitionsOf(Connection connection, String table) throws SQLException {
+		List<String> partitions = new ArrayList<String>();
+		PreparedStatement statement = connection.prepareStatement(SELECT_PARTITIONS);
+		try {
+			statement.setString(1, table);
+			ResultSet rs = statement.executeQuery();
+			try {
+				while (rs.next()) {
+					partitions.add(rs.getString(1));
+				}
+			} finally {
+				rs.close();
+			}
+		} finally {
+			statement.close();
+		}
+		return partitions;
+	}
+
+	/**
+	 * Executes a statement.
+	 *
+	 * @param connection the connection
+	 * @param sql the statement
+	 * @return the number of rows changed
+	 * @throws SQLException the SQL exception
+	 */
+	private static int execute(Connection connection, String sql) throws SQLException {
+		LOG.debug("Executing " + sql);
+		Statement statement = connection.createStatement();
+		try {
+			return statement.executeUpdate(sql);
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Gets the name of the partition of a month.
+	 *
+	 * @param month the first day of the month
+	 * @return the name
+	 */
+	private static String nameOf(LocalDate month) {
+		return "p" + month.toString("yyyyMM");
+	}
+
+	/**
+	 * Gets the month of a monthly partition.
+	 *
+	 * @param partition the name of the partition
+	 * @return the first day of the month, null if the partition is no monthly partition
+	 */
+	private static LocalDate monthOf(String partition) {
+		Matcher matcher = MONTH_PARTITION.matcher(partition);
+		if (!matcher.matches()) {
+			return null;
+		}
+		return new LocalDate(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), 1);
+	}
+
+	/**
+	 * Gets the definition of the partition of a month.
+	 *
+	 * @param month the first day of the month
+	 * @return the definition
+	 */
+	private static String definitionOf(LocalDate month) {
+		return "PARTITION " + nameOf(month) + " VALUES LESS THAN (TO_DAYS('" + month.plusMonths(1) + "'))";
+	}
+
+	/**
+	 * Gets the definition of the partition holding the dates after the last month.
+	 *
+	 * @return the definition
+	 */
+	private static String maxDefinition() {
+		return "PARTITION " + MAX_PARTITION + " VALUES LESS THAN MAXVALUE";
+	}
+
+	/**
+	 * Sets the data source.
+	 *
+	 * @param dataSource the new data source
+	 */
+	public void setDataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * Sets the history table.
+	 *
+	 * @param table the new table
+	 */
+	public void setTable(String table) {
+		this.table = table;
+	}
+
+	/**
+	 * Sets the number of months the history is kept.
+	 *
+	 * @param retentionMonths the new retention in months
+	 */
+	public void setRetentionMonths(int retentionMonths) {
+		this.retentionMonths = retentionMonths;
+	}
+
+	/**
+	 * Sets the number of months partitioned ahead of the current month.
+	 *
+	 * @param monthsAhead the new number of months
+	 */
+	public void setMonthsAhead(int monthsAhead) {
+		this.monthsAhead = monthsAhead;
+	}
+
+	/**
+	 * Migrates or maintains the history table of a database.
+	 *
+	 * @param args migrate or maintain, the JDBC URL, the user, the password and optionally the
+	 *            retention in months
+	 * @throws Exception the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4 || !("migrate".equals(args[0]) || "maintain".equals(args[0]))) {
+			System.err.println("Usage: HistoryStorageManager migrate|maintain <jdbc url> <user> <password> [retention months]");
+			System.exit(1);
+		}
+		BasicDataSource dataSource = new BasicDataSource();
+		dataSource.setDriverClassName("com.mysql.jdbc.Driver");
+		dataSource.setUrl(args[1]);
+		dataSource.setUsername(args[2]);
+		dataSource.setPassword(args[3]);
+		try {
+			HistoryStorageManager manager = new HistoryStorageManager();
+			manager.setDataSource(dataSource);
+			if (args.length > 4) {
+				manager.setRetentionMonths(Integer.parseInt(args[4]));
+			}
+			if ("migrate".equals(args[0])) {
+				manager.migrate();
+			}
+			manager.maintainPartitions();
+		} finally {
+			dataSource.close();
+		}
+	}
+
+}
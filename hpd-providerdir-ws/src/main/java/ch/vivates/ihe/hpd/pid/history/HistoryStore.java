@@ -0,0 +1,114 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * The Interface HistoryStore is the storage of the transaction history. The entries are written
+ * by the history writer and read by the downloads and the history compaction. The parameters of
+ * the reads are the parameters of the download statements: from_date and to_date, as timestamps
+ * or ISO strings, filtered_user, the principal whose entries are skipped, and optionally filter,
+ * a HistoryFilter selecting the entries by the entries they target.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public interface HistoryStore {
+
+	/**
+	 * Writes history entries. The entries are stored when the method returns. Each entry holds
+	 * tr_op_idx, src_desc, tr_date, tr_body and tr_entities, the list of the HistoryEntity targeted
+	 * by the transaction, extracted when the entry was converted. The stores do not extract the
+	 * entities of the bodies they write.
+	 *
+	 * @param entries the entries, as converted by the TransactionsHistoryItemExtractor
+	 * @throws SQLException if the entries could not be written to the database
+	 * @throws IOException if the entries could not be written or read
+	 */
+	void write(List<Map<String, Object>> entries) throws SQLException, IOException;
+
+	/**
+	 * Reads the history entries of a range.
+	 *
+	 * @param parameters the parameters of the range by name
+	 * @param handler the handler of the entries
+	 * @return the number of entries read
+	 * @throws Exception the exception of the store or the handler
+	 */
+	long read(Map<String, Object> parameters, HistoryReader.EntryHandler handler) throws Exception;
+
+	/**
+	 * Reads a page of the history entries of a range.
+	 *
+	 * @param parameters the parameters of the range by name
+	 * @param after the position of the last entry of the previous page, null for the first page
+	 * @param pageSize the maximum number of entries of the page
+	 * @param handler the handler of the entries
+	 * @return the position of the last entry of the page, or null if there is no next page
+	 * @throws Exception the exception of the store or the handler
+	 */
+	HistoryPosition readPage(Map<String, Object> parameters, HistoryPosition after, int pageSize, HistoryReader.EntryHandler handler)
+			throws Exception;
+
+	/**
+	 * Checks whether the store reads the history entries in the order they were written, as
+	 * the changes requests need.
+	 *
+	 * @return true if readChanges is supported
+	 */
+	boolean isChangesSupported();
+
+	/**
+	 * Gets the longest time between the write date of an entry and the commit making it visible.
+	 * The changes reads must skip the entries written more recently, or an entry committed later
+	 * behind an entry already read would be missed.
+	 *
+	 * @return the maximum commit time in milliseconds, 0 if the time is not bounded
+	 */
+	long getMaxCommitMillis();
+
+	/**
+	 * Reads a page of the history entries in the order they were written, for the changes
+	 * requests. The positions hold the date the entry was written, so an entry written after a
+	 * position is read after it even if its transaction date is older. The parameters are
+	 * from_date, the oldest transaction date read, filtered_user, filter and settle_micros: the
+	 * entries written within that time are not read yet, they may still be followed by entries
+	 * of transactions committed later with an earlier write date.
+	 *
+	 * @param parameters the parameters of the read by name
+	 * @param after the write position of the last entry of the previous page
+	 * @param pageSize the maximum number of entries of the page
+	 * @param handler the handler of the entries
+	 * @return the write position of the last entry read, or null if none was read
+	 * @throws Exception the exception of the store or the handler
+	 * @throws UnsupportedOperationException if the changes are not supported by the store
+	 */
+	HistoryPosition readChanges(Map<String, Object> parameters, HistoryPosition after, int pageSize, HistoryReader.EntryHandler handler)
+			throws Exception;
+
+	/**
+	 * Copies the history entries of a range into a download response, each entry as the document
+	 * element of its body. The entries are written with the writer, or as UTF-8 encoded bytes to
+	 * the stream under the writer once the writer is flushed.
+	 *
+	 * @param parameters the parameters of the range by name
+	 * @param writer the writer of the response, within the response element
+	 * @param out the stream the writer writes to
+	 * @return the number of entries copied
+	 * @throws Exception the exception of the store or the response
+	 */
+	long copy(Map<String, Object> parameters, XMLStreamWriter writer, OutputStream out) throws Exception;
+
+	/**
+	 * Maintains the storage, e.g. removes the history past the retention. Called periodically by
+	 * the history scheduler, failures are logged and the storage is maintained again at the next
+	 * call.
+	 */
+	void maintain();
+
+}
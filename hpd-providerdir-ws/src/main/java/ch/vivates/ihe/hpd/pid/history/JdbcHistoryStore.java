@@ -0,0 +1,170 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamWriter;
+
+import org.joda.time.DateTime;
+
+/**
+ * The Class JdbcHistoryStore stores the transaction history in the pid_tr_history table, written
+ * with JDBC batches and read with forward only cursors. Its maintenance maintains the monthly
+ * partitions of the history tables.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class JdbcHistoryStore implements HistoryStore {
+
+	/** The batch writer. */
+	private HistoryBatchWriter batchWriter;
+
+	/** The history reader. */
+	private HistoryReader historyReader;
+
+	/** True to scan the months of a range concurrently. */
+	private boolean parallelScans;
+
+	/** The managers of the partitions of the history tables. */
+	private List<HistoryStorageManager> storageManagers = Collections.emptyList();
+
+	/* (non-Javadoc)
+	 * @see ch.vivates.ihe.hpd.pid.history.HistoryStore#write(java.util.List)
+	 */
+	@Override
+	public void write(List<Map<String, Object>> entries) throws SQLException, IOException {
+		batchWriter.write(entries);
+	}
+
+	/**
+	 * Reads the history entries of a range. With parallel scans, a range over several months is
+	 * split at the start of each month, matching the monthly partitions of the history, and the
+	 * months are scanned concurrently. Filtered ranges are read with a single scan.
+	 *
+	 * @param parameters the parameters of the range by name
+	 * @param handler the handler of the entries
+	 * @return the number of entries read
+	 * @throws Exception the exception of the database or the handler
+	 */
+	@Override
+	public long read(Map<String, Object> parameters, HistoryReader.EntryHandler handler) throws Exception {
+		if (!parallelScans) {
+			return historyReader.read(parameters, handler);
+		}
+		HistoryRange range = HistoryRange.of(parameters);
+		return historyReader.readRanges(parameters, monthsBetween(new DateTime(range.getFrom()), new DateTime(range.getTo())),
+				handler);
+	}
+
+	/* (non-Javadoc)
+	 * @see ch.vivates.ihe.hpd.pid.history.HistoryStore#readPage(java.util.Map, ch.vivates.ihe.hpd.pid.history.HistoryPosition, int, ch.vivates.ihe.hpd.pid.history.HistoryReader.EntryHandler)
+	 */
+	@Override
+	public HistoryPosition readPage(Map<String, Object> parameters, HistoryPosition after, int pageSize,
+			HistoryReader.EntryHandler handler) throws Exception {
+		return historyReader.readPage(parameters, after, pageSize, handler);
+	}
+
+	/* (non-Javadoc)
+	 * @see ch.vivates.ihe.hpd.pid.history.HistoryStore#isChangesSupported()
+	 */
+	@Override
+	public boolean isChangesSupported() {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see ch.vivates.ihe.hpd.pid.history.HistoryStore#getMaxCommitMillis()
+	 */
+	@Override
+	public long getMaxCommitMillis() {
+		return batchWriter.getMaxCommitMillis();
+	}
+
+	/* (non-Javadoc)
+	 * @see ch.vivates.ihe.hpd.pid.history.HistoryStore#readChanges(java.util.Map, ch.vivates.ihe.hpd.pid.history.HistoryPosition, int, ch.vivates.ihe.hpd.pid.history.HistoryReader.EntryHandler)
+	 */
+	@Override
+	public HistoryPosition readChanges(Map<String, Object> parameters, HistoryPosition after, int pageSize,
+			HistoryReader.EntryHandler handler) throws Exception {
+		return historyReader.readChanges(parameters, after, pageSize, handler);
+	}
+
+	/* (non-Javadoc)
+	 * @see ch.vivates.ihe.hpd.pid.history.HistoryStore#copy(java.util.Map, javax.xml.stream.XMLStreamWriter, java.io.OutputStream)
+	 */
+	@Override
+	public long copy(Map<String, Object> parameters, XMLStreamWriter writer, OutputStream out) throws Exception {
+		return read(parameters, new ElementCopyHandler(writer));
+	}
+
+	/**
+	 * Maintains the partitions of the history tables.
+	 */
+	@Override
+	public void maintain() {
+		for (HistoryStorageManager storageManager : storageManagers) {
+			storageManager.maintain();
+		}
+	}
+
+	/**
+	 * Gets the start of the months within a range.
+	 *
+	 * @param from the start of the range
+	 * @param to the end of the range
+	 * @return the start of each month after from and before to
+	 */
+	static List<Timestamp> monthsBetween(DateTime from, DateTime to) {
+		List<Timestamp> months = new ArrayList<Timestamp>();
+		for (DateTime month = from.withDayOfMonth(1).withTimeAtStartOfDay().plusMonths(1); month.isBefore(to); month = month
+				.plusMonths(1)) {
+			months.add(new Timestamp(month.getMillis()));
+		}
+		return months;
+	}
+
+	/**
+	 * Sets the batch writer.
+	 *
+	 * @param batchWriter the new batch writer
+	 */
+	public void setBatchWriter(HistoryBatchWriter batchWriter) {
+		this.batchWriter = batchWriter;
+	}
+
+	/**
+	 * Sets the history reader.
+	 *
+	 * @param historyReader the new history reader
+	 */
+	public void setHistoryReader(HistoryReader historyReader) {
+		this.historyReader = historyReader;
+	}
+
+	/**
+	 * Sets the managers of the partitions of the history tables.
+	 *
+	 * @param storageManagers the new storage managers
+	 */
+	public void setStorageManagers(List<HistoryStorageManager> storageManagers) {
+		this.storageManagers = storageManagers;
+	}
+
+	/**
+	 * Sets whether the months of a range are scanned concurrently.
+	 *
+	 * @param parallelScans true to scan the months concurrently
+	 */
+	public void setParallelScans(boolean parallelScans) {
+		this.parallelScans = parallelScans;
+	}
+
+}
@@ -0,0 +1,80 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The Class NamedStatement is an SQL statement with the named parameters (:#name) of the Camel SQL
+ * component, converted to a JDBC statement, so the statements of the configuration are shared by
+ * the routes and the history classes.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+final class NamedStatement {
+
+	/** The named parameters of the Camel SQL component. */
+	private static final Pattern PARAMETER = Pattern.compile(":#(\\w+)");
+
+	/** The statement with JDBC parameters. */
+	private final String sql;
+
+	/** The names of the parameters, in order. */
+	private final List<String> parameters;
+
+	/**
+	 * Instantiates a new named statement.
+	 *
+	 * @param statement the statement with named parameters
+	 */
+	public NamedStatement(String statement) {
+		List<String> names = new ArrayList<String>();
+		Matcher matcher = PARAMETER.matcher(statement);
+		StringBuffer sb = new StringBuffer();
+		while (matcher.find()) {
+			names.add(matcher.group(1));
+			matcher.appendReplacement(sb, "?");
+		}
+		matcher.appendTail(sb);
+		this.sql = sb.toString();
+		this.parameters = Collections.unmodifiableList(names);
+	}
+
+	/**
+	 * Gets the statement with JDBC parameters.
+	 *
+	 * @return the SQL
+	 */
+	public String getSql() {
+		return sql;
+	}
+
+	/**
+	 * Gets the names of the parameters, in order.
+	 *
+	 * @return the parameter names
+	 */
+	public List<String> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * Sets the parameters of a prepared statement from named values.
+	 *
+	 * @param statement the prepared statement
+	 * @param values the values by parameter name
+	 * @throws SQLException if a parameter could not be set
+	 */
+	public void bind(PreparedStatement statement, Map<String, Object> values) throws SQLException {
+		for (int i = 0; i < parameters.size(); i++) {
+			statement.setObject(i + 1, values.get(parameters.get(i)));
+		}
+	}
+
+}
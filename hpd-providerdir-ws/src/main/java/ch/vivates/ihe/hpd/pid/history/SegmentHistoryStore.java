@@ -0,0 +1,973 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class SegmentHistoryStore stores the transaction history in append-only segment files on
+ * the local disk, one segment per day (UTC) of the transaction dates, as an alternative to the
+ * pid_tr_history table.
+ * <p>
+ * Each record of a segment holds the date, the principal, the operation index and the body of an
+ * entry. The body is stored as the UTF-8 encoded document element, as it is written into a
+ * download response, so downloads transfer the bodies from the segment files to the response
+ * stream without decoding them. Each segment has a sparse index, with an entry every index
+ * interval bytes holding the offset of a record and the latest date of the records before it,
+ * so a read starting within a day skips the records before its range.
+ * <p>
+ * The records of a day are read in the order they were written, which only follows the
+ * transaction dates as far as the history writer receives the entries in order. Positions of
+ * pages hold the offset of the record in its segment. Records not completely written when the
+ * service stopped are truncated when the store is opened.
+ * <p>
+ * The segments have no entity index: filtered reads extract the entities of each record of the
+ * range and skip the records that do not match.
+ * <p>
+ * The segments are on the local disk of the node whose history writer consumed the entries, while
+ * every node consumes the shared history queue: with several nodes, each node only holds and
+ * downloads the entries it wrote. The segment store is only for single node deployments, where
+ * one node consumes the history queue.
+ * <p>
+ * The segments do not support the changes requests: a late entry is appended to the segment of its
+ * transaction day, behind the write positions already returned, so the segments have no write order
+ * across days.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class SegmentHistoryStore implements HistoryStore {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(SegmentHistoryStore.class);
+
+	/** The Constant UTF8. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The Constant UTC. */
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	/** The StAX output factory. */
+	private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+	/** The milliseconds of a day. */
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	/** The suffix of the segment files. */
+	private static final String LOG_SUFFIX = ".log";
+
+	/** The suffix of the segment index files. */
+	private static final String INDEX_SUFFIX = ".idx";
+
+	/** The length of the record prefix: the length and the checksum of the record. */
+	private static final int PREFIX = 8;
+
+	/** The length of an index entry: a date and an offset. */
+	private static final int INDEX_ENTRY = 16;
+
+	/** The bytes read at once for a record header. */
+	private static final int HEADER_BUFFER = 512;
+
+	/** The number of segments kept open for appending. */
+	private static final int OPEN_SEGMENTS = 2;
+
+	/** The entry holding the transaction operation index. */
+	private static final String TR_OP_IDX = "tr_op_idx";
+
+	/** The entry holding the principal. */
+	private static final String SRC_DESC = "src_desc";
+
+	/** The entry holding the transaction date. */
+	private static final String TR_DATE = "tr_date";
+
+	/** The entry holding the transaction body. */
+	private static final String TR_BODY = "tr_body";
+
+	/** The directory of the segments. */
+	private File directory;
+
+	/** The number of bytes between index entries. */
+	private long indexInterval = 64 * 1024;
+
+	/** True to force the records to the disk before a write returns. */
+	private boolean syncOnWrite = true;
+
+	/** The number of months the history is kept. */
+	private int retentionMonths = 12;
+
+	/** The extractor of the entities of filtered reads. */
+	private HistoryEntityExtractor entityExtractor;
+
+	/** The segments open for appending by name, least recently used first. */
+	private final LinkedHashMap<String, Segment> segments = new LinkedHashMap<String, Segment>(4, 0.75f, true);
+
+	/**
+	 * Opens the store, truncating the records not completely written to the segments.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized void open() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.getName().endsWith(LOG_SUFFIX)) {
+				new Segment(file.getName().substring(0, file.getName().length() - LOG_SUFFIX.length())).close();
+			}
+		}
+	}
+
+	/**
+	 * Closes the segments open for appending.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized void close() throws IOException {
+		synchronized (segments) {
+			for (Segment segment : segments.values()) {
+				segment.close();
+			}
+			segments.clear();
+		}
+	}
+
+	/**
+	 * Maintains the segments by deleting the days past the retention.
+	 */
+	@Override
+	public void maintain() {
+		purge();
+	}
+
+	/**
+	 * Deletes the segments of the days past the retention.
+	 */
+	public synchronized void purge() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Calendar cutoff = Calendar.getInstance(UTC);
+		cutoff.add(Calendar.MONTH, -retentionMonths);
+		String oldest = nameOf(dayOf(cutoff.getTimeInMillis()));
+		for (File file : files) {
+			String name = file.getName();
+			if (!(name.endsWith(LOG_SUFFIX) || name.endsWith(INDEX_SUFFIX)) || name.substring(0, name.indexOf('.')).compareTo(oldest) >= 0) {
+				continue;
+			}
+			try {
+				synchronized (segments) {
+					Segment segment = segments.remove(name.substring(0, name.indexOf('.')));
+					if (segment != null) {
+						segment.close();
+					}
+				}
+			} catch (IOException e) {
+				LOG.warn("Failed to close the history segment " + name, e);
+			}
+			if (file.delete()) {
+				LOG.info("Deleted the history segment " + name);
+			} else {
+				LOG.warn("Failed to delete the history segment " + name);
+			}
+		}
+	}
+
+	/**
+	 * Appends history entries to the segments of their days.
+	 *
+	 * @param entries the entries, as converted by the TransactionsHistoryItemExtractor
+	 * @throws IOException if the entries could not be written or read
+	 */
+	@Override
+	public synchronized void write(List<Map<String, Object>> entries) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create the history directory " + directory);
+		}
+		long start = System.currentTimeMillis();
+		List<ByteBuffer> records = new ArrayList<ByteBuffer>(entries.size());
+		for (Map<String, Object> entry : entries) {
+			records.add(toRecord(entry, ((Date) entry.get(TR_DATE)).getTime()));
+		}
+		Set<Segment> written = new LinkedHashSet<Segment>();
+		try {
+			for (int i = 0; i < records.size(); i++) {
+				long date = ((Date) entries.get(i).get(TR_DATE)).getTime();
+				Segment segment = segment(nameOf(dayOf(date)));
+				written.add(segment);
+				segment.append(records.get(i), date);
+			}
+			for (Segment segment : written) {
+				segment.commit();
+			}
+		} catch (IOException e) {
+			// The entries are written again when the queue redelivers them
+			for (Segment segment : written) {
+				segment.rollback();
+			}
+			throw e;
+		}
+		synchronized (segments) {
+			Iterator<Segment> eldest = segments.values().iterator();
+			while (segments.size() > OPEN_SEGMENTS) {
+				eldest.next().close();
+				eldest.remove();
+			}
+		}
+		LOG.debug("Wrote " + entries.size() + " history entries in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/* (non-Javadoc)
+	 * @see ch.vivates.ihe.hpd.pid.history.HistoryStore#read(java.util.Map, ch.vivates.ihe.hpd.pid.history.HistoryReader.EntryHandler)
+	 */
+	@Override
+	public long read(Map<String, Object> parameters, final HistoryReader.EntryHandler handler) throws Exception {
+		return scan(parameters, null, Integer.MAX_VALUE, new RecordHandler() {
+			@Override
+			public void record(FileChannel channel, Record record) throws Exception {
+				handle(channel, record, handler);
+			}
+		}).count;
+	}
+
+	/* (non-Javadoc)
+	 * @see ch.vivates.ihe.hpd.pid.history.HistoryStore#readPage(java.util.Map, ch.vivates.ihe.hpd.pid.history.HistoryPosition, int, ch.vivates.ihe.hpd.pid.history.HistoryReader.EntryHandler)
+	 */
+	@Override
+	public HistoryPosition readPage(Map<String, Object> parameters, HistoryPosition after, int pageSize,
+			final HistoryReader.EntryHandler handler) throws Exception {
+		Result result = scan(parameters, after, pageSize, new RecordHandler() {
+			@Override
+			public void record(FileChannel channel, Record record) throws Exception {
+				handle(channel, record, handler);
+			}
+		});
+		return result.more ? result.last : null;
+	}
+
+	/**
+	 * Not supported, the segments are ordered by transaction day and not by write. The changes
+	 * requests are rejected at startup with this store.
+	 *
+	 * @return false
+	 */
+	@Override
+	public boolean isChangesSupported() {
+		return false;
+	}
+
+	/**
+	 * The segment store has no changes reads, its entries are readable once appended.
+	 *
+	 * @return 0
+	 */
+	@Override
+	public long getMaxCommitMillis() {
+		return 0;
+	}
+
+	/**
+	 * Not supported, the segments are ordered by transaction day and not by write.
+	 *
+	 * @param parameters the parameters of the read by name
+	 * @param after the write position of the last entry of the previous page
+	 * @param pageSize the maximum number of entries of the page
+	 * @param handler the handler of the entries
+	 * @return never
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override
+	public HistoryPosition readChanges(Map<String, Object> parameters, HistoryPosition after, int pageSize,
+			HistoryReader.EntryHandler handler) {
+		throw new UnsupportedOperationException("Changes requests need the jdbc history store");
+	}
+
+	/**
+	 * Copies the history entries of a range into a download response, transferring the bodies
+	 * from the segment files to the response stream.
+	 *
+	 * @param parameters the parameters of the range by name
+	 * @param writer the writer of the response, within the response element
+	 * @param out the stream the writer writes to
+	 * @return the number of entries copied
+	 * @throws Exception the exception of the store or the response
+	 */
+	@Override
+	public long copy(Map<String, Object> parameters, XMLStreamWriter writer, OutputStream out) throws Exception {
+		// Closes the start tag of the response element before the bodies
+		writer.writeCharacters("");
+		writer.flush();
+		final WritableByteChannel target = Channels.newChannel(out);
+		long count = scan(parameters, null, Integer.MAX_VALUE, new RecordHandler() {
+			@Override
+			public void record(FileChannel channel, Record record) throws Exception {
+				for (long position = record.body; position < record.end;) {
+					long transferred = channel.transferTo(position, record.end - position, target);
+					if (transferred <= 0) {
+						throw new EOFException("History record truncated at " + position);
+					}
+					position += transferred;
+				}
+			}
+		}).count;
+		out.flush();
+		return count;
+	}
+
+	/**
+	 * Scans the records of the segments of a range.
+	 *
+	 * @param parameters the parameters of the range by name
+	 * @param after the position of the last record of the previous page, null to start at the range
+	 * @param limit the maximum number of records handed to the handler
+	 * @param handler the handler of the records
+	 * @return the result
+	 * @throws Exception the exception of the store or the handler
+	 */
+	private Result scan(Map<String, Object> parameters, HistoryPosition after, int limit, RecordHandler handler) throws Exception {
+		long start = System.currentTimeMillis();
+		HistoryRange range = HistoryRange.of(parameters);
+		HistoryFilter filter = (HistoryFilter) parameters.get(HistoryFilter.PARAMETER);
+		if (filter != null && entityExtractor == null) {
+			throw new IllegalStateException("The segment history store has no entity extractor to filter entries");
+		}
+		Result result = new Result();
+		long firstDay = dayOf(after != null ? after.getDate().getTime() : range.getFrom());
+		for (long day = firstDay; day <= dayOf(range.getTo()) && !result.more; day += DAY_MILLIS) {
+			String name = nameOf(day);
+			long length = committedLength(name);
+			if (length == 0) {
+				continue;
+			}
+			FileChannel channel = FileChannel.open(new File(directory, name + LOG_SUFFIX).toPath(), StandardOpenOption.READ);
+			try {
+				long position = 0;
+				if (after != null && day == firstDay) {
+					Record previous = Record.read(channel, after.getId(), length);
+					if (previous == null) {
+						throw new IllegalArgumentException("Invalid history position: " + after.getId());
+					}
+					position = previous.end;
+				} else if (day == dayOf(range.getFrom())) {
+					position = indexedPosition(name, range.getFrom(), length);
+				}
+				for (Record record = Record.read(channel, position, length); record != null; record = Record.read(channel, record.end,
+						length)) {
+					if (!range.contains(record.date, record.principal)
+							|| (filter != null && !filter.matches(entityExtractor.extract(bodyOf(channel, record))))) {
+						continue;
+					}
+					if (result.count == limit) {
+						result.more = true;
+						break;
+					}
+					handler.record(channel, record);
+					result.last = new HistoryPosition(new Timestamp(record.date), record.position);
+					result.count++;
+				}
+			} finally {
+				channel.close();
+			}
+		}
+		LOG.debug("Read " + result.count + " history entries in " + (System.currentTimeMillis() - start) + " ms");
+		return result;
+	}
+
+	/**
+	 * Hands a record to an entry handler.
+	 *
+	 * @param channel the segment
+	 * @param record the record
+	 * @param handler the handler
+	 * @throws Exception the exception of the store or the handler
+	 */
+	private static void handle(FileChannel channel, Record record, HistoryReader.EntryHandler handler) throws Exception {
+		Reader reader = new InputStreamReader(new ByteArrayInputStream(bodyBytesOf(channel, record)), UTF8);
+		try {
+			handler.entry(new HistoryPosition(new Timestamp(record.date), record.position), record.principal, reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads the body of a record.
+	 *
+	 * @param channel the segment
+	 * @param record the record
+	 * @return the UTF-8 encoded body
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static byte[] bodyBytesOf(FileChannel channel, Record record) throws IOException {
+		ByteBuffer body = ByteBuffer.allocate((int) (record.end - record.body));
+		readFully(channel, body, record.body);
+		return body.array();
+	}
+
+	/**
+	 * Reads the body of a record as string.
+	 *
+	 * @param channel the segment
+	 * @param record the record
+	 * @return the body
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static String bodyOf(FileChannel channel, Record record) throws IOException {
+		return new String(bodyBytesOf(channel, record), UTF8);
+	}
+
+	/**
+	 * Gets the length of a segment readable without partially written records.
+	 *
+	 * @param name the name of the segment
+	 * @return the length, 0 if the segment does not exist
+	 */
+	private long committedLength(String name) {
+		synchronized (segments) {
+			Segment segment = segments.get(name);
+			if (segment != null) {
+				return segment.committed;
+			}
+		}
+		return new File(directory, name + LOG_SUFFIX).length();
+	}
+
+	/**
+	 * Finds the offset of the first record of a segment that can be in a range, from the index of
+	 * the segment.
+	 *
+	 * @param name the name of the segment
+	 * @param from the start of the range
+	 * @param length the readable length of the segment
+	 * @return the offset of a record, all the records before it are before the range
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private long indexedPosition(String name, long from, long length) throws IOException {
+		File file = new File(directory, name + INDEX_SUFFIX);
+		if (!file.exists()) {
+			return 0;
+		}
+		FileChannel index = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer entries = ByteBuffer.allocate((int) (index.size() / INDEX_ENTRY * INDEX_ENTRY));
+			readFully(index, entries, 0);
+			entries.flip();
+			long position = 0;
+			while (entries.hasRemaining()) {
+				long maxDate = entries.getLong();
+				long offset = entries.getLong();
+				if (maxDate >= from || offset > length) {
+					break;
+				}
+				position = offset;
+			}
+			return position;
+		} finally {
+			index.close();
+		}
+	}
+
+	/**
+	 * Gets the segment of a day open for appending, opening it if needed.
+	 *
+	 * @param name the name of the segment
+	 * @return the segment
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private Segment segment(String name) throws IOException {
+		synchronized (segments) {
+			Segment segment = segments.get(name);
+			if (segment == null) {
+				segment = new Segment(name);
+				segments.put(name, segment);
+			}
+			return segment;
+		}
+	}
+
+	/**
+	 * Converts an entry to a record.
+	 *
+	 * @param entry the entry
+	 * @param date the date of the entry
+	 * @return the record
+	 * @throws IOException if the body could not be read
+	 */
+	private static ByteBuffer toRecord(Map<String, Object> entry, long date) throws IOException {
+		Object body = entry.get(TR_BODY);
+		if (body instanceof InputStream) {
+			body = HistoryBatchWriter.read((InputStream) body);
+		}
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(payload);
+		data.writeLong(date);
+		writeString(data, (String) entry.get(SRC_DESC));
+		writeString(data, (String) entry.get(TR_OP_IDX));
+		try {
+			// The body is stored as it is copied into a download response
+			XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(data, "UTF-8");
+			new ElementCopyHandler(writer).entry(null, null, new StringReader((String) body));
+			writer.flush();
+			writer.close();
+		} catch (Exception e) {
+			throw new IOException("Failed to store the history entry " + entry.get(TR_OP_IDX), e);
+		}
+		data.flush();
+		CRC32 checksum = new CRC32();
+		checksum.update(payload.toByteArray());
+		ByteBuffer record = ByteBuffer.allocate(PREFIX + payload.size());
+		record.putInt(payload.size());
+		record.putInt((int) checksum.getValue());
+		record.put(payload.toByteArray());
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Writes a string, with its length on two bytes, -1 for null.
+	 *
+	 * @param data the output
+	 * @param value the string
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void writeString(DataOutputStream data, String value) throws IOException {
+		if (value == null) {
+			data.writeShort(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		data.writeShort(bytes.length);
+		data.write(bytes);
+	}
+
+	/**
+	 * Reads bytes from a file until the buffer is full.
+	 *
+	 * @param channel the file
+	 * @param buffer the buffer
+	 * @param position the position of the bytes
+	 * @throws IOException if the file ends before the buffer is full
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0) {
+				throw new EOFException("History segment ends at " + position);
+			}
+			position += n;
+		}
+	}
+
+	/**
+	 * Gets the start of the day (UTC) of a date.
+	 *
+	 * @param date the date in milliseconds
+	 * @return the start of the day in milliseconds
+	 */
+	private static long dayOf(long date) {
+		return date - ((date % DAY_MILLIS) + DAY_MILLIS) % DAY_MILLIS;
+	}
+
+	/**
+	 * Gets the name of the segment of a day.
+	 *
+	 * @param day the start of the day in milliseconds
+	 * @return the name
+	 */
+	private static String nameOf(long day) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+		format.setTimeZone(UTC);
+		return format.format(new Date(day));
+	}
+
+	/**
+	 * Sets the directory of the segments.
+	 *
+	 * @param directory the new directory
+	 */
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Sets the number of bytes between index entries.
+	 *
+	 * @param indexInterval the new index interval
+	 */
+	public void setIndexInterval(long indexInterval) {
+		this.indexInterval = indexInterval;
+	}
+
+	/**
+	 * Sets whether the records are forced to the disk before a write returns.
+	 *
+	 * @param syncOnWrite true to force the records to the disk
+	 */
+	public void setSyncOnWrite(boolean syncOnWrite) {
+		this.syncOnWrite = syncOnWrite;
+	}
+
+	/**
+	 * Sets the number of months the history is kept.
+	 *
+	 * @param retentionMonths the new retention in months
+	 */
+	public void setRetentionMonths(int retentionMonths) {
+		this.retentionMonths = retentionMonths;
+	}
+
+	/**
+	 * Sets the extractor of the entities of filtered reads.
+	 *
+	 * @param entityExtractor the new entity extractor
+	 */
+	public void setEntityExtractor(HistoryEntityExtractor entityExtractor) {
+		this.entityExtractor = entityExtractor;
+	}
+
+	/**
+	 * The Class Segment is a segment open for appending, with its index.
+	 */
+	private final class Segment {
+
+		/** The name. */
+		private final String name;
+
+		/** The segment file. */
+		private final FileChannel log;
+
+		/** The index file. */
+		private final FileChannel index;
+
+		/** The length of the segment holding committed records. */
+		private volatile long committed;
+
+		/** The length of the index holding the entries of committed records. */
+		private long committedIndex;
+
+		/** The offset of the last index entry. */
+		private long indexed;
+
+		/** The latest date of the committed records. */
+		private long committedMaxDate;
+
+		/** The latest date of the records of the segment. */
+		private long maxDate = Long.MIN_VALUE;
+
+		/**
+		 * Opens a segment, truncating the records after the last complete record.
+		 *
+		 * @param name the name
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private Segment(String name) throws IOException {
+			this.name = name;
+			log = FileChannel.open(new File(directory, name + LOG_SUFFIX).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			index = FileChannel.open(new File(directory, name + INDEX_SUFFIX).toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long size = log.size();
+			long position = 0;
+			long entries = 0;
+			ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+			for (long i = 0; i < index.size() / INDEX_ENTRY; i++) {
+				entry.clear();
+				readFully(index, entry, i * INDEX_ENTRY);
+				entry.flip();
+				long date = entry.getLong();
+				long offset = entry.getLong();
+				if (offset > size) {
+					break;
+				}
+				maxDate = date;
+				position = offset;
+				entries = i + 1;
+			}
+			indexed = position;
+			// Only the records after the last index entry can be incomplete
+			Record record = Record.read(log, position, size);
+			while (record != null && record.isValid(log)) {
+				maxDate = Math.max(maxDate, record.date);
+				position = record.end;
+				record = Record.read(log, position, size);
+			}
+			if (position < size) {
+				LOG.warn("Truncating the history segment " + name + " from " + size + " to " + position + " bytes");
+				log.truncate(position);
+			}
+			index.truncate(entries * INDEX_ENTRY);
+			log.position(position);
+			index.position(entries * INDEX_ENTRY);
+			committed = position;
+			committedIndex = entries * INDEX_ENTRY;
+			committedMaxDate = maxDate;
+		}
+
+		/**
+		 * Appends a record, and an index entry before it once the index interval is reached.
+		 *
+		 * @param record the record
+		 * @param date the date of the record
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private void append(ByteBuffer record, long date) throws IOException {
+			long offset = log.position();
+			if (offset - indexed >= indexInterval) {
+				ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+				entry.putLong(maxDate);
+				entry.putLong(offset);
+				entry.flip();
+				while (entry.hasRemaining()) {
+					index.write(entry);
+				}
+				indexed = offset;
+			}
+			while (record.hasRemaining()) {
+				log.write(record);
+			}
+			maxDate = Math.max(maxDate, date);
+		}
+
+		/**
+		 * Makes the appended records readable, once they are on the disk if required.
+		 *
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private void commit() throws IOException {
+			if (syncOnWrite) {
+				log.force(false);
+				index.force(false);
+			}
+			committed = log.position();
+			committedIndex = index.position();
+			committedMaxDate = maxDate;
+		}
+
+		/**
+		 * Removes the records appended since the last commit. The segment is closed if they
+		 * cannot be removed, so it is recovered when it is opened again.
+		 */
+		private void rollback() {
+			try {
+				log.truncate(committed);
+				log.position(committed);
+				index.truncate(committedIndex);
+				index.position(committedIndex);
+				maxDate = committedMaxDate;
+				if (committedIndex > 0) {
+					ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+					readFully(index, entry, committedIndex - INDEX_ENTRY);
+					entry.flip();
+					entry.getLong();
+					indexed = entry.getLong();
+				} else {
+					indexed = 0;
+				}
+			} catch (IOException e) {
+				LOG.warn("Failed to roll back the history segment " + name, e);
+				synchronized (segments) {
+					segments.remove(name);
+				}
+				try {
+					close();
+				} catch (IOException f) {
+					LOG.debug("Failed to close the history segment " + name, f);
+				}
+			}
+		}
+
+		/**
+		 * Closes the segment.
+		 *
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private void close() throws IOException {
+			LOG.debug("Closing the history segment " + name);
+			try {
+				log.close();
+			} finally {
+				index.close();
+			}
+		}
+	}
+
+	/**
+	 * The Class Record is the header of a record of a segment.
+	 */
+	private static final class Record {
+
+		/** The offset of the record. */
+		private final long position;
+
+		/** The offset after the record. */
+		private final long end;
+
+		/** The checksum of the record after its prefix. */
+		private final int checksum;
+
+		/** The date. */
+		private long date;
+
+		/** The principal. */
+		private String principal;
+
+		/** The offset of the body. */
+		private long body;
+
+		/**
+		 * Instantiates a new record.
+		 *
+		 * @param position the offset of the record
+		 * @param end the offset after the record
+		 * @param checksum the checksum of the record after its prefix
+		 */
+		private Record(long position, long end, int checksum) {
+			this.position = position;
+			this.end = end;
+			this.checksum = checksum;
+		}
+
+		/**
+		 * Reads the header of a record.
+		 *
+		 * @param channel the segment
+		 * @param position the offset of the record
+		 * @param length the readable length of the segment
+		 * @return the record, null if there is no complete record at the offset
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private static Record read(FileChannel channel, long position, long length) throws IOException {
+			if (length - position < PREFIX) {
+				return null;
+			}
+			ByteBuffer header = ByteBuffer.allocate((int) Math.min(HEADER_BUFFER, length - position));
+			readFully(channel, header, position);
+			header.flip();
+			int size = header.getInt();
+			Record record = new Record(position, position + PREFIX + size, header.getInt());
+			if (size < 12 || record.end > length) {
+				return null;
+			}
+			try {
+				record.parse(header);
+			} catch (BufferUnderflowException e) {
+				// The principal and the operation index do not fit into the header buffer
+				header = ByteBuffer.allocate(PREFIX + size);
+				readFully(channel, header, position);
+				header.flip();
+				header.position(PREFIX);
+				record.parse(header);
+			}
+			return record.body <= record.end ? record : null;
+		}
+
+		/**
+		 * Parses the header after the prefix.
+		 *
+		 * @param header the header, positioned after the prefix
+		 */
+		private void parse(ByteBuffer header) {
+			date = header.getLong();
+			principal = readString(header);
+			readString(header);
+			body = position + header.position();
+		}
+
+		/**
+		 * Reads a string, with its length on two bytes, -1 for null.
+		 *
+		 * @param header the header
+		 * @return the string
+		 */
+		private static String readString(ByteBuffer header) {
+			short length = header.getShort();
+			if (length < 0) {
+				return null;
+			}
+			byte[] bytes = new byte[length];
+			header.get(bytes);
+			return new String(bytes, UTF8);
+		}
+
+		/**
+		 * Checks the checksum of the record.
+		 *
+		 * @param channel the segment
+		 * @return true if the record is valid
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private boolean isValid(FileChannel channel) throws IOException {
+			ByteBuffer content = ByteBuffer.allocate((int) (end - position - PREFIX));
+			readFully(channel, content, position + PREFIX);
+			CRC32 crc = new CRC32();
+			crc.update(content.array());
+			return (int) crc.getValue() == checksum;
+		}
+	}
+
+	/**
+	 * The Class Result is the result of a scan.
+	 */
+	private static class Result {
+
+		/** The number of records handed to the handler. */
+		private long count;
+
+		/** The position of the last record handed to the handler. */
+		private HistoryPosition last;
+
+		/** True if more records are in the range than handed to the handler. */
+		private boolean more;
+	}
+
+	/**
+	 * The Interface RecordHandler receives the records of a scan.
+	 */
+	private interface RecordHandler {
+
+		/**
+		 * Handles a record.
+		 *
+		 * @param channel the segment
+		 * @param record the record
+		 * @throws Exception the exception
+		 */
+		void record(FileChannel channel, Record record) throws Exception;
+	}
+
+}
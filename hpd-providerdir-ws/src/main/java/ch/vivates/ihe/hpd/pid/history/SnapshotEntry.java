@@ -0,0 +1,116 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.util.List;
+
+import ch.vivates.ihe.hpd.pid.model.cs.AddRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.DsmlMessage;
+
+/**
+ * The Class SnapshotEntry is the latest state of a directory entry in a history snapshot. The
+ * state of an entry whose addRequest is in the history is a single addRequest with all its
+ * attributes. Otherwise the entry existed before the history, and its state is the operations
+ * of the history on it, with the modifications folded into as few modifyRequests as possible.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public final class SnapshotEntry {
+
+	/** The normalized DN. */
+	private final String key;
+
+	/** The DN. */
+	private final String dn;
+
+	/** The operations creating the state. */
+	private final List<DsmlMessage> operations;
+
+	/** The principal of the last operation. */
+	private String principal;
+
+	/** The history position of the last operation. */
+	private HistoryPosition position;
+
+	/**
+	 * Instantiates a new snapshot entry.
+	 *
+	 * @param key the normalized DN
+	 * @param dn the DN
+	 * @param operations the operations creating the state
+	 * @param principal the principal of the last operation
+	 * @param position the history position of the last operation
+	 */
+	public SnapshotEntry(String key, String dn, List<DsmlMessage> operations, String principal, HistoryPosition position) {
+		this.key = key;
+		this.dn = dn;
+		this.operations = operations;
+		this.principal = principal;
+		this.position = position;
+	}
+
+	/**
+	 * Checks if the state holds all attributes of the entry.
+	 *
+	 * @return true if the state is a single addRequest
+	 */
+	public boolean isComplete() {
+		return operations.size() == 1 && operations.get(0) instanceof AddRequest;
+	}
+
+	/**
+	 * Gets the normalized DN.
+	 *
+	 * @return the normalized DN
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Gets the DN.
+	 *
+	 * @return the DN
+	 */
+	public String getDn() {
+		return dn;
+	}
+
+	/**
+	 * Gets the operations creating the state.
+	 *
+	 * @return the operations
+	 */
+	public List<DsmlMessage> getOperations() {
+		return operations;
+	}
+
+	/**
+	 * Gets the principal of the last operation.
+	 *
+	 * @return the principal
+	 */
+	public String getPrincipal() {
+		return principal;
+	}
+
+	/**
+	 * Gets the history position of the last operation.
+	 *
+	 * @return the position
+	 */
+	public HistoryPosition getPosition() {
+		return position;
+	}
+
+	/**
+	 * Records the last operation.
+	 *
+	 * @param principal the principal of the operation
+	 * @param position the history position of the operation
+	 */
+	void touch(String principal, HistoryPosition position) {
+		this.principal = principal;
+		this.position = position;
+	}
+
+}
@@ -0,0 +1,541 @@
+package ch.vivates.ihe.hpd.pid.history;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.vivates.ihe.hpd.pid.model.cs.AddRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.DelRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.DsmlAttr;
+import ch.vivates.ihe.hpd.pid.model.cs.DsmlMessage;
+import ch.vivates.ihe.hpd.pid.model.cs.DsmlModification;
+import ch.vivates.ihe.hpd.pid.model.cs.ModifyDNRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.ModifyRequest;
+import ch.vivates.tools.dsmlv2.SearchKey;
+
+/**
+ * The Class SnapshotFolder folds history operations into the latest state of the entries they
+ * change. Modifications and renames of an entry whose addRequest is known are applied to the
+ * attributes of the addRequest, a deletion removes the entry. The states before the first
+ * operation are loaded on demand from the previous snapshot, so only the entries changed since
+ * that snapshot are held in memory.
+ * <p>
+ * Values are compared exactly, and ignoring case when no value matches exactly, which suits the
+ * case ignoring matching rules of most directory attributes.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class SnapshotFolder {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(SnapshotFolder.class);
+
+	/** The Constant UTF8. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The loader of the previous states. */
+	private final Loader loader;
+
+	/** The changed entries by normalized DN, null for removed entries. */
+	private final Map<String, SnapshotEntry> changes = new LinkedHashMap<String, SnapshotEntry>();
+
+	/** The number of folded operations. */
+	private long operations;
+
+	/**
+	 * Instantiates a new snapshot folder.
+	 *
+	 * @param loader the loader of the previous states
+	 */
+	public SnapshotFolder(Loader loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * Folds an operation. Operations other than add, modify, delete and modify DN requests are
+	 * ignored.
+	 *
+	 * @param operation the operation
+	 * @param principal the principal that executed the operation
+	 * @param position the history position of the operation
+	 * @throws Exception if a previous state could not be loaded
+	 */
+	public void fold(DsmlMessage operation, String principal, HistoryPosition position) throws Exception {
+		if (operation instanceof AddRequest) {
+			String dn = ((AddRequest) operation).getDn();
+			List<DsmlMessage> state = new ArrayList<DsmlMessage>(1);
+			state.add(operation);
+			changes.put(normalize(dn), new SnapshotEntry(normalize(dn), dn, state, principal, position));
+		} else if (operation instanceof ModifyRequest) {
+			modify((ModifyRequest) operation, principal, position);
+		} else if (operation instanceof DelRequest) {
+			changes.put(normalize(((DelRequest) operation).getDn()), null);
+		} else if (operation instanceof ModifyDNRequest) {
+			rename((ModifyDNRequest) operation, principal, position);
+		} else {
+			return;
+		}
+		operations++;
+	}
+
+	/**
+	 * Folds a modify request.
+	 *
+	 * @param request the request
+	 * @param principal the principal
+	 * @param position the position
+	 * @throws Exception if the previous state could not be loaded
+	 */
+	private void modify(ModifyRequest request, String principal, HistoryPosition position) throws Exception {
+		String key = normalize(request.getDn());
+		SnapshotEntry entry = get(key);
+		if (entry == null) {
+			entry = new SnapshotEntry(key, request.getDn(), new ArrayList<DsmlMessage>(), principal, position);
+		}
+		if (entry.isComplete()) {
+			AddRequest state = (AddRequest) entry.getOperations().get(0);
+			for (DsmlModification modification : request.getModification()) {
+				apply(state.getAttr(), modification);
+			}
+		} else {
+			List<DsmlMessage> state = entry.getOperations();
+			DsmlMessage last = state.isEmpty() ? null : state.get(state.size() - 1);
+			if (last instanceof ModifyRequest) {
+				((ModifyRequest) last).getModification().addAll(request.getModification());
+			} else {
+				state.add(request);
+			}
+		}
+		entry.touch(principal, position);
+		changes.put(key, entry);
+	}
+
+	/**
+	 * Folds a modify DN request, moving the subordinates of the entry along.
+	 *
+	 * @param request the request
+	 * @param principal the principal
+	 * @param position the position
+	 * @throws Exception if a previous state could not be loaded
+	 */
+	private void rename(ModifyDNRequest request, String principal, HistoryPosition position) throws Exception {
+		String oldDn = request.getDn();
+		String oldKey = normalize(oldDn);
+		String newDn = newDnOf(request);
+		List<SnapshotEntry> subordinates = subordinatesOf(oldKey);
+		SnapshotEntry entry = get(oldKey);
+		List<DsmlMessage> state;
+		if (entry != null && entry.isComplete()) {
+			AddRequest add = (AddRequest) entry.getOperations().get(0);
+			if (request.isDeleteoldrdn()) {
+				for (String[] ava : avasOf(rdnsOf(oldDn).get(0))) {
+					apply(add.getAttr(), modification("delete", ava[0], ava[1]));
+				}
+			}
+			for (String[] ava : avasOf(request.getNewrdn())) {
+				apply(add.getAttr(), modification("add", ava[0], ava[1]));
+			}
+			add.setDn(newDn);
+			state = entry.getOperations();
+		} else {
+			state = entry != null ? entry.getOperations() : new ArrayList<DsmlMessage>();
+			state.add(request);
+		}
+		changes.put(oldKey, null);
+		changes.put(normalize(newDn), new SnapshotEntry(normalize(newDn), newDn, state, principal, position));
+		int depth = rdnsOf(oldDn).size();
+		for (SnapshotEntry subordinate : subordinates) {
+			String dn = rebase(subordinate.getDn(), depth, newDn);
+			for (DsmlMessage operation : subordinate.getOperations()) {
+				rebase(operation, depth, newDn);
+			}
+			changes.put(subordinate.getKey(), null);
+			changes.put(normalize(dn), new SnapshotEntry(normalize(dn), dn, subordinate.getOperations(), subordinate.getPrincipal(),
+					subordinate.getPosition()));
+		}
+		if (!subordinates.isEmpty()) {
+			LOG.debug("Moved " + subordinates.size() + " subordinates of " + oldDn + " to " + newDn);
+		}
+	}
+
+	/**
+	 * Gets the current state of an entry.
+	 *
+	 * @param key the normalized DN
+	 * @return the state, or null if the entry does not exist or is unknown
+	 * @throws Exception if the previous state could not be loaded
+	 */
+	private SnapshotEntry get(String key) throws Exception {
+		if (changes.containsKey(key)) {
+			return changes.get(key);
+		}
+		return loader.load(key);
+	}
+
+	/**
+	 * Gets the current states of the subordinates of an entry.
+	 *
+	 * @param key the normalized DN of the entry
+	 * @return the states of the subordinates
+	 * @throws Exception if the previous states could not be loaded
+	 */
+	private List<SnapshotEntry> subordinatesOf(String key) throws Exception {
+		String suffix = "," + key;
+		List<SnapshotEntry> subordinates = new ArrayList<SnapshotEntry>();
+		for (SnapshotEntry previous : loader.loadSubordinates(key)) {
+			if (previous.getKey().endsWith(suffix) && !changes.containsKey(previous.getKey())) {
+				subordinates.add(previous);
+			}
+		}
+		for (Map.Entry<String, SnapshotEntry> change : changes.entrySet()) {
+			if (change.getValue() != null && change.getKey().endsWith(suffix)) {
+				subordinates.add(change.getValue());
+			}
+		}
+		return subordinates;
+	}
+
+	/**
+	 * Gets the entries changed by the folded operations.
+	 *
+	 * @return the states by normalized DN, null for removed entries
+	 */
+	public Map<String, SnapshotEntry> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Gets the number of folded operations.
+	 *
+	 * @return the number of operations
+	 */
+	public long getOperations() {
+		return operations;
+	}
+
+	/**
+	 * Applies a modification to the attributes of an entry.
+	 *
+	 * @param attributes the attributes
+	 * @param modification the modification
+	 */
+	private static void apply(List<DsmlAttr> attributes, DsmlModification modification) {
+		DsmlAttr attribute = null;
+		for (DsmlAttr candidate : attributes) {
+			if (candidate.getName().trim().equalsIgnoreCase(modification.getName().trim())) {
+				attribute = candidate;
+				break;
+			}
+		}
+		List<String> values = modification.getValue();
+		if ("add".equals(modification.getOperation())) {
+			if (attribute == null) {
+				attribute = new DsmlAttr();
+				attribute.setName(modification.getName());
+				attributes.add(attribute);
+			}
+			for (String value : values) {
+				if (indexOf(attribute.getValue(), value) < 0) {
+					attribute.getValue().add(value);
+				}
+			}
+		} else if ("delete".equals(modification.getOperation())) {
+			if (attribute != null) {
+				for (String value : values) {
+					int index = indexOf(attribute.getValue(), value);
+					if (index >= 0) {
+						attribute.getValue().remove(index);
+					}
+				}
+				if (values.isEmpty() || attribute.getValue().isEmpty()) {
+					attributes.remove(attribute);
+				}
+			}
+		} else if ("replace".equals(modification.getOperation())) {
+			if (attribute != null) {
+				attributes.remove(attribute);
+			}
+			if (!values.isEmpty()) {
+				attribute = new DsmlAttr();
+				attribute.setName(modification.getName());
+				attribute.getValue().addAll(values);
+				attributes.add(attribute);
+			}
+		}
+	}
+
+	/**
+	 * Finds a value, exactly or else ignoring case.
+	 *
+	 * @param values the values
+	 * @param value the value to find
+	 * @return the index of the value, -1 if not found
+	 */
+	private static int indexOf(List<String> values, String value) {
+		int index = values.indexOf(value);
+		if (index < 0) {
+			for (int i = 0; i < values.size(); i++) {
+				if (values.get(i).equalsIgnoreCase(value)) {
+					return i;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Creates a modification of one value.
+	 *
+	 * @param operation the operation
+	 * @param name the attribute name
+	 * @param value the value
+	 * @return the modification
+	 */
+	private static DsmlModification modification(String operation, String name, String value) {
+		DsmlModification modification = new DsmlModification();
+		modification.setOperation(operation);
+		modification.setName(name);
+		modification.getValue().add(value);
+		return modification;
+	}
+
+	/**
+	 * Moves the DNs of an operation of a subordinate below a new parent.
+	 *
+	 * @param operation the operation
+	 * @param depth the number of RDNs of the old parent
+	 * @param parent the new parent
+	 */
+	private static void rebase(DsmlMessage operation, int depth, String parent) {
+		if (operation instanceof AddRequest) {
+			AddRequest add = (AddRequest) operation;
+			add.setDn(rebase(add.getDn(), depth, parent));
+		} else if (operation instanceof ModifyRequest) {
+			ModifyRequest modify = (ModifyRequest) operation;
+			modify.setDn(rebase(modify.getDn(), depth, parent));
+		} else if (operation instanceof ModifyDNRequest) {
+			ModifyDNRequest modifyDn = (ModifyDNRequest) operation;
+			modifyDn.setDn(rebase(modifyDn.getDn(), depth, parent));
+			if (!StringUtils.isBlank(modifyDn.getNewSuperior())) {
+				modifyDn.setNewSuperior(rebase(modifyDn.getNewSuperior(), depth, parent));
+			}
+		}
+	}
+
+	/**
+	 * Moves a DN below a new parent.
+	 *
+	 * @param dn the DN
+	 * @param depth the number of RDNs of the old parent
+	 * @param parent the new parent
+	 * @return the moved DN, or the DN if it is not below the old parent
+	 */
+	private static String rebase(String dn, int depth, String parent) {
+		List<String> rdns = rdnsOf(dn);
+		if (rdns.size() <= depth) {
+			return dn;
+		}
+		return StringUtils.join(rdns.subList(0, rdns.size() - depth), ",") + "," + parent;
+	}
+
+	/**
+	 * Gets the DN of an entry after a modify DN request.
+	 *
+	 * @param request the request
+	 * @return the new DN
+	 */
+	static String newDnOf(ModifyDNRequest request) {
+		String parent = request.getNewSuperior();
+		if (StringUtils.isBlank(parent)) {
+			List<String> rdns = rdnsOf(request.getDn());
+			parent = StringUtils.join(rdns.subList(Math.min(1, rdns.size()), rdns.size()), ",");
+		}
+		return parent.isEmpty() ? request.getNewrdn().trim() : request.getNewrdn().trim() + "," + parent;
+	}
+
+	/**
+	 * Gets the DN of an entry after its operations.
+	 *
+	 * @param operations the operations
+	 * @return the DN, or null without operations
+	 */
+	static String dnOf(List<DsmlMessage> operations) {
+		String dn = null;
+		for (DsmlMessage operation : operations) {
+			if (operation instanceof AddRequest) {
+				dn = ((AddRequest) operation).getDn();
+			} else if (operation instanceof ModifyRequest) {
+				dn = ((ModifyRequest) operation).getDn();
+			} else if (operation instanceof ModifyDNRequest) {
+				dn = newDnOf((ModifyDNRequest) operation);
+			}
+		}
+		return dn;
+	}
+
+	/**
+	 * Splits a DN into its RDNs, at the commas that are neither escaped nor quoted.
+	 *
+	 * @param dn the DN
+	 * @return the RDNs, the RDN of the entry first
+	 */
+	static List<String> rdnsOf(String dn) {
+		return split(dn, ',');
+	}
+
+	/**
+	 * Splits an RDN into its attribute type and value assertions.
+	 *
+	 * @param rdn the RDN
+	 * @return the pairs of attribute type and unescaped value
+	 */
+	private static List<String[]> avasOf(String rdn) {
+		List<String[]> avas = new ArrayList<String[]>();
+		for (String ava : split(rdn, '+')) {
+			int equals = ava.indexOf('=');
+			if (equals > 0) {
+				avas.add(new String[] { ava.substring(0, equals).trim(), unescape(ava.substring(equals + 1).trim()) });
+			}
+		}
+		return avas;
+	}
+
+	/**
+	 * Splits a DN or RDN at a separator that is neither escaped nor quoted.
+	 *
+	 * @param value the value
+	 * @param separator the separator
+	 * @return the trimmed parts, without empty parts
+	 */
+	private static List<String> split(String value, char separator) {
+		List<String> parts = new ArrayList<String>();
+		if (value == null) {
+			return parts;
+		}
+		StringBuilder part = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				part.append(c).append(value.charAt(++i));
+			} else if (c == '"') {
+				quoted = !quoted;
+				part.append(c);
+			} else if (c == separator && !quoted) {
+				addPart(parts, part);
+			} else {
+				part.append(c);
+			}
+		}
+		addPart(parts, part);
+		return parts;
+	}
+
+	/**
+	 * Adds a trimmed part if it is not empty, and clears it.
+	 *
+	 * @param parts the parts
+	 * @param part the part
+	 */
+	private static void addPart(List<String> parts, StringBuilder part) {
+		String trimmed = part.toString().trim();
+		if (!trimmed.isEmpty()) {
+			parts.add(trimmed);
+		}
+		part.setLength(0);
+	}
+
+	/**
+	 * Unescapes an RDN value, removing quotes and resolving escaped characters and hex pairs.
+	 *
+	 * @param value the value
+	 * @return the unescaped value
+	 */
+	private static String unescape(String value) {
+		if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+			value = value.substring(1, value.length() - 1);
+		}
+		if (value.indexOf('\\') < 0) {
+			return value;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 2 < value.length() && isHex(value.charAt(i + 1)) && isHex(value.charAt(i + 2))) {
+				bytes.write(Integer.parseInt(value.substring(i + 1, i + 3), 16));
+				i += 2;
+			} else {
+				if (c == '\\' && i + 1 < value.length()) {
+					c = value.charAt(++i);
+				}
+				byte[] encoded = String.valueOf(c).getBytes(UTF8);
+				bytes.write(encoded, 0, encoded.length);
+			}
+		}
+		return new String(bytes.toByteArray(), UTF8);
+	}
+
+	/**
+	 * Checks if a character is a hex digit.
+	 *
+	 * @param c the character
+	 * @return true if c is a hex digit
+	 */
+	private static boolean isHex(char c) {
+		return Character.digit(c, 16) >= 0;
+	}
+
+	/**
+	 * Normalizes a DN, or lower cases it if it is not valid.
+	 *
+	 * @param dn the DN
+	 * @return the normalized DN
+	 */
+	static String normalize(String dn) {
+		if (dn == null) {
+			return "";
+		}
+		try {
+			return SearchKey.normalize(new Dn(dn));
+		} catch (LdapInvalidDnException e) {
+			return dn.trim().toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	/**
+	 * The Interface Loader loads the states of the previous snapshot.
+	 */
+	public interface Loader {
+
+		/**
+		 * Loads the state of an entry.
+		 *
+		 * @param key the normalized DN of the entry
+		 * @return the state, or null if the entry is not in the snapshot
+		 * @throws Exception the exception
+		 */
+		SnapshotEntry load(String key) throws Exception;
+
+		/**
+		 * Loads the states of the subordinates of an entry. Other entries may be returned too,
+		 * they are ignored.
+		 *
+		 * @param key the normalized DN of the entry
+		 * @return the states of the subordinates
+		 * @throws Exception the exception
+		 */
+		List<SnapshotEntry> loadSubordinates(String key) throws Exception;
+	}
+
+}
@@ -0,0 +1,7 @@
+/**
+ * Contains the classes writing and reading the transaction history of the provider information directory service. 
+ *
+ * @author  Federico Marmori
+ */
+
+package ch.vivates.ihe.hpd.pid.history;
@@ -0,0 +1,123 @@
+package ch.vivates.tools.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Class PartitionedExecutor runs tasks on a fixed number of partitions, each served by a
+ * single thread. Tasks submitted to the same partition run one after the other in submission
+ * order, tasks of different partitions run concurrently. Keys are mapped to partitions by their
+ * hash code, so all tasks submitted for the same key keep their order.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class PartitionedExecutor {
+
+	/** The single threaded executors, one per partition. */
+	private final ExecutorService[] partitions;
+
+	/**
+	 * Instantiates a new partitioned executor.
+	 *
+	 * @param partitions the number of partitions
+	 * @param threadNamePrefix the prefix of the thread names
+	 */
+	public PartitionedExecutor(int partitions, String threadNamePrefix) {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("At least one partition is required");
+		}
+		this.partitions = new ExecutorService[partitions];
+		for (int i = 0; i < partitions; i++) {
+			this.partitions[i] = Executors.newSingleThreadExecutor(new PartitionThreadFactory(threadNamePrefix + "-" + i));
+		}
+	}
+
+	/**
+	 * Gets the partition of a key.
+	 *
+	 * @param key the key
+	 * @return the partition
+	 */
+	public int partitionOf(Object key) {
+		int h = key.hashCode();
+		// Spreads the high bits like HashMap does, keys often differ in their last characters only
+		h ^= (h >>> 16);
+		return (h & Integer.MAX_VALUE) % partitions.length;
+	}
+
+	/**
+	 * Submits a task to a partition.
+	 *
+	 * @param <T> the type of the result
+	 * @param partition the partition
+	 * @param task the task
+	 * @return the future of the task
+	 */
+	public <T> Future<T> submit(int partition, Callable<T> task) {
+		return partitions[partition].submit(task);
+	}
+
+	/**
+	 * Gets the number of partitions.
+	 *
+	 * @return the number of partitions
+	 */
+	public int getPartitions() {
+		return partitions.length;
+	}
+
+	/**
+	 * Shuts the partitions down, waiting up to the timeout for submitted tasks to finish.
+	 *
+	 * @param timeoutMillis the timeout in milliseconds
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void shutdown(long timeoutMillis) throws InterruptedException {
+		for (ExecutorService partition : partitions) {
+			partition.shutdown();
+		}
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (ExecutorService partition : partitions) {
+			partition.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * A factory for creating named daemon threads.
+	 */
+	private static class PartitionThreadFactory implements ThreadFactory {
+
+		/** The thread name. */
+		private final String name;
+
+		/** The number of threads created, more than one only if a task killed its thread. */
+		private final AtomicInteger created = new AtomicInteger();
+
+		/**
+		 * Instantiates a new partition thread factory.
+		 *
+		 * @param name the thread name
+		 */
+		public PartitionThreadFactory(String name) {
+			this.name = name;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+		 */
+		@Override
+		public Thread newThread(Runnable r) {
+			int n = created.getAndIncrement();
+			Thread thread = new Thread(r, n == 0 ? name : name + "." + n);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
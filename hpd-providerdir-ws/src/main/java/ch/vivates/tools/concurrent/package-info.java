@@ -0,0 +1,7 @@
+/**
+ * Contains concurrency tools from the vivates project. 
+ *
+ * @author  Federico Marmori
+ */
+
+package ch.vivates.tools.concurrent;
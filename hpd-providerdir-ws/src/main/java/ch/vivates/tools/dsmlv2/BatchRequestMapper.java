@@ -0,0 +1,435 @@
+package ch.vivates.tools.dsmlv2;
+
+import java.util.List;
+
+import javax.xml.bind.JAXBElement;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.directory.api.dsmlv2.DsmlDecorator;
+import org.apache.directory.api.dsmlv2.request.AbandonRequestDsml;
+import org.apache.directory.api.dsmlv2.request.AddRequestDsml;
+import org.apache.directory.api.dsmlv2.request.BatchRequestDsml;
+import org.apache.directory.api.dsmlv2.request.BatchRequestDsml.OnError;
+import org.apache.directory.api.dsmlv2.request.BatchRequestDsml.Processing;
+import org.apache.directory.api.dsmlv2.request.BatchRequestDsml.ResponseOrder;
+import org.apache.directory.api.dsmlv2.request.CompareRequestDsml;
+import org.apache.directory.api.dsmlv2.request.DelRequestDsml;
+import org.apache.directory.api.dsmlv2.request.ModifyDNRequestDsml;
+import org.apache.directory.api.dsmlv2.request.ModifyRequestDsml;
+import org.apache.directory.api.dsmlv2.request.SearchRequestDsml;
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.entry.StringValue;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.ApproximateNode;
+import org.apache.directory.api.ldap.model.filter.BranchNode;
+import org.apache.directory.api.ldap.model.filter.EqualityNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.ExtensibleNode;
+import org.apache.directory.api.ldap.model.filter.GreaterEqNode;
+import org.apache.directory.api.ldap.model.filter.LessEqNode;
+import org.apache.directory.api.ldap.model.filter.NotNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
+import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.filter.SubstringNode;
+import org.apache.directory.api.ldap.model.message.AbandonRequestImpl;
+import org.apache.directory.api.ldap.model.message.AddRequestImpl;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.CompareRequestImpl;
+import org.apache.directory.api.ldap.model.message.DeleteRequestImpl;
+import org.apache.directory.api.ldap.model.message.ModifyDnRequestImpl;
+import org.apache.directory.api.ldap.model.message.ModifyRequestImpl;
+import org.apache.directory.api.ldap.model.message.Request;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.util.Strings;
+
+import ch.vivates.ihe.hpd.pid.model.cs.AbandonRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.AddRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.AttributeDescription;
+import ch.vivates.ihe.hpd.pid.model.cs.AttributeValueAssertion;
+import ch.vivates.ihe.hpd.pid.model.cs.BatchRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.CompareRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.Control;
+import ch.vivates.ihe.hpd.pid.model.cs.DelRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.DsmlAttr;
+import ch.vivates.ihe.hpd.pid.model.cs.DsmlMessage;
+import ch.vivates.ihe.hpd.pid.model.cs.DsmlModification;
+import ch.vivates.ihe.hpd.pid.model.cs.Filter;
+import ch.vivates.ihe.hpd.pid.model.cs.FilterSet;
+import ch.vivates.ihe.hpd.pid.model.cs.MatchingRuleAssertion;
+import ch.vivates.ihe.hpd.pid.model.cs.ModifyDNRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.ModifyRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.SearchRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.SubstringFilter;
+
+/**
+ * The Class BatchRequestMapper maps the JAXB model of a DSML batch request, as unmarshalled by the
+ * routes, to the requests of the Apache LDAP API. It builds the same requests as the Dsmlv2Parser
+ * would from the marshalled XML, so the batch does not have to be serialized and parsed again.
+ * DSML values are mapped as strings, the JAXB model does not keep the xsi:type of base64 values.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public final class BatchRequestMapper {
+
+	/**
+	 * Instantiates a new batch request mapper.
+	 */
+	private BatchRequestMapper() {
+	}
+
+	/**
+	 * Maps the attributes of a batch request.
+	 *
+	 * @param batchRequest the batch request
+	 * @return the batch request holding the processing options
+	 */
+	public static BatchRequestDsml toBatchRequest(BatchRequest batchRequest) {
+		BatchRequestDsml batchRequestDsml = new BatchRequestDsml();
+		batchRequestDsml.setProcessing("parallel".equals(batchRequest.getProcessing()) ? Processing.PARALLEL : Processing.SEQUENTIAL);
+		batchRequestDsml.setResponseOrder("unordered".equals(batchRequest.getResponseOrder()) ? ResponseOrder.UNORDERED
+				: ResponseOrder.SEQUENTIAL);
+		batchRequestDsml.setOnError("resume".equals(batchRequest.getOnError()) ? OnError.RESUME : OnError.EXIT);
+		if (!StringUtils.isEmpty(batchRequest.getRequestID())) {
+			// Same as the preprocessor, the apacheds library only supports integer values
+			batchRequestDsml.setRequestID(1);
+		}
+		return batchRequestDsml;
+	}
+
+	/**
+	 * Maps an operation of a batch request.
+	 *
+	 * @param codec the LDAP codec service
+	 * @param message the operation
+	 * @return the request
+	 * @throws LdapException if the operation contains an invalid DN, RDN or requestID
+	 * @throws DsmlOperationNotAllowedException if the operation is an extended request
+	 */
+	public static DsmlDecorator<? extends Request> toRequest(LdapApiService codec, DsmlMessage message) throws LdapException,
+			DsmlOperationNotAllowedException {
+		if (message instanceof SearchRequest) {
+			SearchRequest search = (SearchRequest) message;
+			SearchRequestImpl request = new SearchRequestImpl();
+			request.setBase(new Dn(search.getDn()));
+			request.setScope(toScope(search.getScope()));
+			request.setDerefAliases(toDerefAliases(search.getDerefAliases()));
+			request.setSizeLimit(search.getSizeLimit());
+			request.setTimeLimit((int) search.getTimeLimit());
+			request.setTypesOnly(search.isTypesOnly());
+			request.setFilter(toFilter(search.getFilter()));
+			if (search.getAttributes() != null) {
+				for (AttributeDescription attribute : search.getAttributes().getAttribute()) {
+					request.addAttributes(attribute.getName());
+				}
+			}
+			return new SearchRequestDsml(codec, init(request, message));
+		}
+
+		if (message instanceof AddRequest) {
+			AddRequest add = (AddRequest) message;
+			DefaultEntry entry = new DefaultEntry(new Dn(add.getDn()));
+			for (DsmlAttr attr : add.getAttr()) {
+				entry.add(attr.getName(), toArray(attr.getValue()));
+			}
+			AddRequestImpl request = new AddRequestImpl();
+			request.setEntry(entry);
+			return new AddRequestDsml(codec, init(request, message));
+		}
+
+		if (message instanceof ModifyRequest) {
+			ModifyRequest modify = (ModifyRequest) message;
+			ModifyRequestImpl request = new ModifyRequestImpl();
+			request.setName(new Dn(modify.getDn()));
+			for (DsmlModification modification : modify.getModification()) {
+				request.addModification(new DefaultModification(toOperation(modification.getOperation()), modification.getName(),
+						toArray(modification.getValue())));
+			}
+			return new ModifyRequestDsml(codec, init(request, message));
+		}
+
+		if (message instanceof DelRequest) {
+			DeleteRequestImpl request = new DeleteRequestImpl();
+			request.setName(new Dn(((DelRequest) message).getDn()));
+			return new DelRequestDsml(codec, init(request, message));
+		}
+
+		if (message instanceof ModifyDNRequest) {
+			ModifyDNRequest modifyDn = (ModifyDNRequest) message;
+			ModifyDnRequestImpl request = new ModifyDnRequestImpl();
+			request.setName(new Dn(modifyDn.getDn()));
+			request.setNewRdn(new Rdn(modifyDn.getNewrdn()));
+			request.setDeleteOldRdn(modifyDn.isDeleteoldrdn());
+			if (!StringUtils.isBlank(modifyDn.getNewSuperior())) {
+				request.setNewSuperior(new Dn(modifyDn.getNewSuperior()));
+			}
+			return new ModifyDNRequestDsml(codec, init(request, message));
+		}
+
+		if (message instanceof CompareRequest) {
+			CompareRequest compare = (CompareRequest) message;
+			CompareRequestImpl request = new CompareRequestImpl();
+			request.setName(new Dn(compare.getDn()));
+			request.setAttributeId(compare.getAssertion().getName());
+			request.setAssertionValue(compare.getAssertion().getValue());
+			return new CompareRequestDsml(codec, init(request, message));
+		}
+
+		if (message instanceof AbandonRequest) {
+			AbandonRequestImpl request = new AbandonRequestImpl(toMessageId(((AbandonRequest) message).getAbandonID()));
+			return new AbandonRequestDsml(codec, init(request, message));
+		}
+
+		throw new DsmlOperationNotAllowedException(message.getClass().getSimpleName());
+	}
+
+	/**
+	 * Sets the message ID and the controls of a request.
+	 *
+	 * @param <R> the request type
+	 * @param request the request
+	 * @param message the operation
+	 * @return the request
+	 * @throws LdapException if the requestID is not an integer
+	 */
+	private static <R extends Request> R init(R request, DsmlMessage message) throws LdapException {
+		request.setMessageId(toMessageId(message.getRequestID()));
+		for (Control control : message.getControl()) {
+			OpaqueControl opaqueControl = new OpaqueControl(control.getType(), control.isCriticality());
+			byte[] value = toControlValue(control.getControlValue());
+			if (value != null) {
+				opaqueControl.setEncodedValue(value);
+			}
+			request.addControl(opaqueControl);
+		}
+		return request;
+	}
+
+	/**
+	 * Gets the message ID of a requestID.
+	 *
+	 * @param requestID the requestID
+	 * @return the message ID, 0 if there is no requestID
+	 * @throws LdapException if the requestID is not an integer
+	 */
+	private static int toMessageId(String requestID) throws LdapException {
+		if (StringUtils.isEmpty(requestID)) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(requestID.trim());
+		} catch (NumberFormatException e) {
+			throw new LdapException("The requestID '" + requestID + "' is not an integer");
+		}
+	}
+
+	/**
+	 * Gets the value of a control. JAXB unmarshals values of type base64Binary as byte array, other
+	 * typed values as string and untyped values as DOM element.
+	 *
+	 * @param controlValue the control value
+	 * @return the value or null if the control has none
+	 */
+	private static byte[] toControlValue(Object controlValue) {
+		if (controlValue instanceof byte[]) {
+			return (byte[]) controlValue;
+		}
+		if (controlValue instanceof String) {
+			return Strings.getBytesUtf8((String) controlValue);
+		}
+		if (controlValue instanceof org.w3c.dom.Node) {
+			return Strings.getBytesUtf8(((org.w3c.dom.Node) controlValue).getTextContent());
+		}
+		return null;
+	}
+
+	/**
+	 * Maps a search filter.
+	 *
+	 * @param filter the filter
+	 * @return the filter node
+	 * @throws LdapException if the filter is empty
+	 */
+	private static ExprNode toFilter(Filter filter) throws LdapException {
+		if (filter == null) {
+			throw new LdapException("The searchRequest has no filter");
+		}
+		if (filter.getAnd() != null) {
+			return toBranch(new AndNode(), filter.getAnd());
+		}
+		if (filter.getOr() != null) {
+			return toBranch(new OrNode(), filter.getOr());
+		}
+		if (filter.getNot() != null) {
+			return new NotNode(toFilter(filter.getNot()));
+		}
+		if (filter.getEqualityMatch() != null) {
+			AttributeValueAssertion assertion = filter.getEqualityMatch();
+			return new EqualityNode<String>(assertion.getName(), new StringValue(assertion.getValue()));
+		}
+		if (filter.getSubstrings() != null) {
+			SubstringFilter substrings = filter.getSubstrings();
+			return new SubstringNode(substrings.getAny(), substrings.getName(), substrings.getInitial(), substrings.getFinal());
+		}
+		if (filter.getGreaterOrEqual() != null) {
+			AttributeValueAssertion assertion = filter.getGreaterOrEqual();
+			return new GreaterEqNode<String>(assertion.getName(), new StringValue(assertion.getValue()));
+		}
+		if (filter.getLessOrEqual() != null) {
+			AttributeValueAssertion assertion = filter.getLessOrEqual();
+			return new LessEqNode<String>(assertion.getName(), new StringValue(assertion.getValue()));
+		}
+		if (filter.getPresent() != null) {
+			return new PresenceNode(filter.getPresent().getName());
+		}
+		if (filter.getApproxMatch() != null) {
+			AttributeValueAssertion assertion = filter.getApproxMatch();
+			return new ApproximateNode<String>(assertion.getName(), new StringValue(assertion.getValue()));
+		}
+		if (filter.getExtensibleMatch() != null) {
+			MatchingRuleAssertion assertion = filter.getExtensibleMatch();
+			ExtensibleNode node = new ExtensibleNode(assertion.getName());
+			node.setMatchingRuleId(assertion.getMatchingRule());
+			node.setDnAttributes(assertion.isDnAttributes());
+			node.setValue(new StringValue(assertion.getValue()));
+			return node;
+		}
+		throw new LdapException("The filter is empty");
+	}
+
+	/**
+	 * Maps the operands of an and or or filter. The operands share the filter group of the
+	 * schema, so they are unmarshalled as elements wrapping either a filter set, a filter or an
+	 * assertion.
+	 *
+	 * @param node the and or or node
+	 * @param filterSet the operands
+	 * @return the node
+	 * @throws LdapException if an operand is invalid
+	 */
+	private static ExprNode toBranch(BranchNode node, FilterSet filterSet) throws LdapException {
+		for (JAXBElement<?> operand : filterSet.getFilterGroup()) {
+			node.addNode(toFilter(operand));
+		}
+		return node;
+	}
+
+	/**
+	 * Maps an operand of an and or or filter.
+	 *
+	 * @param operand the operand
+	 * @return the filter node
+	 * @throws LdapException if the operand is invalid
+	 */
+	private static ExprNode toFilter(JAXBElement<?> operand) throws LdapException {
+		Filter filter = new Filter();
+		String name = operand.getName().getLocalPart();
+		Object value = operand.getValue();
+		if ("and".equals(name)) {
+			filter.setAnd((FilterSet) value);
+		} else if ("or".equals(name)) {
+			filter.setOr((FilterSet) value);
+		} else if ("not".equals(name)) {
+			filter.setNot((Filter) value);
+		} else if ("equalityMatch".equals(name)) {
+			filter.setEqualityMatch((AttributeValueAssertion) value);
+		} else if ("substrings".equals(name)) {
+			filter.setSubstrings((SubstringFilter) value);
+		} else if ("greaterOrEqual".equals(name)) {
+			filter.setGreaterOrEqual((AttributeValueAssertion) value);
+		} else if ("lessOrEqual".equals(name)) {
+			filter.setLessOrEqual((AttributeValueAssertion) value);
+		} else if ("present".equals(name)) {
+			filter.setPresent((AttributeDescription) value);
+		} else if ("approxMatch".equals(name)) {
+			filter.setApproxMatch((AttributeValueAssertion) value);
+		} else if ("extensibleMatch".equals(name)) {
+			filter.setExtensibleMatch((MatchingRuleAssertion) value);
+		} else {
+			throw new LdapException("Unknown filter '" + name + "'");
+		}
+		return toFilter(filter);
+	}
+
+	/**
+	 * Maps a search scope.
+	 *
+	 * @param scope the DSML scope
+	 * @return the search scope
+	 * @throws LdapException if the scope is unknown
+	 */
+	private static SearchScope toScope(String scope) throws LdapException {
+		if ("baseObject".equals(scope)) {
+			return SearchScope.OBJECT;
+		}
+		if ("singleLevel".equals(scope)) {
+			return SearchScope.ONELEVEL;
+		}
+		if ("wholeSubtree".equals(scope)) {
+			return SearchScope.SUBTREE;
+		}
+		throw new LdapException("Unknown scope '" + scope + "'");
+	}
+
+	/**
+	 * Maps an alias dereferencing mode.
+	 *
+	 * @param derefAliases the DSML mode
+	 * @return the alias dereferencing mode
+	 * @throws LdapException if the mode is unknown
+	 */
+	private static AliasDerefMode toDerefAliases(String derefAliases) throws LdapException {
+		if ("neverDerefAliases".equals(derefAliases)) {
+			return AliasDerefMode.NEVER_DEREF_ALIASES;
+		}
+		if ("derefInSearching".equals(derefAliases)) {
+			return AliasDerefMode.DEREF_IN_SEARCHING;
+		}
+		if ("derefFindingBaseObj".equals(derefAliases)) {
+			return AliasDerefMode.DEREF_FINDING_BASE_OBJ;
+		}
+		if ("derefAlways".equals(derefAliases)) {
+			return AliasDerefMode.DEREF_ALWAYS;
+		}
+		throw new LdapException("Unknown derefAliases '" + derefAliases + "'");
+	}
+
+	/**
+	 * Maps a modification operation.
+	 *
+	 * @param operation the DSML operation
+	 * @return the modification operation
+	 * @throws LdapException if the operation is unknown
+	 */
+	private static ModificationOperation toOperation(String operation) throws LdapException {
+		if ("add".equals(operation)) {
+			return ModificationOperation.ADD_ATTRIBUTE;
+		}
+		if ("delete".equals(operation)) {
+			return ModificationOperation.REMOVE_ATTRIBUTE;
+		}
+		if ("replace".equals(operation)) {
+			return ModificationOperation.REPLACE_ATTRIBUTE;
+		}
+		throw new LdapException("Unknown modification operation '" + operation + "'");
+	}
+
+	/**
+	 * Converts values to an array.
+	 *
+	 * @param values the values
+	 * @return the array
+	 */
+	private static String[] toArray(List<String> values) {
+		return values.toArray(new String[values.size()]);
+	}
+
+}
@@ -0,0 +1,39 @@
+package ch.vivates.tools.dsmlv2;
+
+import java.io.IOException;
+
+/**
+ * The Class DsmlOperationNotAllowedException is thrown when a batch request contains an operation
+ * which is not allowed for the current processing, e.g. a modification sent as query.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class DsmlOperationNotAllowedException extends IOException {
+
+	/** The Constant serialVersionUID. */
+	private static final long serialVersionUID = 3824615804763126582L;
+
+	/** The rejected operation. */
+	private final String operation;
+
+	/**
+	 * Instantiates a new DSML operation not allowed exception.
+	 *
+	 * @param operation the rejected operation
+	 */
+	public DsmlOperationNotAllowedException(String operation) {
+		super("Operation '" + operation + "' is not allowed in this batch request.");
+		this.operation = operation;
+	}
+
+	/**
+	 * Gets the rejected operation.
+	 *
+	 * @return the rejected operation
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+}
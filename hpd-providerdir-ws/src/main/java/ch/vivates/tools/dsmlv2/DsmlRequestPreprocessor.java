@@ -0,0 +1,334 @@
+package ch.vivates.tools.dsmlv2;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The Class DsmlRequestPreprocessor streams a DSML batch request to the Dsmlv2Parser. It replaces
+ * the string requestID of the batchRequest with "1" (the apacheds library only supports integer
+ * values) while the bytes pass through. Only the batchRequest start tag is buffered, so memory
+ * does not depend on the size of the request.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class DsmlRequestPreprocessor extends FilterInputStream {
+
+	/** The maximum number of bytes read ahead to find the batchRequest start tag. */
+	public static final int MAX_LOOKAHEAD = 16 * 1024;
+
+	/** The encodings in which markup characters are single ASCII bytes. */
+	private static final Set<String> ASCII_COMPATIBLE_ENCODINGS = new HashSet<String>(Arrays.asList("UTF-8",
+			"US-ASCII", "ISO-8859-1", "ISO-8859-15", "WINDOWS-1252"));
+
+	/** True if the stream can be inspected byte by byte. */
+	private final boolean asciiCompatible;
+
+	/** The input charset. */
+	private final Charset charset;
+
+	/** The rewritten head of the stream up to the end of the batchRequest start tag. */
+	private byte[] head;
+
+	/** The read position in the head. */
+	private int headPos;
+
+	/** The original requestID of the batchRequest. */
+	private String requestID;
+
+	/**
+	 * Instantiates a new DSML request preprocessor.
+	 *
+	 * @param in the DSML batch request
+	 * @param inputEncoding the input encoding
+	 */
+	public DsmlRequestPreprocessor(InputStream in, String inputEncoding) {
+		super(in);
+		this.charset = Charset.forName(inputEncoding == null ? "UTF-8" : inputEncoding);
+		this.asciiCompatible = ASCII_COMPATIBLE_ENCODINGS.contains(charset.name().toUpperCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Gets the original requestID of the batchRequest.
+	 *
+	 * @return the requestID or null if the batchRequest has none
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public String getRequestID() throws IOException {
+		readHead();
+		return requestID;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n == -1 ? -1 : b[0] & 0xff;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		readHead();
+
+		int n;
+		if (headPos < head.length) {
+			n = Math.min(len, head.length - headPos);
+			System.arraycopy(head, headPos, b, off, n);
+			headPos += n;
+		} else {
+			n = in.read(b, off, len);
+		}
+		return n;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#skip(long)
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] b = new byte[(int) Math.min(n, 4096)];
+		int read = read(b, 0, b.length);
+		return read == -1 ? 0 : read;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#available()
+	 */
+	@Override
+	public int available() throws IOException {
+		if (head != null && headPos < head.length) {
+			return head.length - headPos;
+		}
+		return in.available();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#markSupported()
+	 */
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#mark(int)
+	 */
+	@Override
+	public synchronized void mark(int readlimit) {
+		// not supported
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#reset()
+	 */
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	/**
+	 * Reads ahead up to the end of the batchRequest start tag and replaces its requestID.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void readHead() throws IOException {
+		if (head != null) {
+			return;
+		}
+		byte[] buffer = new byte[asciiCompatible ? 1024 : 0];
+		int length = 0;
+		int tagEnd = -1;
+		int tagStart = -1;
+		while (asciiCompatible && tagEnd == -1 && length < MAX_LOOKAHEAD) {
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_LOOKAHEAD));
+			}
+			int n = in.read(buffer, length, buffer.length - length);
+			if (n == -1) {
+				break;
+			}
+			length += n;
+			tagStart = findBatchRequestTag(buffer, length);
+			if (tagStart != -1) {
+				tagEnd = findTagEnd(buffer, tagStart, length);
+			}
+		}
+
+		if (tagEnd == -1) {
+			head = Arrays.copyOf(buffer, length);
+			return;
+		}
+
+		int[] value = findRequestIdValue(buffer, tagStart, tagEnd);
+		if (value == null) {
+			head = Arrays.copyOf(buffer, length);
+			return;
+		}
+
+		// Allow string request ids even if the apacheds library only supports integer values.
+		requestID = new String(buffer, value[0], value[1] - value[0], charset);
+		head = new byte[length - (value[1] - value[0]) + 1];
+		System.arraycopy(buffer, 0, head, 0, value[0]);
+		head[value[0]] = '1';
+		System.arraycopy(buffer, value[1], head, value[0] + 1, length - value[1]);
+	}
+
+	/**
+	 * Finds the start of the batchRequest start tag.
+	 *
+	 * @param buffer the buffer
+	 * @param length the number of valid bytes in the buffer
+	 * @return the index of the '&lt;' or -1 if not found
+	 */
+	private static int findBatchRequestTag(byte[] buffer, int length) {
+		for (int i = 0; i < length; i++) {
+			if (buffer[i] != '<') {
+				continue;
+			}
+			int nameEnd = i + 1;
+			int localStart = i + 1;
+			while (nameEnd < length && !isNameEnd(buffer[nameEnd])) {
+				if (buffer[nameEnd] == ':') {
+					localStart = nameEnd + 1;
+				}
+				nameEnd++;
+			}
+			if (nameEnd < length && regionMatches(buffer, localStart, nameEnd, "batchRequest")) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the '&gt;' which ends a start tag, ignoring quoted attribute values.
+	 *
+	 * @param buffer the buffer
+	 * @param tagStart the start of the tag
+	 * @param length the number of valid bytes in the buffer
+	 * @return the index of the '&gt;' or -1 if not found
+	 */
+	private static int findTagEnd(byte[] buffer, int tagStart, int length) {
+		byte quote = 0;
+		for (int i = tagStart; i < length; i++) {
+			byte c = buffer[i];
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '>') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the value of the requestID attribute within a start tag.
+	 *
+	 * @param buffer the buffer
+	 * @param tagStart the start of the tag
+	 * @param tagEnd the end of the tag
+	 * @return the start (inclusive) and end (exclusive) of the value or null if not found
+	 */
+	private static int[] findRequestIdValue(byte[] buffer, int tagStart, int tagEnd) {
+		byte quote = 0;
+		for (int i = tagStart; i < tagEnd; i++) {
+			byte c = buffer[i];
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+				continue;
+			}
+			if (c == '"' || c == '\'') {
+				quote = c;
+				continue;
+			}
+			if (!isWhitespace(c) || !regionMatches(buffer, i + 1, Math.min(i + 10, tagEnd), "requestID")) {
+				continue;
+			}
+			int j = i + 10;
+			while (j < tagEnd && isWhitespace(buffer[j])) {
+				j++;
+			}
+			if (j >= tagEnd || buffer[j] != '=') {
+				continue;
+			}
+			j++;
+			while (j < tagEnd && isWhitespace(buffer[j])) {
+				j++;
+			}
+			if (j >= tagEnd || (buffer[j] != '"' && buffer[j] != '\'')) {
+				continue;
+			}
+			byte valueQuote = buffer[j];
+			int valueStart = j + 1;
+			int valueEnd = valueStart;
+			while (valueEnd < tagEnd && buffer[valueEnd] != valueQuote) {
+				valueEnd++;
+			}
+			return valueEnd < tagEnd ? new int[] { valueStart, valueEnd } : null;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks if a byte ends an element name.
+	 *
+	 * @param c the byte
+	 * @return true if the byte ends an element name
+	 */
+	private static boolean isNameEnd(byte c) {
+		return isWhitespace(c) || c == '>' || c == '/';
+	}
+
+	/**
+	 * Checks if a byte is XML whitespace.
+	 *
+	 * @param c the byte
+	 * @return true if the byte is whitespace
+	 */
+	private static boolean isWhitespace(byte c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+
+	/**
+	 * Compares a region of the buffer case insensitively with an ASCII string.
+	 *
+	 * @param buffer the buffer
+	 * @param start the start of the region
+	 * @param end the end of the region
+	 * @param s the string
+	 * @return true if the region matches the string
+	 */
+	private static boolean regionMatches(byte[] buffer, int start, int end, String s) {
+		if (end - start != s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (Character.toLowerCase((char) buffer[start + i]) != Character.toLowerCase(s.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
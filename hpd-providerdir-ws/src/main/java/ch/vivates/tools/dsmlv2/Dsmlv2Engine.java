@@ -1,12 +1,27 @@
 package ch.vivates.tools.dsmlv2;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.util.Scanner;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.directory.api.dsmlv2.DsmlDecorator;
 import org.apache.directory.api.dsmlv2.Dsmlv2Parser;
@@ -31,7 +46,10 @@ import org.apache.directory.api.dsmlv2.response.SearchResultDoneDsml;
 import org.apache.directory.api.dsmlv2.response.SearchResultEntryDsml;
 import org.apache.directory.api.dsmlv2.response.SearchResultReferenceDsml;
 import org.apache.directory.api.i18n.I18n;
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.codec.api.LdapApiServiceFactory;
 import org.apache.directory.api.ldap.model.cursor.SearchCursor;
+import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.AbandonRequest;
 import org.apache.directory.api.ldap.model.message.AddRequest;
 import org.apache.directory.api.ldap.model.message.AddResponse;
@@ -39,6 +57,7 @@ import org.apache.directory.api.ldap.model.message.BindRequest;
 import org.apache.directory.api.ldap.model.message.BindResponse;
 import org.apache.directory.api.ldap.model.message.CompareRequest;
 import org.apache.directory.api.ldap.model.message.CompareResponse;
+import org.apache.directory.api.ldap.model.message.Control;
 import org.apache.directory.api.ldap.model.message.DeleteRequest;
 import org.apache.directory.api.ldap.model.message.DeleteResponse;
 import org.apache.directory.api.ldap.model.message.ExtendedRequest;
@@ -51,17 +70,29 @@ import org.apache.directory.api.ldap.model.message.ModifyResponse;
 import org.apache.directory.api.ldap.model.message.Request;
 import org.apache.directory.api.ldap.model.message.Response;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.ResultResponse;
 import org.apache.directory.api.ldap.model.message.SearchRequest;
 import org.apache.directory.api.ldap.model.message.SearchResultDone;
 import org.apache.directory.api.ldap.model.message.SearchResultEntry;
 import org.apache.directory.api.ldap.model.message.SearchResultReference;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.ldap.client.api.LdapAsyncConnection;
 import org.apache.directory.ldap.client.api.LdapConnection;
 import org.apache.directory.ldap.client.api.LdapConnectionPool;
+import org.apache.directory.ldap.client.api.SearchCursorImpl;
+import org.apache.directory.ldap.client.api.future.ResponseFuture;
+import org.apache.directory.ldap.client.api.future.SearchFuture;
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
+import org.dom4j.QName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParserException;
 
+import ch.vivates.ihe.hpd.pid.model.cs.BatchRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.DsmlMessage;
+
 /**
  * The Class Dsmlv2Engine processes the DSML Message.
  * 
@@ -76,6 +107,42 @@ public class Dsmlv2Engine {
 	/** The LDAP connection pool. */
 	private LdapConnectionPool ldapConnectionPool;
 
+	/** The executor for batches with processing="parallel", if null they are processed sequentially. */
+	private Executor parallelExecutor;
+
+	/** The maximum number of requests of a parallel batch pending at the same time. */
+	private int maxParallelRequests = 4;
+
+	/** The maximum number of characters of the responses of a parallel batch buffered at the same time. */
+	private long maxParallelBufferedChars = 4194304;
+
+	/** True if search result entries are written with the StAX writer instead of dom4j elements. */
+	private boolean staxSearchResults;
+
+	/** The number of operations of a sequential batch run on one pooled connection, 0 for the whole batch. */
+	private int operationsPerConnection;
+
+	/** The number of requests sent on the asynchronous connection before their results are read, 0 to disable pipelining. */
+	private int pipelineDepth;
+
+	/** The time to wait for the result of a pipelined request. */
+	private long asyncTimeoutMillis = 30000;
+
+	/** The number of entries requested per page when a search is paged, 0 to send searches unpaged. */
+	private int searchPageSize;
+
+	/** The cache of search results or null if searches are always sent to the directory. */
+	private SearchResultCache searchResultCache;
+
+	/** The coalescer of identical concurrent searches or null if every search is sent. */
+	private SearchCoalescer searchCoalescer;
+
+	/** The topic sharing the invalidations with the other nodes or null if this node runs alone. */
+	private SearchInvalidationTopic searchInvalidationTopic;
+
+	/** The statistics of the connection leases. */
+	private final LdapConnectionLease.Statistics leaseStatistics = new LdapConnectionLease.Statistics();
+
 	/** The Constant LOG. */
 	private static final Logger LOG = LoggerFactory.getLogger(Dsmlv2Engine.class);
 
@@ -88,6 +155,125 @@ public class Dsmlv2Engine {
 		this.ldapConnectionPool = ldapConnectionPool;
 	}
 
+	/**
+	 * Sets the executor used for batches with processing="parallel".
+	 *
+	 * @param parallelExecutor the new parallel executor
+	 */
+	public void setParallelExecutor(Executor parallelExecutor) {
+		this.parallelExecutor = parallelExecutor;
+	}
+
+	/**
+	 * Sets the maximum number of requests of a parallel batch pending at the same time.
+	 *
+	 * @param maxParallelRequests the new maximum number of parallel requests
+	 */
+	public void setMaxParallelRequests(int maxParallelRequests) {
+		this.maxParallelRequests = Math.max(1, maxParallelRequests);
+	}
+
+	/**
+	 * Sets the maximum number of characters of the responses of a parallel batch buffered at the
+	 * same time, while they wait for their turn to be written.
+	 *
+	 * @param maxParallelBufferedChars the new maximum number of buffered characters
+	 */
+	public void setMaxParallelBufferedChars(long maxParallelBufferedChars) {
+		this.maxParallelBufferedChars = Math.max(0, maxParallelBufferedChars);
+	}
+
+	/**
+	 * Sets whether search result entries are written with the StAX writer instead of dom4j elements.
+	 *
+	 * @param staxSearchResults true to use the StAX writer
+	 */
+	public void setStaxSearchResults(boolean staxSearchResults) {
+		this.staxSearchResults = staxSearchResults;
+	}
+
+	/**
+	 * Sets the number of operations of a sequential batch run on one pooled connection. 0 keeps the
+	 * connection for the whole batch, 1 borrows a connection for every operation. Operations of
+	 * parallel batches always borrow their own connection.
+	 *
+	 * @param operationsPerConnection the new number of operations per connection
+	 */
+	public void setOperationsPerConnection(int operationsPerConnection) {
+		this.operationsPerConnection = Math.max(0, operationsPerConnection);
+	}
+
+	/**
+	 * Sets the number of requests sent on one asynchronous connection before their results are
+	 * read. When greater than 0 every batch is pipelined, including parallel batches, otherwise
+	 * requests are executed with blocking calls.
+	 *
+	 * @param pipelineDepth the new pipeline depth
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		this.pipelineDepth = Math.max(0, pipelineDepth);
+	}
+
+	/**
+	 * Sets the time to wait for the result of a pipelined request.
+	 *
+	 * @param asyncTimeoutMillis the new timeout in milliseconds
+	 */
+	public void setAsyncTimeoutMillis(long asyncTimeoutMillis) {
+		this.asyncTimeoutMillis = asyncTimeoutMillis;
+	}
+
+	/**
+	 * Sets the number of entries requested per page when a search is paged. Searches are paged
+	 * unless the client sends a paging, sort or virtual list view control itself.
+	 *
+	 * @param searchPageSize the new search page size, 0 to send searches unpaged
+	 */
+	public void setSearchPageSize(int searchPageSize) {
+		this.searchPageSize = Math.max(0, searchPageSize);
+	}
+
+	/**
+	 * Sets the cache of search results. The engine invalidates it on every change it applies to
+	 * the directory, the changes of the other nodes arrive through the invalidation topic.
+	 *
+	 * @param searchResultCache the new search result cache
+	 */
+	public void setSearchResultCache(SearchResultCache searchResultCache) {
+		this.searchResultCache = searchResultCache;
+	}
+
+	/**
+	 * Sets the coalescer of identical concurrent searches. Searches not answered from the cache
+	 * wait for an identical search in flight instead of sending their own.
+	 *
+	 * @param searchCoalescer the new search coalescer
+	 */
+	public void setSearchCoalescer(SearchCoalescer searchCoalescer) {
+		this.searchCoalescer = searchCoalescer;
+	}
+
+	/**
+	 * Sets the topic sharing the invalidations with the other nodes. Every change the engine
+	 * applies is published to it, so the nodes consuming feeds do not leave stale results in the
+	 * caches of the others.
+	 *
+	 * @param searchInvalidationTopic the new search invalidation topic
+	 */
+	public void setSearchInvalidationTopic(SearchInvalidationTopic searchInvalidationTopic) {
+		this.searchInvalidationTopic = searchInvalidationTopic;
+	}
+
+	/**
+	 * Gets the statistics of the connection leases, i.e. how often an operation reused the
+	 * connection of its batch or borrowed one from the pool.
+	 *
+	 * @return the lease statistics
+	 */
+	public LdapConnectionLease.Statistics getLeaseStatistics() {
+		return leaseStatistics;
+	}
+
 	/**
 	 * Processes the DSML based on InputStream and OutputStream.
 	 *
@@ -100,7 +286,8 @@ public class Dsmlv2Engine {
 	}
 
 	/**
-	 * Processes the DSML based on InputStream, input encoding and OutputStream.
+	 * Processes the DSML based on InputStream, input encoding and OutputStream. The request is
+	 * streamed to the parser, so only the batchRequest start tag is held in memory.
 	 *
 	 * @param inputStream the InputStream
 	 * @param inputEncoding the input encoding as String
@@ -109,47 +296,9 @@ public class Dsmlv2Engine {
 	 */
 	public void processDSML(InputStream inputStream, String inputEncoding, OutputStream out) throws Exception {
 		Dsmlv2Parser parser = new Dsmlv2Parser(grammar);
-
-// ***************** tuk1 *****************
-		// Allow string request ids even if the apacheds library only supports integer values.
-		@SuppressWarnings("resource")
-		Scanner scanner = new Scanner(inputStream).useDelimiter("\\A");
-		String strBatchRequest = (scanner.hasNext() ? scanner.next() : "");
-		inputStream.reset();
-
-		int startBatchRequest = strBatchRequest.toUpperCase().indexOf("batchRequest ".toUpperCase());
-		String strRequestID = null;
-		if(startBatchRequest != -1) {
-			int end = strBatchRequest.indexOf(">", startBatchRequest) + 1; // + 1 to get the '>'
-			
-			String batchRequestTag = strBatchRequest.substring(startBatchRequest, end);
-			
-			int startRequestid = batchRequestTag.toUpperCase().indexOf(" requestID=\"".toUpperCase());
-
-			if(startRequestid != -1) {
-				startRequestid += 12; // + 12 to exclude " requestID=\""
-				int endRequestid = batchRequestTag.toUpperCase().indexOf("\"".toUpperCase(), startRequestid);
-				
-				strRequestID = batchRequestTag.substring(startRequestid, endRequestid);
-				
-				StringBuilder sb = new StringBuilder();
-				sb.append(strBatchRequest.substring(0, startBatchRequest + startRequestid));
-				sb.append(1);
-				sb.append(strBatchRequest.substring(startBatchRequest + endRequestid));
-				String newReq = sb.toString();				
-				
-				inputStream = new ByteArrayInputStream(newReq.getBytes(inputEncoding));
-				
-//				@SuppressWarnings("resource")
-//				Scanner scanner2 = new Scanner(inputStream).useDelimiter("\\A");
-//				String strBatchRequest2 = (scanner2.hasNext() ? scanner2.next() : "");
-//				LOG.info("SCANNER2: " + strBatchRequest2);
-//				inputStream.reset();
-// ***************** /tuk1 *****************
-			}
-		}
-		parser.setInput(inputStream, inputEncoding);
-		processDSML(out, parser, strRequestID);
+		DsmlRequestPreprocessor preprocessor = new DsmlRequestPreprocessor(inputStream, inputEncoding);
+		parser.setInput(preprocessor, inputEncoding);
+		processDSML(out, parser, preprocessor);
 	}
 
 	/**
@@ -157,16 +306,15 @@ public class Dsmlv2Engine {
 	 *
 	 * @param outStream the OutputStream
 	 * @param parser the Dsmlv2Parser
+	 * @param preprocessor the preprocessor of the parser input
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
-	protected void processDSML(OutputStream outStream, Dsmlv2Parser parser, String strRequestID) throws IOException {
+	protected void processDSML(OutputStream outStream, Dsmlv2Parser parser, DsmlRequestPreprocessor preprocessor) throws IOException {
 		BufferedWriter respWriter = null;
 
 		BatchRequestDsml batchRequest = null;
 		BatchResponseDsml batchResponse = new BatchResponseDsml();
 
-		boolean continueOnError = false;
-
 		if (outStream != null) {
 			respWriter = new BufferedWriter(new OutputStreamWriter(outStream));
 		}
@@ -178,17 +326,6 @@ public class Dsmlv2Engine {
 			parser.parseBatchRequest();
 
 			batchRequest = parser.getBatchRequest();
-
-			if (OnError.RESUME.equals(batchRequest.getOnError())) {
-				continueOnError = true;
-			} else if (OnError.EXIT.equals(batchRequest.getOnError())) {
-				continueOnError = false;
-			}
-
-			if ((batchRequest.getRequestID() != 0) && (batchResponse != null)) {
-				batchResponse.setRequestID(batchRequest.getRequestID());
-			}
-
 		} catch (XmlPullParserException e) {
 			// We create a new ErrorResponse and return the XML response.
 			ErrorResponse errorResponse = new ErrorResponse(0, ErrorResponseType.MALFORMED_REQUEST, I18n.err(I18n.ERR_03001,
@@ -204,6 +341,68 @@ public class Dsmlv2Engine {
 			return;
 		}
 
+		processBatch(batchRequest, preprocessor.getRequestID(), new ParserRequestSource(parser), respWriter, batchResponse);
+	}
+
+	/**
+	 * Processes a batch request which has already been unmarshalled by JAXB. The operations are
+	 * mapped to LDAP API requests directly instead of being marshalled and parsed again.
+	 *
+	 * @param batchRequest the batch request
+	 * @param out the OutputStream
+	 * @param searchOnly true if the batch must contain searchRequest operations only
+	 * @throws DsmlOperationNotAllowedException if the batch contains an operation which is not allowed
+	 * @throws Exception the exception
+	 */
+	public void processBatchRequest(BatchRequest batchRequest, OutputStream out, boolean searchOnly) throws Exception {
+		if (searchOnly) {
+			// Rejected before anything is sent to the directory
+			for (DsmlMessage message : batchRequest.getBatchRequests()) {
+				if (!(message instanceof ch.vivates.ihe.hpd.pid.model.cs.SearchRequest)) {
+					throw new DsmlOperationNotAllowedException(message.getClass().getSimpleName());
+				}
+			}
+		}
+
+		BufferedWriter respWriter = null;
+		if (out != null) {
+			respWriter = new BufferedWriter(new OutputStreamWriter(out));
+		}
+		processBatch(BatchRequestMapper.toBatchRequest(batchRequest), batchRequest.getRequestID(),
+				new MappedRequestSource(batchRequest.getBatchRequests()), respWriter, new BatchResponseDsml());
+	}
+
+	/**
+	 * Processes a query which has already been unmarshalled by JAXB, i.e. a batch which must
+	 * contain searchRequest operations only.
+	 *
+	 * @param batchRequest the batch request
+	 * @param out the OutputStream
+	 * @throws DsmlOperationNotAllowedException if the batch contains another operation
+	 * @throws Exception the exception
+	 */
+	public void processQueryBatchRequest(BatchRequest batchRequest, OutputStream out) throws Exception {
+		processBatchRequest(batchRequest, out, true);
+	}
+
+	/**
+	 * Processes the operations of a batch and writes the batch response.
+	 *
+	 * @param batchRequest the batch request holding the processing options
+	 * @param strRequestID the requestID of the batch as sent by the client
+	 * @param requests the source of the operations
+	 * @param respWriter the response writer
+	 * @param batchResponse the batch response, used if there is no response writer
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void processBatch(BatchRequestDsml batchRequest, String strRequestID, RequestSource requests, BufferedWriter respWriter,
+			BatchResponseDsml batchResponse) throws IOException {
+		boolean continueOnError = OnError.RESUME.equals(batchRequest.getOnError());
+
+		if (batchRequest.getRequestID() != 0) {
+			batchResponse.setRequestID(batchRequest.getRequestID());
+		}
+
 		if (respWriter != null) {
 			StringBuilder sb = new StringBuilder();
 
@@ -241,7 +440,7 @@ public class Dsmlv2Engine {
 		DsmlDecorator<? extends Request> request = null;
 
 		try {
-			request = parser.getNextRequest();
+			request = requests.next();
 		} catch (XmlPullParserException e) {
 			LOG.warn("Failed while getting next request", e);
 
@@ -261,13 +460,137 @@ public class Dsmlv2Engine {
 			return;
 		}
 
+		if (pipelineDepth > 0 && respWriter != null) {
+			processPipelined(requests, request, batchRequest, respWriter, continueOnError);
+		} else if (parallelExecutor != null && respWriter != null && Processing.PARALLEL.equals(batchRequest.getProcessing())) {
+			processParallel(requests, request, batchRequest, respWriter, continueOnError);
+		} else {
+			processSequential(requests, request, batchRequest, respWriter, batchResponse, continueOnError);
+		}
+
+		if (respWriter != null) {
+			respWriter.write("</batchResponse>");
+			respWriter.flush();
+		}
+	}
+
+	/**
+	 * The Interface RequestSource supplies the operations of a batch one after another.
+	 */
+	protected interface RequestSource {
+
+		/**
+		 * Gets the next request.
+		 *
+		 * @return the next request or null if there is no more request
+		 * @throws XmlPullParserException if the request is malformed
+		 * @throws DsmlOperationNotAllowedException if the request is not allowed
+		 */
+		DsmlDecorator<? extends Request> next() throws XmlPullParserException, DsmlOperationNotAllowedException;
+	}
+
+	/**
+	 * The Class ParserRequestSource reads the operations of a batch from the Dsmlv2Parser.
+	 */
+	private static class ParserRequestSource implements RequestSource {
+
+		/** The parser. */
+		private final Dsmlv2Parser parser;
+
+		/**
+		 * Instantiates a new parser request source.
+		 *
+		 * @param parser the Dsmlv2Parser
+		 */
+		public ParserRequestSource(Dsmlv2Parser parser) {
+			this.parser = parser;
+		}
+
+		/* (non-Javadoc)
+		 * @see ch.vivates.tools.dsmlv2.Dsmlv2Engine.RequestSource#next()
+		 */
+		@Override
+		public DsmlDecorator<? extends Request> next() throws XmlPullParserException {
+			return parser.getNextRequest();
+		}
+	}
+
+	/**
+	 * The Class MappedRequestSource maps the operations of a JAXB batch request one after another.
+	 */
+	private static class MappedRequestSource implements RequestSource {
+
+		/** The operations. */
+		private final Iterator<DsmlMessage> messages;
+
+		/**
+		 * Instantiates a new mapped request source.
+		 *
+		 * @param messages the operations
+		 */
+		public MappedRequestSource(List<DsmlMessage> messages) {
+			this.messages = messages.iterator();
+		}
+
+		/* (non-Javadoc)
+		 * @see ch.vivates.tools.dsmlv2.Dsmlv2Engine.RequestSource#next()
+		 */
+		@Override
+		public DsmlDecorator<? extends Request> next() throws XmlPullParserException, DsmlOperationNotAllowedException {
+			if (!messages.hasNext()) {
+				return null;
+			}
+			try {
+				return BatchRequestMapper.toRequest(LdapApiServiceFactory.getSingleton(), messages.next());
+			} catch (LdapException e) {
+				// Reported like a request the parser rejects
+				throw new XmlPullParserException(e.getMessage(), null, e);
+			}
+		}
+	}
+
+	/**
+	 * Processes the requests of a batch one after another.
+	 *
+	 * @param requests the source of the following requests
+	 * @param request the first request of the batch
+	 * @param batchRequest the batch request
+	 * @param respWriter the response writer
+	 * @param batchResponse the batch response
+	 * @param continueOnError true if the batch has to continue after a failed request
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void processSequential(RequestSource requests, DsmlDecorator<? extends Request> request,
+			BatchRequestDsml batchRequest, BufferedWriter respWriter, BatchResponseDsml batchResponse, boolean continueOnError) throws IOException {
+		LdapConnectionLease lease = new LdapConnectionLease(ldapConnectionPool, operationsPerConnection, leaseStatistics);
+		try {
+			processSequential(requests, request, batchRequest, lease, respWriter, batchResponse, continueOnError);
+		} finally {
+			closeLease(lease);
+		}
+	}
+
+	/**
+	 * Processes the requests of a batch one after another on the connections of the lease.
+	 *
+	 * @param requests the source of the following requests
+	 * @param request the first request of the batch
+	 * @param batchRequest the batch request
+	 * @param lease the connection lease of the batch
+	 * @param respWriter the response writer
+	 * @param batchResponse the batch response
+	 * @param continueOnError true if the batch has to continue after a failed request
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void processSequential(RequestSource requests, DsmlDecorator<? extends Request> request,
+			BatchRequestDsml batchRequest, LdapConnectionLease lease, BufferedWriter respWriter, BatchResponseDsml batchResponse,
+			boolean continueOnError) throws IOException {
 		while (request != null) // (Request == null when there's no more request
 								// to process)
 		{
 			// Checking the request has a requestID attribute if Processing =
 			// Parallel and ResponseOrder = Unordered
-			if ((batchRequest.getProcessing().equals(Processing.PARALLEL))
-					&& (batchRequest.getResponseOrder().equals(ResponseOrder.UNORDERED)) && (request.getDecorated().getMessageId() <= 0)) {
+			if (isMissingRequestId(batchRequest, request)) {
 				// Then we have to send an errorResponse
 				ErrorResponse errorResponse = new ErrorResponse(0, ErrorResponseType.MALFORMED_REQUEST, I18n.err(I18n.ERR_03002));
 
@@ -281,12 +604,10 @@ public class Dsmlv2Engine {
 			}
 
 			try {
-				ResultCodeEnum resultCode = processRequest(request, respWriter, batchResponse);
+				ResultCodeEnum resultCode = processRequest(request, lease, respWriter, batchResponse);
 				// Checking if we need to exit processing (if an error has
 				// occurred if onError == Exit)
-				if ((!continueOnError) && (resultCode != null) && (resultCode != ResultCodeEnum.SUCCESS)
-						&& (resultCode != ResultCodeEnum.COMPARE_TRUE) && (resultCode != ResultCodeEnum.COMPARE_FALSE)
-						&& (resultCode != ResultCodeEnum.REFERRAL)) {
+				if ((!continueOnError) && isFailure(resultCode)) {
 					break;
 				}
 			} catch (Exception e) {
@@ -307,7 +628,7 @@ public class Dsmlv2Engine {
 
 			// Getting next request
 			try {
-				request = parser.getNextRequest();
+				request = requests.next();
 			} catch (XmlPullParserException e) {
 				// We create a new ErrorResponse and return the XML response.
 				ErrorResponse errorResponse = new ErrorResponse(0, ErrorResponseType.MALFORMED_REQUEST, I18n.err(I18n.ERR_03001,
@@ -322,178 +643,1324 @@ public class Dsmlv2Engine {
 				break;
 			}
 		}
-
-		if (respWriter != null) {
-			respWriter.write("</batchResponse>");
-			respWriter.flush();
-		}
-	}
-
-	/**
-	 * Writes the response.
-	 *
-	 * @param respWriter the response BufferedWriter
-	 * @param respDsml the response DSML
-	 * @throws IOException Signals that an I/O exception has occurred.
-	 */
-	protected void writeResponse(BufferedWriter respWriter, DsmlDecorator<?> respDsml) throws IOException {
-		if (respWriter != null) {
-			Element xml = respDsml.toDsml(null);
-			xml.write(respWriter);
-		}
 	}
 
 	/**
-	 * Processes DSML request.
+	 * Processes the requests of a batch concurrently on the parallel executor, each one on its own
+	 * pooled connection. At most maxParallelRequests requests are pending or completed and buffered
+	 * behind an earlier response at any time, so a slow request holds back the following requests
+	 * instead of letting their responses pile up in memory. Responses are written in request order,
+	 * or in any order for unordered batches, one at a time: the request whose turn it is streams its
+	 * response to the response writer, the others buffer theirs up to maxParallelBufferedChars for
+	 * the batch and then wait for their turn.
 	 *
-	 * @param request the request
+	 * @param requests the source of the following requests
+	 * @param request the first request of the batch
+	 * @param batchRequest the batch request
 	 * @param respWriter the response writer
-	 * @param batchResponse the batch response
-	 * @return the ResultCodeEnum
-	 * @throws Exception the exception
+	 * @param continueOnError true if the batch has to continue after a failed request
+	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
-	protected ResultCodeEnum processRequest(DsmlDecorator<? extends Request> request, BufferedWriter respWriter,
-			BatchResponseDsml batchResponse) throws Exception {
-		ResultCodeEnum resultCode = null;
-		LdapConnection connection = ldapConnectionPool.getConnection();
-		try {
-			switch (request.getDecorated().getType()) {
-			case ABANDON_REQUEST:
-				connection.abandon((AbandonRequest) request);
-				return null;
-
-			case ADD_REQUEST:
-				AddResponse response = connection.add((AddRequest) request);
-				resultCode = response.getLdapResult().getResultCode();
-				AddResponseDsml addResponseDsml = new AddResponseDsml(connection.getCodecService(), response);
-				writeResponse(respWriter, addResponseDsml);
-
-				break;
-
-			case BIND_REQUEST:
-				BindResponse bindResponse = connection.bind((BindRequest) request);
-				resultCode = bindResponse.getLdapResult().getResultCode();
-				BindResponseDsml authResponseDsml = new BindResponseDsml(connection.getCodecService(), bindResponse);
-				writeResponse(respWriter, authResponseDsml);
-
+	protected void processParallel(RequestSource requests, DsmlDecorator<? extends Request> request,
+			BatchRequestDsml batchRequest, BufferedWriter respWriter, boolean continueOnError) throws IOException {
+		boolean unordered = ResponseOrder.UNORDERED.equals(batchRequest.getResponseOrder());
+		CompletionService<Boolean> completionService = new ExecutorCompletionService<Boolean>(parallelExecutor);
+		ParallelBatchState state = new ParallelBatchState(new ParallelOutput(respWriter, unordered, maxParallelBufferedChars));
+		ErrorResponse trailingError = null;
+		int submitted = 0;
+
+		while (request != null) {
+			if (isMissingRequestId(batchRequest, request)) {
+				trailingError = new ErrorResponse(0, ErrorResponseType.MALFORMED_REQUEST, I18n.err(I18n.ERR_03002));
 				break;
+			}
 
-			case COMPARE_REQUEST:
-				CompareResponse compareResponse = connection.compare((CompareRequest) request);
-				resultCode = compareResponse.getLdapResult().getResultCode();
-				CompareResponseDsml compareResponseDsml = new CompareResponseDsml(connection.getCodecService(), compareResponse);
-				writeResponse(respWriter, compareResponseDsml);
-
-				break;
+			completionService.submit(new ParallelRequest(request, state.output.newWriter(submitted++)));
+			state.pending++;
 
-			case DEL_REQUEST:
-				DeleteResponse delResponse = connection.delete((DeleteRequest) request);
-				resultCode = delResponse.getLdapResult().getResultCode();
-				DelResponseDsml delResponseDsml = new DelResponseDsml(connection.getCodecService(), delResponse);
-				writeResponse(respWriter, delResponseDsml);
+			// Bounds the number of requests executed or buffered
+			Future<Boolean> done = completionService.poll();
+			while (done != null || state.outstanding() >= maxParallelRequests) {
+				handleResponse(state, done != null ? done : take(completionService), continueOnError);
+				done = completionService.poll();
+			}
 
+			// Checking if we need to exit processing (if an error has occurred if onError == Exit)
+			if (state.stopped) {
 				break;
+			}
 
-			case EXTENDED_REQUEST:
-				ExtendedResponse extendedResponse = connection.extended((ExtendedRequest) request);
-				resultCode = extendedResponse.getLdapResult().getResultCode();
-				ExtendedResponseDsml extendedResponseDsml = new ExtendedResponseDsml(connection.getCodecService(), extendedResponse);
-				writeResponse(respWriter, extendedResponseDsml);
-
+			// Getting next request
+			try {
+				request = requests.next();
+			} catch (XmlPullParserException e) {
+				trailingError = new ErrorResponse(0, ErrorResponseType.MALFORMED_REQUEST, I18n.err(I18n.ERR_03001,
+						e.getLocalizedMessage(), e.getLineNumber(), e.getColumnNumber()));
 				break;
+			}
+		}
 
-			case MODIFY_REQUEST:
-				ModifyResponse modifyResponse = connection.modify((ModifyRequest) request);
-				resultCode = modifyResponse.getLdapResult().getResultCode();
-				ModifyResponseDsml modifyResponseDsml = new ModifyResponseDsml(connection.getCodecService(), modifyResponse);
-				writeResponse(respWriter, modifyResponseDsml);
-
-				break;
+		// Requests already handed to the executor are always completed and reported, the last one
+		// completed has written the responses still buffered
+		while (state.pending > 0) {
+			handleResponse(state, take(completionService), continueOnError);
+		}
 
-			case MODIFYDN_REQUEST:
-				ModifyDnResponse modifyDnResponse = connection.modifyDn((ModifyDnRequest) request);
-				resultCode = modifyDnResponse.getLdapResult().getResultCode();
-				ModDNResponseDsml modDNResponseDsml = new ModDNResponseDsml(connection.getCodecService(), modifyDnResponse);
-				writeResponse(respWriter, modDNResponseDsml);
+		if (trailingError != null) {
+			writeResponse(respWriter, trailingError);
+		}
+	}
 
-				break;
+	/**
+	 * Processes the requests of a batch on one asynchronous connection, sending up to
+	 * pipelineDepth requests before reading their results. Responses are written in request order.
+	 * Searches and compares are always pipelined. Requests changing the directory wait for the
+	 * requests sent before them and are awaited before the next request is sent, unless the batch
+	 * is parallel and resumes on error. Bind, abandon and extended requests are executed
+	 * synchronously.
+	 *
+	 * @param requests the source of the following requests
+	 * @param request the first request of the batch
+	 * @param batchRequest the batch request
+	 * @param respWriter the response writer
+	 * @param continueOnError true if the batch has to continue after a failed request
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void processPipelined(RequestSource requests, DsmlDecorator<? extends Request> request,
+			BatchRequestDsml batchRequest, BufferedWriter respWriter, boolean continueOnError) throws IOException {
+		// The pending requests need the same connection until they are completed
+		LdapConnectionLease lease = new LdapConnectionLease(ldapConnectionPool, 0, leaseStatistics);
+		Deque<PipelinedRequest> pending = new ArrayDeque<PipelinedRequest>();
+		boolean unorderedWrites = Processing.PARALLEL.equals(batchRequest.getProcessing()) && continueOnError;
+		ErrorResponse trailingError = null;
+		boolean stopped = false;
 
-			case SEARCH_REQUEST:
-				SearchCursor searchResponses = connection.search((SearchRequest) request);
+		try {
+			while (request != null) {
+				if (isMissingRequestId(batchRequest, request)) {
+					trailingError = new ErrorResponse(0, ErrorResponseType.MALFORMED_REQUEST, I18n.err(I18n.ERR_03002));
+					break;
+				}
 
-				SearchResponseDsml searchResponseDsml = new SearchResponseDsml(connection.getCodecService());
+				MessageTypeEnum type = request.getDecorated().getType();
+				boolean pipelined = isPipelined(type);
+				boolean barrier = !pipelined
+						|| (!unorderedWrites && type != MessageTypeEnum.SEARCH_REQUEST && type != MessageTypeEnum.COMPARE_REQUEST);
 
-				if (respWriter != null) {
-					StringBuilder sb = new StringBuilder();
-					sb.append("<searchResponse");
+				// Bounds the pipeline and lets a barrier wait for the requests sent before it
+				while (!stopped && !pending.isEmpty() && (barrier || pending.size() >= pipelineDepth)) {
+					stopped = !completeNext(pending, lease, respWriter, continueOnError);
+				}
+				if (stopped) {
+					break;
+				}
 
-					if (request.getDecorated().getMessageId() > 0) {
-						sb.append(" requestID=\"");
-						sb.append(request.getDecorated().getMessageId());
-						sb.append('"');
+				if (pipelined) {
+					pending.addLast(sendAsync(request, lease));
+				} else {
+					try {
+						ResultCodeEnum resultCode = processRequest(request, lease, respWriter, null);
+						stopped = !continueOnError && isFailure(resultCode);
+					} catch (Exception e) {
+						LOG.warn("Failed to process request", e);
+
+						// We create a new ErrorResponse and return the XML response.
+						writeResponse(respWriter, new ErrorResponse(request.getDecorated().getMessageId(),
+								ErrorResponseType.GATEWAY_INTERNAL_ERROR, I18n.err(I18n.ERR_03003, e.getMessage())));
+						stopped = true;
 					}
+				}
 
-					sb.append('>');
+				// The request after a barrier is only sent once the barrier has completed
+				while (!stopped && barrier && !pending.isEmpty()) {
+					stopped = !completeNext(pending, lease, respWriter, continueOnError);
+				}
+				if (stopped) {
+					break;
+				}
 
-					respWriter.write(sb.toString());
+				// Getting next request
+				try {
+					request = requests.next();
+				} catch (XmlPullParserException e) {
+					trailingError = new ErrorResponse(0, ErrorResponseType.MALFORMED_REQUEST, I18n.err(I18n.ERR_03001,
+							e.getLocalizedMessage(), e.getLineNumber(), e.getColumnNumber()));
+					break;
 				}
+			}
 
-				while (searchResponses.next()) {
-					Response searchResponse = searchResponses.get();
+			// Requests already sent are completed and reported unless the batch has stopped
+			while (!stopped && !pending.isEmpty()) {
+				stopped = !completeNext(pending, lease, respWriter, continueOnError);
+			}
+		} finally {
+			for (PipelinedRequest abandoned : pending) {
+				abandoned.abandon();
+			}
+			closeLease(lease);
+		}
 
-					if (searchResponse.getType() == MessageTypeEnum.SEARCH_RESULT_ENTRY) {
-						SearchResultEntry searchResultEntry = (SearchResultEntry) searchResponse;
+		if (trailingError != null) {
+			writeResponse(respWriter, trailingError);
+		}
+	}
 
-						SearchResultEntryDsml searchResultEntryDsml = new SearchResultEntryDsml(connection.getCodecService(),
-								searchResultEntry);
-						searchResponseDsml = new SearchResponseDsml(connection.getCodecService(), searchResultEntryDsml);
+	/**
+	 * Checks if requests of the type are sent asynchronously by processPipelined.
+	 *
+	 * @param type the request type
+	 * @return true if the request is pipelined
+	 */
+	private static boolean isPipelined(MessageTypeEnum type) {
+		switch (type) {
+		case ADD_REQUEST:
+		case COMPARE_REQUEST:
+		case DEL_REQUEST:
+		case MODIFY_REQUEST:
+		case MODIFYDN_REQUEST:
+		case SEARCH_REQUEST:
+			return true;
+		default:
+			return false;
+		}
+	}
 
-						if (respWriter != null) {
-							writeResponse(respWriter, searchResultEntryDsml);
-						} else {
-							searchResponseDsml.addResponse(searchResultEntryDsml);
-						}
-					} else if (searchResponse.getType() == MessageTypeEnum.SEARCH_RESULT_REFERENCE) {
-						SearchResultReference searchResultReference = (SearchResultReference) searchResponse;
+	/**
+	 * Sends a request on the asynchronous connection of the lease without waiting for its result.
+	 *
+	 * @param request the request
+	 * @param lease the connection lease
+	 * @return the pending request, holding the failure if the request could not be sent
+	 */
+	private PipelinedRequest sendAsync(DsmlDecorator<? extends Request> request, LdapConnectionLease lease) {
+		SearchKey cacheKey = searchResultCache != null ? searchKey(request) : null;
+		if (cacheKey != null) {
+			SearchResultCache.Result cached = searchResultCache.get(cacheKey);
+			if (cached != null) {
+				return new PipelinedRequest(request, cached);
+			}
+		}
 
-						SearchResultReferenceDsml searchResultReferenceDsml = new SearchResultReferenceDsml(connection.getCodecService(),
-								searchResultReference);
-						searchResponseDsml = new SearchResponseDsml(connection.getCodecService(), searchResultReferenceDsml);
+		try {
+			LdapConnection connection = lease.acquire();
+			if (!(connection instanceof LdapAsyncConnection)) {
+				throw new IllegalStateException("The LDAP connection pool does not provide asynchronous connections");
+			}
+			LdapAsyncConnection asyncConnection = (LdapAsyncConnection) connection;
 
-						if (respWriter != null) {
-							writeResponse(respWriter, searchResultReferenceDsml);
-						} else {
-							searchResponseDsml.addResponse(searchResultReferenceDsml);
-						}
-					}
+			ResponseFuture<? extends Response> future;
+			SearchPager pager = null;
+			SearchResultCache.Collector collector = null;
+			switch (request.getDecorated().getType()) {
+			case ADD_REQUEST:
+				future = asyncConnection.addAsync((AddRequest) request);
+				break;
+			case COMPARE_REQUEST:
+				future = asyncConnection.compareAsync((CompareRequest) request);
+				break;
+			case DEL_REQUEST:
+				future = asyncConnection.deleteAsync((DeleteRequest) request);
+				break;
+			case MODIFY_REQUEST:
+				future = asyncConnection.modifyAsync((ModifyRequest) request);
+				break;
+			case MODIFYDN_REQUEST:
+				future = asyncConnection.modifyDnAsync((ModifyDnRequest) request);
+				break;
+			case SEARCH_REQUEST:
+				collector = cacheKey != null ? searchResultCache.newCollector(cacheKey) : null;
+				pager = SearchPager.create((SearchRequest) request, searchPageSize);
+				future = asyncConnection.searchAsync((SearchRequest) request);
+				break;
+			default:
+				throw new IllegalStateException("Unexpected request tpye " + request.getDecorated().getType());
+			}
+			return new PipelinedRequest(request, connection, future, pager, collector);
+		} catch (Exception e) {
+			lease.invalidate();
+			return new PipelinedRequest(request, e);
+		}
+	}
+
+	/**
+	 * Waits for the oldest pending request and writes its response.
+	 *
+	 * @param pending the pending requests in the order they were sent
+	 * @param lease the connection lease
+	 * @param respWriter the response writer
+	 * @param continueOnError true if the batch has to continue after a failed request
+	 * @return false if the batch has to stop
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private boolean completeNext(Deque<PipelinedRequest> pending, LdapConnectionLease lease, BufferedWriter respWriter,
+			boolean continueOnError) throws IOException {
+		PipelinedRequest next = pending.removeFirst();
+		try {
+			ResultCodeEnum resultCode = next.writeResponse(respWriter);
+			if (next.isSent()) {
+				lease.release();
+			}
+			invalidateSearchResults(next.request, resultCode);
+			return continueOnError || !isFailure(resultCode);
+		} catch (Exception e) {
+			LOG.warn("Failed to process request", e);
+			if (next.isSent()) {
+				lease.invalidate();
+			}
+			if (next.cached == null) {
+				invalidateSearchResults(next.request, null);
+			}
+
+			// We create a new ErrorResponse and return the XML response.
+			writeResponse(respWriter, new ErrorResponse(next.request.getDecorated().getMessageId(),
+					ErrorResponseType.GATEWAY_INTERNAL_ERROR, I18n.err(I18n.ERR_03003, e.getMessage())));
+			return false;
+		}
+	}
+
+	/**
+	 * Handles a completed parallel request, whose response is written or buffered by the request
+	 * itself.
+	 *
+	 * @param state the state of the parallel batch
+	 * @param done the completed parallel request
+	 * @param continueOnError true if the batch has to continue after a failed request
+	 * @throws IOException Signals that the responses could not be written.
+	 */
+	private void handleResponse(ParallelBatchState state, Future<Boolean> done, boolean continueOnError) throws IOException {
+		boolean failure;
+		try {
+			failure = done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for parallel requests");
+		} catch (ExecutionException e) {
+			// ParallelRequest never throws, errors are rendered as errorResponse
+			throw new IllegalStateException(e.getCause());
+		}
+		state.pending--;
+		if (!continueOnError && failure) {
+			state.stopped = true;
+		}
+		state.output.checkFailure();
+	}
+
+	/**
+	 * Waits for the next completed parallel request.
+	 *
+	 * @param completionService the completion service
+	 * @return the completed parallel request
+	 * @throws IOException Signals that the processing thread has been interrupted.
+	 */
+	private Future<Boolean> take(CompletionService<Boolean> completionService) throws IOException {
+		try {
+			return completionService.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for parallel requests");
+		}
+	}
+
+	/**
+	 * Checks if the request lacks the requestID which is mandatory if Processing = Parallel and
+	 * ResponseOrder = Unordered.
+	 *
+	 * @param batchRequest the batch request
+	 * @param request the request
+	 * @return true if the requestID is missing
+	 */
+	private boolean isMissingRequestId(BatchRequestDsml batchRequest, DsmlDecorator<? extends Request> request) {
+		return (batchRequest.getProcessing().equals(Processing.PARALLEL))
+				&& (batchRequest.getResponseOrder().equals(ResponseOrder.UNORDERED)) && (request.getDecorated().getMessageId() <= 0);
+	}
+
+	/**
+	 * Checks if the result code stops a batch with onError = Exit.
+	 *
+	 * @param resultCode the result code
+	 * @return true if the result code is a failure
+	 */
+	protected static boolean isFailure(ResultCodeEnum resultCode) {
+		return (resultCode != null) && (resultCode != ResultCodeEnum.SUCCESS) && (resultCode != ResultCodeEnum.COMPARE_TRUE)
+				&& (resultCode != ResultCodeEnum.COMPARE_FALSE) && (resultCode != ResultCodeEnum.REFERRAL);
+	}
+
+	/**
+	 * Returns the connection of a lease to the pool.
+	 *
+	 * @param lease the connection lease
+	 */
+	private void closeLease(LdapConnectionLease lease) {
+		try {
+			lease.close();
+		} catch (LdapException e) {
+			LOG.warn("Failed to release LDAP connection", e);
+		}
+	}
+
+	/**
+	 * Writes the response.
+	 *
+	 * @param respWriter the response BufferedWriter
+	 * @param respDsml the response DSML
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void writeResponse(BufferedWriter respWriter, DsmlDecorator<?> respDsml) throws IOException {
+		if (respWriter != null) {
+			Element xml = respDsml.toDsml(null);
+			xml.write(respWriter);
+		}
+	}
+
+	/**
+	 * Writes a searchResultDone. Response controls the LDAP codec does not know, such as the
+	 * server side sort and virtual list view response controls, are kept as opaque controls and
+	 * written here from their BER value.
+	 *
+	 * @param respWriter the response writer
+	 * @param codec the LDAP codec service
+	 * @param srDone the searchResultDone
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void writeSearchResultDone(BufferedWriter respWriter, LdapApiService codec, SearchResultDone srDone) throws IOException {
+		List<OpaqueControl> opaqueControls = new ArrayList<OpaqueControl>();
+		for (Control control : new ArrayList<Control>(srDone.getControls().values())) {
+			if (control instanceof OpaqueControl) {
+				opaqueControls.add((OpaqueControl) control);
+				srDone.removeControl(control);
+			}
+		}
+
+		Element xml = new SearchResultDoneDsml(codec, srDone).toDsml(null);
+
+		// Controls are the first children of a DSML LDAPResult
+		@SuppressWarnings("unchecked")
+		List<Element> children = xml.elements();
+		int index = 0;
+		for (OpaqueControl control : opaqueControls) {
+			Element controlElement = DocumentHelper.createElement("control");
+			controlElement.addAttribute("type", control.getOid());
+			if (control.isCritical()) {
+				controlElement.addAttribute("criticality", "true");
+			}
+			if (control.getEncodedValue() != null) {
+				Element valueElement = controlElement.addElement("controlValue");
+				valueElement.addAttribute(new QName("type", ParserUtils.XSI_NAMESPACE), ParserUtils.XSD_NAMESPACE.getPrefix() + ":base64Binary");
+				valueElement.setText(ParserUtils.base64Encode(control.getEncodedValue()));
+			}
+			children.add(index++, controlElement);
+		}
+
+		xml.write(respWriter);
+	}
+
+	/**
+	 * Processes DSML request.
+	 *
+	 * @param request the request
+	 * @param lease the connection lease, the connection is invalidated if the request fails
+	 * @param respWriter the response writer
+	 * @param batchResponse the batch response
+	 * @return the ResultCodeEnum
+	 * @throws Exception the exception
+	 */
+	protected ResultCodeEnum processRequest(DsmlDecorator<? extends Request> request, LdapConnectionLease lease, BufferedWriter respWriter,
+			BatchResponseDsml batchResponse) throws Exception {
+		SearchKey searchKey = searchKey(request);
+		SearchCoalescer.Flight flight = null;
+		if (searchKey != null) {
+			SearchResultCache.Result cached = searchResultCache != null ? searchResultCache.get(searchKey) : null;
+			if (cached == null && searchCoalescer != null) {
+				flight = searchCoalescer.join(searchKey);
+				if (!flight.isLeader()) {
+					cached = flight.await();
+					// Sends its own search if the identical one could not be shared
+					flight = null;
 				}
+			}
+			if (cached != null) {
+				return writeCachedSearchResponse(request, cached, respWriter, batchResponse);
+			}
+		}
 
-				SearchResultDone srDone = searchResponses.getSearchResultDone();
+		ResultCodeEnum resultCode = null;
+		LdapConnection connection;
+		try {
+			connection = lease.acquire();
+		} catch (Exception e) {
+			if (flight != null) {
+				flight.finish();
+			}
+			throw e;
+		}
+		boolean completed = false;
+		try {
+			switch (request.getDecorated().getType()) {
+			case ABANDON_REQUEST:
+				connection.abandon((AbandonRequest) request);
+
+				break;
 
-				if (srDone != null) {
-					resultCode = srDone.getLdapResult().getResultCode();
+			case ADD_REQUEST:
+				resultCode = writeResult(connection.getCodecService(), connection.add((AddRequest) request), respWriter);
 
-					SearchResultDoneDsml srdDsml = new SearchResultDoneDsml(connection.getCodecService(), srDone);
+				break;
 
-					if (respWriter != null) {
-						writeResponse(respWriter, srdDsml);
-						respWriter.write("</searchResponse>");
-					} else {
-						searchResponseDsml.addResponse(srdDsml);
-						batchResponse.addResponse(searchResponseDsml);
-					}
+			case BIND_REQUEST:
+				resultCode = writeResult(connection.getCodecService(), connection.bind((BindRequest) request), respWriter);
+
+				break;
+
+			case COMPARE_REQUEST:
+				resultCode = writeResult(connection.getCodecService(), connection.compare((CompareRequest) request), respWriter);
+
+				break;
+
+			case DEL_REQUEST:
+				resultCode = writeResult(connection.getCodecService(), connection.delete((DeleteRequest) request), respWriter);
+
+				break;
+
+			case EXTENDED_REQUEST:
+				resultCode = writeResult(connection.getCodecService(), connection.extended((ExtendedRequest) request), respWriter);
+
+				break;
+
+			case MODIFY_REQUEST:
+				resultCode = writeResult(connection.getCodecService(), connection.modify((ModifyRequest) request), respWriter);
+
+				break;
+
+			case MODIFYDN_REQUEST:
+				resultCode = writeResult(connection.getCodecService(), connection.modifyDn((ModifyDnRequest) request), respWriter);
+
+				break;
+
+			case SEARCH_REQUEST:
+				List<SearchResultSink> sinks = new ArrayList<SearchResultSink>(2);
+				if (searchKey != null && searchResultCache != null) {
+					sinks.add(searchResultCache.newCollector(searchKey));
+				}
+				if (flight != null) {
+					sinks.add(flight);
 				}
+				SearchPager pager = SearchPager.create((SearchRequest) request, searchPageSize);
+				resultCode = writeSearchResponse(request, connection.search((SearchRequest) request), pager, sinks, connection,
+						respWriter, batchResponse);
 
 				break;
 
 			default:
 				throw new IllegalStateException("Unexpected request tpye " + request.getDecorated().getType());
 			}
+			completed = true;
 		} finally {
-			ldapConnectionPool.releaseConnection(connection);
+			if (flight != null) {
+				flight.finish();
+			}
+			if (completed) {
+				lease.release();
+			} else {
+				lease.invalidate();
+			}
+			invalidateSearchResults(request, completed ? resultCode : null);
 		}
 
 		return resultCode;
 	}
 
+	/**
+	 * Writes the response of a request other than search.
+	 *
+	 * @param codec the LDAP codec service
+	 * @param response the response
+	 * @param respWriter the response writer
+	 * @return the ResultCodeEnum
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private ResultCodeEnum writeResult(LdapApiService codec, ResultResponse response, BufferedWriter respWriter) throws IOException {
+		switch (response.getType()) {
+		case ADD_RESPONSE:
+			writeResponse(respWriter, new AddResponseDsml(codec, (AddResponse) response));
+			break;
+
+		case BIND_RESPONSE:
+			writeResponse(respWriter, new BindResponseDsml(codec, (BindResponse) response));
+			break;
+
+		case COMPARE_RESPONSE:
+			writeResponse(respWriter, new CompareResponseDsml(codec, (CompareResponse) response));
+			break;
+
+		case DEL_RESPONSE:
+			writeResponse(respWriter, new DelResponseDsml(codec, (DeleteResponse) response));
+			break;
+
+		case EXTENDED_RESPONSE:
+			writeResponse(respWriter, new ExtendedResponseDsml(codec, (ExtendedResponse) response));
+			break;
+
+		case MODIFY_RESPONSE:
+			writeResponse(respWriter, new ModifyResponseDsml(codec, (ModifyResponse) response));
+			break;
+
+		case MODIFYDN_RESPONSE:
+			writeResponse(respWriter, new ModDNResponseDsml(codec, (ModifyDnResponse) response));
+			break;
+
+		default:
+			throw new IllegalStateException("Unexpected response tpye " + response.getType());
+		}
+
+		return response.getLdapResult().getResultCode();
+	}
+
+	/**
+	 * Writes the response of a search request while reading it from the cursor. Paged searches
+	 * are continued page by page into the same searchResponse.
+	 *
+	 * @param request the search request
+	 * @param searchResponses the cursor on the search results
+	 * @param pager the pager of the search or null if it is not paged
+	 * @param sinks the sinks receiving the result, e.g. for the search result cache
+	 * @param connection the connection the search was sent on
+	 * @param respWriter the response writer
+	 * @param batchResponse the batch response, used if there is no response writer
+	 * @return the ResultCodeEnum
+	 * @throws Exception the exception
+	 */
+	private ResultCodeEnum writeSearchResponse(DsmlDecorator<? extends Request> request, SearchCursor searchResponses, SearchPager pager,
+			List<SearchResultSink> sinks, LdapConnection connection, BufferedWriter respWriter, BatchResponseDsml batchResponse)
+			throws Exception {
+		SearchResponseOutput output = new SearchResponseOutput(request, connection.getCodecService(), respWriter, batchResponse);
+		SearchResultDone srDone;
+
+		while (true) {
+			while (searchResponses.next()) {
+				Response searchResponse = searchResponses.get();
+
+				if (pager != null && searchResponse.getType() == MessageTypeEnum.SEARCH_RESULT_ENTRY) {
+					pager.entryReturned();
+				}
+				for (SearchResultSink sink : sinks) {
+					sink.add(searchResponse);
+				}
+
+				output.write(searchResponse);
+			}
+
+			srDone = searchResponses.getSearchResultDone();
+
+			if (pager == null) {
+				break;
+			}
+
+			// Continues with the next page, the client only sees the searchResultDone of the last one
+			searchResponses = pager.nextPage(connection, srDone);
+			if (searchResponses == null) {
+				pager.complete(srDone);
+				break;
+			}
+		}
+
+		for (SearchResultSink sink : sinks) {
+			sink.complete(srDone);
+		}
+
+		return output.done(srDone);
+	}
+
+	/**
+	 * Writes the response of a search request from the search result cache or from the result
+	 * of an identical search.
+	 *
+	 * @param request the search request
+	 * @param cached the cached or shared result
+	 * @param respWriter the response writer
+	 * @param batchResponse the batch response, used if there is no response writer
+	 * @return the ResultCodeEnum
+	 * @throws Exception the exception
+	 */
+	private ResultCodeEnum writeCachedSearchResponse(DsmlDecorator<? extends Request> request, SearchResultCache.Result cached,
+			BufferedWriter respWriter, BatchResponseDsml batchResponse) throws Exception {
+		SearchResponseOutput output = new SearchResponseOutput(request, LdapApiServiceFactory.getSingleton(), respWriter, batchResponse);
+		for (Response searchResponse : cached.getResponses()) {
+			output.write(searchResponse);
+		}
+		return output.done(cached.newDone(request.getDecorated().getMessageId()));
+	}
+
+	/**
+	 * Gets the key of a search for the search result cache and the search coalescer.
+	 *
+	 * @param request the request
+	 * @return the key or null if the request is not a keyed search or neither is configured
+	 */
+	private SearchKey searchKey(DsmlDecorator<? extends Request> request) {
+		if ((searchResultCache == null && searchCoalescer == null) || request.getDecorated().getType() != MessageTypeEnum.SEARCH_REQUEST) {
+			return null;
+		}
+		return SearchKey.create((SearchRequest) request);
+	}
+
+	/**
+	 * Checks if a request of the given type may change the directory.
+	 *
+	 * @param type the request type
+	 * @return true for add, delete, modify, modifyDN and extended requests
+	 */
+	private static boolean isChange(MessageTypeEnum type) {
+		switch (type) {
+		case ADD_REQUEST:
+		case DEL_REQUEST:
+		case MODIFY_REQUEST:
+		case MODIFYDN_REQUEST:
+		case EXTENDED_REQUEST:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Invalidates the cached search results which may be affected by a request changing the
+	 * directory and detaches the searches in flight, on this node and through the invalidation
+	 * topic on the other nodes. A request whose outcome is unknown is treated as successful.
+	 *
+	 * @param request the request
+	 * @param resultCode the result code or null if the outcome is unknown
+	 */
+	private void invalidateSearchResults(DsmlDecorator<? extends Request> request, ResultCodeEnum resultCode) {
+		if ((resultCode != null && resultCode != ResultCodeEnum.SUCCESS) || !isChange(request.getDecorated().getType())) {
+			return;
+		}
+		List<Dn> dns;
+		switch (request.getDecorated().getType()) {
+		case ADD_REQUEST:
+			dns = Collections.singletonList(((AddRequest) request).getEntryDn());
+			break;
+
+		case DEL_REQUEST:
+			dns = Collections.singletonList(((DeleteRequest) request).getName());
+			break;
+
+		case MODIFY_REQUEST:
+			dns = Collections.singletonList(((ModifyRequest) request).getName());
+			break;
+
+		case MODIFYDN_REQUEST:
+			ModifyDnRequest modifyDnRequest = (ModifyDnRequest) request;
+			Dn newSuperior = modifyDnRequest.getNewSuperior() != null ? modifyDnRequest.getNewSuperior() : modifyDnRequest.getName()
+					.getParent();
+			dns = new ArrayList<Dn>(2);
+			dns.add(modifyDnRequest.getName());
+			dns.add(newSuperior);
+			break;
+
+		default:
+			// The effect of an extended operation on the directory is not known
+			dns = null;
+			break;
+		}
+
+		if (searchCoalescer != null) {
+			// Searches started from now on must see the change
+			searchCoalescer.detachAll();
+		}
+		if (searchResultCache != null) {
+			if (dns == null) {
+				searchResultCache.clear();
+			} else {
+				for (Dn dn : dns) {
+					searchResultCache.invalidate(dn);
+				}
+			}
+		}
+		if (searchInvalidationTopic != null) {
+			searchInvalidationTopic.publish(dns);
+		}
+	}
+
+	/**
+	 * The Class ParallelRequest executes a single request of a parallel batch and writes its
+	 * response, returning true if the request failed.
+	 */
+	private class ParallelRequest implements Callable<Boolean> {
+
+		/** The request. */
+		private final DsmlDecorator<? extends Request> request;
+
+		/** The writer of the response within the responses of the batch. */
+		private final ParallelOutput.ResponseWriter response;
+
+		/**
+		 * Instantiates a new parallel request.
+		 *
+		 * @param request the request
+		 * @param response the writer of the response within the responses of the batch
+		 */
+		public ParallelRequest(DsmlDecorator<? extends Request> request, ParallelOutput.ResponseWriter response) {
+			this.request = request;
+			this.response = response;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public Boolean call() {
+			BufferedWriter writer = new BufferedWriter(response);
+			LdapConnectionLease lease = new LdapConnectionLease(ldapConnectionPool, 1, leaseStatistics);
+			boolean failure;
+			try {
+				try {
+					failure = isFailure(processRequest(request, lease, writer, null));
+				} catch (Exception e) {
+					LOG.warn("Failed to process request", e);
+
+					// We create a new ErrorResponse and return the XML response.
+					ErrorResponse errorResponse = new ErrorResponse(request.getDecorated().getMessageId(),
+							ErrorResponseType.GATEWAY_INTERNAL_ERROR, I18n.err(I18n.ERR_03003, e.getMessage()));
+					writeResponse(writer, errorResponse);
+					failure = true;
+				}
+				// Writes the response, or leaves it to the request whose turn it is
+				writer.close();
+			} catch (IOException e) {
+				// Reported by the batch, the following responses are dropped
+				response.fail(e);
+				failure = true;
+			}
+			return failure;
+		}
+	}
+
+	/**
+	 * The Class PipelinedRequest is a request sent on an asynchronous connection whose result has
+	 * not been read yet.
+	 */
+	private class PipelinedRequest {
+
+		/** The request. */
+		private final DsmlDecorator<? extends Request> request;
+
+		/** The connection the request was sent on. */
+		private final LdapConnection connection;
+
+		/** The future of the response. */
+		private final ResponseFuture<? extends Response> future;
+
+		/** The pager if the request is a paged search. */
+		private SearchPager pager;
+
+		/** The collector if the request is a cacheable search. */
+		private SearchResultCache.Collector collector;
+
+		/** The cached result if the request is a search answered from the cache. */
+		private SearchResultCache.Result cached;
+
+		/** The failure if the request could not be sent. */
+		private Exception failure;
+
+		/**
+		 * Instantiates a new pipelined request which has been sent.
+		 *
+		 * @param request the request
+		 * @param connection the connection the request was sent on
+		 * @param future the future of the response
+		 * @param pager the pager if the request is a paged search
+		 * @param collector the collector if the request is a cacheable search
+		 */
+		public PipelinedRequest(DsmlDecorator<? extends Request> request, LdapConnection connection,
+				ResponseFuture<? extends Response> future, SearchPager pager, SearchResultCache.Collector collector) {
+			this.request = request;
+			this.connection = connection;
+			this.future = future;
+			this.pager = pager;
+			this.collector = collector;
+		}
+
+		/**
+		 * Instantiates a new pipelined request answered from the search result cache.
+		 *
+		 * @param request the request
+		 * @param cached the cached result
+		 */
+		public PipelinedRequest(DsmlDecorator<? extends Request> request, SearchResultCache.Result cached) {
+			this(request, null, null, null, null);
+			this.cached = cached;
+		}
+
+		/**
+		 * Instantiates a new pipelined request which could not be sent.
+		 *
+		 * @param request the request
+		 * @param failure the failure
+		 */
+		public PipelinedRequest(DsmlDecorator<? extends Request> request, Exception failure) {
+			this(request, null, null, null, null);
+			this.failure = failure;
+		}
+
+		/**
+		 * Checks if the request has been sent on the connection of the lease.
+		 *
+		 * @return true if the request has been sent
+		 */
+		public boolean isSent() {
+			return future != null;
+		}
+
+		/**
+		 * Waits for the result and writes the response.
+		 *
+		 * @param respWriter the response writer
+		 * @return the ResultCodeEnum
+		 * @throws Exception if the request could not be sent or its result not be read
+		 */
+		public ResultCodeEnum writeResponse(BufferedWriter respWriter) throws Exception {
+			if (failure != null) {
+				throw failure;
+			}
+			if (cached != null) {
+				return writeCachedSearchResponse(request, cached, respWriter, null);
+			}
+			if (future instanceof SearchFuture) {
+				SearchCursor searchResponses = new SearchCursorImpl((SearchFuture) future, asyncTimeoutMillis, TimeUnit.MILLISECONDS);
+				List<SearchResultSink> sinks = collector != null ? Collections.<SearchResultSink> singletonList(collector) : Collections
+						.<SearchResultSink> emptyList();
+				return writeSearchResponse(request, searchResponses, pager, sinks, connection, respWriter, null);
+			}
+			Response response = future.get(asyncTimeoutMillis, TimeUnit.MILLISECONDS);
+			if (response == null) {
+				throw new LdapException("No response within " + asyncTimeoutMillis + " ms");
+			}
+			return writeResult(connection.getCodecService(), (ResultResponse) response, respWriter);
+		}
+
+		/**
+		 * Abandons the request on the server if its result is still outstanding.
+		 */
+		public void abandon() {
+			if (future == null || future.isDone()) {
+				return;
+			}
+			try {
+				future.cancel(true);
+			} catch (RuntimeException e) {
+				LOG.debug("Failed to abandon request", e);
+			}
+		}
+	}
+
+	/**
+	 * The Class SearchResponseOutput writes the searchResponse of a search request, either
+	 * directly to the response writer or into the batch response.
+	 */
+	private class SearchResponseOutput {
+
+		/** The LDAP codec service. */
+		private final LdapApiService codec;
+
+		/** The response writer. */
+		private final BufferedWriter respWriter;
+
+		/** The batch response, used if there is no response writer. */
+		private final BatchResponseDsml batchResponse;
+
+		/** The search response, used if there is no response writer. */
+		private SearchResponseDsml searchResponseDsml;
+
+		/** The StAX writer of the entries or null. */
+		private StaxSearchResultWriter staxWriter;
+
+		/**
+		 * Instantiates a new search response output and writes the start of the searchResponse.
+		 *
+		 * @param request the search request
+		 * @param codec the LDAP codec service
+		 * @param respWriter the response writer
+		 * @param batchResponse the batch response, used if there is no response writer
+		 * @throws Exception the exception
+		 */
+		public SearchResponseOutput(DsmlDecorator<? extends Request> request, LdapApiService codec, BufferedWriter respWriter,
+				BatchResponseDsml batchResponse) throws Exception {
+			this.codec = codec;
+			this.respWriter = respWriter;
+			this.batchResponse = batchResponse;
+
+			if (respWriter != null) {
+				StringBuilder sb = new StringBuilder();
+				sb.append("<searchResponse");
+
+				if (request.getDecorated().getMessageId() > 0) {
+					sb.append(" requestID=\"");
+					sb.append(request.getDecorated().getMessageId());
+					sb.append('"');
+				}
+
+				sb.append('>');
+
+				respWriter.write(sb.toString());
+
+				if (staxSearchResults) {
+					staxWriter = new StaxSearchResultWriter(respWriter);
+				}
+			} else {
+				searchResponseDsml = new SearchResponseDsml(codec);
+			}
+		}
+
+		/**
+		 * Writes a search result entry or reference.
+		 *
+		 * @param searchResponse the entry or reference
+		 * @throws Exception the exception
+		 */
+		public void write(Response searchResponse) throws Exception {
+			if (searchResponse.getType() == MessageTypeEnum.SEARCH_RESULT_ENTRY) {
+				SearchResultEntry searchResultEntry = (SearchResultEntry) searchResponse;
+
+				if (staxWriter != null && StaxSearchResultWriter.canWrite(searchResultEntry)) {
+					staxWriter.write(searchResultEntry);
+					return;
+				}
+
+				SearchResultEntryDsml searchResultEntryDsml = new SearchResultEntryDsml(codec, searchResultEntry);
+
+				if (respWriter != null) {
+					writeResponse(respWriter, searchResultEntryDsml);
+				} else {
+					searchResponseDsml.addResponse(searchResultEntryDsml);
+				}
+			} else if (searchResponse.getType() == MessageTypeEnum.SEARCH_RESULT_REFERENCE) {
+				SearchResultReference searchResultReference = (SearchResultReference) searchResponse;
+
+				SearchResultReferenceDsml searchResultReferenceDsml = new SearchResultReferenceDsml(codec, searchResultReference);
+
+				if (respWriter != null) {
+					writeResponse(respWriter, searchResultReferenceDsml);
+				} else {
+					searchResponseDsml.addResponse(searchResultReferenceDsml);
+				}
+			}
+		}
+
+		/**
+		 * Writes the searchResultDone and the end of the searchResponse.
+		 *
+		 * @param srDone the searchResultDone
+		 * @return the ResultCodeEnum
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public ResultCodeEnum done(SearchResultDone srDone) throws IOException {
+			if (srDone == null) {
+				return null;
+			}
+
+			if (respWriter != null) {
+				writeSearchResultDone(respWriter, codec, srDone);
+				respWriter.write("</searchResponse>");
+			} else {
+				searchResponseDsml.addResponse(new SearchResultDoneDsml(codec, srDone));
+				batchResponse.addResponse(searchResponseDsml);
+			}
+
+			return srDone.getLdapResult().getResultCode();
+		}
+	}
+
+	/**
+	 * The Class ParallelBatchState keeps track of the requests of a parallel batch.
+	 */
+	private static class ParallelBatchState {
+
+		/** The output of the responses. */
+		private final ParallelOutput output;
+
+		/** The number of requests handed to the executor and not yet handled. */
+		private int pending;
+
+		/** True if no further request must be started. */
+		private boolean stopped;
+
+		/**
+		 * Gets the number of requests pending or completed and waiting for an earlier response.
+		 * While the first unwritten request is pending, further completions only grow the buffer.
+		 *
+		 * @return the number of requests not yet written
+		 */
+		private int outstanding() {
+			return pending + output.parked();
+		}
+
+		/**
+		 * Instantiates a new parallel batch state.
+		 *
+		 * @param output the output of the responses
+		 */
+		public ParallelBatchState(ParallelOutput output) {
+			this.output = output;
+		}
+	}
+
+	/**
+	 * The Class ParallelOutput writes the responses of the requests of a parallel batch to the
+	 * response writer, one response at a time. The request whose turn it is streams its response
+	 * directly: the first unwritten request in request order, or any request for unordered batches.
+	 * The other requests buffer their responses until the buffered characters of the batch reach
+	 * the maximum, then wait for their turn. A completed request whose turn has not come leaves its
+	 * buffered response to the request whose turn it is, which writes it after its own.
+	 * <p>
+	 * A request waiting for its turn holds its worker thread. The request whose turn it is never
+	 * waits for a later one, and was handed to the executor before them, so it is running.
+	 */
+	private static class ParallelOutput {
+
+		/** The response writer. */
+		private final Writer out;
+
+		/** True if the responses are written as they complete. */
+		private final boolean unordered;
+
+		/** The maximum number of characters buffered. */
+		private final long maxBufferedChars;
+
+		/** The completed responses waiting for their turn by request index. */
+		private final Map<Integer, ResponseWriter> parked = new HashMap<Integer, ResponseWriter>();
+
+		/** The index of the request writing to the response writer, -1 if none. */
+		private int owner = -1;
+
+		/** The index of the next response written in request order. */
+		private int next;
+
+		/** The number of characters buffered. */
+		private long buffered;
+
+		/** The failure of the response writer, the responses are dropped after it. */
+		private IOException failure;
+
+		/**
+		 * Instantiates a new parallel output.
+		 *
+		 * @param out the response writer
+		 * @param unordered true if the responses are written as they complete
+		 * @param maxBufferedChars the maximum number of characters buffered
+		 */
+		public ParallelOutput(Writer out, boolean unordered, long maxBufferedChars) {
+			this.out = out;
+			this.unordered = unordered;
+			this.maxBufferedChars = maxBufferedChars;
+		}
+
+		/**
+		 * Creates the writer of the response of a request.
+		 *
+		 * @param index the position of the request in the batch
+		 * @return the writer, the response is complete when it is closed
+		 */
+		public ResponseWriter newWriter(int index) {
+			return new ResponseWriter(index);
+		}
+
+		/**
+		 * Gets the number of completed responses waiting for their turn.
+		 *
+		 * @return the number of parked responses
+		 */
+		public synchronized int parked() {
+			return parked.size();
+		}
+
+		/**
+		 * Checks that the responses could be written.
+		 *
+		 * @throws IOException the failure of the response writer
+		 */
+		public synchronized void checkFailure() throws IOException {
+			if (failure != null) {
+				throw new IOException("Failed to write the responses of the parallel batch", failure);
+			}
+		}
+
+		/**
+		 * Checks if it is the turn of a request to write to the response writer.
+		 *
+		 * @param index the position of the request in the batch
+		 * @return true if the request may write
+		 */
+		private boolean isTurn(int index) {
+			return owner == -1 && (unordered || index == next);
+		}
+
+		/**
+		 * Waits until the buffered characters, the owner or the failure change.
+		 *
+		 * @throws IOException if interrupted
+		 */
+		private void await() throws IOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to write a parallel response");
+			}
+		}
+
+		/**
+		 * Writes to the response writer, recording its failure.
+		 *
+		 * @param text the text
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private void write(String text) throws IOException {
+			try {
+				out.write(text);
+			} catch (IOException e) {
+				fail(e);
+				throw e;
+			}
+		}
+
+		/**
+		 * Records the failure of the response writer and wakes the waiting requests.
+		 *
+		 * @param e the failure
+		 */
+		private synchronized void fail(IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+			notifyAll();
+		}
+
+		/**
+		 * The Class ResponseWriter writes the response of one request, directly or into its buffer.
+		 */
+		public class ResponseWriter extends Writer {
+
+			/** The position of the request in the batch. */
+			private final int index;
+
+			/** The response written before the turn of the request. */
+			private final StringBuilder buffer = new StringBuilder();
+
+			/**
+			 * Instantiates a new response writer.
+			 *
+			 * @param index the position of the request in the batch
+			 */
+			private ResponseWriter(int index) {
+				this.index = index;
+			}
+
+			/* (non-Javadoc)
+			 * @see java.io.Writer#write(char[], int, int)
+			 */
+			@Override
+			public void write(char[] cbuf, int off, int len) throws IOException {
+				String earlier;
+				synchronized (ParallelOutput.this) {
+					while (owner != index) {
+						checkFailure();
+						if (isTurn(index)) {
+							owner = index;
+							break;
+						}
+						if (ParallelOutput.this.buffered + len <= maxBufferedChars) {
+							buffer.append(cbuf, off, len);
+							ParallelOutput.this.buffered += len;
+							return;
+						}
+						await();
+					}
+					earlier = take();
+				}
+				ParallelOutput.this.write(earlier);
+				ParallelOutput.this.write(new String(cbuf, off, len));
+			}
+
+			/**
+			 * Completes the response: writes it if it is the turn of the request, followed by the
+			 * completed responses whose turn comes next, otherwise parks it.
+			 *
+			 * @throws IOException Signals that the response could not be written.
+			 */
+			@Override
+			public void close() throws IOException {
+				String text;
+				synchronized (ParallelOutput.this) {
+					checkFailure();
+					if (owner != index && !isTurn(index)) {
+						parked.put(index, this);
+						return;
+					}
+					owner = index;
+					text = take();
+				}
+				while (true) {
+					ParallelOutput.this.write(text);
+					synchronized (ParallelOutput.this) {
+						next++;
+						ResponseWriter following = unordered ? first() : parked.remove(next);
+						if (following == null) {
+							owner = -1;
+							ParallelOutput.this.notifyAll();
+							return;
+						}
+						text = following.take();
+					}
+				}
+			}
+
+			/* (non-Javadoc)
+			 * @see java.io.Writer#flush()
+			 */
+			@Override
+			public void flush() {
+				// The response writer is flushed at the end of the batch
+			}
+
+			/**
+			 * Records the failure of the response, the following responses are dropped.
+			 *
+			 * @param e the failure
+			 */
+			public void fail(IOException e) {
+				ParallelOutput.this.fail(e);
+			}
+
+			/**
+			 * Takes the buffered response, releasing its characters. Called holding the lock of
+			 * the output.
+			 *
+			 * @return the buffered response
+			 */
+			private String take() {
+				String text = buffer.toString();
+				buffer.setLength(0);
+				buffer.trimToSize();
+				ParallelOutput.this.buffered -= text.length();
+				ParallelOutput.this.notifyAll();
+				return text;
+			}
+		}
+
+		/**
+		 * Removes any parked response. Called holding the lock of the output.
+		 *
+		 * @return the response or null if none is parked
+		 */
+		private ResponseWriter first() {
+			Iterator<ResponseWriter> it = parked.values().iterator();
+			if (!it.hasNext()) {
+				return null;
+			}
+			ResponseWriter response = it.next();
+			it.remove();
+			return response;
+		}
+	}
+
 }
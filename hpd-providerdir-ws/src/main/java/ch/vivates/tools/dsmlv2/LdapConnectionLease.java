@@ -0,0 +1,171 @@
+package ch.vivates.tools.dsmlv2;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.ldap.client.api.LdapConnectionPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class LdapConnectionLease keeps a pooled LDAP connection for several operations of a batch.
+ * The connection is returned to the pool after the configured number of operations, or when the
+ * lease is closed, and invalidated instead if an operation failed on it. A lease is used by one
+ * thread at a time.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class LdapConnectionLease {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(LdapConnectionLease.class);
+
+	/** The LDAP connection pool. */
+	private final LdapConnectionPool pool;
+
+	/** The number of operations per connection, 0 for the whole lease. */
+	private final int operationsPerConnection;
+
+	/** The statistics. */
+	private final Statistics statistics;
+
+	/** The leased connection. */
+	private LdapConnection connection;
+
+	/** The number of operations started on the leased connection. */
+	private int operations;
+
+	/**
+	 * Instantiates a new LDAP connection lease.
+	 *
+	 * @param pool the LDAP connection pool
+	 * @param operationsPerConnection the number of operations per connection, 0 for the whole lease
+	 * @param statistics the statistics to update
+	 */
+	public LdapConnectionLease(LdapConnectionPool pool, int operationsPerConnection, Statistics statistics) {
+		this.pool = pool;
+		this.operationsPerConnection = operationsPerConnection;
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Gets the connection for the next operation, borrowing one from the pool if the lease holds
+	 * none. Every call must be followed by {@link #release()} or {@link #invalidate()}.
+	 *
+	 * @return the connection
+	 * @throws LdapException if no connection can be borrowed
+	 */
+	public LdapConnection acquire() throws LdapException {
+		if (connection == null) {
+			connection = pool.getConnection();
+			operations = 0;
+			statistics.borrowed.incrementAndGet();
+		} else {
+			statistics.reused.incrementAndGet();
+		}
+		operations++;
+		return connection;
+	}
+
+	/**
+	 * Ends an operation which left the connection usable. The connection is kept for the next
+	 * operation unless the lease has reached the number of operations per connection.
+	 *
+	 * @throws LdapException if the connection cannot be returned to the pool
+	 */
+	public void release() throws LdapException {
+		if (connection == null) {
+			return;
+		}
+		if (!connection.isConnected()) {
+			invalidate();
+		} else if (operationsPerConnection > 0 && operations >= operationsPerConnection) {
+			returnConnection();
+		}
+	}
+
+	/**
+	 * Ends an operation which failed. The connection may be in an unknown state, e.g. with unread
+	 * search results, so it is removed from the pool instead of being returned.
+	 */
+	public void invalidate() {
+		if (connection == null) {
+			return;
+		}
+		LdapConnection broken = connection;
+		connection = null;
+		statistics.invalidated.incrementAndGet();
+		try {
+			pool.invalidateObject(broken);
+		} catch (Exception e) {
+			LOG.warn("Failed to invalidate LDAP connection", e);
+		}
+	}
+
+	/**
+	 * Returns the leased connection to the pool.
+	 *
+	 * @throws LdapException if the connection cannot be returned to the pool
+	 */
+	public void close() throws LdapException {
+		if (connection != null) {
+			returnConnection();
+		}
+	}
+
+	/**
+	 * Returns the leased connection to the pool.
+	 *
+	 * @throws LdapException if the connection cannot be returned to the pool
+	 */
+	private void returnConnection() throws LdapException {
+		LdapConnection released = connection;
+		connection = null;
+		pool.releaseConnection(released);
+	}
+
+	/**
+	 * The Class Statistics counts how connections were obtained by the leases sharing it.
+	 */
+	public static class Statistics {
+
+		/** The number of operations which borrowed a connection from the pool. */
+		private final AtomicLong borrowed = new AtomicLong();
+
+		/** The number of operations which reused the leased connection. */
+		private final AtomicLong reused = new AtomicLong();
+
+		/** The number of connections invalidated after a failed operation. */
+		private final AtomicLong invalidated = new AtomicLong();
+
+		/**
+		 * Gets the number of operations which borrowed a connection from the pool.
+		 *
+		 * @return the borrowed count
+		 */
+		public long getBorrowed() {
+			return borrowed.get();
+		}
+
+		/**
+		 * Gets the number of operations which reused the leased connection.
+		 *
+		 * @return the reused count
+		 */
+		public long getReused() {
+			return reused.get();
+		}
+
+		/**
+		 * Gets the number of connections invalidated after a failed operation.
+		 *
+		 * @return the invalidated count
+		 */
+		public long getInvalidated() {
+			return invalidated.get();
+		}
+	}
+
+}
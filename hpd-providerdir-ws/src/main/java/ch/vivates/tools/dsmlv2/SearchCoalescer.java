@@ -0,0 +1,217 @@
+package ch.vivates.tools.dsmlv2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.message.Response;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+
+/**
+ * The Class SearchCoalescer lets identical searches running at the same time share one LDAP
+ * search. The first caller leads the flight and sends the search; later callers with the same
+ * key wait for its result and replay it. Followers send their own search if the leader fails,
+ * the result is too large to share or the maximum wait is exceeded.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class SearchCoalescer {
+
+	/** The searches in flight by key. */
+	private final ConcurrentMap<SearchKey, Flight> flights = new ConcurrentHashMap<SearchKey, Flight>();
+
+	/** The time a follower waits for the result of the leader. */
+	private long maxWaitMillis = 5000;
+
+	/** The maximum number of entries and references of a shared result. */
+	private int maxEntries = 5000;
+
+	/** The number of searches answered with the result of another search. */
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/** The number of followers which had to send their own search. */
+	private final AtomicLong fallbacks = new AtomicLong();
+
+	/**
+	 * Joins the flight of a search, leading it if there is none.
+	 *
+	 * @param key the search key
+	 * @return the flight, led by the caller if {@link Flight#isLeader()} is true
+	 */
+	public Flight join(SearchKey key) {
+		Flight flight = new Flight(key);
+		Flight existing = flights.putIfAbsent(key, flight);
+		return existing != null ? new Flight(existing) : flight;
+	}
+
+	/**
+	 * Detaches the searches in flight after a change of the directory. Their followers still get
+	 * their result, but later searches are sent again.
+	 */
+	public void detachAll() {
+		flights.clear();
+	}
+
+	/**
+	 * Sets the time a follower waits for the result of the leader.
+	 *
+	 * @param maxWaitMillis the new maximum wait in milliseconds
+	 */
+	public void setMaxWaitMillis(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * Sets the maximum number of entries and references of a shared result.
+	 *
+	 * @param maxEntries the new maximum number of entries
+	 */
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Gets the number of searches answered with the result of another search.
+	 *
+	 * @return the coalesced count
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Gets the number of followers which had to send their own search.
+	 *
+	 * @return the fallback count
+	 */
+	public long getFallbacks() {
+		return fallbacks.get();
+	}
+
+	/**
+	 * Gets the number of searches in flight.
+	 *
+	 * @return the number of flights
+	 */
+	public int getInFlight() {
+		return flights.size();
+	}
+
+	/**
+	 * The Class Flight is the participation of a caller in a search in flight. The leader
+	 * collects the result, followers wait for it.
+	 */
+	public class Flight implements SearchResultSink {
+
+		/** The search key. */
+		private final SearchKey key;
+
+		/** The flight of the leader, this for the leader itself. */
+		private final Flight leader;
+
+		/** Released when the leader has finished. */
+		private final CountDownLatch finished = new CountDownLatch(1);
+
+		/** The entries and references, null once the result is too large. */
+		private List<Response> responses = new ArrayList<Response>();
+
+		/** The shared result or null if it cannot be shared. */
+		private volatile SearchResultCache.Result result;
+
+		/**
+		 * Instantiates the flight of a leader.
+		 *
+		 * @param key the search key
+		 */
+		private Flight(SearchKey key) {
+			this.key = key;
+			this.leader = this;
+		}
+
+		/**
+		 * Instantiates the participation of a follower.
+		 *
+		 * @param leader the flight of the leader
+		 */
+		private Flight(Flight leader) {
+			this.key = leader.key;
+			this.leader = leader;
+			this.responses = null;
+		}
+
+		/**
+		 * Checks if the caller leads the flight.
+		 *
+		 * @return true if the caller sends the search
+		 */
+		public boolean isLeader() {
+			return leader == this;
+		}
+
+		/**
+		 * Waits for the result of the leader. Returns null if the caller has to send the search itself.
+		 *
+		 * @return the result or null
+		 * @throws InterruptedException the interrupted exception
+		 */
+		public SearchResultCache.Result await() throws InterruptedException {
+			SearchResultCache.Result shared = null;
+			if (leader.finished.await(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+				shared = leader.result;
+			}
+			if (shared == null) {
+				fallbacks.incrementAndGet();
+			} else {
+				coalesced.incrementAndGet();
+			}
+			return shared;
+		}
+
+		/* (non-Javadoc)
+		 * @see ch.vivates.tools.dsmlv2.SearchResultSink#add(org.apache.directory.api.ldap.model.message.Response)
+		 */
+		@Override
+		public void add(Response response) {
+			if (responses == null) {
+				return;
+			}
+			if (responses.size() >= maxEntries) {
+				// Followers need not wait for a result they will not get
+				responses = null;
+				finish();
+				return;
+			}
+			responses.add(response);
+		}
+
+		/* (non-Javadoc)
+		 * @see ch.vivates.tools.dsmlv2.SearchResultSink#complete(org.apache.directory.api.ldap.model.message.SearchResultDone)
+		 */
+		@Override
+		public void complete(SearchResultDone done) {
+			if (responses != null && done != null && done.getControls().isEmpty()
+					&& done.getLdapResult().getResultCode() != ResultCodeEnum.REFERRAL) {
+				result = new SearchResultCache.Result(responses, done, Long.MAX_VALUE);
+			}
+			finish();
+		}
+
+		/**
+		 * Ends the flight, releasing the followers. Called by the leader in any case once the
+		 * search is over, including after a failure.
+		 */
+		public void finish() {
+			if (isLeader()) {
+				flights.remove(key, this);
+				finished.countDown();
+			}
+		}
+	}
+
+}
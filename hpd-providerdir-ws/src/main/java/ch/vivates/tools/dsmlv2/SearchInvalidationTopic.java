@@ -0,0 +1,261 @@
+package ch.vivates.tools.dsmlv2;
+
+import java.util.List;
+import java.util.UUID;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class SearchInvalidationTopic shares the invalidations of the search result cache and of
+ * the search coalescer between the nodes. The feeds are consumed by any of the nodes, so a node
+ * must drop the results a change applied by another node made stale. The engine publishes the
+ * DNs of every change it applied to a JMS topic, and every other node subscribed to the topic
+ * invalidates its own results and detaches its searches in flight.
+ * <p>
+ * The other nodes may answer from their cache until the invalidation is delivered. While the
+ * subscriber is not connected, changes may be missed, so it clears the cache every time it
+ * subscribes again.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class SearchInvalidationTopic {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(SearchInvalidationTopic.class);
+
+	/** The message property holding the node which published an invalidation. */
+	private static final String ORIGIN_PROPERTY = "origin";
+
+	/** The separator of the DNs of an invalidation. */
+	private static final String DN_SEPARATOR = "\n";
+
+	/** The time the subscriber waits for a message before it checks whether it still runs. */
+	private static final long POLL_MILLIS = 1000;
+
+	/** The time the subscriber waits after a failure before it subscribes again. */
+	private static final long RETRY_DELAY_MILLIS = 5000;
+
+	/** The identifier of this node, its own invalidations are already applied. */
+	private final String origin = UUID.randomUUID().toString();
+
+	/** The connection factory. */
+	private ConnectionFactory connectionFactory;
+
+	/** The name of the topic. */
+	private String topicName = "search_invalidations";
+
+	/** The cache of search results or null if there is none. */
+	private SearchResultCache searchResultCache;
+
+	/** The coalescer of identical concurrent searches or null if there is none. */
+	private SearchCoalescer searchCoalescer;
+
+	/** The subscriber thread. */
+	private Thread subscriber;
+
+	/** True while the subscriber runs. */
+	private volatile boolean running;
+
+	/**
+	 * Starts the subscriber of the topic.
+	 */
+	public void start() {
+		running = true;
+		subscriber = new Thread(new Subscriber(), "hpd-search-invalidations");
+		subscriber.setDaemon(true);
+		subscriber.start();
+	}
+
+	/**
+	 * Stops the subscriber of the topic.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the subscriber
+	 */
+	public void stop() throws InterruptedException {
+		running = false;
+		if (subscriber != null) {
+			subscriber.join(POLL_MILLIS + RETRY_DELAY_MILLIS);
+			subscriber = null;
+		}
+	}
+
+	/**
+	 * Publishes a change applied by this node to the other nodes.
+	 *
+	 * @param dns the DNs of the changed entries, null if the change is not known
+	 */
+	public void publish(List<Dn> dns) {
+		try {
+			Connection connection = connectionFactory.createConnection();
+			try {
+				Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+				MessageProducer producer = session.createProducer(session.createTopic(topicName));
+				// Invalidations only matter to the results cached now, a node subscribing later starts empty
+				producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+				TextMessage message = session.createTextMessage(dns != null ? join(dns) : null);
+				message.setStringProperty(ORIGIN_PROPERTY, origin);
+				producer.send(message);
+			} finally {
+				connection.close();
+			}
+		} catch (JMSException e) {
+			LOG.warn("Failed to publish the search invalidation, the other nodes keep their results until they expire", e);
+		}
+	}
+
+	/**
+	 * Applies an invalidation received from another node.
+	 *
+	 * @param message the message
+	 * @throws JMSException if the message cannot be read
+	 */
+	void apply(Message message) throws JMSException {
+		if (origin.equals(message.getStringProperty(ORIGIN_PROPERTY))) {
+			return;
+		}
+		if (searchCoalescer != null) {
+			searchCoalescer.detachAll();
+		}
+		if (searchResultCache == null) {
+			return;
+		}
+		String text = message instanceof TextMessage ? ((TextMessage) message).getText() : null;
+		if (text == null) {
+			searchResultCache.clear();
+			return;
+		}
+		for (String dn : text.split(DN_SEPARATOR, -1)) {
+			searchResultCache.invalidate(dn);
+		}
+	}
+
+	/**
+	 * Drops all results, after invalidations may have been missed.
+	 */
+	private void invalidateAll() {
+		if (searchCoalescer != null) {
+			searchCoalescer.detachAll();
+		}
+		if (searchResultCache != null) {
+			searchResultCache.clear();
+		}
+	}
+
+	/**
+	 * Joins the normalized DNs of an invalidation.
+	 *
+	 * @param dns the DNs
+	 * @return the text of the message
+	 */
+	private static String join(List<Dn> dns) {
+		StringBuilder text = new StringBuilder();
+		for (Dn dn : dns) {
+			if (text.length() > 0) {
+				text.append(DN_SEPARATOR);
+			}
+			text.append(SearchKey.normalize(dn));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Sets the connection factory.
+	 *
+	 * @param connectionFactory the new connection factory
+	 */
+	public void setConnectionFactory(ConnectionFactory connectionFactory) {
+		this.connectionFactory = connectionFactory;
+	}
+
+	/**
+	 * Sets the name of the topic.
+	 *
+	 * @param topicName the new topic name
+	 */
+	public void setTopicName(String topicName) {
+		this.topicName = topicName;
+	}
+
+	/**
+	 * Sets the cache of search results invalidated by the changes of the other nodes.
+	 *
+	 * @param searchResultCache the new search result cache
+	 */
+	public void setSearchResultCache(SearchResultCache searchResultCache) {
+		this.searchResultCache = searchResultCache;
+	}
+
+	/**
+	 * Sets the coalescer of identical concurrent searches detached by the changes of the other
+	 * nodes.
+	 *
+	 * @param searchCoalescer the new search coalescer
+	 */
+	public void setSearchCoalescer(SearchCoalescer searchCoalescer) {
+		this.searchCoalescer = searchCoalescer;
+	}
+
+	/**
+	 * The Class Subscriber receives the invalidations of the other nodes from the topic.
+	 */
+	private class Subscriber implements Runnable {
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					subscribe();
+				} catch (JMSException e) {
+					LOG.warn("Search invalidation subscriber failed, retrying in " + RETRY_DELAY_MILLIS + " ms", e);
+					try {
+						Thread.sleep(RETRY_DELAY_MILLIS);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						running = false;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Receives the invalidations until stopped.
+		 *
+		 * @throws JMSException if the topic is not available
+		 */
+		private void subscribe() throws JMSException {
+			Connection connection = connectionFactory.createConnection();
+			try {
+				connection.start();
+				Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+				MessageConsumer consumer = session.createConsumer(session.createTopic(topicName));
+				// Changes published while not subscribed are lost
+				invalidateAll();
+				while (running) {
+					Message message = consumer.receive(POLL_MILLIS);
+					if (message != null) {
+						apply(message);
+					}
+				}
+			} finally {
+				connection.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,174 @@
+package ch.vivates.tools.dsmlv2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.directory.api.ldap.model.filter.BranchNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.LeafNode;
+import org.apache.directory.api.ldap.model.filter.NotNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.name.Dn;
+
+/**
+ * The Class SearchKey identifies searches which return the same result: same base DN, scope,
+ * alias dereferencing, filter, requested attributes, typesOnly flag and limits. The base DN, the
+ * attribute names and the filter are normalized, so differences in their case, whitespace or
+ * order map to the same key: the operands of and/or filters are sorted and the attribute names
+ * of the filter are lower cased. Filter values are kept as sent since their matching rules are
+ * not known here.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public final class SearchKey {
+
+	/** The normalized base DN. */
+	private final String base;
+
+	/** The canonical form of the other search parameters. */
+	private final String parameters;
+
+	/** The hash code. */
+	private final int hashCode;
+
+	/**
+	 * Instantiates a new search key.
+	 *
+	 * @param base the normalized base DN
+	 * @param parameters the canonical form of the other search parameters
+	 */
+	private SearchKey(String base, String parameters) {
+		this.base = base;
+		this.parameters = parameters;
+		this.hashCode = 31 * base.hashCode() + parameters.hashCode();
+	}
+
+	/**
+	 * Creates the key of a search. Searches with controls are not keyed, since their result
+	 * depends on state the key does not capture, e.g. paging cookies.
+	 *
+	 * @param searchRequest the search request
+	 * @return the key or null if the search has controls
+	 */
+	public static SearchKey create(SearchRequest searchRequest) {
+		if (!searchRequest.getControls().isEmpty()) {
+			return null;
+		}
+
+		List<String> attributes = new ArrayList<String>();
+		if (searchRequest.getAttributes() != null) {
+			for (String attribute : searchRequest.getAttributes()) {
+				String normalized = attribute.trim().toLowerCase(Locale.ENGLISH);
+				if (!attributes.contains(normalized)) {
+					attributes.add(normalized);
+				}
+			}
+		}
+		Collections.sort(attributes);
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(searchRequest.getScope()).append('|');
+		sb.append(searchRequest.getDerefAliases()).append('|');
+		sb.append(searchRequest.getSizeLimit()).append('|');
+		sb.append(searchRequest.getTimeLimit()).append('|');
+		sb.append(searchRequest.getTypesOnly()).append('|');
+		sb.append(attributes).append('|');
+		if (searchRequest.getFilter() != null) {
+			sb.append(canonicalize(searchRequest.getFilter()));
+		}
+
+		return new SearchKey(normalize(searchRequest.getBase()), sb.toString());
+	}
+
+	/**
+	 * Canonicalizes a filter.
+	 *
+	 * @param node the filter
+	 * @return the canonical form of the filter
+	 */
+	private static String canonicalize(ExprNode node) {
+		if (node instanceof BranchNode) {
+			List<String> operands = new ArrayList<String>();
+			for (ExprNode child : ((BranchNode) node).getChildren()) {
+				operands.add(canonicalize(child));
+			}
+			char operator;
+			if (node instanceof NotNode) {
+				operator = '!';
+			} else {
+				operator = node instanceof OrNode ? '|' : '&';
+				Collections.sort(operands);
+			}
+			StringBuilder sb = new StringBuilder().append('(').append(operator);
+			for (String operand : operands) {
+				sb.append(operand);
+			}
+			return sb.append(')').toString();
+		}
+
+		String filter = node.toString();
+		if (node instanceof LeafNode) {
+			String attribute = ((LeafNode) node).getAttribute();
+			if (attribute != null && filter.startsWith("(" + attribute)) {
+				filter = "(" + attribute.toLowerCase(Locale.ENGLISH) + filter.substring(attribute.length() + 1);
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * Normalizes a DN for comparisons. Values are compared case insensitively, which is what
+	 * the HPD schema does for all naming attributes.
+	 *
+	 * @param dn the DN
+	 * @return the normalized DN
+	 */
+	public static String normalize(Dn dn) {
+		return dn == null ? "" : dn.getNormName().toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Gets the normalized base DN.
+	 *
+	 * @return the base DN
+	 */
+	public String getBase() {
+		return base;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof SearchKey)) {
+			return false;
+		}
+		SearchKey other = (SearchKey) obj;
+		return hashCode == other.hashCode && base.equals(other.base) && parameters.equals(other.parameters);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return base + '|' + parameters;
+	}
+
+}
@@ -0,0 +1,181 @@
+package ch.vivates.tools.dsmlv2;
+
+import java.util.Map;
+
+import org.apache.directory.api.ldap.model.cursor.SearchCursor;
+import org.apache.directory.api.ldap.model.message.Control;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.controls.PagedResults;
+import org.apache.directory.api.ldap.model.message.controls.PagedResultsImpl;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class SearchPager splits a search into RFC 2696 simple paged results requests, so the
+ * directory server never builds more than one page of the result at a time. The client sees a
+ * single search response: the entries of all pages followed by one searchResultDone without the
+ * paging control. The sizeLimit of the search is enforced across the pages.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class SearchPager {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(SearchPager.class);
+
+	/** The OID of the server side sort request control (RFC 2891). */
+	static final String SORT_REQUEST_OID = "1.2.840.113556.1.4.473";
+
+	/** The OID of the virtual list view request control. */
+	static final String VLV_REQUEST_OID = "2.16.840.1.113730.3.4.9";
+
+	/** The search request, sent again for every page. */
+	private final SearchRequest searchRequest;
+
+	/** The page size. */
+	private final int pageSize;
+
+	/** The size limit of the whole search, 0 for no limit. */
+	private final long sizeLimit;
+
+	/** The number of entries returned so far. */
+	private long returned;
+
+	/**
+	 * Instantiates a new search pager and adds the paging control for the first page to the request.
+	 *
+	 * @param searchRequest the search request
+	 * @param pageSize the page size
+	 */
+	private SearchPager(SearchRequest searchRequest, int pageSize) {
+		this.searchRequest = searchRequest;
+		this.pageSize = pageSize;
+		this.sizeLimit = searchRequest.getSizeLimit();
+		addPagingControl(null);
+	}
+
+	/**
+	 * Creates a pager for the search unless paging is disabled or the client controls the result
+	 * itself with a paging, sort or virtual list view control.
+	 *
+	 * @param searchRequest the search request
+	 * @param pageSize the page size, 0 to disable paging
+	 * @return the pager or null if the search is sent as it is
+	 */
+	public static SearchPager create(SearchRequest searchRequest, int pageSize) {
+		if (pageSize <= 0) {
+			return null;
+		}
+		Map<String, Control> controls = searchRequest.getControls();
+		if (controls.containsKey(PagedResults.OID) || controls.containsKey(SORT_REQUEST_OID)
+				|| controls.containsKey(VLV_REQUEST_OID)) {
+			return null;
+		}
+		return new SearchPager(searchRequest, pageSize);
+	}
+
+	/**
+	 * Counts an entry written to the response.
+	 */
+	public void entryReturned() {
+		returned++;
+	}
+
+	/**
+	 * Sends the request for the next page if the server has more entries and the size limit
+	 * allows it.
+	 *
+	 * @param connection the connection the previous pages were read from
+	 * @param done the searchResultDone of the previous page
+	 * @return the cursor on the next page or null if the search is complete
+	 * @throws Exception the exception
+	 */
+	public SearchCursor nextPage(LdapConnection connection, SearchResultDone done) throws Exception {
+		byte[] cookie = getCookie(done);
+		if (cookie == null || done.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS) {
+			return null;
+		}
+		if (sizeLimit > 0 && returned >= sizeLimit) {
+			done.getLdapResult().setResultCode(ResultCodeEnum.SIZE_LIMIT_EXCEEDED);
+			release(connection, cookie);
+			return null;
+		}
+		addPagingControl(cookie);
+		return connection.search(searchRequest);
+	}
+
+	/**
+	 * Removes the paging control the server added to the last searchResultDone.
+	 *
+	 * @param done the last searchResultDone
+	 */
+	public void complete(SearchResultDone done) {
+		Control control = done == null ? null : done.getControls().get(PagedResults.OID);
+		if (control != null) {
+			done.removeControl(control);
+		}
+	}
+
+	/**
+	 * Gets the cookie of the paging control of a searchResultDone.
+	 *
+	 * @param done the searchResultDone
+	 * @return the cookie or null if the server has no more entries
+	 */
+	private static byte[] getCookie(SearchResultDone done) {
+		if (done == null) {
+			return null;
+		}
+		Control control = done.getControls().get(PagedResults.OID);
+		if (!(control instanceof PagedResults)) {
+			return null;
+		}
+		byte[] cookie = ((PagedResults) control).getCookie();
+		return cookie == null || cookie.length == 0 ? null : cookie;
+	}
+
+	/**
+	 * Sets the paging control of the request for the next page.
+	 *
+	 * @param cookie the cookie of the previous page or null for the first page
+	 */
+	private void addPagingControl(byte[] cookie) {
+		PagedResults paging = new PagedResultsImpl();
+		int size = pageSize;
+		if (sizeLimit > 0) {
+			size = (int) Math.min(size, sizeLimit - returned);
+		}
+		paging.setSize(size);
+		if (cookie != null) {
+			paging.setCookie(cookie);
+		}
+		searchRequest.addControl(paging);
+	}
+
+	/**
+	 * Tells the server to release the result it keeps for a search which will not be continued,
+	 * by requesting a page of size 0.
+	 *
+	 * @param connection the connection
+	 * @param cookie the cookie of the last page
+	 */
+	private void release(LdapConnection connection, byte[] cookie) {
+		PagedResults paging = new PagedResultsImpl();
+		paging.setSize(0);
+		paging.setCookie(cookie);
+		searchRequest.addControl(paging);
+		try {
+			SearchCursor cursor = connection.search(searchRequest);
+			while (cursor.next()) {
+				// A page of size 0 has no entries
+			}
+		} catch (Exception e) {
+			LOG.warn("Failed to release paged search on the server", e);
+		}
+	}
+
+}
@@ -0,0 +1,326 @@
+package ch.vivates.tools.dsmlv2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.directory.api.ldap.model.message.LdapResult;
+import org.apache.directory.api.ldap.model.message.Response;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchResultDoneImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+
+/**
+ * The Class SearchResultCache keeps the results of recent searches, bounded in number of results,
+ * entries per result and age. The results whose base DN lies on the branch of a changed entry
+ * are invalidated by the engine after every successful add, delete, modify or modDN, and by the
+ * {@link SearchInvalidationTopic} after the changes applied by the other nodes. Each
+ * invalidation starts a new generation, so a search which started before it cannot store its
+ * possibly stale result afterwards.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class SearchResultCache {
+
+	/** The maximum number of cached results. */
+	private int maxResults = 1000;
+
+	/** The maximum number of entries and references of a cached result. */
+	private int maxEntriesPerResult = 500;
+
+	/** The time a result stays in the cache. */
+	private long timeToLiveMillis = 60000;
+
+	/** The cached results in least recently used order. */
+	private final LinkedHashMap<SearchKey, Result> results = new LinkedHashMap<SearchKey, Result>(16, 0.75f, true);
+
+	/** The generation, incremented by every invalidation. */
+	private long generation;
+
+	/** The number of searches answered from the cache. */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** The number of searches not found in the cache. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/** The number of results removed because of size or age. */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/** The number of results removed because of a change in the directory. */
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Gets the cached result of a search.
+	 *
+	 * @param key the search key
+	 * @return the result or null if it is not cached
+	 */
+	public synchronized Result get(SearchKey key) {
+		Result result = results.get(key);
+		if (result != null && result.expires < System.currentTimeMillis()) {
+			results.remove(key);
+			evictions.incrementAndGet();
+			result = null;
+		}
+		if (result == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * Creates a collector for the result of a search about to be sent.
+	 *
+	 * @param key the search key
+	 * @return the collector
+	 */
+	public synchronized Collector newCollector(SearchKey key) {
+		return new Collector(key, generation);
+	}
+
+	/**
+	 * Invalidates the results which may contain or depend on an entry: those whose base DN is the
+	 * entry, one of its ancestors or one of its descendants.
+	 *
+	 * @param dn the DN of the changed entry
+	 */
+	public void invalidate(Dn dn) {
+		invalidate(SearchKey.normalize(dn));
+	}
+
+	/**
+	 * Invalidates the results which may contain or depend on an entry, given by its normalized DN
+	 * as published by another node.
+	 *
+	 * @param target the normalized DN of the changed entry
+	 */
+	synchronized void invalidate(String target) {
+		generation++;
+		Iterator<SearchKey> keys = results.keySet().iterator();
+		while (keys.hasNext()) {
+			String base = keys.next().getBase();
+			if (base.isEmpty() || target.isEmpty() || base.equals(target) || target.endsWith("," + base) || base.endsWith("," + target)) {
+				keys.remove();
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Removes all results.
+	 */
+	public synchronized void clear() {
+		generation++;
+		invalidations.addAndGet(results.size());
+		results.clear();
+	}
+
+	/**
+	 * Stores a result unless the cache has been invalidated since the search was sent.
+	 *
+	 * @param key the search key
+	 * @param result the result
+	 * @param searchGeneration the generation when the search was sent
+	 */
+	private synchronized void put(SearchKey key, Result result, long searchGeneration) {
+		if (searchGeneration != generation || maxResults <= 0) {
+			return;
+		}
+		results.put(key, result);
+		Iterator<SearchKey> eldest = results.keySet().iterator();
+		while (results.size() > maxResults) {
+			eldest.next();
+			eldest.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Sets the maximum number of cached results.
+	 *
+	 * @param maxResults the new maximum number of results
+	 */
+	public void setMaxResults(int maxResults) {
+		this.maxResults = maxResults;
+	}
+
+	/**
+	 * Sets the maximum number of entries and references of a cached result. Larger results are
+	 * not cached.
+	 *
+	 * @param maxEntriesPerResult the new maximum number of entries per result
+	 */
+	public void setMaxEntriesPerResult(int maxEntriesPerResult) {
+		this.maxEntriesPerResult = maxEntriesPerResult;
+	}
+
+	/**
+	 * Sets the time a result stays in the cache.
+	 *
+	 * @param timeToLiveMillis the new time to live in milliseconds
+	 */
+	public void setTimeToLiveMillis(long timeToLiveMillis) {
+		this.timeToLiveMillis = timeToLiveMillis;
+	}
+
+	/**
+	 * Gets the number of searches answered from the cache.
+	 *
+	 * @return the hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of searches not found in the cache.
+	 *
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of results removed because of size or age.
+	 *
+	 * @return the evictions
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Gets the number of results removed because of a change in the directory.
+	 *
+	 * @return the invalidations
+	 */
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	/**
+	 * Gets the number of cached results.
+	 *
+	 * @return the size
+	 */
+	public synchronized int getSize() {
+		return results.size();
+	}
+
+	/**
+	 * The Class Result is a cached search result. It is shared between requests and never modified.
+	 */
+	public static class Result {
+
+		/** The entries and references. */
+		private final List<Response> responses;
+
+		/** The searchResultDone. */
+		private final SearchResultDone done;
+
+		/** The expiry time. */
+		private final long expires;
+
+		/**
+		 * Instantiates a new result.
+		 *
+		 * @param responses the entries and references
+		 * @param done the searchResultDone
+		 * @param expires the expiry time
+		 */
+		Result(List<Response> responses, SearchResultDone done, long expires) {
+			this.responses = Collections.unmodifiableList(responses);
+			this.done = done;
+			this.expires = expires;
+		}
+
+		/**
+		 * Gets the entries and references.
+		 *
+		 * @return the responses
+		 */
+		public List<Response> getResponses() {
+			return responses;
+		}
+
+		/**
+		 * Creates a copy of the searchResultDone for the request it answers.
+		 *
+		 * @param messageId the message id of the request
+		 * @return the searchResultDone
+		 */
+		public SearchResultDone newDone(int messageId) {
+			SearchResultDone copy = new SearchResultDoneImpl(messageId);
+			LdapResult result = done.getLdapResult();
+			copy.getLdapResult().setResultCode(result.getResultCode());
+			copy.getLdapResult().setMatchedDn(result.getMatchedDn());
+			copy.getLdapResult().setDiagnosticMessage(result.getDiagnosticMessage());
+			return copy;
+		}
+	}
+
+	/**
+	 * The Class Collector gathers the result of a search while it is written to the response and
+	 * stores it when the search has succeeded.
+	 */
+	public class Collector implements SearchResultSink {
+
+		/** The search key. */
+		private final SearchKey key;
+
+		/** The generation when the search was sent. */
+		private final long searchGeneration;
+
+		/** The entries and references, null once the result is too large. */
+		private List<Response> responses = new ArrayList<Response>();
+
+		/**
+		 * Instantiates a new collector.
+		 *
+		 * @param key the search key
+		 * @param searchGeneration the generation when the search was sent
+		 */
+		private Collector(SearchKey key, long searchGeneration) {
+			this.key = key;
+			this.searchGeneration = searchGeneration;
+		}
+
+		/* (non-Javadoc)
+		 * @see ch.vivates.tools.dsmlv2.SearchResultSink#add(org.apache.directory.api.ldap.model.message.Response)
+		 */
+		@Override
+		public void add(Response response) {
+			if (responses == null) {
+				return;
+			}
+			if (responses.size() >= maxEntriesPerResult) {
+				responses = null;
+				return;
+			}
+			responses.add(response);
+		}
+
+		/**
+		 * Stores the result if the search has succeeded and the result is small enough.
+		 *
+		 * @param done the searchResultDone
+		 */
+		@Override
+		public void complete(SearchResultDone done) {
+			if (responses == null || done == null || done.getLdapResult().getResultCode() != ResultCodeEnum.SUCCESS
+					|| !done.getControls().isEmpty()) {
+				return;
+			}
+			put(key, new Result(responses, done, System.currentTimeMillis() + timeToLiveMillis), searchGeneration);
+		}
+	}
+
+}
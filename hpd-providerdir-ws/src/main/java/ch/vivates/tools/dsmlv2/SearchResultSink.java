@@ -0,0 +1,29 @@
+package ch.vivates.tools.dsmlv2;
+
+import org.apache.directory.api.ldap.model.message.Response;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+
+/**
+ * The Interface SearchResultSink receives the results of a search while the engine writes them
+ * to the response.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public interface SearchResultSink {
+
+	/**
+	 * Adds a search result entry or reference.
+	 *
+	 * @param response the entry or reference
+	 */
+	void add(Response response);
+
+	/**
+	 * Completes the search.
+	 *
+	 * @param done the searchResultDone or null if the server did not send one
+	 */
+	void complete(SearchResultDone done);
+
+}
@@ -0,0 +1,85 @@
+package ch.vivates.tools.dsmlv2;
+
+import java.io.Writer;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.directory.api.dsmlv2.ParserUtils;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+
+/**
+ * The Class StaxSearchResultWriter serializes search result entries directly to the response
+ * writer with a XMLStreamWriter. It produces the same DSML as SearchResultEntryDsml without
+ * building a dom4j element tree for every entry.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class StaxSearchResultWriter {
+
+	/** The XML output factory, thread safe once configured. */
+	private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+	/** The XML stream writer. */
+	private final XMLStreamWriter xmlWriter;
+
+	/**
+	 * Instantiates a new StAX search result writer.
+	 *
+	 * @param writer the response writer, the batchResponse element must already be open
+	 * @throws XMLStreamException the XML stream exception
+	 */
+	public StaxSearchResultWriter(Writer writer) throws XMLStreamException {
+		this.xmlWriter = OUTPUT_FACTORY.createXMLStreamWriter(writer);
+	}
+
+	/**
+	 * Checks if the entry can be written by this writer. Entries with controls are left to
+	 * SearchResultEntryDsml, which knows how to encode them.
+	 *
+	 * @param entry the search result entry
+	 * @return true if the entry can be written
+	 */
+	public static boolean canWrite(SearchResultEntry entry) {
+		return entry.getControls() == null || entry.getControls().isEmpty();
+	}
+
+	/**
+	 * Writes a search result entry and flushes it to the response writer.
+	 *
+	 * @param entry the search result entry
+	 * @throws XMLStreamException the XML stream exception
+	 */
+	public void write(SearchResultEntry entry) throws XMLStreamException {
+		xmlWriter.writeStartElement("searchResultEntry");
+		xmlWriter.writeAttribute("dn", entry.getObjectName().getName());
+
+		for (Attribute attribute : entry.getEntry()) {
+			xmlWriter.writeStartElement("attr");
+			xmlWriter.writeAttribute("name", attribute.getUpId());
+
+			for (Value<?> value : attribute) {
+				xmlWriter.writeStartElement("value");
+				if (ParserUtils.needsBase64Encoding(value.getValue())) {
+					// xsi and xsd are declared on the batchResponse element
+					xmlWriter.writeAttribute(ParserUtils.XSI_NAMESPACE.getPrefix(), ParserUtils.XSI_NAMESPACE.getURI(), "type",
+							ParserUtils.XSD_NAMESPACE.getPrefix() + ":base64Binary");
+					xmlWriter.writeCharacters(ParserUtils.base64Encode(value.getValue()));
+				} else {
+					xmlWriter.writeCharacters(value.getString());
+				}
+				xmlWriter.writeEndElement();
+			}
+
+			xmlWriter.writeEndElement();
+		}
+
+		xmlWriter.writeEndElement();
+		xmlWriter.flush();
+	}
+
+}
@@ -0,0 +1,335 @@
+package ch.vivates.tools.jaxp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class StreamingSourceFactory creates XML sources which are written by a producer running on
+ * an executor while the consumer reads them. The data passes through a bounded buffer, so memory
+ * does not depend on the size of the document and the consumer receives the first bytes as soon as
+ * the producer writes them.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public class StreamingSourceFactory {
+
+	/** The Constant LOG. */
+	private static final Logger LOG = LoggerFactory.getLogger(StreamingSourceFactory.class);
+
+	/** The executor running the producers. */
+	private Executor executor;
+
+	/** The size of the buffer between producer and consumer. */
+	private int bufferSize = 64 * 1024;
+
+	/** The time a producer waits for the consumer to read before giving up. */
+	private long consumerTimeoutMillis = 60000;
+
+	/**
+	 * Creates a source written by the producer. The method returns when the producer has written
+	 * the first bytes or has finished. A producer failing before it has written anything is
+	 * reported to the caller, later failures are reported to the consumer of the source.
+	 *
+	 * @param producer the producer
+	 * @return the source
+	 * @throws RejectedExecutionException if the executor does not accept the producer
+	 * @throws Exception the exception thrown by the producer before it has written anything
+	 */
+	public Source newSource(final Producer producer) throws Exception {
+		final Pipe pipe = new Pipe(bufferSize, consumerTimeoutMillis);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					producer.writeTo(pipe.getOutputStream());
+					pipe.close(null);
+				} catch (Exception e) {
+					LOG.warn("Failed to produce streamed document", e);
+					pipe.close(e);
+				}
+			}
+		});
+
+		Exception failure = pipe.awaitFirstBytes();
+		if (failure != null) {
+			throw failure;
+		}
+		return new StreamSource(pipe.getInputStream());
+	}
+
+	/**
+	 * Sets the executor running the producers.
+	 *
+	 * @param executor the new executor
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets the size of the buffer between producer and consumer.
+	 *
+	 * @param bufferSize the new buffer size
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Sets the time a producer waits for the consumer to read before giving up.
+	 *
+	 * @param consumerTimeoutMillis the new consumer timeout in milliseconds
+	 */
+	public void setConsumerTimeoutMillis(long consumerTimeoutMillis) {
+		this.consumerTimeoutMillis = consumerTimeoutMillis;
+	}
+
+	/**
+	 * The Interface Producer writes a streamed document.
+	 */
+	public interface Producer {
+
+		/**
+		 * Writes the document.
+		 *
+		 * @param out the output stream, closed by the caller
+		 * @throws Exception the exception
+		 */
+		void writeTo(OutputStream out) throws Exception;
+	}
+
+	/**
+	 * The Class Pipe is a bounded ring buffer between one producer and one consumer thread which
+	 * propagates producer failures and consumer abandonment.
+	 */
+	private static class Pipe {
+
+		/** The lock. */
+		private final ReentrantLock lock = new ReentrantLock();
+
+		/** Signaled when data has been written or the pipe has been closed. */
+		private final Condition readable = lock.newCondition();
+
+		/** Signaled when data has been read or the consumer has gone. */
+		private final Condition writable = lock.newCondition();
+
+		/** The buffer. */
+		private final byte[] buffer;
+
+		/** The time the producer waits for free space. */
+		private final long consumerTimeoutMillis;
+
+		/** The read position. */
+		private int readPos;
+
+		/** The number of buffered bytes. */
+		private int count;
+
+		/** True if anything has been written. */
+		private boolean written;
+
+		/** True if the producer has finished. */
+		private boolean closedByProducer;
+
+		/** True if the consumer has closed its stream. */
+		private boolean closedByConsumer;
+
+		/** The producer failure. */
+		private Exception failure;
+
+		/**
+		 * Instantiates a new pipe.
+		 *
+		 * @param size the buffer size
+		 * @param consumerTimeoutMillis the time the producer waits for free space
+		 */
+		public Pipe(int size, long consumerTimeoutMillis) {
+			this.buffer = new byte[size];
+			this.consumerTimeoutMillis = consumerTimeoutMillis;
+		}
+
+		/**
+		 * Waits until the producer has written the first bytes or has finished.
+		 *
+		 * @return the failure of the producer if it failed before writing anything
+		 * @throws InterruptedException the interrupted exception
+		 */
+		public Exception awaitFirstBytes() throws InterruptedException {
+			lock.lock();
+			try {
+				while (!written && !closedByProducer) {
+					readable.await();
+				}
+				return written ? null : failure;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Closes the producer side.
+		 *
+		 * @param e the producer failure or null
+		 */
+		public void close(Exception e) {
+			lock.lock();
+			try {
+				closedByProducer = true;
+				failure = e;
+				readable.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Writes bytes, waiting for free space.
+		 *
+		 * @param b the bytes
+		 * @param off the offset
+		 * @param len the length
+		 * @throws IOException if the consumer has gone or did not read in time
+		 */
+		private void write(byte[] b, int off, int len) throws IOException {
+			lock.lock();
+			try {
+				while (len > 0) {
+					long nanos = TimeUnit.MILLISECONDS.toNanos(consumerTimeoutMillis);
+					while (count == buffer.length && !closedByConsumer) {
+						if (nanos <= 0) {
+							throw new IOException("Consumer did not read the streamed document within " + consumerTimeoutMillis + " ms");
+						}
+						nanos = writable.awaitNanos(nanos);
+					}
+					if (closedByConsumer) {
+						throw new IOException("Consumer closed the streamed document");
+					}
+					int writePos = (readPos + count) % buffer.length;
+					int n = Math.min(len, Math.min(buffer.length - count, buffer.length - writePos));
+					System.arraycopy(b, off, buffer, writePos, n);
+					count += n;
+					off += n;
+					len -= n;
+					written = true;
+					readable.signalAll();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while streaming document");
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Reads bytes, waiting for data.
+		 *
+		 * @param b the bytes
+		 * @param off the offset
+		 * @param len the length
+		 * @return the number of bytes read or -1 at the end of the document
+		 * @throws IOException if the producer failed
+		 */
+		private int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			lock.lock();
+			try {
+				while (count == 0 && !closedByProducer) {
+					readable.await();
+				}
+				if (count == 0) {
+					if (failure != null) {
+						throw new IOException("Failed to produce streamed document", failure);
+					}
+					return -1;
+				}
+				int n = Math.min(len, Math.min(count, buffer.length - readPos));
+				System.arraycopy(buffer, readPos, b, off, n);
+				readPos = (readPos + n) % buffer.length;
+				count -= n;
+				writable.signalAll();
+				return n;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading streamed document");
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Closes the consumer side.
+		 */
+		private void closeConsumer() {
+			lock.lock();
+			try {
+				closedByConsumer = true;
+				writable.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Gets the output stream of the producer.
+		 *
+		 * @return the output stream
+		 */
+		public OutputStream getOutputStream() {
+			return new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					Pipe.this.write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					Pipe.this.write(b, off, len);
+				}
+			};
+		}
+
+		/**
+		 * Gets the input stream of the consumer.
+		 *
+		 * @return the input stream
+		 */
+		public InputStream getInputStream() {
+			return new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					int n = Pipe.this.read(b, 0, 1);
+					return n == -1 ? -1 : b[0] & 0xff;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return Pipe.this.read(b, off, len);
+				}
+
+				@Override
+				public void close() {
+					closeConsumer();
+				}
+			};
+		}
+	}
+
+}
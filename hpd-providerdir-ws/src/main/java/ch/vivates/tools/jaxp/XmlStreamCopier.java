@@ -0,0 +1,100 @@
+package ch.vivates.tools.jaxp;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * The Class XmlStreamCopier copies XML documents from a StAX reader into a StAX writer event by
+ * event, so documents can be embedded into a larger document without building a tree. Namespace
+ * declarations are copied as they are declared in the source, comments and processing
+ * instructions are dropped.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public final class XmlStreamCopier {
+
+	/**
+	 * Instantiates a new XML stream copier.
+	 */
+	private XmlStreamCopier() {
+	}
+
+	/**
+	 * Copies the document element of a document, without XML declaration.
+	 *
+	 * @param reader the reader at the start of the document
+	 * @param writer the writer
+	 * @throws XMLStreamException if the document is not well formed
+	 */
+	public static void copyDocumentElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+		reader.nextTag();
+		copyElement(reader, writer);
+	}
+
+	/**
+	 * Copies the element the reader is positioned on, leaving the reader on its end tag.
+	 *
+	 * @param reader the reader on a start tag
+	 * @param writer the writer
+	 * @throws XMLStreamException if the document is not well formed
+	 */
+	public static void copyElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+		int depth = 0;
+		do {
+			switch (reader.getEventType()) {
+			case XMLStreamConstants.START_ELEMENT:
+				writeStartElement(reader, writer);
+				depth++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				writer.writeEndElement();
+				depth--;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.SPACE:
+				writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				break;
+			case XMLStreamConstants.CDATA:
+				writer.writeCData(reader.getText());
+				break;
+			default:
+				break;
+			}
+		} while (depth > 0 && reader.hasNext() && reader.next() > 0);
+	}
+
+	/**
+	 * Writes the start tag the reader is positioned on, with its namespace declarations and
+	 * attributes.
+	 *
+	 * @param reader the reader
+	 * @param writer the writer
+	 * @throws XMLStreamException Signals that an XML stream exception has occurred.
+	 */
+	private static void writeStartElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+		String prefix = reader.getPrefix() == null ? "" : reader.getPrefix();
+		String namespaceURI = reader.getNamespaceURI() == null ? "" : reader.getNamespaceURI();
+		writer.writeStartElement(prefix, reader.getLocalName(), namespaceURI);
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+			String declared = reader.getNamespacePrefix(i);
+			if (declared == null || declared.isEmpty()) {
+				writer.writeDefaultNamespace(reader.getNamespaceURI(i));
+			} else {
+				writer.writeNamespace(declared, reader.getNamespaceURI(i));
+			}
+		}
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			String attributeURI = reader.getAttributeNamespace(i);
+			if (attributeURI == null || attributeURI.isEmpty()) {
+				writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+			} else {
+				writer.writeAttribute(reader.getAttributePrefix(i), attributeURI, reader.getAttributeLocalName(i),
+						reader.getAttributeValue(i));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,589 @@
+package ch.vivates.tools.jaxp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The Class XmlStreamRewriter adds elements to UTF-8 encoded XML documents at byte level, without
+ * parsing them into a tree. The added elements declare their own namespace, so the rewritten
+ * document is namespace well formed whatever prefixes the original document uses.
+ *
+ * @author Federico Marmory, Post CH, major development
+ * @author Kevin Tippenhauer, Berner Fachhochschule, javadoc
+ */
+public final class XmlStreamRewriter {
+
+	/** The Constant UTF8. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The UTF-8 byte order mark. */
+	private static final byte[] BOM = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+
+	/** The start of an XML declaration. */
+	private static final byte[] XML_DECLARATION = "<?xml".getBytes(UTF8);
+
+	/**
+	 * Instantiates a new XML stream rewriter.
+	 */
+	private XmlStreamRewriter() {
+	}
+
+	/**
+	 * Wraps a document into a new root element. The document is streamed, only its XML
+	 * declaration is read ahead to be dropped.
+	 *
+	 * @param document the document
+	 * @param prefix the prefix of the root element
+	 * @param localName the local name of the root element
+	 * @param namespaceURI the namespace of the root element
+	 * @param attributes the attributes of the root element
+	 * @return the wrapped document
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static InputStream wrap(InputStream document, String prefix, String localName, String namespaceURI,
+			Map<String, String> attributes) throws IOException {
+		byte[] startTag = startTag(prefix, localName, namespaceURI, attributes, false).getBytes(UTF8);
+		byte[] endTag = ("</" + qName(prefix, localName) + ">").getBytes(UTF8);
+		return new SequenceInputStream(new SequenceInputStream(new ByteArrayInputStream(startTag), skipDeclaration(document)),
+				new ByteArrayInputStream(endTag));
+	}
+
+	/**
+	 * Appends an empty element as last child of the root element of a document. The document is
+	 * streamed: its markup is scanned as it is read, and the element is inserted before the end
+	 * tag of the root element, or the empty root element is closed after it. Comments, processing
+	 * instructions and whitespace after the root element are kept. A document that does not end
+	 * with the end of its root element fails while it is read.
+	 *
+	 * @param document the document
+	 * @param prefix the prefix of the element
+	 * @param localName the local name of the element
+	 * @param namespaceURI the namespace of the element
+	 * @param attributes the attributes of the element
+	 * @return the rewritten document
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static InputStream appendElement(InputStream document, String prefix, String localName, String namespaceURI,
+			Map<String, String> attributes) throws IOException {
+		return new AppendingInputStream(skipDeclaration(document), startTag(prefix, localName, namespaceURI, attributes, true)
+				.getBytes(UTF8));
+	}
+
+	/**
+	 * Writes a start tag declaring its namespace.
+	 *
+	 * @param prefix the prefix
+	 * @param localName the local name
+	 * @param namespaceURI the namespace
+	 * @param attributes the attributes
+	 * @param empty true for an empty element tag
+	 * @return the start tag
+	 */
+	private static String startTag(String prefix, String localName, String namespaceURI, Map<String, String> attributes, boolean empty) {
+		StringBuilder sb = new StringBuilder();
+		sb.append('<').append(qName(prefix, localName));
+		sb.append(prefix == null || prefix.isEmpty() ? " xmlns" : " xmlns:" + prefix).append("=\"");
+		escape(namespaceURI, sb);
+		sb.append('"');
+		for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+			sb.append(' ').append(attribute.getKey()).append("=\"");
+			escape(attribute.getValue(), sb);
+			sb.append('"');
+		}
+		return sb.append(empty ? "/>" : ">").toString();
+	}
+
+	/**
+	 * Gets a qualified name.
+	 *
+	 * @param prefix the prefix or null
+	 * @param localName the local name
+	 * @return the qualified name
+	 */
+	private static String qName(String prefix, String localName) {
+		return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+	}
+
+	/**
+	 * Escapes an attribute value.
+	 *
+	 * @param value the value
+	 * @param sb the builder to append to
+	 */
+	private static void escape(String value, StringBuilder sb) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '"':
+				sb.append("&quot;");
+				break;
+			case '\t':
+				sb.append("&#9;");
+				break;
+			case '\n':
+				sb.append("&#10;");
+				break;
+			case '\r':
+				sb.append("&#13;");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Skips the byte order mark and the XML declaration of a document.
+	 *
+	 * @param document the document
+	 * @return the document without XML declaration
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static InputStream skipDeclaration(InputStream document) throws IOException {
+		PushbackInputStream in = new PushbackInputStream(document, XML_DECLARATION.length);
+		byte[] head = new byte[XML_DECLARATION.length];
+		int n = readAhead(in, head, BOM.length);
+		if (n == BOM.length && startsWith(head, n, BOM)) {
+			n = 0;
+		}
+		n += readAhead(in, head, n, XML_DECLARATION.length - n);
+		if (n == XML_DECLARATION.length && startsWith(head, n, XML_DECLARATION)) {
+			int previous = 0;
+			int b;
+			while ((b = in.read()) != -1 && !(previous == '?' && b == '>')) {
+				previous = b;
+			}
+		} else if (n > 0) {
+			in.unread(head, 0, n);
+		}
+		return in;
+	}
+
+	/**
+	 * Reads up to len bytes at the beginning of the buffer.
+	 *
+	 * @param in the stream
+	 * @param buffer the buffer
+	 * @param len the number of bytes
+	 * @return the number of bytes read
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static int readAhead(InputStream in, byte[] buffer, int len) throws IOException {
+		return readAhead(in, buffer, 0, len);
+	}
+
+	/**
+	 * Reads up to len bytes into the buffer.
+	 *
+	 * @param in the stream
+	 * @param buffer the buffer
+	 * @param off the offset in the buffer
+	 * @param len the number of bytes
+	 * @return the number of bytes read
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static int readAhead(InputStream in, byte[] buffer, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int n = in.read(buffer, off + total, len - total);
+			if (n == -1) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Checks if a buffer starts with a prefix.
+	 *
+	 * @param buffer the buffer
+	 * @param len the number of bytes in the buffer
+	 * @param prefix the prefix
+	 * @return true if the buffer starts with the prefix
+	 */
+	private static boolean startsWith(byte[] buffer, int len, byte[] prefix) {
+		if (len < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (buffer[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if a byte is XML whitespace.
+	 *
+	 * @param b the byte
+	 * @return true for space, tab, carriage return and line feed
+	 */
+	private static boolean isWhitespace(int b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	/**
+	 * The Class AppendingInputStream appends an element to the root element of a document while
+	 * the document is read. The markup is scanned byte by byte, which is safe for UTF-8 since all
+	 * the markup characters are ASCII, keeping track of the element depth outside of attribute
+	 * values, comments, processing instructions, CDATA sections and declarations. A '<' in text is
+	 * held back until the next byte tells whether it starts the end tag of the root element, and a
+	 * '/' in a start tag until the next byte tells whether it ends the empty root element.
+	 */
+	private static final class AppendingInputStream extends InputStream {
+
+		/** In text, between the markup. */
+		private static final int TEXT = 0;
+
+		/** After a '<' in text, held back. */
+		private static final int TAG_OPEN = 1;
+
+		/** In the name of a start tag. */
+		private static final int START_TAG_NAME = 2;
+
+		/** In a start tag after its name. */
+		private static final int START_TAG = 3;
+
+		/** In an attribute value. */
+		private static final int ATTRIBUTE_VALUE = 4;
+
+		/** After a '/' in a start tag, held back. */
+		private static final int START_TAG_SLASH = 5;
+
+		/** In an end tag. */
+		private static final int END_TAG = 6;
+
+		/** In a processing instruction. */
+		private static final int PROCESSING_INSTRUCTION = 7;
+
+		/** After "<!". */
+		private static final int MARKUP_DECLARATION = 8;
+
+		/** After "<!-". */
+		private static final int COMMENT_OPEN = 9;
+
+		/** In a comment. */
+		private static final int COMMENT = 10;
+
+		/** In a CDATA section. */
+		private static final int CDATA = 11;
+
+		/** In a declaration, e.g. a DOCTYPE. */
+		private static final int DECLARATION = 12;
+
+		/** The document. */
+		private final InputStream in;
+
+		/** The empty element tag to append. */
+		private final byte[] element;
+
+		/** The bytes read from the document. */
+		private final byte[] input = new byte[4096];
+
+		/** The bytes to return, the scanned input with the element. */
+		private byte[] output = new byte[8192];
+
+		/** The position of the next byte to return. */
+		private int position;
+
+		/** The number of bytes to return. */
+		private int count;
+
+		/** The name of the root element. */
+		private final ByteArrayOutputStream rootName = new ByteArrayOutputStream();
+
+		/** The state of the scanner. */
+		private int state = TEXT;
+
+		/** The number of open elements. */
+		private int depth;
+
+		/** The quote of the attribute value. */
+		private int quote;
+
+		/** The nesting of the brackets in a declaration. */
+		private int brackets;
+
+		/** The last byte of a comment, processing instruction or CDATA section. */
+		private int last;
+
+		/** The byte before the last one. */
+		private int beforeLast;
+
+		/** True once the element is appended. */
+		private boolean appended;
+
+		/** True once the whole document is scanned. */
+		private boolean eof;
+
+		/**
+		 * Instantiates a new appending input stream.
+		 *
+		 * @param in the document
+		 * @param element the empty element tag to append
+		 */
+		public AppendingInputStream(InputStream in, byte[] element) {
+			this.in = in;
+			this.element = element;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return output[position++] & 0xFF;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = Math.min(len, count - position);
+			System.arraycopy(output, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		/**
+		 * Scans the document until there are bytes to return.
+		 *
+		 * @return false at the end of the document
+		 * @throws IOException if the document does not end with the end of its root element
+		 */
+		private boolean fill() throws IOException {
+			while (position == count) {
+				if (eof) {
+					return false;
+				}
+				position = 0;
+				count = 0;
+				int n = in.read(input);
+				if (n == -1) {
+					eof = true;
+					if (!appended || depth != 0 || state != TEXT) {
+						throw new IOException("The document does not end with the end of its root element");
+					}
+				}
+				for (int i = 0; i < n; i++) {
+					scan(input[i] & 0xFF);
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Scans a byte of the document.
+		 *
+		 * @param b the byte
+		 * @throws IOException if the document is not well formed
+		 */
+		private void scan(int b) throws IOException {
+			switch (state) {
+			case TEXT:
+				if (b == '<') {
+					state = TAG_OPEN;
+				} else {
+					write(b);
+				}
+				break;
+			case TAG_OPEN:
+				if (b == '/') {
+					if (depth == 0) {
+						throw new IOException("The document has an end tag outside of its root element");
+					}
+					if (depth == 1) {
+						write(element);
+						appended = true;
+					}
+					state = END_TAG;
+				} else if (b == '?') {
+					state = PROCESSING_INSTRUCTION;
+					beforeLast = last = 0;
+				} else if (b == '!') {
+					state = MARKUP_DECLARATION;
+				} else {
+					if (depth == 0) {
+						if (appended) {
+							throw new IOException("The document has more than one root element");
+						}
+						rootName.write(b);
+					}
+					state = START_TAG_NAME;
+				}
+				write('<');
+				write(b);
+				break;
+			case START_TAG_NAME:
+				if (isWhitespace(b) || b == '/' || b == '>') {
+					state = START_TAG;
+					scan(b);
+				} else {
+					if (depth == 0) {
+						rootName.write(b);
+					}
+					write(b);
+				}
+				break;
+			case START_TAG:
+				if (b == '/') {
+					state = START_TAG_SLASH;
+					break;
+				}
+				if (b == '"' || b == '\'') {
+					quote = b;
+					state = ATTRIBUTE_VALUE;
+				} else if (b == '>') {
+					depth++;
+					state = TEXT;
+				}
+				write(b);
+				break;
+			case ATTRIBUTE_VALUE:
+				if (b == quote) {
+					state = START_TAG;
+				}
+				write(b);
+				break;
+			case START_TAG_SLASH:
+				if (b != '>') {
+					write('/');
+					state = START_TAG;
+					scan(b);
+				} else if (depth == 0) {
+					// Empty root element: <root .../> becomes <root ...>element</root>
+					write('>');
+					write(element);
+					write('<');
+					write('/');
+					write(rootName.toByteArray());
+					write('>');
+					appended = true;
+					state = TEXT;
+				} else {
+					write('/');
+					write(b);
+					state = TEXT;
+				}
+				break;
+			case END_TAG:
+				if (b == '>') {
+					depth--;
+					state = TEXT;
+				}
+				write(b);
+				break;
+			case PROCESSING_INSTRUCTION:
+				write(b);
+				if (last == '?' && b == '>') {
+					state = TEXT;
+				}
+				last = b;
+				break;
+			case MARKUP_DECLARATION:
+				if (b == '-') {
+					state = COMMENT_OPEN;
+					write(b);
+				} else if (b == '[') {
+					state = CDATA;
+					beforeLast = last = 0;
+					write(b);
+				} else {
+					state = DECLARATION;
+					brackets = 0;
+					scan(b);
+				}
+				break;
+			case COMMENT_OPEN:
+				if (b != '-') {
+					throw new IOException("The document has a malformed comment");
+				}
+				state = COMMENT;
+				beforeLast = last = 0;
+				write(b);
+				break;
+			case COMMENT:
+			case CDATA:
+				write(b);
+				int end = state == COMMENT ? '-' : ']';
+				if (beforeLast == end && last == end && b == '>') {
+					state = TEXT;
+				}
+				beforeLast = last;
+				last = b;
+				break;
+			case DECLARATION:
+				if (b == '[') {
+					brackets++;
+				} else if (b == ']') {
+					brackets--;
+				} else if (b == '>' && brackets == 0) {
+					state = TEXT;
+				}
+				write(b);
+				break;
+			default:
+				throw new IllegalStateException("Unknown state " + state);
+			}
+		}
+
+		/**
+		 * Adds a byte to return.
+		 *
+		 * @param b the byte
+		 */
+		private void write(int b) {
+			if (count == output.length) {
+				output = Arrays.copyOf(output, output.length * 2);
+			}
+			output[count++] = (byte) b;
+		}
+
+		/**
+		 * Adds bytes to return.
+		 *
+		 * @param bytes the bytes
+		 */
+		private void write(byte[] bytes) {
+			if (count + bytes.length > output.length) {
+				output = Arrays.copyOf(output, Math.max(output.length * 2, count + bytes.length));
+			}
+			System.arraycopy(bytes, 0, output, count, bytes.length);
+			count += bytes.length;
+		}
+	}
+
+}
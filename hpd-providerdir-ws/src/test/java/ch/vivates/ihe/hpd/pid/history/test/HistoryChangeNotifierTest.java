@@ -0,0 +1,74 @@
+package ch.vivates.ihe.hpd.pid.history.test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.vivates.ihe.hpd.pid.history.HistoryChangeNotifier;
+
+/**
+ * The Class HistoryChangeNotifierTest.
+ *
+ * @author Federico Marmory, Post CH, major development
+ */
+public class HistoryChangeNotifierTest {
+
+	/**
+	 * Test that a wait without announcement times out.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testTimeout() throws Exception {
+		HistoryChangeNotifier notifier = new HistoryChangeNotifier();
+		long start = System.currentTimeMillis();
+
+		assertFalse(notifier.await(notifier.getVersion(), 200));
+		assertTrue(System.currentTimeMillis() - start >= 200);
+	}
+
+	/**
+	 * Test that an announcement wakes a waiting request.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testAnnounce() throws Exception {
+		final HistoryChangeNotifier notifier = new HistoryChangeNotifier();
+		long version = notifier.getVersion();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+				notifier.announce();
+			}
+		};
+		writer.start();
+		long start = System.currentTimeMillis();
+
+		assertTrue(notifier.await(version, 10000));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		writer.join();
+	}
+
+	/**
+	 * Test that an announcement after the version was read and before the wait is not missed.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testAnnounceBeforeWait() throws Exception {
+		HistoryChangeNotifier notifier = new HistoryChangeNotifier();
+		long version = notifier.getVersion();
+		notifier.announce();
+
+		assertTrue(notifier.await(version, 0));
+		assertFalse(notifier.await(notifier.getVersion(), 0));
+	}
+
+}
@@ -0,0 +1,135 @@
+package ch.vivates.ihe.hpd.pid.history.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.vivates.ihe.hpd.pid.history.HistoryEntity;
+import ch.vivates.ihe.hpd.pid.history.HistoryEntityExtractor;
+
+/**
+ * The Class HistoryEntityExtractorTest.
+ *
+ * @author Federico Marmory, Post CH, major development
+ */
+public class HistoryEntityExtractorTest {
+
+	/** The base DN. */
+	private static final String BASE = "o=ehealth-suisse,c=ch";
+
+	/** The start of the history entry bodies. */
+	private static final String BATCH = "<ns2:batchRequest xmlns:ns2=\"urn:oasis:names:tc:DSML:2:0:core\">";
+
+	/** The extractor. */
+	private final HistoryEntityExtractor extractor = new HistoryEntityExtractor();
+
+	/**
+	 * Sets up the extractor like the context does.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		extractor.setBase(BASE);
+		Map<String, String> containers = new HashMap<String, String>();
+		containers.put("ou=HCProfessional", "HCProfessional");
+		containers.put("ou=HCRegulatedOrganization", "HCRegulatedOrganization");
+		extractor.setContainerObjectClasses(containers);
+	}
+
+	/**
+	 * Test the target, operation, community and object classes of the entities, with one entity
+	 * for several operations of the same type on an entry.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testExtract() throws Exception {
+		List<HistoryEntity> entities = extractor.extract(BATCH
+				+ "<ns2:addRequest dn=\"uid=A,ou=HCProfessional,o=a,c=ch\">"
+				+ "<ns2:attr name=\"objectClass\"><ns2:value>inetOrgPerson</ns2:value></ns2:attr>"
+				+ "<ns2:attr name=\"cn\"><ns2:value>A</ns2:value></ns2:attr></ns2:addRequest>"
+				+ "<ns2:modifyRequest dn=\"uid=a,ou=HCProfessional,o=a,c=ch\"/>"
+				+ "<ns2:modifyRequest dn=\"uid=a,ou=HCProfessional,o=a,c=ch\"/>"
+				+ "<ns2:delRequest dn=\"uid=b,ou=HCRegulatedOrganization,o=b,c=ch\"/>"
+				+ "</ns2:batchRequest>");
+
+		assertEquals(3, entities.size());
+		HistoryEntity added = entities.get(0);
+		assertEquals("uid=a,ou=hcprofessional,o=a,c=ch", added.getDnKey());
+		assertEquals("add", added.getOperation());
+		assertEquals("o=a,c=ch", added.getCommunity());
+		assertTrue(added.getObjectClasses().contains("inetorgperson"));
+		assertTrue(added.getObjectClasses().contains("hcprofessional"));
+		assertEquals("modify", entities.get(1).getOperation());
+		HistoryEntity deleted = entities.get(2);
+		assertEquals("delete", deleted.getOperation());
+		assertEquals("o=b,c=ch", deleted.getCommunity());
+		assertTrue(deleted.getObjectClasses().contains("hcregulatedorganization"));
+	}
+
+	/**
+	 * Test that a modify DN request targets the entry under its old and its new DN, and that an
+	 * entry moved to another community belongs to the community of the base.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testModDn() throws Exception {
+		List<HistoryEntity> entities = extractor.extract(BATCH
+				+ "<ns2:modDNRequest dn=\"uid=a,ou=HCProfessional,o=a,c=ch\" newrdn=\"uid=b\" newSuperior=\"ou=HCProfessional,o=b,c=ch\"/>"
+				+ "</ns2:batchRequest>");
+
+		assertEquals(2, entities.size());
+		assertEquals("uid=a,ou=hcprofessional,o=a,c=ch", entities.get(0).getDnKey());
+		assertEquals("o=a,c=ch", entities.get(0).getCommunity());
+		assertEquals("uid=b,ou=hcprofessional,o=b,c=ch", entities.get(1).getDnKey());
+		assertEquals("o=b,c=ch", entities.get(1).getCommunity());
+		assertEquals("modDN", entities.get(1).getOperation());
+		assertEquals(BASE, extractor.communityOf(entities));
+		assertEquals("o=a,c=ch", extractor.communityOf(entities.subList(0, 1)));
+	}
+
+	/**
+	 * Test that an entry without organization RDN belongs to the community of the base.
+	 */
+	@Test
+	public void testCommunityOutsideOrganization() {
+		assertEquals(BASE, HistoryEntityExtractor.communityOf("ou=HCProfessional,c=ch", BASE));
+		assertEquals("o=a,c=ch", HistoryEntityExtractor.communityOf("uid=a,ou=HCProfessional,O=a,c=ch", BASE));
+	}
+
+	/**
+	 * Test that the entities are parsed back from their text form, with an encoded separator
+	 * within a value.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testFormatParse() throws Exception {
+		List<HistoryEntity> entities = extractor.extract(BATCH
+				+ "<ns2:addRequest dn=\"uid=a%09b,ou=HCProfessional,o=a,c=ch\">"
+				+ "<ns2:attr name=\"objectClass\"><ns2:value>inetOrgPerson</ns2:value></ns2:attr></ns2:addRequest>"
+				+ "<ns2:delRequest dn=\"uid=b,o=b,c=ch\"/>"
+				+ "</ns2:batchRequest>");
+
+		List<HistoryEntity> parsed = HistoryEntity.parse(HistoryEntity.format(entities));
+
+		assertEquals(2, parsed.size());
+		for (int i = 0; i < parsed.size(); i++) {
+			assertEquals(entities.get(i).getDnKey(), parsed.get(i).getDnKey());
+			assertEquals(entities.get(i).getOperation(), parsed.get(i).getOperation());
+			assertEquals(entities.get(i).getCommunity(), parsed.get(i).getCommunity());
+			assertEquals(entities.get(i).getObjectClasses(), parsed.get(i).getObjectClasses());
+		}
+		assertTrue(parsed.get(1).getObjectClasses().isEmpty());
+		assertTrue(HistoryEntity.parse("").isEmpty());
+	}
+
+}
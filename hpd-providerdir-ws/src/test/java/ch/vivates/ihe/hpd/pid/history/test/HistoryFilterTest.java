@@ -0,0 +1,69 @@
+package ch.vivates.ihe.hpd.pid.history.test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.vivates.ihe.hpd.pid.history.HistoryEntity;
+import ch.vivates.ihe.hpd.pid.history.HistoryFilter;
+
+/**
+ * The Class HistoryFilterTest.
+ *
+ * @author Federico Marmory, Post CH, major development
+ */
+public class HistoryFilterTest {
+
+	/** No values. */
+	private static final List<String> NONE = Collections.emptyList();
+
+	/** The entities of a history entry adding a professional and deleting an organization. */
+	private static final List<HistoryEntity> ENTITIES = Arrays.asList(
+			new HistoryEntity("uid=a,ou=hcprofessional,o=a,c=ch", "add", "o=a,c=ch", new HashSet<String>(Arrays.asList("hcprofessional"))),
+			new HistoryEntity("uid=b,ou=hcregulatedorganization,o=b,c=ch", "delete", "o=b,c=ch", new HashSet<String>(
+					Arrays.asList("hcregulatedorganization"))));
+
+	/**
+	 * Test that there is no filter without values.
+	 */
+	@Test
+	public void testNoFilter() {
+		assertNull(HistoryFilter.of(NONE, NONE, NONE));
+	}
+
+	/**
+	 * Test that DNs and communities are compared normalized and object classes case insensitively.
+	 */
+	@Test
+	public void testNormalized() {
+		assertTrue(HistoryFilter.of(Arrays.asList("uid=A,ou=HCProfessional,o=a,c=ch"), NONE, NONE).matches(ENTITIES));
+		assertTrue(HistoryFilter.of(NONE, Arrays.asList("HCRegulatedOrganization"), NONE).matches(ENTITIES));
+		assertTrue(HistoryFilter.of(NONE, NONE, Arrays.asList("O=b,c=ch")).matches(ENTITIES));
+		assertFalse(HistoryFilter.of(NONE, NONE, Arrays.asList("o=c,c=ch")).matches(ENTITIES));
+	}
+
+	/**
+	 * Test that the values of one kind are alternatives.
+	 */
+	@Test
+	public void testAlternatives() {
+		assertTrue(HistoryFilter.of(NONE, Arrays.asList("groupOfNames", "HCProfessional"), NONE).matches(ENTITIES));
+	}
+
+	/**
+	 * Test that all kinds must match the same entity.
+	 */
+	@Test
+	public void testKindsOnSameEntity() {
+		assertTrue(HistoryFilter.of(NONE, Arrays.asList("HCProfessional"), Arrays.asList("o=a,c=ch")).matches(ENTITIES));
+		assertFalse(HistoryFilter.of(NONE, Arrays.asList("HCProfessional"), Arrays.asList("o=b,c=ch")).matches(ENTITIES));
+	}
+
+}
@@ -0,0 +1,324 @@
+package ch.vivates.ihe.hpd.pid.history.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.vivates.ihe.hpd.pid.history.HistoryPosition;
+import ch.vivates.ihe.hpd.pid.history.HistoryReader;
+import ch.vivates.ihe.hpd.pid.history.HistoryReader.EntryHandler;
+
+/**
+ * The Class HistoryReaderTest.
+ *
+ * @author Federico Marmory, Post CH, major development
+ */
+public class HistoryReaderTest {
+
+	/** The number of entries in the history. */
+	private static final int ENTRIES = 40;
+
+	/** The time between two entries. */
+	private static final long STEP_MILLIS = 3600000;
+
+	/** The date of the first entry. */
+	private static final long FIRST = 1478131200000L;
+
+	/** The executor of the sub-range scans. */
+	private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+	/** The reader. */
+	private final HistoryReader reader = new HistoryReader();
+
+	/**
+	 * Sets up the reader on the history table.
+	 */
+	@Before
+	public void setUp() {
+		reader.setDataSource(historyTable());
+		reader.setSelectStatement("select src_desc, tr_body from pid_tr_history where tr_date >= :#from_date and tr_date < :#to_date");
+		reader.setSubRangeStatement("select src_desc, tr_body from pid_tr_history where tr_date >= :#from_date and tr_date < :#before_date");
+		reader.setScanExecutor(executor);
+		reader.setParallelScans(3);
+		reader.setScanBufferSize(2);
+	}
+
+	/**
+	 * Stops the executor.
+	 */
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Test that the entries of the sub-ranges are handed over in the order of a single scan,
+	 * although the later sub-ranges are scanned faster.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testReadRangesOrder() throws Exception {
+		List<String> bodies = new ArrayList<String>();
+
+		long count = reader.readRanges(range(0, ENTRIES), boundaries(5, 10, 20, 30), collector(bodies));
+
+		assertEquals(ENTRIES, count);
+		assertEquals(expected(0, ENTRIES), bodies);
+	}
+
+	/**
+	 * Test that the sub-ranges without scan thread are read in order when they are drained.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testReadRangesWithoutThread() throws Exception {
+		reader.setScanExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException();
+			}
+		});
+		List<String> bodies = new ArrayList<String>();
+
+		reader.readRanges(range(2, 25), boundaries(10, 20), collector(bodies));
+
+		assertEquals(expected(2, 25), bodies);
+	}
+
+	/**
+	 * Test that a range without boundaries is read by the select statement.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testReadRangesSingle() throws Exception {
+		List<String> bodies = new ArrayList<String>();
+
+		reader.readRanges(range(3, 7), Collections.<Timestamp> emptyList(), collector(bodies));
+
+		assertEquals(expected(3, 7), bodies);
+	}
+
+	/**
+	 * Gets the parameters of a range of entries.
+	 *
+	 * @param from the first entry
+	 * @param to the entry after the last one
+	 * @return the parameters
+	 */
+	private static Map<String, Object> range(int from, int to) {
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put("from_date", dateOf(from));
+		parameters.put("to_date", dateOf(to));
+		return parameters;
+	}
+
+	/**
+	 * Gets the boundaries before entries.
+	 *
+	 * @param entries the entries
+	 * @return the boundaries
+	 */
+	private static List<Timestamp> boundaries(Integer... entries) {
+		List<Timestamp> boundaries = new ArrayList<Timestamp>();
+		for (Integer entry : entries) {
+			boundaries.add(dateOf(entry));
+		}
+		return boundaries;
+	}
+
+	/**
+	 * Gets the bodies of a range of entries.
+	 *
+	 * @param from the first entry
+	 * @param to the entry after the last one
+	 * @return the bodies
+	 */
+	private static List<String> expected(int from, int to) {
+		List<String> bodies = new ArrayList<String>();
+		for (int i = from; i < to; i++) {
+			bodies.add(bodyOf(i));
+		}
+		return bodies;
+	}
+
+	/**
+	 * Creates a handler collecting the bodies.
+	 *
+	 * @param bodies the bodies
+	 * @return the handler
+	 */
+	private static EntryHandler collector(final List<String> bodies) {
+		return new EntryHandler() {
+			@Override
+			public void entry(HistoryPosition position, String principal, Reader body) throws Exception {
+				StringBuilder sb = new StringBuilder();
+				for (int c = body.read(); c != -1; c = body.read()) {
+					sb.append((char) c);
+				}
+				bodies.add(sb.toString());
+			}
+		};
+	}
+
+	/**
+	 * Gets the date of an entry.
+	 *
+	 * @param entry the entry
+	 * @return the date
+	 */
+	private static Timestamp dateOf(int entry) {
+		return new Timestamp(FIRST + entry * STEP_MILLIS);
+	}
+
+	/**
+	 * Gets the body of an entry.
+	 *
+	 * @param entry the entry
+	 * @return the body
+	 */
+	private static String bodyOf(int entry) {
+		return "<batchRequest requestID=\"" + entry + "\"/>";
+	}
+
+	/**
+	 * Creates a data source on the history table. The statements select the entries from their
+	 * first parameter until before their second one, the earlier entries being the slower to
+	 * fetch.
+	 *
+	 * @return the data source
+	 */
+	private static DataSource historyTable() {
+		return proxy(DataSource.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if ("getConnection".equals(method.getName())) {
+					return connection();
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	/**
+	 * Creates a connection to the history table.
+	 *
+	 * @return the connection
+	 */
+	private static Connection connection() {
+		return proxy(Connection.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if ("prepareStatement".equals(method.getName())) {
+					return statement();
+				}
+				if ("close".equals(method.getName())) {
+					return null;
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	/**
+	 * Creates a statement on the history table.
+	 *
+	 * @return the statement
+	 */
+	private static PreparedStatement statement() {
+		final Timestamp[] bounds = new Timestamp[2];
+		return proxy(PreparedStatement.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if ("setObject".equals(name)) {
+					bounds[(Integer) args[0] - 1] = (Timestamp) args[1];
+					return null;
+				}
+				if ("executeQuery".equals(name)) {
+					List<Integer> rows = new ArrayList<Integer>();
+					for (int i = 0; i < ENTRIES; i++) {
+						if (!dateOf(i).before(bounds[0]) && dateOf(i).before(bounds[1])) {
+							rows.add(i);
+						}
+					}
+					return resultSet(rows);
+				}
+				if ("setFetchSize".equals(name) || "close".equals(name)) {
+					return null;
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		});
+	}
+
+	/**
+	 * Creates the result set of entries.
+	 *
+	 * @param rows the entries
+	 * @return the result set
+	 */
+	private static ResultSet resultSet(final List<Integer> rows) {
+		final int[] row = { -1 };
+		return proxy(ResultSet.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+				String name = method.getName();
+				if ("next".equals(name)) {
+					if (++row[0] >= rows.size()) {
+						return false;
+					}
+					Thread.sleep(Math.max(0, 10 - rows.get(row[0]) / 4));
+					return true;
+				}
+				if ("getString".equals(name)) {
+					return "feeder";
+				}
+				if ("getCharacterStream".equals(name)) {
+					return new StringReader(bodyOf(rows.get(row[0])));
+				}
+				if ("close".equals(name)) {
+					return null;
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		});
+	}
+
+	/**
+	 * Creates a proxy implementing an interface.
+	 *
+	 * @param type the interface
+	 * @param handler the invocation handler
+	 * @return the proxy
+	 */
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(HistoryReaderTest.class.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+}
@@ -0,0 +1,69 @@
+package ch.vivates.ihe.hpd.pid.history.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.joda.time.LocalDate;
+import org.junit.Test;
+
+import ch.vivates.ihe.hpd.pid.history.HistoryStorageManager;
+
+/**
+ * The Class HistoryStorageManagerTest.
+ *
+ * @author Federico Marmory, Post CH, major development
+ */
+public class HistoryStorageManagerTest {
+
+	/** The current date of the tests. */
+	private static final LocalDate TODAY = new LocalDate(2016, 11, 15);
+
+	/**
+	 * Test that a table with the last partition only is split from the current month on.
+	 */
+	@Test
+	public void testAddToMaxPartitionOnly() {
+		List<String> added = HistoryStorageManager.partitionsToAdd(Collections.singletonList("pmax"), TODAY, 2);
+
+		assertEquals(Arrays.asList("p201611", "p201612", "p201701"), added);
+	}
+
+	/**
+	 * Test that the months after the last monthly partition are added.
+	 */
+	@Test
+	public void testAddAfterLastMonth() {
+		List<String> partitions = Arrays.asList("p201610", "p201611", "p201612", "pmax");
+
+		assertEquals(Collections.singletonList("p201701"), HistoryStorageManager.partitionsToAdd(partitions, TODAY, 2));
+		assertTrue(HistoryStorageManager.partitionsToAdd(partitions, TODAY, 1).isEmpty());
+	}
+
+	/**
+	 * Test that a table whose monthly partitions ended before the current month gets the months it
+	 * missed.
+	 */
+	@Test
+	public void testAddAfterPastMonths() {
+		List<String> partitions = Arrays.asList("p201606", "p201607", "pmax");
+
+		assertEquals(Arrays.asList("p201608", "p201609", "p201610", "p201611", "p201612"),
+				HistoryStorageManager.partitionsToAdd(partitions, TODAY, 1));
+	}
+
+	/**
+	 * Test that the partitions past the retention are dropped and the last partition is kept.
+	 */
+	@Test
+	public void testDrop() {
+		List<String> partitions = Arrays.asList("p201509", "p201510", "p201511", "p201512", "pmax");
+
+		assertEquals(Arrays.asList("p201509", "p201510"), HistoryStorageManager.partitionsToDrop(partitions, TODAY, 12));
+		assertTrue(HistoryStorageManager.partitionsToDrop(Collections.singletonList("pmax"), TODAY, 12).isEmpty());
+	}
+
+}
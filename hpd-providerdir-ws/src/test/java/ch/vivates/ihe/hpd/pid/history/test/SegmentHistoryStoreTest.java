@@ -0,0 +1,256 @@
+package ch.vivates.ihe.hpd.pid.history.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.vivates.ihe.hpd.pid.history.HistoryPosition;
+import ch.vivates.ihe.hpd.pid.history.HistoryReader;
+import ch.vivates.ihe.hpd.pid.history.SegmentHistoryStore;
+
+/**
+ * The Class SegmentHistoryStoreTest.
+ *
+ * @author Federico Marmory, Post CH, major development
+ */
+public class SegmentHistoryStoreTest {
+
+	/** The milliseconds of a day. */
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	/** The start of a day. */
+	private static final long T0 = 1420070400000L;
+
+	/** The directory of the segments. */
+	private File directory;
+
+	/** The store. */
+	private SegmentHistoryStore store;
+
+	/**
+	 * Creates the store in an empty directory.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("history", "");
+		directory.delete();
+		store = newStore();
+	}
+
+	/**
+	 * Deletes the directory of the segments.
+	 *
+	 * @throws Exception the exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		store.close();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Test that a range reads the entries of its days, without the filtered principal.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testReadRange() throws Exception {
+		store.write(Arrays.asList(entry(T0 + 1000, "a", 1), entry(T0 + 2000, "b", 2), entry(T0 + DAY + 1000, "a", 3),
+				entry(T0 + 2 * DAY + 1000, "a", 4)));
+
+		assertEquals(Arrays.asList("2", "3"), read(range(T0 + 1500, T0 + DAY + 1000, null)));
+		assertEquals(Arrays.asList("1", "3", "4"), read(range(T0, T0 + 3 * DAY, "b")));
+	}
+
+	/**
+	 * Test that the index skips the records before the range, also with a small interval.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testIndexedRead() throws Exception {
+		store.setIndexInterval(100);
+		List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 100; i++) {
+			entries.add(entry(T0 + i * 1000, "a", i));
+		}
+		store.write(entries);
+
+		assertEquals(Arrays.asList("50", "51"), read(range(T0 + 50000, T0 + 51000, null)));
+	}
+
+	/**
+	 * Test that pages continue after the position of the previous page, across days.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testPages() throws Exception {
+		store.write(Arrays.asList(entry(T0 + 1000, "a", 1), entry(T0 + 2000, "a", 2), entry(T0 + DAY + 1000, "a", 3)));
+		final List<String> ids = new ArrayList<String>();
+		HistoryReader.EntryHandler handler = new HistoryReader.EntryHandler() {
+			@Override
+			public void entry(HistoryPosition position, String principal, Reader body) throws Exception {
+				ids.add(idOf(body));
+			}
+		};
+
+		HistoryPosition after = store.readPage(range(T0, T0 + 2 * DAY, null), null, 2, handler);
+		assertNotNull(after);
+		assertNull(store.readPage(range(T0, T0 + 2 * DAY, null), after, 2, handler));
+		assertEquals(Arrays.asList("1", "2", "3"), ids);
+	}
+
+	/**
+	 * Test that the bodies are copied into the response as their document elements.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testCopy() throws Exception {
+		store.write(Arrays.asList(entry(T0 + 1000, "a", 1), entry(T0 + 2000, "a", 2)));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+		writer.writeStartElement("response");
+
+		assertEquals(2, store.copy(range(T0, T0 + DAY, null), writer, out));
+		writer.writeEndElement();
+		writer.flush();
+		assertEquals("<response><dsml:batchRequest xmlns:dsml=\"urn:oasis:names:tc:DSML:2:0:core\" requestID=\"1\"></dsml:batchRequest>"
+				+ "<dsml:batchRequest xmlns:dsml=\"urn:oasis:names:tc:DSML:2:0:core\" requestID=\"2\"></dsml:batchRequest></response>",
+				out.toString("UTF-8").replace("/>", "></dsml:batchRequest>"));
+	}
+
+	/**
+	 * Test that a partially written record is truncated when the store is opened again.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testRecovery() throws Exception {
+		store.write(Arrays.asList(entry(T0 + 1000, "a", 1)));
+		store.close();
+		File segment = new File(directory, "20150101.log");
+		long length = segment.length();
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			file.seek(length);
+			file.writeInt(1000);
+			file.writeInt(0);
+		} finally {
+			file.close();
+		}
+
+		store = newStore();
+		store.write(Arrays.asList(entry(T0 + 2000, "a", 2)));
+		assertEquals(Arrays.asList("1", "2"), read(range(T0, T0 + DAY, null)));
+	}
+
+	/**
+	 * Creates and opens a store on the directory.
+	 *
+	 * @return the store
+	 * @throws Exception the exception
+	 */
+	private SegmentHistoryStore newStore() throws Exception {
+		SegmentHistoryStore store = new SegmentHistoryStore();
+		store.setDirectory(directory);
+		store.open();
+		return store;
+	}
+
+	/**
+	 * Reads the ids of the entries of a range.
+	 *
+	 * @param range the range
+	 * @return the request ids of the bodies
+	 * @throws Exception the exception
+	 */
+	private List<String> read(Map<String, Object> range) throws Exception {
+		final List<String> ids = new ArrayList<String>();
+		store.read(range, new HistoryReader.EntryHandler() {
+			@Override
+			public void entry(HistoryPosition position, String principal, Reader body) throws Exception {
+				ids.add(idOf(body));
+			}
+		});
+		return ids;
+	}
+
+	/**
+	 * Gets the request id of a body.
+	 *
+	 * @param body the body
+	 * @return the request id
+	 * @throws Exception the exception
+	 */
+	private static String idOf(Reader body) throws Exception {
+		StringBuilder text = new StringBuilder();
+		for (int c = body.read(); c >= 0; c = body.read()) {
+			text.append((char) c);
+		}
+		int start = text.indexOf("requestID=\"") + 11;
+		return text.substring(start, text.indexOf("\"", start));
+	}
+
+	/**
+	 * Creates a history entry.
+	 *
+	 * @param date the date
+	 * @param principal the principal
+	 * @param id the request id of the body
+	 * @return the entry
+	 */
+	private static Map<String, Object> entry(long date, String principal, int id) {
+		Map<String, Object> entry = new HashMap<String, Object>();
+		entry.put("tr_op_idx", "op" + id);
+		entry.put("src_desc", principal);
+		entry.put("tr_date", new Timestamp(date));
+		entry.put("tr_body", "<?xml version=\"1.0\" encoding=\"UTF-8\"?><dsml:batchRequest xmlns:dsml=\"urn:oasis:names:tc:DSML:2:0:core\""
+				+ " requestID=\"" + id + "\"/>");
+		return entry;
+	}
+
+	/**
+	 * Creates the parameters of a range.
+	 *
+	 * @param from the start
+	 * @param to the end, included
+	 * @param filteredUser the filtered principal
+	 * @return the parameters
+	 */
+	private static Map<String, Object> range(long from, long to, String filteredUser) {
+		Map<String, Object> range = new HashMap<String, Object>();
+		range.put("from_date", new Timestamp(from));
+		range.put("to_date", new Timestamp(to));
+		range.put("filtered_user", filteredUser);
+		return range;
+	}
+
+}
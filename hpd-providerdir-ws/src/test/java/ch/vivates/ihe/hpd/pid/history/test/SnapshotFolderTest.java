@@ -0,0 +1,232 @@
+package ch.vivates.ihe.hpd.pid.history.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import ch.vivates.ihe.hpd.pid.history.HistoryPosition;
+import ch.vivates.ihe.hpd.pid.history.SnapshotEntry;
+import ch.vivates.ihe.hpd.pid.history.SnapshotFolder;
+import ch.vivates.ihe.hpd.pid.model.cs.AddRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.DelRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.DsmlAttr;
+import ch.vivates.ihe.hpd.pid.model.cs.DsmlMessage;
+import ch.vivates.ihe.hpd.pid.model.cs.DsmlModification;
+import ch.vivates.ihe.hpd.pid.model.cs.ModifyDNRequest;
+import ch.vivates.ihe.hpd.pid.model.cs.ModifyRequest;
+
+/**
+ * The Class SnapshotFolderTest.
+ *
+ * @author Federico Marmory, Post CH, major development
+ */
+public class SnapshotFolderTest {
+
+	/** The previous snapshot by normalized DN. */
+	private final Map<String, SnapshotEntry> previous = new HashMap<String, SnapshotEntry>();
+
+	/** The folder. */
+	private final SnapshotFolder folder = new SnapshotFolder(new SnapshotFolder.Loader() {
+		@Override
+		public SnapshotEntry load(String key) {
+			return previous.get(key);
+		}
+
+		@Override
+		public List<SnapshotEntry> loadSubordinates(String key) {
+			return new ArrayList<SnapshotEntry>(previous.values());
+		}
+	});
+
+	/**
+	 * Test that modifications are applied to the addRequest of the entry.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testModificationsAppliedToAdd() throws Exception {
+		folder.fold(add("uid=a,ou=HCProfessional", "cn", "A", "mail", "a@x.ch"), "feeder", position(1));
+		folder.fold(modify("uid=a,ou=HCProfessional", modification("add", "mail", "b@x.ch")), "feeder", position(2));
+		folder.fold(modify("uid=a,ou=HCProfessional", modification("delete", "mail", "A@X.CH")), "feeder", position(3));
+		folder.fold(modify("uid=a,ou=HCProfessional", modification("replace", "cn", "B")), "other", position(4));
+
+		SnapshotEntry entry = folder.getChanges().get("uid=a,ou=hcprofessional");
+		assertTrue(entry.isComplete());
+		assertEquals("other", entry.getPrincipal());
+		assertEquals(4, entry.getPosition().getId());
+		AddRequest add = (AddRequest) entry.getOperations().get(0);
+		assertEquals(Collections.singletonList("B"), values(add, "cn"));
+		assertEquals(Collections.singletonList("b@x.ch"), values(add, "mail"));
+		assertEquals(4, folder.getOperations());
+	}
+
+	/**
+	 * Test that modifications of an entry added before the history are merged.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testModificationsMergedWithoutAdd() throws Exception {
+		folder.fold(modify("uid=a,ou=HCProfessional", modification("add", "mail", "a@x.ch")), "feeder", position(1));
+		folder.fold(modify("uid=a,ou=HCProfessional", modification("replace", "cn", "A")), "feeder", position(2));
+
+		SnapshotEntry entry = folder.getChanges().get("uid=a,ou=hcprofessional");
+		assertFalse(entry.isComplete());
+		assertEquals(1, entry.getOperations().size());
+		assertEquals(2, ((ModifyRequest) entry.getOperations().get(0)).getModification().size());
+	}
+
+	/**
+	 * Test that a deletion removes the entry, also from the previous snapshot.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testDeletion() throws Exception {
+		previous.put("uid=b,ou=hcprofessional", new SnapshotEntry("uid=b,ou=hcprofessional", "uid=b,ou=HCProfessional",
+				operations(add("uid=b,ou=HCProfessional", "cn", "B")), "feeder", position(1)));
+		folder.fold(add("uid=a,ou=HCProfessional", "cn", "A"), "feeder", position(2));
+		folder.fold(del("uid=a,ou=HCProfessional"), "feeder", position(3));
+		folder.fold(del("uid=b,ou=HCProfessional"), "feeder", position(4));
+
+		assertTrue(folder.getChanges().containsKey("uid=a,ou=hcprofessional"));
+		assertNull(folder.getChanges().get("uid=a,ou=hcprofessional"));
+		assertTrue(folder.getChanges().containsKey("uid=b,ou=hcprofessional"));
+		assertNull(folder.getChanges().get("uid=b,ou=hcprofessional"));
+	}
+
+	/**
+	 * Test that a rename updates the RDN attribute and moves the subordinates.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testRename() throws Exception {
+		previous.put("uid=c,o=a,c=ch", new SnapshotEntry("uid=c,o=a,c=ch", "uid=c,o=A,c=CH", operations(add("uid=c,o=A,c=CH", "uid", "c")),
+				"feeder", position(1)));
+		folder.fold(add("o=A,c=CH", "o", "A"), "feeder", position(2));
+		ModifyDNRequest rename = new ModifyDNRequest();
+		rename.setDn("o=A,c=CH");
+		rename.setNewrdn("o=B");
+		folder.fold(rename, "feeder", position(3));
+
+		assertNull(folder.getChanges().get("o=a,c=ch"));
+		AddRequest parent = (AddRequest) folder.getChanges().get("o=b,c=ch").getOperations().get(0);
+		assertEquals("o=B,c=CH", parent.getDn());
+		assertEquals(Collections.singletonList("B"), values(parent, "o"));
+		assertNull(folder.getChanges().get("uid=c,o=a,c=ch"));
+		SnapshotEntry child = folder.getChanges().get("uid=c,o=b,c=ch");
+		assertEquals("uid=c,o=B,c=CH", child.getDn());
+		assertEquals("uid=c,o=B,c=CH", ((AddRequest) child.getOperations().get(0)).getDn());
+	}
+
+	/**
+	 * Creates an add request.
+	 *
+	 * @param dn the DN
+	 * @param attributes the attribute names and values
+	 * @return the request
+	 */
+	private static AddRequest add(String dn, String... attributes) {
+		AddRequest add = new AddRequest();
+		add.setDn(dn);
+		for (int i = 0; i < attributes.length; i += 2) {
+			DsmlAttr attr = new DsmlAttr();
+			attr.setName(attributes[i]);
+			attr.getValue().add(attributes[i + 1]);
+			add.getAttr().add(attr);
+		}
+		return add;
+	}
+
+	/**
+	 * Creates a modify request.
+	 *
+	 * @param dn the DN
+	 * @param modification the modification
+	 * @return the request
+	 */
+	private static ModifyRequest modify(String dn, DsmlModification modification) {
+		ModifyRequest modify = new ModifyRequest();
+		modify.setDn(dn);
+		modify.getModification().add(modification);
+		return modify;
+	}
+
+	/**
+	 * Creates a delete request.
+	 *
+	 * @param dn the DN
+	 * @return the request
+	 */
+	private static DelRequest del(String dn) {
+		DelRequest del = new DelRequest();
+		del.setDn(dn);
+		return del;
+	}
+
+	/**
+	 * Creates a modification.
+	 *
+	 * @param operation the operation
+	 * @param name the attribute name
+	 * @param value the value
+	 * @return the modification
+	 */
+	private static DsmlModification modification(String operation, String name, String value) {
+		DsmlModification modification = new DsmlModification();
+		modification.setOperation(operation);
+		modification.setName(name);
+		modification.getValue().add(value);
+		return modification;
+	}
+
+	/**
+	 * Gets the values of an attribute.
+	 *
+	 * @param add the add request
+	 * @param name the attribute name
+	 * @return the values, null if the attribute is missing
+	 */
+	private static List<String> values(AddRequest add, String name) {
+		for (DsmlAttr attr : add.getAttr()) {
+			if (attr.getName().equals(name)) {
+				return attr.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Creates a mutable list of operations.
+	 *
+	 * @param operation the operation
+	 * @return the list
+	 */
+	private static List<DsmlMessage> operations(DsmlMessage operation) {
+		List<DsmlMessage> operations = new ArrayList<DsmlMessage>();
+		operations.add(operation);
+		return operations;
+	}
+
+	/**
+	 * Creates a history position.
+	 *
+	 * @param id the transaction id
+	 * @return the position
+	 */
+	private static HistoryPosition position(long id) {
+		return new HistoryPosition(new Timestamp(id * 1000), id);
+	}
+
+}
@@ -0,0 +1,297 @@
+package ch.vivates.ihe.hpd.pid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.stream.StreamSource;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.vivates.ihe.hpd.pid.ChangesRequestProcessor;
+import ch.vivates.ihe.hpd.pid.history.HistoryPosition;
+import ch.vivates.ihe.hpd.pid.history.HistoryReader.EntryHandler;
+import ch.vivates.ihe.hpd.pid.history.HistoryStore;
+import ch.vivates.ihe.hpd.pid.model.cs.ChangesRequest;
+
+/**
+ * The Class ChangesRequestProcessorTest.
+ *
+ * @author Federico Marmory, Post CH, major development
+ */
+public class ChangesRequestProcessorTest {
+
+	/** The watermark of a response. */
+	private static final Pattern WATERMARK = Pattern.compile("<cs:watermark>([^<]*)</cs:watermark>");
+
+	/** The history, in the order it was written. */
+	private final WrittenHistory history = new WrittenHistory();
+
+	/** The processor. */
+	private final ChangesRequestProcessor processor = new ChangesRequestProcessor();
+
+	/**
+	 * Sets up the processor.
+	 */
+	@Before
+	public void setUp() {
+		processor.setHistoryStore(history);
+		processor.setSettleMillis(0);
+	}
+
+	/**
+	 * Test that an entry written after the watermark is returned even if its transaction date is
+	 * older than the transactions already returned, as when the history queue was behind.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testLateEntryAfterWatermark() throws Exception {
+		long now = System.currentTimeMillis();
+		history.add(now - 3600000, now - 10000, "<addRequest dn=\"uid=a\"/>");
+
+		String first = respond(null, new DateTime(now - 60000));
+		assertTrue(first.contains("uid=a"));
+
+		// Received two hours ago, written after the first response
+		history.add(now - 7200000, now - 5000, "<addRequest dn=\"uid=late\"/>");
+
+		String second = respond(watermarkOf(first), null);
+		assertTrue(second.contains("uid=late"));
+		assertFalse(second.contains("uid=a"));
+	}
+
+	/**
+	 * Test that the watermark of a request is returned again without new entries.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testWatermarkWithoutChanges() throws Exception {
+		long now = System.currentTimeMillis();
+		history.add(now - 3600000, now - 10000, "<addRequest dn=\"uid=a\"/>");
+		String watermark = watermarkOf(respond(null, new DateTime(now - 60000)));
+
+		assertEquals(watermark, watermarkOf(respond(watermark, null)));
+	}
+
+	/**
+	 * Test that the entries written before the from date of the first request are not returned.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testFromDate() throws Exception {
+		long now = System.currentTimeMillis();
+		history.add(now - 60000, now - 60000, "<addRequest dn=\"uid=old\"/>");
+		history.add(now - 3600000, now - 10000, "<addRequest dn=\"uid=a\"/>");
+
+		String response = respond(null, new DateTime(now - 30000));
+		assertFalse(response.contains("uid=old"));
+		assertTrue(response.contains("uid=a"));
+	}
+
+	/**
+	 * Test that the changes requests are rejected at startup with a store not supporting them.
+	 */
+	@Test(expected = IllegalStateException.class)
+	public void testUnsupportedStoreAtStartup() {
+		history.supported = false;
+		processor.init();
+	}
+
+	/**
+	 * Test that the service does not start with a settle time not exceeding the commit time of
+	 * the history writer.
+	 */
+	@Test(expected = IllegalStateException.class)
+	public void testSettleWithinCommitTime() {
+		history.maxCommitMillis = 1500;
+		processor.setSettleMillis(1500);
+		processor.init();
+	}
+
+	/**
+	 * Test that the service starts with a settle time exceeding the commit time of the history
+	 * writer.
+	 */
+	@Test
+	public void testSettleBeyondCommitTime() {
+		history.maxCommitMillis = 1500;
+		processor.setSettleMillis(2000);
+		processor.init();
+	}
+
+	/**
+	 * Test that a changes request is answered with an errorResponse when the changes requests are
+	 * disabled.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testDisabled() throws Exception {
+		history.supported = false;
+		processor.setEnabled(false);
+		processor.init();
+
+		Map<String, Object> params = processor.extractParams(request(null, new DateTime()), null);
+		StreamSource source = (StreamSource) processor.processChanges(params);
+		String response = new Scanner(source.getInputStream(), "UTF-8").useDelimiter("\\A").next();
+		assertTrue(response.contains("errorResponse type=\"notAttempted\""));
+		assertFalse(response.contains("watermark"));
+	}
+
+	/**
+	 * Test that a continuation token of a paged download is not accepted as watermark.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testDownloadToken() {
+		String token = DatatypeConverter.printBase64Binary("1.1000.1".getBytes());
+		processor.extractParams(request(token, null), null);
+	}
+
+	/**
+	 * Answers a changes request without waiting.
+	 *
+	 * @param watermark the watermark of the previous response
+	 * @param fromDate the from date of the first request
+	 * @return the response
+	 * @throws Exception the exception
+	 */
+	private String respond(String watermark, DateTime fromDate) throws Exception {
+		Map<String, Object> params = processor.extractParams(request(watermark, fromDate), null);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		processor.writeResponse(params, out);
+		return out.toString("UTF-8");
+	}
+
+	/**
+	 * Creates a changes request without waiting.
+	 *
+	 * @param watermark the watermark of the previous response
+	 * @param fromDate the from date of the first request
+	 * @return the request
+	 */
+	private static ChangesRequest request(String watermark, DateTime fromDate) {
+		ChangesRequest request = new ChangesRequest();
+		request.setRequestID("changes");
+		request.setWatermark(watermark);
+		request.setFromDate(fromDate != null ? fromDate.toGregorianCalendar() : null);
+		request.setWaitMillis(0);
+		return request;
+	}
+
+	/**
+	 * Gets the watermark of a response.
+	 *
+	 * @param response the response
+	 * @return the watermark
+	 */
+	private static String watermarkOf(String response) {
+		Matcher matcher = WATERMARK.matcher(response);
+		assertTrue(matcher.find());
+		return matcher.group(1);
+	}
+
+	/**
+	 * The Class WrittenHistory is a history store holding the entries in the order they were
+	 * written, answering the changes reads only.
+	 */
+	private static class WrittenHistory implements HistoryStore {
+
+		/** The transaction dates, which do not order the changes. */
+		private final List<Timestamp> dates = new ArrayList<Timestamp>();
+
+		/** The write positions. */
+		private final List<HistoryPosition> positions = new ArrayList<HistoryPosition>();
+
+		/** The bodies. */
+		private final List<String> bodies = new ArrayList<String>();
+
+		/** Whether the changes are supported. */
+		private boolean supported = true;
+
+		/** The longest time between the write of an entry and its commit. */
+		private long maxCommitMillis;
+
+		/**
+		 * Adds an entry.
+		 *
+		 * @param date the transaction date
+		 * @param written the time the entry was written
+		 * @param body the body
+		 */
+		private void add(long date, long written, String body) {
+			dates.add(new Timestamp(date));
+			positions.add(new HistoryPosition(new Timestamp(written), positions.size() + 1));
+			bodies.add(body);
+		}
+
+		@Override
+		public boolean isChangesSupported() {
+			return supported;
+		}
+
+		@Override
+		public long getMaxCommitMillis() {
+			return maxCommitMillis;
+		}
+
+		@Override
+		public HistoryPosition readChanges(Map<String, Object> parameters, HistoryPosition after, int pageSize, EntryHandler handler)
+				throws Exception {
+			HistoryPosition last = null;
+			for (int i = 0, count = 0; i < positions.size() && count < pageSize; i++) {
+				HistoryPosition position = positions.get(i);
+				if (position.getDate().after(after.getDate())
+						|| (position.getDate().equals(after.getDate()) && position.getId() > after.getId())) {
+					handler.entry(position, "feeder", new StringReader(bodies.get(i)));
+					last = position;
+					count++;
+				}
+			}
+			return last;
+		}
+
+		@Override
+		public void write(List<Map<String, Object>> entries) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long read(Map<String, Object> parameters, EntryHandler handler) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public HistoryPosition readPage(Map<String, Object> parameters, HistoryPosition after, int pageSize, EntryHandler handler) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long copy(Map<String, Object> parameters, XMLStreamWriter writer, OutputStream out) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void maintain() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+}
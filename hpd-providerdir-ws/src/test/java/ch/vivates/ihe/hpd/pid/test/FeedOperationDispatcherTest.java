@@ -0,0 +1,103 @@
+package ch.vivates.ihe.hpd.pid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import ch.vivates.ihe.hpd.pid.FeedOperationDispatcher;
+
+/**
+ * The Class FeedOperationDispatcherTest.
+ *
+ * @author Federico Marmory, Post CH, major development
+ */
+public class FeedOperationDispatcherTest {
+
+	/** The DSML namespace declaration of the operations. */
+	private static final String NS = " xmlns:ns2=\"urn:oasis:names:tc:DSML:2:0:core\"";
+
+	/**
+	 * Test that an operation is keyed by its target DN.
+	 */
+	@Test
+	public void testTarget() {
+		Set<String> keys = FeedOperationDispatcher.keys("<ns2:modifyRequest" + NS + " dn=\"uid=A,ou=HCProfessional,o=a\">"
+				+ "<ns2:modification name=\"cn\" operation=\"replace\"><ns2:value>A</ns2:value></ns2:modification>"
+				+ "</ns2:modifyRequest>", new HashSet<String>());
+
+		assertEquals(Arrays.asList("uid=a,ou=hcprofessional,o=a"), new ArrayList<String>(keys));
+	}
+
+	/**
+	 * Test that a modDN request is keyed by its old and new DN, below the new superior if any.
+	 */
+	@Test
+	public void testModDn() {
+		Set<String> renamed = FeedOperationDispatcher.keys("<ns2:modDNRequest" + NS
+				+ " dn=\"uid=a,ou=HCProfessional,o=a\" newrdn=\"uid=b\"/>", new HashSet<String>());
+		Set<String> moved = FeedOperationDispatcher.keys("<ns2:modDNRequest" + NS
+				+ " dn=\"uid=a,ou=HCProfessional,o=a\" newrdn=\"uid=a\" newSuperior=\"ou=HCProfessional,o=b\"/>", new HashSet<String>());
+
+		assertEquals(Arrays.asList("uid=a,ou=hcprofessional,o=a", "uid=b,ou=hcprofessional,o=a"), new ArrayList<String>(renamed));
+		assertEquals(Arrays.asList("uid=a,ou=hcprofessional,o=a", "uid=a,ou=hcprofessional,o=b"), new ArrayList<String>(moved));
+	}
+
+	/**
+	 * Test that the DNs of the relationship attributes are keys, those of other attributes not.
+	 */
+	@Test
+	public void testRelationships() {
+		Set<String> keys = FeedOperationDispatcher.keys("<ns2:addRequest" + NS + " dn=\"cn=r,ou=Relationship,o=a\">"
+				+ "<ns2:attr name=\"Member\"><ns2:value>uid=a,ou=HCProfessional,o=a</ns2:value>"
+				+ "<ns2:value>uid=b,ou=HCRegulatedOrganization,o=a</ns2:value></ns2:attr>"
+				+ "<ns2:attr name=\"owner\"><ns2:value>uid=c,ou=HCRegulatedOrganization,o=a</ns2:value></ns2:attr>"
+				+ "<ns2:attr name=\"seeAlso\"><ns2:value>uid=d,ou=HCProfessional,o=a</ns2:value></ns2:attr>"
+				+ "</ns2:addRequest>", new HashSet<String>());
+
+		assertEquals(Arrays.asList("cn=r,ou=relationship,o=a", "uid=a,ou=hcprofessional,o=a", "uid=b,ou=hcregulatedorganization,o=a",
+				"uid=c,ou=hcregulatedorganization,o=a"), new ArrayList<String>(keys));
+	}
+
+	/**
+	 * Test that an operation below an entry created earlier in the feed waits for it, and one
+	 * below an entry the feed did not create does not.
+	 */
+	@Test
+	public void testStructuralAncestor() {
+		Set<String> structural = new HashSet<String>();
+		FeedOperationDispatcher.keys("<ns2:addRequest" + NS + " dn=\"ou=New,o=a\"/>", structural);
+		assertTrue(structural.contains("ou=new,o=a"));
+
+		Set<String> below = FeedOperationDispatcher.keys("<ns2:addRequest" + NS + " dn=\"uid=x,ou=New,o=a\"/>", structural);
+		Set<String> elsewhere = FeedOperationDispatcher.keys("<ns2:delRequest" + NS + " dn=\"uid=y,ou=Old,o=a\"/>", structural);
+
+		assertEquals(Arrays.asList("uid=x,ou=new,o=a", "ou=new,o=a"), new ArrayList<String>(below));
+		assertEquals(Arrays.asList("uid=y,ou=old,o=a"), new ArrayList<String>(elsewhere));
+	}
+
+	/**
+	 * Test that a modify request does not make its target an ancestor of the later operations.
+	 */
+	@Test
+	public void testModifyNotStructural() {
+		Set<String> structural = new HashSet<String>();
+		FeedOperationDispatcher.keys("<ns2:modifyRequest" + NS + " dn=\"ou=New,o=a\"/>", structural);
+
+		assertTrue(structural.isEmpty());
+	}
+
+	/**
+	 * Test that an operation which cannot be read still gets a key.
+	 */
+	@Test
+	public void testMalformed() {
+		assertEquals(Arrays.asList(""), new ArrayList<String>(FeedOperationDispatcher.keys("<ns2:addRequest", new HashSet<String>())));
+	}
+
+}
@@ -0,0 +1,101 @@
+package ch.vivates.ihe.hpd.pid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Test;
+
+import ch.vivates.ihe.hpd.pid.FeedRequestSplitter;
+
+/**
+ * The Class FeedRequestSplitterTest.
+ * 
+ * @author Federico Marmory, Post CH, major development
+ */
+public class FeedRequestSplitterTest {
+
+	/** The feed. */
+	private static final String FEED = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+			+ "<ns2:batchRequest xmlns:ns2=\"urn:oasis:names:tc:DSML:2:0:core\" xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\""
+			+ " requestID=\"feed-1\" onError=\"resume\">\n"
+			+ "  <ns2:addRequest dn=\"uid=a,ou=HCProfessional\">"
+			+ "<ns2:attr name=\"cn\"><ns2:value>A &amp; B</ns2:value></ns2:attr></ns2:addRequest>\n"
+			+ "  <!-- comment -->\n"
+			+ "  <ns2:delRequest dn=\"uid=b,ou=HCProfessional\"/>\n"
+			+ "</ns2:batchRequest>";
+
+	/**
+	 * Test that the batchRequest attributes are copied to the headers.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testReadBatchAttributes() throws Exception {
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put("processing", "stale");
+		new FeedRequestSplitter().readBatchAttributes(feed(), headers);
+		assertEquals("feed-1", headers.get("requestID"));
+		assertEquals("resume", headers.get("onError"));
+		assertNull(headers.get("processing"));
+		assertNull(headers.get("responseOrder"));
+	}
+
+	/**
+	 * Test that every operation is emitted as standalone fragment.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testSplit() throws Exception {
+		Iterator<String> operations = new FeedRequestSplitter().split(feed());
+		assertTrue(operations.hasNext());
+		assertEquals("<ns2:addRequest xmlns:ns2=\"urn:oasis:names:tc:DSML:2:0:core\" xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\""
+				+ " dn=\"uid=a,ou=HCProfessional\"><ns2:attr name=\"cn\"><ns2:value>A &amp; B</ns2:value></ns2:attr></ns2:addRequest>",
+				operations.next());
+		assertTrue(operations.hasNext());
+		assertEquals("<ns2:delRequest xmlns:ns2=\"urn:oasis:names:tc:DSML:2:0:core\" xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\""
+				+ " dn=\"uid=b,ou=HCProfessional\"></ns2:delRequest>", operations.next());
+		assertFalse(operations.hasNext());
+	}
+
+	/**
+	 * Test an empty batch.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testEmptyBatch() throws Exception {
+		assertFalse(new FeedRequestSplitter().split(new ByteArrayInputStream("<batchRequest/>".getBytes("UTF-8"))).hasNext());
+	}
+
+	/**
+	 * Test that a malformed feed is rejected.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test(expected = XMLStreamException.class)
+	public void testMalformedFeed() throws Exception {
+		new FeedRequestSplitter().split(new ByteArrayInputStream("no xml".getBytes("UTF-8")));
+	}
+
+	/**
+	 * Gets the feed as stream.
+	 *
+	 * @return the stream
+	 * @throws Exception the exception
+	 */
+	private static InputStream feed() throws Exception {
+		return new ByteArrayInputStream(FEED.getBytes("UTF-8"));
+	}
+
+}
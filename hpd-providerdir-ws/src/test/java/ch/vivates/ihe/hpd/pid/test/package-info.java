@@ -0,0 +1,7 @@
+/**
+ * Contains the test classes for the provider information directory service. 
+ *
+ * @author  Federico Marmori
+ */
+
+package ch.vivates.ihe.hpd.pid.test;
@@ -0,0 +1,88 @@
+package ch.vivates.tools.dsmlv2.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import ch.vivates.tools.dsmlv2.DsmlRequestPreprocessor;
+
+/**
+ * The Class DsmlRequestPreprocessorTest.
+ * 
+ * @author Federico Marmory, Post CH, major development
+ */
+public class DsmlRequestPreprocessorTest {
+
+	/**
+	 * Test that the string requestID is captured and replaced.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testRequestIdRewriting() throws IOException {
+		DsmlRequestPreprocessor preprocessor = preprocessor(
+				"<?xml version=\"1.0\"?><ns2:batchRequest xmlns:ns2=\"urn:oasis:names:tc:DSML:2:0:core\" requestID=\"query-42\">"
+						+ "<ns2:searchRequest dn=\"ou=HCProfessional\"/></ns2:batchRequest>");
+		assertEquals("<?xml version=\"1.0\"?><ns2:batchRequest xmlns:ns2=\"urn:oasis:names:tc:DSML:2:0:core\" requestID=\"1\">"
+				+ "<ns2:searchRequest dn=\"ou=HCProfessional\"/></ns2:batchRequest>", readFully(preprocessor));
+		assertEquals("query-42", preprocessor.getRequestID());
+	}
+
+	/**
+	 * Test that a batch without requestID passes unchanged.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testWithoutRequestId() throws IOException {
+		String batch = "<batchRequest onError='exit'><searchRequest dn='ou=HCProfessional'/></batchRequest>";
+		DsmlRequestPreprocessor preprocessor = preprocessor(batch);
+		assertEquals(batch, readFully(preprocessor));
+		assertNull(preprocessor.getRequestID());
+	}
+
+	/**
+	 * Test that modifications pass unchanged.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testModification() throws IOException {
+		String batch = "<batchRequest><dsml:addRequest dn='uid=x'/></batchRequest>";
+		assertEquals(batch, readFully(preprocessor(batch)));
+	}
+
+	/**
+	 * Creates a preprocessor for a batch.
+	 *
+	 * @param batch the batch
+	 * @return the preprocessor
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private DsmlRequestPreprocessor preprocessor(String batch) throws IOException {
+		return new DsmlRequestPreprocessor(new ByteArrayInputStream(batch.getBytes("UTF-8")), "UTF-8");
+	}
+
+	/**
+	 * Reads the stream in small chunks.
+	 *
+	 * @param preprocessor the preprocessor
+	 * @return the content as String
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private String readFully(DsmlRequestPreprocessor preprocessor) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[7];
+		int n;
+		while ((n = preprocessor.read(buffer, 0, buffer.length)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toString("UTF-8");
+	}
+
+}
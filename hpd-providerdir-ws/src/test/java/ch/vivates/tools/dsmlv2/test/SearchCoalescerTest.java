@@ -0,0 +1,146 @@
+package ch.vivates.tools.dsmlv2.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchResultDoneImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
+import org.junit.Test;
+
+import ch.vivates.tools.dsmlv2.SearchCoalescer;
+import ch.vivates.tools.dsmlv2.SearchKey;
+import ch.vivates.tools.dsmlv2.SearchResultCache;
+
+/**
+ * The Class SearchCoalescerTest.
+ *
+ * @author Federico Marmory, Post CH, major development
+ */
+public class SearchCoalescerTest {
+
+	/** The coalescer. */
+	private final SearchCoalescer coalescer = new SearchCoalescer();
+
+	/**
+	 * Test that a follower replays the result of the leader.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testShare() throws Exception {
+		SearchCoalescer.Flight leader = coalescer.join(key());
+		SearchCoalescer.Flight follower = coalescer.join(key());
+		assertTrue(leader.isLeader());
+		assertFalse(follower.isLeader());
+
+		leader.add(new SearchResultEntryImpl(1));
+		leader.complete(done(ResultCodeEnum.SUCCESS));
+
+		SearchResultCache.Result result = follower.await();
+		assertNotNull(result);
+		assertEquals(1, result.getResponses().size());
+		assertEquals(1, coalescer.getCoalesced());
+		assertEquals(0, coalescer.getInFlight());
+	}
+
+	/**
+	 * Test that a follower sends its own search if the leader fails without result.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testFallbackOnFailure() throws Exception {
+		SearchCoalescer.Flight leader = coalescer.join(key());
+		SearchCoalescer.Flight follower = coalescer.join(key());
+
+		leader.finish();
+
+		assertNull(follower.await());
+		assertEquals(1, coalescer.getFallbacks());
+	}
+
+	/**
+	 * Test that a follower sends its own search if the result of the leader is too large to share.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testFallbackOnLargeResult() throws Exception {
+		coalescer.setMaxEntries(1);
+		SearchCoalescer.Flight leader = coalescer.join(key());
+		SearchCoalescer.Flight follower = coalescer.join(key());
+
+		leader.add(new SearchResultEntryImpl(1));
+		leader.add(new SearchResultEntryImpl(1));
+
+		// Released as soon as the result is too large, before the search completes
+		assertNull(follower.await());
+		leader.complete(done(ResultCodeEnum.SUCCESS));
+		assertEquals(1, coalescer.getFallbacks());
+	}
+
+	/**
+	 * Test that a follower sends its own search once the maximum wait is exceeded.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testFallbackOnTimeout() throws Exception {
+		coalescer.setMaxWaitMillis(50);
+		coalescer.join(key());
+		SearchCoalescer.Flight follower = coalescer.join(key());
+
+		assertNull(follower.await());
+		assertEquals(1, coalescer.getFallbacks());
+	}
+
+	/**
+	 * Test that a search started after a change leads a new flight, while the followers of the
+	 * detached flight still get its result.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testDetach() throws Exception {
+		SearchCoalescer.Flight leader = coalescer.join(key());
+		SearchCoalescer.Flight follower = coalescer.join(key());
+
+		coalescer.detachAll();
+		SearchCoalescer.Flight after = coalescer.join(key());
+		assertTrue(after.isLeader());
+
+		leader.complete(done(ResultCodeEnum.SUCCESS));
+		assertNotNull(follower.await());
+		assertEquals(1, coalescer.getInFlight());
+		after.finish();
+		assertEquals(0, coalescer.getInFlight());
+	}
+
+	/**
+	 * Creates the key of the searches.
+	 *
+	 * @return the search key
+	 * @throws Exception the exception
+	 */
+	private static SearchKey key() throws Exception {
+		return SearchResultCacheTest.key("ou=HCProfessional,o=a,c=ch");
+	}
+
+	/**
+	 * Creates a searchResultDone.
+	 *
+	 * @param resultCode the result code
+	 * @return the searchResultDone
+	 */
+	private static SearchResultDone done(ResultCodeEnum resultCode) {
+		SearchResultDone done = new SearchResultDoneImpl(1);
+		done.getLdapResult().setResultCode(resultCode);
+		return done;
+	}
+
+}
@@ -0,0 +1,203 @@
+package ch.vivates.tools.dsmlv2.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
+import org.apache.directory.api.ldap.model.message.SearchResultDoneImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.junit.Test;
+
+import ch.vivates.tools.dsmlv2.SearchKey;
+import ch.vivates.tools.dsmlv2.SearchResultCache;
+
+/**
+ * The Class SearchResultCacheTest.
+ *
+ * @author Federico Marmory, Post CH, major development
+ */
+public class SearchResultCacheTest {
+
+	/** The base DN of the first community. */
+	private static final String COMMUNITY_A = "ou=HCProfessional,o=a,c=ch";
+
+	/** The base DN of the second community. */
+	private static final String COMMUNITY_B = "ou=HCProfessional,o=b,c=ch";
+
+	/** The cache. */
+	private final SearchResultCache cache = new SearchResultCache();
+
+	/**
+	 * Test that a successful result is stored and answered from the cache.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testStore() throws Exception {
+		SearchKey key = key(COMMUNITY_A);
+		store(key, 2, ResultCodeEnum.SUCCESS);
+
+		assertNull(cache.get(key(COMMUNITY_B)));
+		SearchResultCache.Result result = cache.get(key);
+		assertNotNull(result);
+		assertEquals(2, result.getResponses().size());
+		assertEquals(7, result.newDone(7).getMessageId());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	/**
+	 * Test that a failed search is not stored.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testFailureNotStored() throws Exception {
+		SearchKey key = key(COMMUNITY_A);
+		store(key, 0, ResultCodeEnum.NO_SUCH_OBJECT);
+
+		assertNull(cache.get(key));
+	}
+
+	/**
+	 * Test that a result with more entries than allowed is not stored.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testLargeResultNotStored() throws Exception {
+		cache.setMaxEntriesPerResult(1);
+		SearchKey key = key(COMMUNITY_A);
+		store(key, 2, ResultCodeEnum.SUCCESS);
+
+		assertNull(cache.get(key));
+	}
+
+	/**
+	 * Test that a change invalidates the results on the branch of the entry only: its ancestors
+	 * and descendants, not its siblings.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testInvalidateBranch() throws Exception {
+		store(key(COMMUNITY_A), 1, ResultCodeEnum.SUCCESS);
+		store(key(COMMUNITY_B), 1, ResultCodeEnum.SUCCESS);
+		store(key("uid=x," + COMMUNITY_A), 1, ResultCodeEnum.SUCCESS);
+
+		cache.invalidate(new Dn("uid=x," + COMMUNITY_A));
+
+		assertNull(cache.get(key(COMMUNITY_A)));
+		assertNull(cache.get(key("uid=x," + COMMUNITY_A)));
+		assertNotNull(cache.get(key(COMMUNITY_B)));
+		assertEquals(2, cache.getInvalidations());
+		assertEquals(1, cache.getSize());
+
+		cache.invalidate(new Dn("o=b,c=ch"));
+		assertNull(cache.get(key(COMMUNITY_B)));
+	}
+
+	/**
+	 * Test that a search sent before an invalidation does not store its result, even if the
+	 * invalidated entry is not on its branch, since the cache cannot tell when the search read it.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testResultOfEarlierGenerationNotStored() throws Exception {
+		SearchKey key = key(COMMUNITY_A);
+		SearchResultCache.Collector collector = cache.newCollector(key);
+		collector.add(new SearchResultEntryImpl(1));
+
+		cache.invalidate(new Dn("uid=x," + COMMUNITY_B));
+		collector.complete(done(ResultCodeEnum.SUCCESS));
+
+		assertNull(cache.get(key));
+
+		store(key, 1, ResultCodeEnum.SUCCESS);
+		assertNotNull(cache.get(key));
+	}
+
+	/**
+	 * Test that the least recently used result is evicted beyond the maximum number of results.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testEviction() throws Exception {
+		cache.setMaxResults(2);
+		store(key(COMMUNITY_A), 1, ResultCodeEnum.SUCCESS);
+		store(key(COMMUNITY_B), 1, ResultCodeEnum.SUCCESS);
+		assertNotNull(cache.get(key(COMMUNITY_A)));
+		store(key("o=c,c=ch"), 1, ResultCodeEnum.SUCCESS);
+
+		assertNull(cache.get(key(COMMUNITY_B)));
+		assertNotNull(cache.get(key(COMMUNITY_A)));
+		assertEquals(1, cache.getEvictions());
+	}
+
+	/**
+	 * Test that a cleared cache holds no result and rejects the results of earlier searches.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test
+	public void testClear() throws Exception {
+		SearchKey key = key(COMMUNITY_A);
+		store(key, 1, ResultCodeEnum.SUCCESS);
+		SearchResultCache.Collector collector = cache.newCollector(key(COMMUNITY_B));
+
+		cache.clear();
+		collector.complete(done(ResultCodeEnum.SUCCESS));
+
+		assertEquals(0, cache.getSize());
+		assertEquals(1, cache.getInvalidations());
+	}
+
+	/**
+	 * Stores the result of a search through a collector.
+	 *
+	 * @param key the search key
+	 * @param entries the number of entries
+	 * @param resultCode the result code of the search
+	 */
+	private void store(SearchKey key, int entries, ResultCodeEnum resultCode) {
+		SearchResultCache.Collector collector = cache.newCollector(key);
+		for (int i = 0; i < entries; i++) {
+			collector.add(new SearchResultEntryImpl(1));
+		}
+		collector.complete(done(resultCode));
+	}
+
+	/**
+	 * Creates a searchResultDone.
+	 *
+	 * @param resultCode the result code
+	 * @return the searchResultDone
+	 */
+	private static SearchResultDone done(ResultCodeEnum resultCode) {
+		SearchResultDone done = new SearchResultDoneImpl(1);
+		done.getLdapResult().setResultCode(resultCode);
+		return done;
+	}
+
+	/**
+	 * Creates the key of a search below a base DN.
+	 *
+	 * @param base the base DN
+	 * @return the search key
+	 * @throws Exception the exception
+	 */
+	static SearchKey key(String base) throws Exception {
+		SearchRequest request = new SearchRequestImpl();
+		request.setBase(new Dn(base));
+		request.setFilter("(objectClass=*)");
+		return SearchKey.create(request);
+	}
+
+}
@@ -0,0 +1,7 @@
+/**
+ * Contains the test classes for the DSMLv2 tools. 
+ *
+ * @author  Federico Marmori
+ */
+
+package ch.vivates.tools.dsmlv2.test;
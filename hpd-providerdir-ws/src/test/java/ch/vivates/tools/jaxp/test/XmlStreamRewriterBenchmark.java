@@ -0,0 +1,148 @@
+package ch.vivates.tools.jaxp.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import ch.vivates.tools.jaxp.XmlStreamRewriter;
+
+/**
+ * The Class XmlStreamRewriterBenchmark compares the cost per feed operation of the DOM based
+ * batchRequest and authRequest injection with the XmlStreamRewriter. It is not a test and is not
+ * run by the build: run its main method from the IDE or with the test classpath, it prints the
+ * time per operation of both implementations.
+ * 
+ * @author Federico Marmory, Post CH, major development
+ */
+public class XmlStreamRewriterBenchmark {
+
+	/** The Constant DSML. */
+	private static final String DSML = "urn:oasis:names:tc:DSML:2:0:core";
+
+	/** The number of operations per measurement. */
+	private static final int OPERATIONS = 20000;
+
+	/** A typical feed operation as emitted by the splitter. */
+	private static final String OPERATION = "<ns2:addRequest xmlns:ns2=\"" + DSML + "\" dn=\"uid=CommunityA:00001234,ou=HCProfessional,"
+			+ "dc=HPD,o=BAG,c=ch\"><ns2:attr name=\"objectClass\"><ns2:value>top</ns2:value><ns2:value>HCProfessional</ns2:value>"
+			+ "<ns2:value>inetOrgPerson</ns2:value></ns2:attr><ns2:attr name=\"cn\"><ns2:value>Muster Hans</ns2:value></ns2:attr>"
+			+ "<ns2:attr name=\"sn\"><ns2:value>Muster</ns2:value></ns2:attr><ns2:attr name=\"givenName\"><ns2:value>Hans</ns2:value>"
+			+ "</ns2:attr><ns2:attr name=\"hcIdentifier\"><ns2:value>RefData:GLN:7601000000000</ns2:value></ns2:attr>"
+			+ "<ns2:attr name=\"mail\"><ns2:value>hans.muster@example.ch</ns2:value></ns2:attr></ns2:addRequest>";
+
+	/**
+	 * Measures both implementations, each after a warm up.
+	 *
+	 * @param args the arguments, none
+	 * @throws Exception the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		byte[] operation = OPERATION.getBytes("UTF-8");
+		for (int round = 0; round < 2; round++) {
+			long dom = measure(operation, true);
+			long stream = measure(operation, false);
+			if (round == 1) {
+				System.out.println(String.format("DOM: %.1f us/operation, XmlStreamRewriter: %.1f us/operation", dom / 1000.0
+						/ OPERATIONS, stream / 1000.0 / OPERATIONS));
+			}
+		}
+	}
+
+	/**
+	 * Wraps the operation into a batchRequest and appends the authRequest, as the feed route does.
+	 *
+	 * @param operation the operation
+	 * @param dom true to use the DOM implementation
+	 * @return the elapsed time in nanoseconds
+	 * @throws Exception the exception
+	 */
+	private static long measure(byte[] operation, boolean dom) throws Exception {
+		Map<String, String> attributes = new LinkedHashMap<String, String>();
+		attributes.put("requestID", "feed-1");
+		attributes.put("onError", "exit");
+		Map<String, String> principal = Collections.singletonMap("principal", "CN=benchmark");
+
+		long start = System.nanoTime();
+		for (int i = 0; i < OPERATIONS; i++) {
+			InputStream batch;
+			InputStream history;
+			if (dom) {
+				batch = domWrap(new ByteArrayInputStream(operation), "feed-1", "exit");
+				history = domAppend(new ByteArrayInputStream(operation), "CN=benchmark");
+			} else {
+				batch = XmlStreamRewriter.wrap(new ByteArrayInputStream(operation), "dsml", "batchRequest", DSML, attributes);
+				history = XmlStreamRewriter.appendElement(new ByteArrayInputStream(operation), "dsml", "authRequest", DSML, principal);
+			}
+			XmlStreamRewriterTest.read(batch);
+			XmlStreamRewriterTest.read(history);
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * The former DOM based batchRequest injection.
+	 *
+	 * @param is the operation
+	 * @param requestID the request id
+	 * @param onError the on error tag
+	 * @return the batch request
+	 * @throws Exception the exception
+	 */
+	private static InputStream domWrap(InputStream is, String requestID, String onError) throws Exception {
+		DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		Node oldRoot = builder.parse(is).getDocumentElement();
+		Document newDoc = builder.newDocument();
+		Element newRoot = newDoc.createElementNS(DSML, "dsml:batchRequest");
+		newRoot.setAttribute("requestID", requestID);
+		newRoot.setAttribute("onError", onError);
+		newDoc.appendChild(newRoot);
+		newRoot.appendChild(newDoc.importNode(oldRoot, true));
+		return serialize(newDoc);
+	}
+
+	/**
+	 * The former DOM based authRequest injection.
+	 *
+	 * @param is the operation
+	 * @param principal the principal
+	 * @return the operation with the authRequest
+	 * @throws Exception the exception
+	 */
+	private static InputStream domAppend(InputStream is, String principal) throws Exception {
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
+		Element authNode = doc.createElementNS(DSML, "dsml:authRequest");
+		authNode.setAttribute("principal", principal);
+		doc.getDocumentElement().appendChild(authNode);
+		return serialize(doc);
+	}
+
+	/**
+	 * Serializes a document as the former implementation did.
+	 *
+	 * @param doc the document
+	 * @return the serialized document
+	 * @throws Exception the exception
+	 */
+	private static InputStream serialize(Document doc) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Transformer tr = TransformerFactory.newInstance().newTransformer();
+		tr.setOutputProperty("omit-xml-declaration", "yes");
+		tr.transform(new DOMSource(doc), new StreamResult(out));
+		return new ByteArrayInputStream(out.toByteArray());
+	}
+
+}
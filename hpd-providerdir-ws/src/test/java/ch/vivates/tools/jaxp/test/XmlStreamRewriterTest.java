@@ -0,0 +1,131 @@
+package ch.vivates.tools.jaxp.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import ch.vivates.tools.jaxp.XmlStreamRewriter;
+
+/**
+ * The Class XmlStreamRewriterTest.
+ * 
+ * @author Federico Marmory, Post CH, major development
+ */
+public class XmlStreamRewriterTest {
+
+	/** The Constant DSML. */
+	private static final String DSML = "urn:oasis:names:tc:DSML:2:0:core";
+
+	/**
+	 * Test wrapping an operation into a batchRequest.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testWrap() throws IOException {
+		Map<String, String> attributes = new LinkedHashMap<String, String>();
+		attributes.put("requestID", "a&\"b\"");
+		attributes.put("onError", "resume");
+		assertEquals("<dsml:batchRequest xmlns:dsml=\"" + DSML + "\" requestID=\"a&amp;&quot;b&quot;\" onError=\"resume\">"
+				+ "<ns2:delRequest xmlns:ns2=\"" + DSML + "\" dn=\"uid=a\"/></dsml:batchRequest>",
+				read(XmlStreamRewriter.wrap(stream("<ns2:delRequest xmlns:ns2=\"" + DSML + "\" dn=\"uid=a\"/>"), "dsml", "batchRequest",
+						DSML, attributes)));
+	}
+
+	/**
+	 * Test that the XML declaration and the byte order mark of the wrapped document are dropped.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testWrapDropsDeclaration() throws IOException {
+		byte[] bom = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+		byte[] doc = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><a/>".getBytes("UTF-8");
+		byte[] withBom = new byte[bom.length + doc.length];
+		System.arraycopy(bom, 0, withBom, 0, bom.length);
+		System.arraycopy(doc, 0, withBom, bom.length, doc.length);
+		Map<String, String> none = Collections.emptyMap();
+		assertEquals("<r xmlns=\"urn:x\"><a/></r>", read(XmlStreamRewriter.wrap(new ByteArrayInputStream(withBom), null, "r", "urn:x", none)));
+		assertEquals("<r xmlns=\"urn:x\"><a></r>", read(XmlStreamRewriter.wrap(stream("<a>"), null, "r", "urn:x", none)));
+	}
+
+	/**
+	 * Test appending the authRequest to an operation.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testAppendElement() throws IOException {
+		Map<String, String> principal = Collections.singletonMap("principal", "CN=test");
+		assertEquals("<ns2:addRequest dn=\"uid=a\"><ns2:attr name=\"cn\"/><dsml:authRequest xmlns:dsml=\"" + DSML
+				+ "\" principal=\"CN=test\"/></ns2:addRequest>\n", read(XmlStreamRewriter.appendElement(
+				stream("<ns2:addRequest dn=\"uid=a\"><ns2:attr name=\"cn\"/></ns2:addRequest>\n"), "dsml", "authRequest", DSML, principal)));
+		assertEquals("<!-- c --><ns2:delRequest dn=\"uid=a\"><dsml:authRequest xmlns:dsml=\"" + DSML
+				+ "\" principal=\"CN=test\"/></ns2:delRequest>", read(XmlStreamRewriter.appendElement(
+				stream("<?xml version=\"1.0\"?><!-- c --><ns2:delRequest dn=\"uid=a\"/>"), "dsml", "authRequest", DSML, principal)));
+	}
+
+	/**
+	 * Test that comments and processing instructions after the root element are kept, and that
+	 * markup characters in attribute values, comments and CDATA sections are not taken for tags.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test
+	public void testAppendElementBeforeTrailingMarkup() throws IOException {
+		Map<String, String> none = Collections.emptyMap();
+		assertEquals("<a x=\"/>\"><b/><e xmlns=\"urn:x\"/></a><!-- </a> --><?pi?>\n", read(XmlStreamRewriter.appendElement(
+				stream("<a x=\"/>\"><b/></a><!-- </a> --><?pi?>\n"), null, "e", "urn:x", none)));
+		assertEquals("<a><![CDATA[</a>]]><!-- <a/> --><e xmlns=\"urn:x\"/></a>", read(XmlStreamRewriter.appendElement(
+				stream("<a><![CDATA[</a>]]><!-- <a/> --></a>"), null, "e", "urn:x", none)));
+		assertEquals("<a y='1'><e xmlns=\"urn:x\"/></a><!-- c -->", read(XmlStreamRewriter.appendElement(stream("<a y='1'/><!-- c -->"),
+				null, "e", "urn:x", none)));
+	}
+
+	/**
+	 * Test that a document without root end tag is rejected.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test(expected = IOException.class)
+	public void testAppendElementToTruncatedDocument() throws IOException {
+		read(XmlStreamRewriter.appendElement(stream("<a><b/>"), "dsml", "authRequest", DSML, Collections.<String, String> emptyMap()));
+	}
+
+	/**
+	 * Gets a stream on a string.
+	 *
+	 * @param s the string
+	 * @return the stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static InputStream stream(String s) throws IOException {
+		return new ByteArrayInputStream(s.getBytes("UTF-8"));
+	}
+
+	/**
+	 * Reads a stream as string.
+	 *
+	 * @param in the stream
+	 * @return the string
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[256];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toString("UTF-8");
+	}
+
+}
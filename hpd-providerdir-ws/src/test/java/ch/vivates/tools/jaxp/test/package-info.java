@@ -0,0 +1,7 @@
+/**
+ * Contains the test classes for the JAXP tools. 
+ *
+ * @author  Federico Marmori
+ */
+
+package ch.vivates.tools.jaxp.test;